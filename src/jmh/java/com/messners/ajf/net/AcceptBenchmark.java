@@ -0,0 +1,102 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the accept path of a Server, each operation connects a
+ * loopback client and waits for the handler to close the connection.
+ * This covers accept(), the rate limiter, connection tracking, dispatch
+ * and the handler starting.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcceptBenchmark {
+
+	/**
+	 * "thread" starts a thread for each connection, "pooled" runs the
+	 * handlers with a PooledConnectionDispatcher.
+	 */
+	@Param({ "thread", "pooled" })
+	public String dispatcher;
+
+
+	private Server server;
+	private InetAddress loopback;
+	private int port;
+
+
+	/**
+	 * Closes each connection as soon as it is handled.
+	 */
+	public static class CloseHandler implements ConnectionHandler {
+
+		public void process (Server server, Socket connection) {
+
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+
+	@Setup(Level.Trial)
+	public void setup () throws Exception {
+
+		java.util.logging.Logger.getLogger("com.messners.ajf.net").setLevel(
+			java.util.logging.Level.WARNING);
+
+		loopback = InetAddress.getByName("127.0.0.1");
+		server = new Server(0, 1024, loopback);
+		server.setConnectionHandlerClass(CloseHandler.class);
+		if ("pooled".equals(dispatcher)) {
+			server.setConnectionDispatcher(new PooledConnectionDispatcher(8, 64, 1024,
+				ConnectionDispatcher.PARK, 0));
+		}
+
+		server.start();
+		port = server.getLocalPort();
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		server.stop();
+	}
+
+
+	@Benchmark
+	public int connect () throws IOException {
+
+		Socket socket = new Socket(loopback, port);
+		try {
+			return (socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares the old reflective Class.newInstance() path for creating
+ * connection handlers with the ConnectionHandlerFactory and the pooled
+ * ConnectionHandlerFactory paths, both for creating handlers alone and
+ * for the accept throughput of a Server.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionHandlerFactoryBenchmark {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+
+	/**
+	 * "reflective" calls Class.newInstance() for every connection, "class"
+	 * uses a ClassConnectionHandlerFactory, "direct" a factory that calls
+	 * the constructor and "pooled" a PooledConnectionHandlerFactory.
+	 */
+	@Param({ "reflective", "class", "direct", "pooled" })
+	public String factoryType;
+
+
+	private ConnectionHandlerFactory factory;
+	private Server server;
+	private InetAddress loopback;
+	private int port;
+
+
+	/**
+	 * A handler with an expensive per handler buffer that simply closes
+	 * the connection.
+	 */
+	public static class BufferedHandler implements ResettableConnectionHandler {
+
+		private byte buffer[] = new byte[BUFFER_SIZE];
+
+		public void process (Server server, Socket connection) {
+
+			buffer[0] = 1;
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		public void reset () {
+			buffer[0] = 0;
+		}
+	}
+
+
+	/**
+	 * Reproduces the original Server code path, Class.newInstance() for
+	 * every connection.
+	 */
+	private static class ReflectiveFactory implements ConnectionHandlerFactory {
+
+		@SuppressWarnings("deprecation")
+		public ConnectionHandler newConnectionHandler () throws Exception {
+			return (BufferedHandler.class.newInstance());
+		}
+
+		public void releaseConnectionHandler (ConnectionHandler handler) {
+		}
+	}
+
+
+	private static class DirectFactory implements ConnectionHandlerFactory {
+
+		public ConnectionHandler newConnectionHandler () {
+			return (new BufferedHandler());
+		}
+
+		public void releaseConnectionHandler (ConnectionHandler handler) {
+		}
+	}
+
+
+	@Setup(Level.Trial)
+	public void setup () throws Exception {
+
+		java.util.logging.Logger.getLogger("com.messners.ajf.net").setLevel(
+			java.util.logging.Level.WARNING);
+
+		if ("reflective".equals(factoryType)) {
+			factory = new ReflectiveFactory();
+		} else if ("class".equals(factoryType)) {
+			factory = new ClassConnectionHandlerFactory(BufferedHandler.class);
+		} else if ("direct".equals(factoryType)) {
+			factory = new DirectFactory();
+		} else {
+			factory = new PooledConnectionHandlerFactory(new DirectFactory());
+		}
+
+		loopback = InetAddress.getByName("127.0.0.1");
+		server = new Server(0, 1024, loopback);
+		server.setConnectionHandlerFactory(factory);
+		server.setConnectionDispatcher(new PooledConnectionDispatcher(4, 4, 4096,
+			ConnectionDispatcher.PARK, 0));
+		server.start();
+		port = server.getLocalPort();
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		server.stop();
+	}
+
+
+	@Benchmark
+	public ConnectionHandler createHandler () throws Exception {
+
+		ConnectionHandler handler = factory.newConnectionHandler();
+		factory.releaseConnectionHandler(handler);
+		return (handler);
+	}
+
+
+	@Benchmark
+	public int connect () throws IOException {
+
+		Socket socket = new Socket(loopback, port);
+		try {
+			return (socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the SocketMux fan-out path, each operation writes one chunk
+ * into a ByteRingBuffer and has every reader write it to a channel that
+ * discards it, so the cost of the sockets is left out.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+	@Param({ "1", "16", "256" })
+	public int readers;
+
+	@Param({ "64", "1024", "16384" })
+	public int chunkSize;
+
+	@Param({ "false", "true" })
+	public boolean direct;
+
+
+	private ByteRingBuffer ring;
+	private ByteRingBuffer.Reader ringReaders[];
+	private byte chunk[];
+	private DiscardChannel sink = new DiscardChannel();
+
+
+	/**
+	 * Counts and discards everything written to it.
+	 */
+	private static class DiscardChannel implements GatheringByteChannel {
+
+		private long count;
+
+		public long write (ByteBuffer srcs[], int offset, int length) {
+
+			long n = 0;
+			for (int i = offset; i < offset + length; i++) {
+				n += srcs[i].remaining();
+				srcs[i].position(srcs[i].limit());
+			}
+
+			count += n;
+			return (n);
+		}
+
+		public long write (ByteBuffer srcs[]) {
+			return (write(srcs, 0, srcs.length));
+		}
+
+		public int write (ByteBuffer src) {
+			return ((int)write(new ByteBuffer[] { src }, 0, 1));
+		}
+
+		public boolean isOpen () {
+			return (true);
+		}
+
+		public void close () {
+		}
+	}
+
+
+	@Setup(Level.Trial)
+	public void setup () {
+
+		ring = new ByteRingBuffer(SocketMux.DEFAULT_RING_BUFFER_SIZE, direct);
+		ringReaders = new ByteRingBuffer.Reader[readers];
+		for (int i = 0; i < readers; i++) {
+			ringReaders[i] = ring.newReader();
+		}
+
+		chunk = new byte[chunkSize];
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		ring.close();
+	}
+
+
+	@Benchmark
+	public long fanOut () throws IOException {
+
+		ring.write(chunk, 0, chunk.length);
+		for (ByteRingBuffer.Reader reader : ringReaders) {
+			reader.writeTo(sink);
+		}
+
+		return (sink.count);
+	}
+}
@@ -0,0 +1,512 @@
+package com.messners.ajf.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.messners.ajf.util.GetOpt;
+import com.messners.ajf.util.LatencyHistogram;
+
+
+/**
+ * This class drives a Server or a SocketMux with loopback clients and
+ * reports the connection rate, the throughput and the latency
+ * percentiles.  The server and the clients run in this JVM so the
+ * latencies are measured with System.nanoTime() stamped into each
+ * message.  The modes are:
+ * <ul>
+ * <li>echo - each client sends a message and waits for the Server to
+ * echo it back, the latency is the round trip</li>
+ * <li>sink - each client writes messages as fast as the Server reads
+ * them, the latency is the time each write blocks</li>
+ * <li>mux - a local upstream stand-in sends messages to a SocketMux which
+ * relays them to every client, the latency is from the upstream write to
+ * the client read</li>
+ * </ul>
+ * Run it with the benchmark profile:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec \
+ *     -Dbenchmark.main=com.messners.ajf.net.LoadGenerator \
+ *     -Dbenchmark.args="-m echo -c 2000 -d 10"
+ * </pre>
+ * Thousands of clients need a matching open file limit (ulimit -n).
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class LoadGenerator {
+
+	public static final int ECHO = 0;
+	public static final int SINK = 1;
+	public static final int MUX = 2;
+
+	private static final String MODE_NAMES[] = { "echo", "sink", "mux" };
+
+
+	/**
+	 * The smallest message, it must hold the timestamp.
+	 */
+	public static final int MIN_MESSAGE_SIZE = 8;
+
+
+	private int mode = ECHO;
+	private int clients = 1000;
+	private int duration = 10;
+	private int messageSize = 64;
+	private int upstreamRate = 10000;
+
+	private LatencyHistogram latencies = new LatencyHistogram();
+	private AtomicLong messages = new AtomicLong();
+	private AtomicLong bytes = new AtomicLong();
+	private AtomicInteger errors = new AtomicInteger();
+	private volatile boolean running;
+	private volatile boolean upstreamStarted;
+
+
+	public LoadGenerator () {
+	}
+
+
+	public void setMode (int mode) {
+		this.mode = mode;
+	}
+
+
+	public void setClients (int clients) {
+		this.clients = clients;
+	}
+
+
+	public void setDuration (int duration) {
+		this.duration = duration;
+	}
+
+
+	public void setMessageSize (int messageSize) {
+		this.messageSize = Math.max(MIN_MESSAGE_SIZE, messageSize);
+	}
+
+
+	/**
+	 * Sets the number of messages per second the upstream stand-in sends
+	 * in mux mode.
+	 *
+	 * @param  upstreamRate  the messages per second, 0 for as fast as possible
+	 */
+	public void setUpstreamRate (int upstreamRate) {
+		this.upstreamRate = upstreamRate;
+	}
+
+
+	/**
+	 * Runs the load and prints the report to System.out.
+	 *
+	 * @throws Exception if the server could not be started
+	 */
+	public void run () throws Exception {
+
+		/*
+		 * Logging each connection would be most of the accept cost.
+		 */
+		Logger.getLogger("com.messners.ajf.net").setLevel(Level.WARNING);
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		ServerSocket upstream = null;
+		Thread upstreamThread = null;
+		Server server;
+
+		if (mode == MUX) {
+
+			upstream = new ServerSocket(0, 5, loopback);
+			upstreamThread = new UpstreamThread(upstream);
+			upstreamThread.start();
+
+			/*
+			 * The clients read whole messages, so the mux throttles the
+			 * upstream instead of dropping part of a message.
+			 */
+			SocketMux mux = new SocketMux("127.0.0.1", upstream.getLocalPort(), 0);
+			mux.setSlowConsumerPolicy(SocketMux.THROTTLE);
+			server = mux;
+
+		} else {
+
+			server = new Server(0, Math.max(50, clients), loopback);
+			server.setConnectionHandlerClass(
+				mode == ECHO ? EchoHandler.class : SinkHandler.class);
+		}
+
+		server.start();
+		running = true;
+		try {
+
+			/*
+			 * Connect all the clients first so the connection rate is not
+			 * mixed up with the load.
+			 */
+			ArrayList<Socket> sockets = new ArrayList<Socket>(clients);
+			long start = System.nanoTime();
+			for (int i = 0; i < clients; i++) {
+
+				try {
+					Socket socket = new Socket(loopback, server.getLocalPort());
+					socket.setTcpNoDelay(true);
+					sockets.add(socket);
+				} catch (IOException ioe) {
+					errors.incrementAndGet();
+				}
+			}
+
+			long connectNanos = System.nanoTime() - start;
+
+			ArrayList<Thread> threads = new ArrayList<Thread>(sockets.size());
+			for (Socket socket : sockets) {
+
+				Thread t = new Thread(null, new ClientTask(socket),
+					"client-" + threads.size(), 64 * 1024);
+				t.setDaemon(true);
+				threads.add(t);
+			}
+
+			for (Thread t : threads) {
+				t.start();
+			}
+
+
+			/*
+			 * In mux mode the upstream waits for all the clients to be
+			 * relayed to so they all start at a message boundary.
+			 */
+			if (mode == MUX) {
+
+				ServerStats stats = server.getStats();
+				for (int i = 0; i < 1000 && stats.getActiveConnections() < sockets.size(); i++) {
+					Thread.sleep(10);
+				}
+
+				upstreamStarted = true;
+			}
+
+
+			/*
+			 * Give the clients a second to get going before measuring.
+			 */
+			Thread.sleep(1000);
+			latencies.reset();
+			messages.set(0);
+			bytes.set(0);
+
+			start = System.nanoTime();
+			Thread.sleep(duration * 1000L);
+			long loadNanos = System.nanoTime() - start;
+			long messageCount = messages.get();
+			long byteCount = bytes.get();
+
+			running = false;
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
+			}
+
+			report(sockets.size(), connectNanos, messageCount, byteCount,
+				loadNanos, server.getStats());
+
+		} finally {
+
+			running = false;
+			server.stop();
+			if (upstream != null) {
+				upstream.close();
+				upstreamThread.interrupt();
+			}
+		}
+	}
+
+
+	/**
+	 * Prints the results.
+	 */
+	private void report (int connected, long connectNanos, long messageCount,
+			long byteCount, long loadNanos, ServerStats stats) {
+
+		double connectSeconds = connectNanos / 1e9;
+		double loadSeconds = loadNanos / 1e9;
+
+		System.out.println("mode=" + MODE_NAMES[mode] + " clients=" + clients +
+			" duration=" + duration + "s size=" + messageSize +
+			(mode == MUX ? " upstreamRate=" + upstreamRate : ""));
+		System.out.printf("connect:    %d connections in %.1f ms (%.0f conn/s), %d errors%n",
+			connected, connectSeconds * 1000, connected / connectSeconds, errors.get());
+		System.out.printf("throughput: %d msgs (%.0f msgs/s), %.2f MB/s%n",
+			messageCount, messageCount / loadSeconds,
+			byteCount / loadSeconds / (1024 * 1024));
+		System.out.printf("latency:    p50=%.1f us p99=%.1f us p999=%.1f us max=%.1f us%n",
+			latencies.getPercentile(50.0) / 1e3, latencies.getPercentile(99.0) / 1e3,
+			latencies.getPercentile(99.9) / 1e3, latencies.getMax() / 1e3);
+		System.out.println("server:     " + stats);
+	}
+
+
+	/**
+	 * Runs one client until the load stops.
+	 */
+	private class ClientTask implements Runnable {
+
+		private Socket socket;
+
+		public ClientTask (Socket socket) {
+			this.socket = socket;
+		}
+
+
+		public void run () {
+
+			byte message[] = new byte[messageSize];
+			try {
+
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				while (running) {
+
+					long start = System.nanoTime();
+					if (mode == MUX) {
+
+						in.readFully(message);
+						latencies.record(System.nanoTime() - getTimestamp(message));
+
+					} else {
+
+						putTimestamp(message, start);
+						out.write(message);
+						if (mode == ECHO) {
+							in.readFully(message);
+							latencies.record(System.nanoTime() - getTimestamp(message));
+							bytes.addAndGet(messageSize);
+						} else {
+							latencies.record(System.nanoTime() - start);
+						}
+					}
+
+					messages.incrementAndGet();
+					bytes.addAndGet(messageSize);
+				}
+
+			} catch (IOException ioe) {
+
+				if (running) {
+					errors.incrementAndGet();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Stands in for the upstream server in mux mode, it sends timestamped
+	 * messages at the upstream rate.
+	 */
+	private class UpstreamThread extends Thread {
+
+		private ServerSocket upstream;
+
+		public UpstreamThread (ServerSocket upstream) {
+
+			super("upstream");
+			setDaemon(true);
+			this.upstream = upstream;
+		}
+
+
+		public void run () {
+
+			try {
+
+				Socket socket = upstream.accept();
+				socket.setTcpNoDelay(true);
+				while (!upstreamStarted) {
+					Thread.sleep(10);
+				}
+
+				OutputStream out = socket.getOutputStream();
+				byte message[] = new byte[messageSize];
+				long interval = (upstreamRate > 0 ? 1000000000L / upstreamRate : 0);
+				long next = System.nanoTime();
+				while (!isInterrupted()) {
+
+					if (interval > 0) {
+
+						long wait = next - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+						}
+
+						next += interval;
+					}
+
+					putTimestamp(message, System.nanoTime());
+					out.write(message);
+				}
+
+			} catch (Exception ignore) {
+			}
+		}
+	}
+
+
+	private static void putTimestamp (byte message[], long nanos) {
+
+		for (int i = 7; i >= 0; i--) {
+			message[i] = (byte)nanos;
+			nanos >>>= 8;
+		}
+	}
+
+
+	private static long getTimestamp (byte message[]) {
+
+		long nanos = 0;
+		for (int i = 0; i < 8; i++) {
+			nanos = (nanos << 8) | (message[i] & 0xff);
+		}
+
+		return (nanos);
+	}
+
+
+	/**
+	 * Echoes everything a client sends back to it.
+	 */
+	public static class EchoHandler implements ConnectionHandler {
+
+		public void process (Server server, Socket connection) {
+
+			byte buf[] = new byte[8192];
+			try {
+
+				InputStream in = connection.getInputStream();
+				OutputStream out = connection.getOutputStream();
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+
+			} catch (IOException ignore) {
+			} finally {
+
+				try {
+					connection.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Reads and discards everything a client sends.
+	 */
+	public static class SinkHandler implements ConnectionHandler {
+
+		public void process (Server server, Socket connection) {
+
+			byte buf[] = new byte[65536];
+			try {
+
+				InputStream in = connection.getInputStream();
+				while (in.read(buf) > 0) {
+				}
+
+			} catch (IOException ignore) {
+			} finally {
+
+				try {
+					connection.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+	}
+
+
+	public static void main (String args[]) {
+
+		LoadGenerator generator = new LoadGenerator();
+		GetOpt getOpt = new GetOpt("m:c:d:s:r:");
+		for (int c = getOpt.getOpt(args); c != GetOpt.EOF; c = getOpt.getOpt(args)) {
+
+			try {
+
+				switch (c) {
+				case 'm':
+					String name = getOpt.getOptArg();
+					int mode = -1;
+					for (int i = 0; i < MODE_NAMES.length; i++) {
+						if (MODE_NAMES[i].equals(name)) {
+							mode = i;
+						}
+					}
+
+					if (mode < 0) {
+						usage("Invalid mode: " + name);
+					}
+
+					generator.setMode(mode);
+					break;
+
+				case 'c':
+					generator.setClients(Integer.parseInt(getOpt.getOptArg()));
+					break;
+
+				case 'd':
+					generator.setDuration(Integer.parseInt(getOpt.getOptArg()));
+					break;
+
+				case 's':
+					generator.setMessageSize(Integer.parseInt(getOpt.getOptArg()));
+					break;
+
+				case 'r':
+					generator.setUpstreamRate(Integer.parseInt(getOpt.getOptArg()));
+					break;
+
+				default:
+					usage(getOpt.getErrorMsg());
+				}
+
+			} catch (NumberFormatException nfe) {
+				usage("Invalid number: " + getOpt.getOptArg());
+			}
+		}
+
+		try {
+			generator.run();
+		} catch (Exception e) {
+			System.err.println("ERROR: " + e.getMessage());
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+
+
+	private static void usage (String message) {
+
+		if (message != null) {
+			System.err.println(message);
+		}
+
+		System.err.println("Usage: LoadGenerator [-m echo|sink|mux] [-c clients]" +
+			" [-d seconds] [-s messageSize] [-r upstreamMessagesPerSecond]");
+		System.exit(1);
+	}
+}
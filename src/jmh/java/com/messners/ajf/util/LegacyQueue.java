@@ -0,0 +1,53 @@
+package com.messners.ajf.util;
+
+import java.util.ArrayList;
+
+
+/**
+ * The ArrayList based Queue that Queue replaced, kept so the benchmarks
+ * can compare the two.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class LegacyQueue<T> extends ArrayList<T> {
+
+	private static final long serialVersionUID = 1L;
+
+
+	public synchronized T put (T obj) {
+
+		add(obj);
+		notify();
+		return (obj);
+	}
+
+
+	public synchronized T get () {
+
+		if (size() == 0) {
+	 		throw new EmptyQueueException();
+		}
+
+		return (remove(0));
+	}
+
+
+	public synchronized boolean empty () {
+		return (size() == 0);
+	}
+
+
+	public synchronized T waitForObject (long waitTime) {
+
+		while (empty()) {
+
+			try {
+				wait(waitTime);
+			} catch (InterruptedException ie) {
+				return (null);
+			}
+		}
+
+		return (get());
+	}
+}
@@ -0,0 +1,122 @@
+package com.messners.ajf.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures many producers handing work to the single consumer the way
+ * WorkQueue does, with Queue and with the lock-free MpscQueue.  Each
+ * invocation starts the producers, which each put their share of
+ * OPERATIONS objects, and drains them all on the benchmark thread.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProducerContentionBenchmark {
+
+	private static final int OPERATIONS = 128 * 1024;
+	private static final Integer ITEM = Integer.valueOf(42);
+
+
+	@Param({ "1", "2", "4", "8", "16", "32", "64" })
+	public int producers;
+
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public int queue () throws InterruptedException {
+
+		final Queue<Integer> queue = new Queue<Integer>();
+		CountDownLatch start = startProducers(new Producer() {
+			public void put () {
+				queue.put(ITEM);
+			}
+		});
+
+		ArrayList<Integer> batch = new ArrayList<Integer>(1024);
+		start.countDown();
+		int received = 0;
+		while (received < OPERATIONS) {
+			batch.clear();
+			received += queue.drainTo(batch, 1024, 1000);
+		}
+
+		return (received);
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public int mpscQueue () throws InterruptedException {
+
+		final MpscQueue<Integer> queue = new MpscQueue<Integer>();
+		CountDownLatch start = startProducers(new Producer() {
+			public void put () {
+				queue.put(ITEM);
+			}
+		});
+
+		ArrayList<Integer> batch = new ArrayList<Integer>(1024);
+		start.countDown();
+		int received = 0;
+		while (received < OPERATIONS) {
+			batch.clear();
+			received += queue.drainTo(batch, 1024, 1000);
+		}
+
+		return (received);
+	}
+
+
+	private CountDownLatch startProducers (final Producer producer) {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final int share = OPERATIONS / producers;
+		for (int i = 0; i < producers; i++) {
+
+			Thread thread = new Thread() {
+				public void run () {
+
+					try {
+						start.await();
+					} catch (InterruptedException ie) {
+						return;
+					}
+
+					for (int n = 0; n < share; n++) {
+						producer.put();
+					}
+				}
+			};
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		return (start);
+	}
+
+
+	private interface Producer {
+		public void put ();
+	}
+}
@@ -0,0 +1,141 @@
+package com.messners.ajf.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares Queue with the ArrayList based LegacyQueue it replaced.  The
+ * backlog benchmarks fill the queue to a depth and then empty it, which is
+ * where remove(0) made the old queue quadratic.  The handoff benchmarks
+ * run producers against a single consumer.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+	private static final Integer ITEM = Integer.valueOf(42);
+
+
+	@State(Scope.Benchmark)
+	public static class Backlog {
+
+		@Param({ "100", "10000", "100000" })
+		public int depth;
+
+		public Queue<Integer> queue;
+		public LegacyQueue<Integer> legacy;
+
+		@Setup(Level.Trial)
+		public void setup () {
+			queue = new Queue<Integer>();
+			legacy = new LegacyQueue<Integer>();
+		}
+	}
+
+
+	@State(Scope.Group)
+	public static class Handoff {
+
+		public Queue<Integer> queue;
+		public LegacyQueue<Integer> legacy;
+
+		@Setup(Level.Iteration)
+		public void setup () {
+			queue = new Queue<Integer>();
+			legacy = new LegacyQueue<Integer>();
+		}
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(100000)
+	public int backlogQueue (Backlog state) {
+
+		int sum = 0;
+		for (int n = 0; n < 100000; n += state.depth) {
+
+			for (int i = 0; i < state.depth; i++) {
+				state.queue.put(ITEM);
+			}
+
+			for (int i = 0; i < state.depth; i++) {
+				sum += state.queue.get();
+			}
+		}
+
+		return (sum);
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(100000)
+	public int backlogLegacy (Backlog state) {
+
+		int sum = 0;
+		for (int n = 0; n < 100000; n += state.depth) {
+
+			for (int i = 0; i < state.depth; i++) {
+				state.legacy.put(ITEM);
+			}
+
+			for (int i = 0; i < state.depth; i++) {
+				sum += state.legacy.get();
+			}
+		}
+
+		return (sum);
+	}
+
+
+	@Benchmark
+	@Group("handoffQueue")
+	@GroupThreads(3)
+	public void handoffQueuePut (Handoff state) {
+		state.queue.put(ITEM);
+	}
+
+
+	@Benchmark
+	@Group("handoffQueue")
+	@GroupThreads(1)
+	public Integer handoffQueueGet (Handoff state) {
+		return (state.queue.waitForObject(1));
+	}
+
+
+	@Benchmark
+	@Group("handoffLegacy")
+	@GroupThreads(3)
+	public void handoffLegacyPut (Handoff state) {
+		state.legacy.put(ITEM);
+	}
+
+
+	@Benchmark
+	@Group("handoffLegacy")
+	@GroupThreads(1)
+	public Integer handoffLegacyGet (Handoff state) {
+		return (state.legacy.waitForObject(1));
+	}
+}
@@ -0,0 +1,177 @@
+package com.messners.ajf.net;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class provides the admission control shared by the
+ * ConnectionDispatcher implementations.  The number of connections
+ * being processed (and waiting to be processed) is bounded by
+ * maxConnections, when the limit has been reached the admission
+ * policy decides whether a new connection is refused or the accept
+ * thread is parked until a running connection completes.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public abstract class AbstractConnectionDispatcher
+		implements ConnectionDispatcher {
+
+	private int maxConnections;
+	private int admissionPolicy;
+	private long parkTimeout;
+	private Semaphore permits;
+
+
+	/**
+	 * Creates a dispatcher that admits an unbounded number of connections.
+	 */
+	protected AbstractConnectionDispatcher () {
+		this(0, REFUSE, 0);
+	}
+
+
+	/**
+	 * Creates a dispatcher that admits at most maxConnections connections.
+	 *
+	 * @param  maxConnections   the maximum number of admitted connections,
+	 * 0 for no limit
+	 * @param  admissionPolicy  either REFUSE or PARK
+	 * @param  parkTimeout      the maximum time in milliseconds to park the
+	 * accept thread with the PARK policy before refusing, 0 to wait forever
+	 */
+	protected AbstractConnectionDispatcher (int maxConnections,
+			int admissionPolicy, long parkTimeout) {
+
+		if (admissionPolicy != REFUSE && admissionPolicy != PARK) {
+			throw new IllegalArgumentException(
+				"Invalid admission policy: " + admissionPolicy);
+		}
+
+		this.maxConnections = maxConnections;
+		this.admissionPolicy = admissionPolicy;
+		this.parkTimeout = parkTimeout;
+		if (maxConnections > 0) {
+			permits = new Semaphore(maxConnections);
+		}
+	}
+
+
+	/**
+	 * Gets the maximum number of admitted connections.
+	 *
+	 * @return the maximum number of admitted connections, 0 if unbounded
+	 */
+	public int getMaxConnections () {
+		return (maxConnections);
+	}
+
+
+	/**
+	 * Gets the admission policy, either REFUSE or PARK.
+	 *
+	 * @return the admission policy
+	 */
+	public int getAdmissionPolicy () {
+		return (admissionPolicy);
+	}
+
+
+	/**
+	 * Gets the number of connections that can currently be admitted
+	 * without refusing or parking.
+	 *
+	 * @return the available capacity, Integer.MAX_VALUE if unbounded
+	 */
+	public int getAvailableCapacity () {
+		return (permits != null ? permits.availablePermits() : Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Applies admission control and then executes the task.
+	 *
+	 * @param  task  the Runnable that processes the connection
+	 * @return true if the task was dispatched, false if it was refused
+	 */
+	public boolean dispatch (Runnable task) {
+
+		if (permits == null) {
+			return (execute(task));
+		}
+
+		if (!admit()) {
+			return (false);
+		}
+
+		boolean dispatched = false;
+		try {
+			dispatched = execute(new AdmittedTask(task));
+		} finally {
+			if (!dispatched) {
+				permits.release();
+			}
+		}
+
+		return (dispatched);
+	}
+
+
+	/**
+	 * Executes the admitted task.  The permit of an admitted task is
+	 * released as soon as the task has run, before the thread that ran it
+	 * can take more work, so an admitted task must not be refused just
+	 * because that thread is not ready yet.
+	 *
+	 * @param  task  the Runnable that processes the connection
+	 * @return true if the task was executed, false if it was refused
+	 */
+	protected abstract boolean execute (Runnable task);
+
+
+	/**
+	 * Acquires a permit according to the admission policy.
+	 */
+	private boolean admit () {
+
+		if (admissionPolicy == REFUSE) {
+			return (permits.tryAcquire());
+		}
+
+		try {
+
+			if (parkTimeout > 0) {
+				return (permits.tryAcquire(parkTimeout, TimeUnit.MILLISECONDS));
+			}
+
+			permits.acquire();
+			return (true);
+
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return (false);
+		}
+	}
+
+
+	/**
+	 * Releases the admission permit when the connection has been processed.
+	 */
+	private final class AdmittedTask implements Runnable {
+
+		private Runnable task;
+
+		public AdmittedTask (Runnable task) {
+			this.task = task;
+		}
+
+		public void run () {
+
+			try {
+				task.run();
+			} finally {
+				permits.release();
+			}
+		}
+	}
+}
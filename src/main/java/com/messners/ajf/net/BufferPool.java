@@ -0,0 +1,129 @@
+package com.messners.ajf.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * This class pools ByteBuffers of a single size so they can be reused
+ * rather than allocated for each connection or message.  Buffers are kept
+ * up to a maximum number of idle buffers, a buffer acquired when the pool
+ * is empty is newly allocated.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class BufferPool {
+
+	/**
+	 * Default maximum number of idle buffers kept in the pool = 64.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+
+	private int bufferSize;
+	private boolean direct;
+	private ArrayBlockingQueue<ByteBuffer> pool;
+
+
+	/**
+	 * Creates a pool of heap buffers that keeps at most DEFAULT_MAX_IDLE
+	 * idle buffers.
+	 *
+	 * @param  bufferSize  the capacity of each buffer
+	 */
+	public BufferPool (int bufferSize) {
+		this(bufferSize, DEFAULT_MAX_IDLE, false);
+	}
+
+
+	/**
+	 * Creates a pool of buffers.
+	 *
+	 * @param  bufferSize  the capacity of each buffer
+	 * @param  maxIdle     the maximum number of idle buffers to keep
+	 * @param  direct      if true direct buffers are pooled, otherwise heap
+	 * buffers are pooled
+	 */
+	public BufferPool (int bufferSize, int maxIdle, boolean direct) {
+
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException(
+				"bufferSize must be > 0: " + bufferSize);
+		}
+
+		if (maxIdle < 1) {
+			throw new IllegalArgumentException("maxIdle must be > 0: " + maxIdle);
+		}
+
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		pool = new ArrayBlockingQueue<ByteBuffer>(maxIdle);
+	}
+
+
+	/**
+	 * Gets the capacity of the buffers in this pool.
+	 *
+	 * @return the capacity of each buffer
+	 */
+	public int getBufferSize () {
+		return (bufferSize);
+	}
+
+
+	/**
+	 * Returns true if this pool holds direct buffers.
+	 *
+	 * @return true if this pool holds direct buffers
+	 */
+	public boolean isDirect () {
+		return (direct);
+	}
+
+
+	/**
+	 * Gets the number of idle buffers currently in the pool.
+	 *
+	 * @return the number of idle buffers
+	 */
+	public int getIdleCount () {
+		return (pool.size());
+	}
+
+
+	/**
+	 * Takes an idle buffer from the pool, or allocates a new one if the
+	 * pool is empty.  The buffer is cleared and ready to be filled.
+	 *
+	 * @return a cleared ByteBuffer
+	 */
+	public ByteBuffer acquire () {
+
+		ByteBuffer buf = pool.poll();
+		if (buf == null) {
+			buf = (direct ? ByteBuffer.allocateDirect(bufferSize) :
+				ByteBuffer.allocate(bufferSize));
+		}
+
+		return (buf);
+	}
+
+
+	/**
+	 * Returns a buffer to the pool.  The buffer must not be used by the
+	 * caller after this call.  Buffers that did not come from this pool
+	 * and buffers released when the pool is full are dropped.
+	 *
+	 * @param  buf  the buffer that is no longer in use
+	 */
+	public void release (ByteBuffer buf) {
+
+		if (buf == null || buf.capacity() != bufferSize ||
+				buf.isDirect() != direct) {
+			return;
+		}
+
+		buf.clear();
+		pool.offer(buf);
+	}
+}
@@ -0,0 +1,866 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This class provides a single writer, multiple reader ring buffer of
+ * bytes used to fan a stream of data out to many readers without copying
+ * it for each reader.  The writer reads data straight into the ring and
+ * each Reader keeps its own position in the stream and writes the data
+ * straight from the ring.
+ * <p>
+ * Positions are absolute offsets into the stream, the data for a position
+ * is kept until the writer has written capacity more bytes.  The writer
+ * never overwrites data a Reader is in the middle of writing, a Reader
+ * moves its sending position up after each write to its destination so
+ * the writer is only held back by the data the Reader has not yet
+ * written.  A Reader that is idle while the writer laps it finds out the
+ * next time it tries to write and must skip ahead.  A Reader may instead
+ * be set to throttle the writer, in which case the writer waits rather
+ * than get more than the Reader's maximum lag ahead of it.
+ * <p>
+ * Each write by the writer is a chunk, the end positions of the most
+ * recent chunks are kept so a Reader's lag can also be measured in chunks
+ * and a Reader can skip ahead to a chunk boundary.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ByteRingBuffer {
+
+	/**
+	 * Position value used by a Reader that is not writing.
+	 */
+	private static final long IDLE = Long.MAX_VALUE;
+
+
+	/**
+	 * The number of chunk end positions that are kept, a power of 2.
+	 */
+	public static final int CHUNK_HISTORY = 1024;
+
+
+	private ByteBuffer buffer;
+	private int capacity;
+	private int mask;
+	private int maxChunkSize;
+
+
+	/**
+	 * The writer's view of the buffer, only used by the writer thread.
+	 */
+	private ByteBuffer writeView;
+
+
+	/**
+	 * All data before this position has been written and can be read.
+	 */
+	private volatile long writePosition;
+
+
+	/**
+	 * The writer may be writing data up to this position.
+	 */
+	private volatile long writeLimit;
+
+	/**
+	 * The end positions of the most recent chunks, indexed by chunk
+	 * number modulo CHUNK_HISTORY.
+	 */
+	private long chunkEnds[] = new long[CHUNK_HISTORY];
+	private volatile long chunkCount;
+
+	private volatile boolean closed;
+	private volatile long stallTimeout;
+	private volatile Thread writerThread;
+	private volatile boolean writerWaiting;
+
+	private CopyOnWriteArrayList<Reader> readers;
+
+
+	/**
+	 * Readers waiting for data wait on this lock.
+	 */
+	private Object dataLock = new Object();
+	private AtomicInteger dataWaiters = new AtomicInteger();
+
+
+	/**
+	 * Creates a ring buffer.
+	 *
+	 * @param  capacity  the capacity in bytes, rounded up to a power of 2
+	 * @param  direct    if true a direct ByteBuffer is used, otherwise a
+	 * heap ByteBuffer is used
+	 */
+	public ByteRingBuffer (int capacity, boolean direct) {
+
+		if (capacity < 2 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+		mask = this.capacity - 1;
+		maxChunkSize = Math.max(1, this.capacity / 4);
+
+		buffer = (direct ? ByteBuffer.allocateDirect(this.capacity) :
+			ByteBuffer.allocate(this.capacity));
+		writeView = buffer.duplicate();
+		readers = new CopyOnWriteArrayList<Reader>();
+	}
+
+
+	/**
+	 * Gets the capacity of this ring buffer in bytes.
+	 *
+	 * @return the capacity in bytes
+	 */
+	public int getCapacity () {
+		return (capacity);
+	}
+
+
+	/**
+	 * Returns true if the ring is backed by a direct ByteBuffer.
+	 *
+	 * @return true if the ring is backed by a direct ByteBuffer
+	 */
+	public boolean isDirect () {
+		return (buffer.isDirect());
+	}
+
+
+	/**
+	 * Gets the maximum number of bytes the writer reads at one time.
+	 *
+	 * @return the maximum chunk size in bytes
+	 */
+	public int getMaxChunkSize () {
+		return (maxChunkSize);
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes the writer reads at one time,
+	 * it is limited to a quarter of the capacity.
+	 *
+	 * @param  maxChunkSize  the maximum chunk size in bytes
+	 */
+	public void setMaxChunkSize (int maxChunkSize) {
+		this.maxChunkSize = Math.max(1, Math.min(maxChunkSize, capacity / 4));
+	}
+
+
+	/**
+	 * Sets the time the writer waits for a Reader that is stuck in the
+	 * middle of writing before the Reader's stall handler is called.  A
+	 * Reader is only stuck while it makes no progress, the time starts
+	 * over each time it writes more of the data the writer is waiting for.
+	 * Throttling Readers are never treated as stalled.
+	 *
+	 * @param  stallTimeout  the stall timeout in milliseconds, 0 to wait
+	 * forever
+	 * @see Reader#setStallHandler(Runnable)
+	 */
+	public void setStallTimeout (long stallTimeout) {
+		this.stallTimeout = stallTimeout;
+	}
+
+
+	/**
+	 * Gets the position just past the last byte written to the ring.
+	 *
+	 * @return the current write position
+	 */
+	public long getWritePosition () {
+		return (writePosition);
+	}
+
+
+	/**
+	 * Gets the number of chunks written to the ring.
+	 *
+	 * @return the number of chunks written
+	 */
+	public long getChunkCount () {
+		return (chunkCount);
+	}
+
+
+	/**
+	 * Gets the number of chunks that end after the specified position,
+	 * this is the lag in chunks of a Reader at that position.  The result is
+	 * at most CHUNK_HISTORY.
+	 *
+	 * @param  position  the position to count chunks from
+	 * @return the number of chunks after the position
+	 */
+	public long getChunksAfter (long position) {
+
+		long count = chunkCount;
+		long low = Math.max(0, count - CHUNK_HISTORY + 1);
+		long high = count;
+
+		/*
+		 * Binary search for the first chunk that ends after the position,
+		 * chunk end positions always increase.
+		 */
+		while (low < high) {
+
+			long mid = (low + high) >>> 1;
+			if (chunkEnds[(int)(mid & (CHUNK_HISTORY - 1))] > position) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+
+		return (count - low);
+	}
+
+
+	/**
+	 * Gets the start position of the chunk that is the specified number of
+	 * chunks before the newest, this is where a Reader skips to so that it
+	 * is that many chunks behind.
+	 *
+	 * @param  chunks  the number of chunks, less than CHUNK_HISTORY
+	 * @return the start position of the chunk
+	 */
+	public long getChunkStart (long chunks) {
+
+		long count = chunkCount;
+		long chunk = count - chunks - 1;
+		if (chunk < 0) {
+			return (0);
+		}
+
+		return (chunkEnds[(int)(chunk & (CHUNK_HISTORY - 1))]);
+	}
+
+
+	/**
+	 * Gets the number of Readers currently registered.
+	 *
+	 * @return the number of Readers
+	 */
+	public int getReaderCount () {
+		return (readers.size());
+	}
+
+
+	/**
+	 * Creates and registers a Reader positioned at the current write
+	 * position.
+	 *
+	 * @return a new Reader
+	 */
+	public Reader newReader () {
+
+		Reader reader = new Reader();
+		readers.add(reader);
+		return (reader);
+	}
+
+
+	/**
+	 * Returns true if this ring buffer has been closed.
+	 *
+	 * @return true if this ring buffer has been closed
+	 */
+	public boolean isClosed () {
+		return (closed);
+	}
+
+
+	/**
+	 * Closes this ring buffer, waking up any waiting Readers and
+	 * the writer.
+	 */
+	public void close () {
+
+		closed = true;
+		synchronized (dataLock) {
+			dataLock.notifyAll();
+		}
+
+		Thread t = writerThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+
+	/**
+	 * Reads data from the channel directly into the ring and makes it
+	 * available to the Readers.  Must only be called by a single writer
+	 * thread.  May block until Readers that are writing data that would be
+	 * overwritten have finished.
+	 *
+	 * @param  in  the channel to read from
+	 * @return the number of bytes read, or -1 on end of stream
+	 * @throws IOException if an I/O error occurs or the ring was closed
+	 */
+	public int readFrom (ReadableByteChannel in) throws IOException {
+
+		long position = writePosition;
+		int index = (int)(position & mask);
+		int count = reserve(position, Math.min(maxChunkSize, capacity - index));
+
+		writeView.limit(index + count).position(index);
+		int nread;
+		try {
+			nread = in.read(writeView);
+		} finally {
+			writeLimit = writePosition;
+		}
+
+		if (nread > 0) {
+			publish(position + nread);
+		}
+
+		return (nread);
+	}
+
+
+	/**
+	 * Copies data into the ring and makes it available to the Readers.
+	 * Must only be called by a single writer thread.
+	 *
+	 * @param  data    the array holding the data
+	 * @param  offset  the offset of the data in the array
+	 * @param  length  the number of bytes to write
+	 * @throws IOException if the ring was closed
+	 */
+	public void write (byte data[], int offset, int length) throws IOException {
+
+		while (length > 0) {
+
+			long position = writePosition;
+			int index = (int)(position & mask);
+			int count = reserve(position,
+				Math.min(length, Math.min(maxChunkSize, capacity - index)));
+
+			writeView.limit(index + count).position(index);
+			writeView.put(data, offset, count);
+			publish(position + count);
+
+			offset += count;
+			length -= count;
+		}
+	}
+
+
+	/**
+	 * Reserves space for the writer, waiting until no Reader is writing
+	 * data that would be overwritten.
+	 *
+	 * @return the number of bytes that may be written, at most count
+	 */
+	private int reserve (long position, int count) throws IOException {
+
+		writerThread = Thread.currentThread();
+		long waitStart = 0;
+		while (true) {
+
+			if (closed) {
+				throw new IOException("Ring buffer is closed");
+			}
+
+			/*
+			 * Publish how far we intend to write before looking at the
+			 * readers, a reader publishes its position before looking at
+			 * writeLimit, so one of us always sees the other.
+			 */
+			writeLimit = position + count;
+			long limit = getWriteEndLimit();
+			if (limit >= position + count) {
+				return (count);
+			}
+
+			int allowed = (int)(limit - position);
+			if (allowed > 0) {
+				count = allowed;
+				continue;
+			}
+
+			writeLimit = position;
+			writerWaiting = true;
+			if (getWriteEndLimit() <= position) {
+
+				long now = System.currentTimeMillis();
+				if (waitStart == 0) {
+					waitStart = now;
+				}
+
+				if (stallTimeout > 0) {
+					abortStalledReaders(position, waitStart, now);
+				}
+
+				LockSupport.parkNanos(this, 1000000L);
+			}
+
+			writerWaiting = false;
+		}
+	}
+
+
+	/**
+	 * Calls the stall handler of each non-throttling Reader that has been
+	 * holding up the writer without making any progress for longer than
+	 * the stall timeout.  The time a Reader has been stuck is measured from
+	 * when its sending position last moved during this wait.
+	 */
+	private void abortStalledReaders (long position, long waitStart, long now) {
+
+		for (Reader reader : readers) {
+
+			long sending = reader.sending;
+			if (sending == IDLE || sending + capacity > position || reader.throttle) {
+				continue;
+			}
+
+			if (sending != reader.stallPosition || reader.stallTime < waitStart) {
+				reader.stallPosition = sending;
+				reader.stallTime = now;
+			} else if (now - reader.stallTime > stallTimeout) {
+				reader.stalled();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the position the writer may write up to without overwriting
+	 * data a Reader is writing or getting too far ahead of a throttling
+	 * Reader.
+	 */
+	private long getWriteEndLimit () {
+
+		long limit = IDLE;
+		for (Reader reader : readers) {
+
+			long sending = reader.sending;
+			if (sending != IDLE && sending + capacity < limit) {
+				limit = sending + capacity;
+			}
+
+			if (reader.throttle) {
+				long end = reader.position + reader.throttleLag;
+				if (end < limit) {
+					limit = end;
+				}
+			}
+		}
+
+		return (limit);
+	}
+
+
+	/**
+	 * Makes the data up to the position available and wakes up any
+	 * Readers waiting for data.
+	 */
+	private void publish (long position) {
+
+		chunkEnds[(int)(chunkCount & (CHUNK_HISTORY - 1))] = position;
+		chunkCount++;
+		writePosition = position;
+		writeLimit = position;
+		if (dataWaiters.get() > 0) {
+			synchronized (dataLock) {
+				dataLock.notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * This class keeps the position of a single reader of the ring and
+	 * writes the data from the ring to the reader's destination.
+	 */
+	public final class Reader {
+
+		private volatile long position;
+
+
+		/**
+		 * The position this reader is currently writing from, IDLE when
+		 * the reader is not writing.
+		 */
+		private volatile long sending = IDLE;
+
+
+		/**
+		 * If true the writer will not get more than throttleLag bytes
+		 * ahead of this reader.
+		 */
+		private volatile boolean throttle;
+		private volatile long throttleLag;
+
+		private volatile Runnable stallHandler;
+
+
+		/**
+		 * The sending position the writer last saw this reader stuck at
+		 * and when, only used by the writer thread.
+		 */
+		private long stallPosition = IDLE;
+		private long stallTime;
+
+
+		/**
+		 * Views of the ring used for the two segments of a wrapped write.
+		 */
+		private ByteBuffer views[];
+		private byte transferBuffer[];
+
+
+		private Reader () {
+
+			views = new ByteBuffer[] { buffer.duplicate(), buffer.duplicate() };
+			position = writePosition;
+		}
+
+
+		/**
+		 * Gets the position of the next byte this reader will write.
+		 *
+		 * @return the position of the next byte to write
+		 */
+		public long getPosition () {
+			return (position);
+		}
+
+
+		/**
+		 * Gets the number of bytes written to the ring that this reader has
+		 * not yet written.
+		 *
+		 * @return the number of bytes this reader is behind the writer
+		 */
+		public long getLag () {
+			return (writePosition - position);
+		}
+
+
+		/**
+		 * Gets the number of chunks written to the ring that this reader has
+		 * not completely written, at most CHUNK_HISTORY.
+		 *
+		 * @return the number of chunks this reader is behind the writer
+		 */
+		public long getChunkLag () {
+			return (getChunksAfter(position));
+		}
+
+
+		/**
+		 * Sets whether this reader throttles the writer.  When throttling
+		 * the writer waits instead of getting more than maxLag bytes ahead
+		 * of this reader, so this reader is never lapped.
+		 *
+		 * @param  throttle  true to throttle the writer
+		 * @param  maxLag    the maximum lag in bytes, 0 or more than the
+		 * capacity for the capacity of the ring
+		 */
+		public void setThrottle (boolean throttle, long maxLag) {
+
+			throttleLag = (maxLag > 0 && maxLag < capacity ? maxLag : capacity);
+			this.throttle = throttle;
+			wakeWriter();
+		}
+
+
+		/**
+		 * Sets the handler called by the writer thread when this reader has
+		 * been stuck in the middle of a write for longer than the stall
+		 * timeout.  The handler is expected to abort the write, usually by
+		 * closing the destination, it is called at most once.
+		 *
+		 * @param  stallHandler  the Runnable to call when this reader stalls
+		 */
+		public void setStallHandler (Runnable stallHandler) {
+			this.stallHandler = stallHandler;
+		}
+
+
+		/**
+		 * Calls the stall handler once.
+		 */
+		private void stalled () {
+
+			Runnable handler = stallHandler;
+			stallHandler = null;
+			if (handler != null) {
+				handler.run();
+			}
+		}
+
+
+		/**
+		 * Returns true if the writer has overwritten data this reader has
+		 * not yet written.
+		 *
+		 * @return true if this reader has been lapped by the writer
+		 */
+		public boolean isLapped () {
+			return (writeLimit - position > capacity);
+		}
+
+
+		/**
+		 * Moves this reader to the specified position.  The position is
+		 * clamped to the data that is still available in the ring.
+		 *
+		 * @param  newPosition  the new position for this reader
+		 * @return the number of bytes skipped, negative if moved backwards
+		 */
+		public long skipTo (long newPosition) {
+
+			long end = writePosition;
+			long start = Math.max(0, end + maxChunkSize - capacity);
+			newPosition = Math.max(start, Math.min(end, newPosition));
+			long skipped = newPosition - position;
+			position = newPosition;
+			return (skipped);
+		}
+
+
+		/**
+		 * Waits until there is data for this reader to write.
+		 *
+		 * @param  timeout  the maximum time in milliseconds to wait,
+		 * 0 to wait forever
+		 * @return true if there is data available, false if the wait timed
+		 * out or the ring was closed
+		 * @throws InterruptedException if the current thread is interrupted
+		 */
+		public boolean awaitData (long timeout) throws InterruptedException {
+
+			if (writePosition > position) {
+				return (true);
+			}
+
+			long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+			dataWaiters.incrementAndGet();
+			try {
+
+				synchronized (dataLock) {
+
+					while (writePosition <= position && !closed) {
+
+						if (deadline == 0) {
+							dataLock.wait();
+						} else {
+
+							long waitTime = deadline - System.currentTimeMillis();
+							if (waitTime <= 0) {
+								break;
+							}
+
+							dataLock.wait(waitTime);
+						}
+					}
+				}
+
+			} finally {
+				dataWaiters.decrementAndGet();
+			}
+
+			return (writePosition > position);
+		}
+
+
+		/**
+		 * Writes all the data available to this reader to the OutputStream.
+		 * The data is written straight from the ring when it is backed
+		 * by a heap buffer.
+		 *
+		 * @param  out  the OutputStream to write to
+		 * @return the number of bytes written, or -1 if this reader has
+		 * been lapped by the writer and must skip ahead
+		 * @throws IOException if an I/O error occurs
+		 */
+		public long writeTo (OutputStream out) throws IOException {
+			return (writeTo(out, Long.MAX_VALUE));
+		}
+
+
+		/**
+		 * Writes up to maxBytes of the data available to this reader to
+		 * the OutputStream.
+		 *
+		 * @param  out  the OutputStream to write to
+		 * @param  maxBytes  the maximum number of bytes to write
+		 * @return the number of bytes written, or -1 if this reader has
+		 * been lapped by the writer and must skip ahead
+		 * @throws IOException if an I/O error occurs
+		 */
+		public long writeTo (OutputStream out, long maxBytes) throws IOException {
+
+			long start = position;
+			long end = beginSend(start, maxBytes);
+			if (end < 0) {
+				return (-1);
+			}
+
+			try {
+
+				long pos = start;
+				while (pos < end) {
+
+					int index = (int)(pos & mask);
+					int count = (int)Math.min(end - pos, capacity - index);
+					if (buffer.hasArray()) {
+
+						out.write(buffer.array(), buffer.arrayOffset() + index, count);
+
+					} else {
+
+						if (transferBuffer == null) {
+							transferBuffer = new byte[Math.min(capacity, 16384)];
+						}
+
+						count = Math.min(count, transferBuffer.length);
+						ByteBuffer view = views[0];
+						view.limit(index + count).position(index);
+						view.get(transferBuffer, 0, count);
+						out.write(transferBuffer, 0, count);
+					}
+
+					pos += count;
+					progress(pos);
+				}
+
+				position = end;
+
+			} finally {
+				endSend();
+			}
+
+			return (end - start);
+		}
+
+
+		/**
+		 * Writes all the data available to this reader to the channel,
+		 * using a gathering write when the data wraps around the end of
+		 * the ring.
+		 *
+		 * @param  out  the channel to write to, must be in blocking mode
+		 * @return the number of bytes written, or -1 if this reader has
+		 * been lapped by the writer and must skip ahead
+		 * @throws IOException if an I/O error occurs
+		 */
+		public long writeTo (GatheringByteChannel out) throws IOException {
+			return (writeTo(out, Long.MAX_VALUE));
+		}
+
+
+		/**
+		 * Writes up to maxBytes of the data available to this reader to
+		 * the channel.
+		 *
+		 * @param  out  the channel to write to, must be in blocking mode
+		 * @param  maxBytes  the maximum number of bytes to write
+		 * @return the number of bytes written, or -1 if this reader has
+		 * been lapped by the writer and must skip ahead
+		 * @throws IOException if an I/O error occurs
+		 */
+		public long writeTo (GatheringByteChannel out, long maxBytes)
+				throws IOException {
+
+			long start = position;
+			long end = beginSend(start, maxBytes);
+			if (end < 0) {
+				return (-1);
+			}
+
+			try {
+
+				int index = (int)(start & mask);
+				int first = (int)Math.min(end - start, capacity - index);
+				views[0].limit(index + first).position(index);
+				views[1].limit((int)(end - start - first)).position(0);
+
+				long pos = start;
+				while (views[0].hasRemaining() || views[1].hasRemaining()) {
+					pos += out.write(views, 0, 2);
+					progress(pos);
+				}
+
+				position = end;
+
+			} finally {
+				endSend();
+			}
+
+			return (end - start);
+		}
+
+
+		/**
+		 * Unregisters this reader from the ring.
+		 */
+		public void close () {
+
+			sending = IDLE;
+			readers.remove(this);
+			wakeWriter();
+		}
+
+
+		/**
+		 * Marks the start of a write from the ring.
+		 *
+		 * @return the end position of the data to write, or -1 if lapped
+		 */
+		private long beginSend (long start, long maxBytes) {
+
+			sending = start;
+			if (writeLimit - start > capacity) {
+				sending = IDLE;
+				return (-1);
+			}
+
+			long end = writePosition;
+			return (end - start > maxBytes ? start + maxBytes : end);
+		}
+
+
+		/**
+		 * Moves the sending position up past the data that has been written
+		 * so the writer may reuse that part of the ring.
+		 */
+		private void progress (long pos) {
+
+			sending = pos;
+			wakeWriter();
+		}
+
+
+		private void endSend () {
+
+			sending = IDLE;
+			wakeWriter();
+		}
+
+
+		private void wakeWriter () {
+
+			if (writerWaiting) {
+				Thread t = writerThread;
+				if (t != null) {
+					LockSupport.unpark(t);
+				}
+			}
+		}
+	}
+}
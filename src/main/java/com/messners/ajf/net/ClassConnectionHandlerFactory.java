@@ -0,0 +1,78 @@
+package com.messners.ajf.net;
+
+import java.lang.reflect.Constructor;
+
+
+/**
+ * This ConnectionHandlerFactory creates a new instance of a
+ * ConnectionHandler class for each connection.  The no-args constructor
+ * is looked up once when the factory is created instead of on every
+ * connection.  This is the factory used by
+ * {@link Server#setConnectionHandlerClass(Class)}.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ClassConnectionHandlerFactory implements ConnectionHandlerFactory {
+
+	private Class<? extends ConnectionHandler> handlerClass;
+	private Constructor<? extends ConnectionHandler> constructor;
+
+
+	/**
+	 * Creates a factory for the specified ConnectionHandler class.
+	 *
+	 * @param  handlerClass  the ConnectionHandler implementation class
+	 * @throws IllegalArgumentException if the class does not have a
+	 * no-args constructor or the constructor cannot be accessed
+	 */
+	public ClassConnectionHandlerFactory (
+			Class<? extends ConnectionHandler> handlerClass) {
+
+		this.handlerClass = handlerClass;
+		try {
+
+			constructor = handlerClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+
+		} catch (NoSuchMethodException nsme) {
+
+			throw new IllegalArgumentException(handlerClass.getName() +
+				" does not have a no-args constructor");
+
+		} catch (SecurityException se) {
+
+			throw new IllegalArgumentException("Cannot access the no-args constructor of " +
+				handlerClass.getName() + ": " + se.getMessage());
+		}
+	}
+
+
+	/**
+	 * Gets the ConnectionHandler implementation class.
+	 *
+	 * @return the ConnectionHandler implementation class
+	 */
+	public Class<? extends ConnectionHandler> getHandlerClass () {
+		return (handlerClass);
+	}
+
+
+	/**
+	 * Creates a new instance of the ConnectionHandler class.
+	 *
+	 * @return a new ConnectionHandler instance
+	 * @throws Exception if the instance could not be created
+	 */
+	public ConnectionHandler newConnectionHandler () throws Exception {
+		return (constructor.newInstance());
+	}
+
+
+	/**
+	 * Does nothing, the instance is simply discarded.
+	 *
+	 * @param  handler  the ConnectionHandler that is no longer in use
+	 */
+	public void releaseConnectionHandler (ConnectionHandler handler) {
+	}
+}
@@ -0,0 +1,44 @@
+package com.messners.ajf.net;
+
+
+/**
+ * This interface defines the strategy a Server uses to run the
+ * ConnectionHandler for each accepted connection.  A ConnectionDispatcher
+ * may refuse a connection when it is saturated, in which case the Server
+ * closes the connection and fires a {@link ConnectionRejectedException}
+ * to its ServerListeners.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface ConnectionDispatcher {
+
+	/**
+	 * Admission policy that refuses new connections immediately when the
+	 * dispatcher is saturated.
+	 */
+	public static final int REFUSE = 0;
+
+
+	/**
+	 * Admission policy that parks the accept thread until the dispatcher
+	 * has capacity, leaving new connections in the listen backlog.
+	 */
+	public static final int PARK = 1;
+
+
+	/**
+	 * Dispatches the task that processes a single connection.
+	 *
+	 * @param  task  the Runnable that processes the connection
+	 * @return true if the task was dispatched, false if the connection
+	 * was refused
+	 */
+	public boolean dispatch (Runnable task);
+
+
+	/**
+	 * Shuts down this dispatcher, called when the Server is stopped.
+	 * Tasks that are already running are allowed to complete.
+	 */
+	public void shutdown ();
+}
@@ -0,0 +1,32 @@
+package com.messners.ajf.net;
+
+
+/**
+ * This interface defines a factory that supplies the ConnectionHandler
+ * instance used to process each connection accepted by a Server.  The
+ * Server hands every ConnectionHandler back to the factory when its
+ * process() method returns, which allows a factory to pool and reuse
+ * handler instances.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface ConnectionHandlerFactory {
+
+	/**
+	 * Supplies a ConnectionHandler to process a single connection.
+	 *
+	 * @return the ConnectionHandler to process a connection
+	 * @throws Exception if the ConnectionHandler could not be created
+	 */
+	public ConnectionHandler newConnectionHandler () throws Exception;
+
+
+	/**
+	 * Called by the Server when the ConnectionHandler has finished
+	 * processing its connection, or when the connection was refused
+	 * before it could be processed.
+	 *
+	 * @param  handler  the ConnectionHandler that is no longer in use
+	 */
+	public void releaseConnectionHandler (ConnectionHandler handler);
+}
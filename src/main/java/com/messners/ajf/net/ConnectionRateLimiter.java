@@ -0,0 +1,286 @@
+package com.messners.ajf.net;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.messners.ajf.util.NetworkUtils;
+
+
+/**
+ * This class limits the rate new connections are accepted from each
+ * source with a token bucket.  The limit for an address comes from the
+ * first subnet rule the address is on, or the default limit if it is on
+ * none.  A rule either gives each address on the subnet its own bucket or
+ * has the whole subnet share one.
+ * <p>
+ * The buckets are lock free, each one is a single AtomicLong holding the
+ * time the bucket will be full again (the generic cell rate algorithm),
+ * so checking a connection is one map lookup and one compare and set.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ConnectionRateLimiter {
+
+	/**
+	 * Default maximum number of buckets kept = 100000.
+	 */
+	public static final int DEFAULT_MAX_BUCKETS = 100000;
+
+
+	private CopyOnWriteArrayList<Rule> rules;
+	private ConcurrentHashMap<Object, AtomicLong> buckets;
+	private volatile Rule defaultRule;
+	private int maxBuckets;
+	private AtomicLong nextPurge;
+	private AtomicLong rejects;
+
+
+	/**
+	 * Creates a ConnectionRateLimiter with no limits.
+	 */
+	public ConnectionRateLimiter () {
+		this(DEFAULT_MAX_BUCKETS);
+	}
+
+
+	/**
+	 * Creates a ConnectionRateLimiter with no limits that keeps at most
+	 * maxBuckets buckets.  When there are this many buckets the ones that
+	 * are full are dropped, at most once per interval of the rule being
+	 * checked, and until that makes room new sources on a rule share one
+	 * overflow bucket for the rule.
+	 *
+	 * @param  maxBuckets  the maximum number of buckets
+	 */
+	public ConnectionRateLimiter (int maxBuckets) {
+
+		if (maxBuckets < 1) {
+			throw new IllegalArgumentException("Invalid maxBuckets: " + maxBuckets);
+		}
+
+		this.maxBuckets = maxBuckets;
+		rules = new CopyOnWriteArrayList<Rule>();
+		buckets = new ConcurrentHashMap<Object, AtomicLong>();
+		nextPurge = new AtomicLong(System.nanoTime());
+		rejects = new AtomicLong();
+	}
+
+
+	/**
+	 * Sets the limit for each address that is not on any of the subnet
+	 * rules.
+	 *
+	 * @param  rate   the number of connections per second, 0 or less for
+	 * no limit
+	 * @param  burst  the number of connections allowed at once
+	 */
+	public void setDefaultLimit (double rate, int burst) {
+		defaultRule = (rate > 0 ? new Rule(null, null, rate, burst, true) : null);
+	}
+
+
+	/**
+	 * Adds a rule for the subnet holding all the addresses from start
+	 * to end, see NetworkUtils.getSubnetMask().  Rules are checked in the
+	 * order they are added.
+	 *
+	 * @param  start       the first address of the subnet
+	 * @param  end         the last address of the subnet
+	 * @param  rate        the number of connections per second, 0 to refuse
+	 * all connections from the subnet
+	 * @param  burst       the number of connections allowed at once
+	 * @param  perAddress  true to give each address its own bucket, false
+	 * for the whole subnet to share one
+	 */
+	public void addRule (InetAddress start, InetAddress end, double rate,
+			int burst, boolean perAddress) {
+
+		if (start.getAddress().length != end.getAddress().length) {
+			throw new IllegalArgumentException(
+				"Subnet addresses must be the same type: " + start + ", " + end);
+		}
+
+		byte mask[] = NetworkUtils.getSubnetMask(start, end);
+		InetAddress network = NetworkUtils.getNetwork(start, end);
+		rules.add(new Rule(network, mask, rate, burst, perAddress));
+	}
+
+
+	/**
+	 * Removes all the subnet rules and the buckets.
+	 */
+	public void clearRules () {
+		rules.clear();
+		buckets.clear();
+	}
+
+
+	/**
+	 * Gets the number of connections that have been refused.
+	 *
+	 * @return the number of refused connections
+	 */
+	public long getRejectCount () {
+		return (rejects.get());
+	}
+
+
+	/**
+	 * Gets the number of buckets currently kept.
+	 *
+	 * @return the number of buckets
+	 */
+	public int getBucketCount () {
+		return (buckets.size());
+	}
+
+
+	/**
+	 * Takes a token from the bucket for the address.
+	 *
+	 * @param  address  the address of the new connection
+	 * @return true if the connection is allowed, false if it must be refused
+	 */
+	public boolean tryAcquire (InetAddress address) {
+
+		Rule rule = getRule(address);
+		if (rule == null) {
+			return (true);
+		}
+
+		if (rule.interval == 0) {
+			rejects.incrementAndGet();
+			return (false);
+		}
+
+		Object key = (rule.perAddress ? address : rule);
+		AtomicLong bucket = buckets.get(key);
+		long now = System.nanoTime();
+		if (bucket == null) {
+
+			if (buckets.size() >= maxBuckets) {
+				purge(now, rule.interval);
+			}
+
+			if (buckets.size() >= maxBuckets) {
+
+				bucket = rule.overflow;
+
+			} else {
+
+				bucket = new AtomicLong(now);
+				AtomicLong existing = buckets.putIfAbsent(key, bucket);
+				if (existing != null) {
+					bucket = existing;
+				}
+			}
+		}
+
+
+		/*
+		 * The bucket holds the time it will be full.  A connection is
+		 * allowed if that is no more than the burst ahead of now, and
+		 * pushes it one interval further on.
+		 */
+		while (true) {
+
+			long full = bucket.get();
+			long start = (full - now > 0 ? full : now);
+			if (start - now > rule.tolerance) {
+				rejects.incrementAndGet();
+				return (false);
+			}
+
+			if (bucket.compareAndSet(full, start + rule.interval)) {
+				return (true);
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the first rule the address is on, or the default rule.
+	 */
+	private Rule getRule (InetAddress address) {
+
+		int length = address.getAddress().length;
+		for (Rule rule : rules) {
+
+			if (rule.mask.length == length &&
+					NetworkUtils.isOnNetwork(address, rule.network, rule.mask)) {
+				return (rule);
+			}
+		}
+
+		return (defaultRule);
+	}
+
+
+	/**
+	 * Drops the buckets that are full, they are the same as a new bucket.
+	 * A bucket is only full an interval after it was last used, so the
+	 * buckets are not looked at again until the interval has passed and
+	 * only one thread looks at them at a time.
+	 */
+	private void purge (long now, long interval) {
+
+		long next = nextPurge.get();
+		if (now - next < 0 || !nextPurge.compareAndSet(next, now + interval)) {
+			return;
+		}
+
+		Iterator<AtomicLong> it = buckets.values().iterator();
+		while (it.hasNext()) {
+
+			if (it.next().get() - now <= 0) {
+				it.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Holds a subnet and its limit.
+	 */
+	private static class Rule {
+
+		private InetAddress network;
+		private byte mask[];
+		private boolean perAddress;
+
+
+		/**
+		 * The nanoseconds between connections at the rate, 0 to refuse all.
+		 */
+		private long interval;
+
+
+		/**
+		 * How far ahead of now the bucket may be full and still allow a
+		 * connection, which allows burst connections at once.
+		 */
+		private long tolerance;
+
+
+		/**
+		 * The bucket shared by new sources on this rule while there is no
+		 * room for their own buckets.
+		 */
+		private AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+		public Rule (InetAddress network, byte mask[], double rate,
+				int burst, boolean perAddress) {
+
+			this.network = network;
+			this.mask = mask;
+			this.perAddress = perAddress;
+			if (rate > 0) {
+				interval = Math.max(1, (long)(1000000000L / rate));
+				tolerance = interval * (Math.max(1, burst) - 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.net.Socket;
+
+
+/**
+ * Signals that a Server refused an accepted connection and closed it.
+ * This exception is fired to the ServerListeners of the Server.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ConnectionRejectedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient Socket connection;
+
+
+	/**
+	 * Constructs a new ConnectionRejectedException for the connection.
+	 *
+	 * @param  connection  the refused connection
+	 * @param  msg  the reason the connection was refused
+	 */
+	public ConnectionRejectedException (Socket connection, String msg) {
+
+		super(msg);
+		this.connection = connection;
+	}
+
+
+	/**
+	 * Gets the Socket for the refused connection, it has already been
+	 * closed.
+	 *
+	 * @return the Socket for the refused connection
+	 */
+	public Socket getConnection () {
+		return (connection);
+	}
+}
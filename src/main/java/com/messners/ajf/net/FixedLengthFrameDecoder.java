@@ -0,0 +1,35 @@
+package com.messners.ajf.net;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This FrameDecoder splits a stream into frames that are all the
+ * same length.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class FixedLengthFrameDecoder implements FrameDecoder {
+
+	private int length;
+
+
+	/**
+	 * Creates a FixedLengthFrameDecoder.
+	 *
+	 * @param  length  the length of each frame
+	 */
+	public FixedLengthFrameDecoder (int length) {
+
+		if (length < 1) {
+			throw new IllegalArgumentException("Invalid frame length: " + length);
+		}
+
+		this.length = length;
+	}
+
+
+	public int frameLength (ByteBuffer buf) {
+		return (buf.remaining() >= length ? length : 0);
+	}
+}
@@ -0,0 +1,27 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * This interface defines how a stream of bytes is split into frames
+ * (messages).  A FrameDecoder must not keep any state between calls
+ * so a single instance can be shared by all connections.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface FrameDecoder {
+
+	/**
+	 * Gets the length of the complete frame at the start of the buffer.
+	 * The data examined is from the buffer's position to its limit, the
+	 * buffer's position and limit must not be changed.
+	 *
+	 * @param  buf  the buffer holding the data
+	 * @return the length of the frame including any header and delimiter,
+	 * or 0 if the buffer does not yet hold a complete frame
+	 * @throws IOException if the data can not be the start of a valid frame
+	 */
+	public int frameLength (ByteBuffer buf) throws IOException;
+}
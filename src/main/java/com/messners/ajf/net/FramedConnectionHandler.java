@@ -0,0 +1,171 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+
+/**
+ * This abstract ConnectionHandler reads a client connection, splits the
+ * data into frames with a FrameDecoder and calls frameReceived() with
+ * each complete frame.  The data is read into a buffer taken from a
+ * BufferPool for the life of the connection and frames are passed as a
+ * view of that buffer, so nothing is allocated for each frame.
+ * <p>
+ * Subclasses must have a no-args constructor that passes the FrameDecoder
+ * to use to this class so they can be created by a Server.  Because the
+ * buffers are pooled the handlers may be pooled too, see
+ * PooledConnectionHandlerFactory.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public abstract class FramedConnectionHandler
+		implements ResettableConnectionHandler {
+
+	/**
+	 * Default maximum length of a frame = 64 KB.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+
+	/**
+	 * The pool used when a subclass does not supply one.
+	 */
+	private static BufferPool defaultBufferPool =
+		new BufferPool(DEFAULT_MAX_FRAME_LENGTH);
+
+
+	private FrameDecoder decoder;
+	private BufferPool bufferPool;
+
+
+	/**
+	 * Creates a handler that reads frames of at most
+	 * DEFAULT_MAX_FRAME_LENGTH bytes using a shared BufferPool.
+	 *
+	 * @param  decoder  the FrameDecoder that splits the data into frames
+	 */
+	protected FramedConnectionHandler (FrameDecoder decoder) {
+		this(decoder, defaultBufferPool);
+	}
+
+
+	/**
+	 * Creates a handler that reads into buffers from the specified pool,
+	 * the buffer size is the maximum frame length.
+	 *
+	 * @param  decoder     the FrameDecoder that splits the data into frames
+	 * @param  bufferPool  the pool of heap buffers to read into
+	 */
+	protected FramedConnectionHandler (FrameDecoder decoder,
+			BufferPool bufferPool) {
+
+		if (bufferPool.isDirect()) {
+			throw new IllegalArgumentException(
+				"FramedConnectionHandler requires heap buffers");
+		}
+
+		this.decoder = decoder;
+		this.bufferPool = bufferPool;
+	}
+
+
+	/**
+	 * Gets the FrameDecoder used by this handler.
+	 *
+	 * @return the FrameDecoder used by this handler
+	 */
+	public FrameDecoder getFrameDecoder () {
+		return (decoder);
+	}
+
+
+	/**
+	 * Called with each complete frame read from the client.  The frame is
+	 * positioned at the start of the frame, including any header, and
+	 * limited to its end.  It is only valid for the duration of the call,
+	 * any data needed after this method returns must be copied.
+	 *
+	 * @param  server      the Server that accepted the connection
+	 * @param  connection  the client connection
+	 * @param  frame       the frame data
+	 * @throws IOException to close the connection
+	 */
+	protected abstract void frameReceived (Server server, Socket connection,
+			ByteBuffer frame) throws IOException;
+
+
+	/**
+	 * Called when the client connection has ended, after the last call to
+	 * frameReceived().  The default implementation does nothing.
+	 *
+	 * @param  server      the Server that accepted the connection
+	 * @param  connection  the client connection
+	 */
+	protected void connectionClosed (Server server, Socket connection) {
+	}
+
+
+	/**
+	 * Reads frames from the client until the connection is closed.
+	 */
+	public void process (Server server, Socket connection) {
+
+		ByteBuffer buf = bufferPool.acquire();
+		try {
+
+			ByteBuffer frame = buf.duplicate();
+			byte data[] = buf.array();
+			int offset = buf.arrayOffset();
+			InputStream in = connection.getInputStream();
+
+			int n;
+			while ((n = in.read(data, offset + buf.position(), buf.remaining())) >= 0) {
+
+				buf.position(buf.position() + n);
+				buf.flip();
+
+				int length;
+				while ((length = decoder.frameLength(buf)) > 0) {
+
+					int start = buf.position();
+					frame.limit(start + length).position(start);
+					buf.position(start + length);
+					frameReceived(server, connection, frame);
+				}
+
+				buf.compact();
+				if (!buf.hasRemaining()) {
+					throw new IOException("Client " +
+						connection.getRemoteSocketAddress() +
+						" sent a frame longer than " + buf.capacity() + " bytes");
+				}
+			}
+
+		} catch (IOException ioe) {
+
+			if (!connection.isClosed()) {
+				server.fireException(ioe);
+			}
+
+		} finally {
+
+			bufferPool.release(buf);
+			connectionClosed(server, connection);
+
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+
+	/**
+	 * Nothing is held between connections, subclasses that keep per
+	 * connection state should override this.
+	 */
+	public void reset () {
+	}
+}
@@ -0,0 +1,93 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * This FrameDecoder splits a stream into frames that have a header
+ * holding the length of the frame.  The length field is an unsigned big
+ * endian integer of 1, 2 or 4 bytes at a fixed offset into the header.
+ * The frame length is:
+ * <pre>
+ *     fieldOffset + fieldLength + value + adjustment
+ * </pre>
+ * so an adjustment of 0 is used when the value is the length of the data
+ * after the length field, and an adjustment of -(fieldOffset + fieldLength)
+ * when the value is the length of the whole frame.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class LengthFieldFrameDecoder implements FrameDecoder {
+
+	private int fieldOffset;
+	private int fieldLength;
+	private int adjustment;
+
+
+	/**
+	 * Creates a LengthFieldFrameDecoder for frames that start with a 4 byte
+	 * length of the data that follows it.
+	 */
+	public LengthFieldFrameDecoder () {
+		this(0, 4, 0);
+	}
+
+
+	/**
+	 * Creates a LengthFieldFrameDecoder.
+	 *
+	 * @param  fieldOffset  the offset of the length field in the header
+	 * @param  fieldLength  the size of the length field, 1, 2 or 4 bytes
+	 * @param  adjustment   the value added to compute the frame length
+	 */
+	public LengthFieldFrameDecoder (int fieldOffset, int fieldLength,
+			int adjustment) {
+
+		if (fieldOffset < 0) {
+			throw new IllegalArgumentException(
+				"Invalid field offset: " + fieldOffset);
+		}
+
+		if (fieldLength != 1 && fieldLength != 2 && fieldLength != 4) {
+			throw new IllegalArgumentException(
+				"Invalid field length: " + fieldLength);
+		}
+
+		this.fieldOffset = fieldOffset;
+		this.fieldLength = fieldLength;
+		this.adjustment = adjustment;
+	}
+
+
+	public int frameLength (ByteBuffer buf) throws IOException {
+
+		int headerLength = fieldOffset + fieldLength;
+		if (buf.remaining() < headerLength) {
+			return (0);
+		}
+
+		int index = buf.position() + fieldOffset;
+		long value;
+		switch (fieldLength) {
+			case 1:
+				value = buf.get(index) & 0xff;
+				break;
+
+			case 2:
+				value = buf.getShort(index) & 0xffff;
+				break;
+
+			default:
+				value = buf.getInt(index) & 0xffffffffL;
+				break;
+		}
+
+		long length = headerLength + value + adjustment;
+		if (length < headerLength || length > Integer.MAX_VALUE) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+
+		return (buf.remaining() >= length ? (int)length : 0);
+	}
+}
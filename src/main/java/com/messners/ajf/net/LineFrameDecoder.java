@@ -0,0 +1,48 @@
+package com.messners.ajf.net;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This FrameDecoder splits a stream into frames that end with a delimiter
+ * byte, by default a newline.  The delimiter is part of the frame.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class LineFrameDecoder implements FrameDecoder {
+
+	private byte delimiter;
+
+
+	/**
+	 * Creates a LineFrameDecoder for newline terminated frames.
+	 */
+	public LineFrameDecoder () {
+		this((byte)'\n');
+	}
+
+
+	/**
+	 * Creates a LineFrameDecoder for frames terminated by the delimiter.
+	 *
+	 * @param  delimiter  the byte that ends each frame
+	 */
+	public LineFrameDecoder (byte delimiter) {
+		this.delimiter = delimiter;
+	}
+
+
+	public int frameLength (ByteBuffer buf) {
+
+		int start = buf.position();
+		int limit = buf.limit();
+		for (int i = start; i < limit; i++) {
+
+			if (buf.get(i) == delimiter) {
+				return (i - start + 1);
+			}
+		}
+
+		return (0);
+	}
+}
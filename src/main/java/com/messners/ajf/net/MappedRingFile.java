@@ -0,0 +1,308 @@
+package com.messners.ajf.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+
+/**
+ * This class publishes a stream into a memory-mapped ring file so readers
+ * in other processes on the same host can follow the stream without a
+ * socket or a copy through the kernel, see MappedRingReader.
+ * <p>
+ * The file starts with a header holding the capacity and the positions
+ * the writer has reached, followed by the ring.  Like ByteRingBuffer
+ * positions are absolute offsets into the stream.  The stream is appended
+ * by a single writer through the GatheringByteChannel interface and the
+ * writer never waits for the readers, a reader that falls more than the
+ * capacity behind is lapped and must skip ahead.
+ * <p>
+ * The header is published the same way as in ReplayBuffer, the writer
+ * first raises the write limit, then copies the data and then moves the
+ * end position.  Each of these is followed by a volatile write, which
+ * with HotSpot keeps the stores to the mapped memory in that order.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class MappedRingFile implements GatheringByteChannel {
+
+	/**
+	 * Identifies a ring file, the first int of the header.
+	 */
+	public static final int MAGIC = 0x534d5852;
+
+
+	/**
+	 * The version of the header layout.
+	 */
+	public static final int VERSION = 1;
+
+
+	/*
+	 * The header layout, the positions are each on their own cache line
+	 * so readers polling the end position don't share a line with the
+	 * write limit.
+	 */
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int CAPACITY_OFFSET = 8;
+	static final int CLOSED_OFFSET = 16;
+	static final int WRITE_LIMIT_OFFSET = 64;
+	static final int END_POSITION_OFFSET = 128;
+	static final int HEADER_SIZE = 256;
+
+
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private ByteBuffer data;
+	private int capacity;
+	private int mask;
+	private long endPosition;
+	private volatile boolean closed;
+
+
+	/**
+	 * Written after each header update to order the stores to the
+	 * mapped memory.
+	 */
+	private volatile long published;
+
+
+	/**
+	 * Creates the ring file, replacing any ring file already there.
+	 * Readers of the old file see it closed.
+	 *
+	 * @param  file      the file to map
+	 * @param  capacity  the size of the ring, rounded up to a power of 2
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public MappedRingFile (File file, int capacity) throws IOException {
+
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		this.file = file;
+		this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+		if (this.capacity < 1) {
+			this.capacity = 1;
+		}
+
+		mask = this.capacity - 1;
+		closeExisting(file);
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+
+			raf.setLength(HEADER_SIZE + this.capacity);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + this.capacity);
+
+		} catch (IOException ioe) {
+
+			raf.close();
+			throw ioe;
+		}
+
+		map.putInt(CAPACITY_OFFSET, this.capacity);
+		map.putInt(VERSION_OFFSET, VERSION);
+		map.putInt(CLOSED_OFFSET, 0);
+		map.putLong(WRITE_LIMIT_OFFSET, 0);
+		map.putLong(END_POSITION_OFFSET, 0);
+		published = 0;
+		map.putInt(MAGIC_OFFSET, MAGIC);
+
+		map.position(HEADER_SIZE);
+		data = map.slice();
+	}
+
+
+	/**
+	 * Marks an existing ring file closed and deletes it, its readers keep
+	 * their mapping of the old file so it is never resized under them.
+	 */
+	private static void closeExisting (File file) throws IOException {
+
+		if (!file.exists()) {
+			return;
+		}
+
+		RandomAccessFile old = new RandomAccessFile(file, "rw");
+		try {
+
+			if (old.length() >= HEADER_SIZE) {
+				old.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE).putInt(CLOSED_OFFSET, 1);
+			}
+
+		} finally {
+			old.close();
+		}
+
+		if (!file.delete()) {
+			throw new IOException("Could not replace ring file: " + file);
+		}
+	}
+
+
+	/**
+	 * Gets the file the ring is mapped from.
+	 *
+	 * @return the mapped file
+	 */
+	public File getFile () {
+		return (file);
+	}
+
+
+	/**
+	 * Gets the size of the ring.
+	 *
+	 * @return the size of the ring in bytes
+	 */
+	public int getCapacity () {
+		return (capacity);
+	}
+
+
+	/**
+	 * Gets the position just past the last byte written.
+	 *
+	 * @return the position just past the last byte written
+	 */
+	public long getEndPosition () {
+		return (endPosition);
+	}
+
+
+	/**
+	 * Appends data to the stream, only called by the single writer.
+	 *
+	 * @param  srcs    the buffers to append
+	 * @param  offset  the offset of the first buffer to append
+	 * @param  length  the number of buffers to append
+	 * @return the number of bytes appended
+	 * @throws IOException if this ring file has been closed
+	 */
+	public long write (ByteBuffer srcs[], int offset, int length)
+			throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		long count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			count += srcs[i].remaining();
+		}
+
+		if (count == 0) {
+			return (0);
+		}
+
+
+		/*
+		 * Readers behind the new write limit less the capacity are lapped,
+		 * a write larger than the ring only keeps the last capacity bytes.
+		 */
+		long position = endPosition;
+		long writeLimit = position + count;
+		map.putLong(WRITE_LIMIT_OFFSET, writeLimit);
+		published = writeLimit;
+
+		for (int i = offset; i < offset + length; i++) {
+
+			ByteBuffer src = srcs[i];
+			if (position + src.remaining() <= writeLimit - capacity) {
+				position += src.remaining();
+				src.position(src.limit());
+				continue;
+			}
+
+			while (src.hasRemaining()) {
+
+				if (position < writeLimit - capacity) {
+					int skip = (int)(writeLimit - capacity - position);
+					src.position(src.position() + skip);
+					position += skip;
+				}
+
+				int index = (int)(position & mask);
+				int n = Math.min(src.remaining(), capacity - index);
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + n);
+				data.limit(index + n).position(index);
+				data.put(slice);
+				src.position(src.position() + n);
+				position += n;
+			}
+		}
+
+		published = position;
+		map.putLong(END_POSITION_OFFSET, position);
+		published = position;
+		endPosition = position;
+		return (count);
+	}
+
+
+	/**
+	 * Appends data to the stream, only called by the single writer.
+	 *
+	 * @param  srcs  the buffers to append
+	 * @return the number of bytes appended
+	 * @throws IOException if this ring file has been closed
+	 */
+	public long write (ByteBuffer srcs[]) throws IOException {
+		return (write(srcs, 0, srcs.length));
+	}
+
+
+	/**
+	 * Appends data to the stream, only called by the single writer.
+	 *
+	 * @param  src  the buffer to append
+	 * @return the number of bytes appended
+	 * @throws IOException if this ring file has been closed
+	 */
+	public int write (ByteBuffer src) throws IOException {
+		return ((int)write(new ByteBuffer[] { src }, 0, 1));
+	}
+
+
+	/**
+	 * Returns true if this ring file has not been closed.
+	 *
+	 * @return true if this ring file is open
+	 */
+	public boolean isOpen () {
+		return (!closed);
+	}
+
+
+	/**
+	 * Closes this ring file, the readers see the stream end after the
+	 * data already written.  The file is left in place.
+	 */
+	public void close () {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		published = endPosition;
+		map.putInt(CLOSED_OFFSET, 1);
+
+		try {
+			raf.close();
+		} catch (IOException ignore) {
+		}
+	}
+}
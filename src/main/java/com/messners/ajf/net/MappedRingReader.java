@@ -0,0 +1,302 @@
+package com.messners.ajf.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This class follows the stream published to a MappedRingFile, usually
+ * from another process on the same host.  Each reader maps the file
+ * read only and keeps its own position, the writer never waits for it.
+ * There is no way to signal across processes, so a reader waiting for
+ * data polls the end position, first spinning briefly and then parking
+ * for a little longer each time up to MAX_PARK_NANOS.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class MappedRingReader {
+
+	/**
+	 * The longest a waiting reader parks between polls = 1 millisecond.
+	 */
+	public static final long MAX_PARK_NANOS = 1000000L;
+
+
+	/**
+	 * The number of polls a waiting reader spins before it parks.
+	 */
+	private static final int SPIN_POLLS = 100;
+
+
+	private File file;
+	private MappedByteBuffer map;
+	private ByteBuffer data;
+	private int capacity;
+	private int mask;
+	private long position;
+
+
+	/**
+	 * Written between the loads from the mapped memory that must stay in
+	 * order, with HotSpot a volatile write is a full fence.
+	 */
+	private volatile long fence;
+
+
+	/**
+	 * Creates a reader for the ring file that starts at the end of the
+	 * data already written.
+	 *
+	 * @param  file  the ring file
+	 * @throws IOException if the file cannot be mapped or is not a ring file
+	 */
+	public MappedRingReader (File file) throws IOException {
+
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+
+			if (raf.length() < MappedRingFile.HEADER_SIZE) {
+				throw new IOException("Not a ring file: " + file);
+			}
+
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+		} finally {
+			raf.close();
+		}
+
+		if (map.getInt(MappedRingFile.MAGIC_OFFSET) != MappedRingFile.MAGIC) {
+			throw new IOException("Not a ring file: " + file);
+		}
+
+		if (map.getInt(MappedRingFile.VERSION_OFFSET) != MappedRingFile.VERSION) {
+			throw new IOException("Unsupported ring file version " +
+				map.getInt(MappedRingFile.VERSION_OFFSET) + ": " + file);
+		}
+
+		capacity = map.getInt(MappedRingFile.CAPACITY_OFFSET);
+		if (capacity < 1 || Integer.bitCount(capacity) != 1 ||
+				map.capacity() < MappedRingFile.HEADER_SIZE + capacity) {
+			throw new IOException("Invalid ring file capacity " + capacity + ": " + file);
+		}
+
+		mask = capacity - 1;
+		map.position(MappedRingFile.HEADER_SIZE);
+		data = map.slice();
+		position = getEndPosition();
+	}
+
+
+	/**
+	 * Gets the ring file this reader follows.
+	 *
+	 * @return the ring file
+	 */
+	public File getFile () {
+		return (file);
+	}
+
+
+	/**
+	 * Gets the size of the ring.
+	 *
+	 * @return the size of the ring in bytes
+	 */
+	public int getCapacity () {
+		return (capacity);
+	}
+
+
+	/**
+	 * Gets the position of the next byte this reader will read.
+	 *
+	 * @return the position of the next byte to read
+	 */
+	public long getPosition () {
+		return (position);
+	}
+
+
+	/**
+	 * Gets the position just past the last byte the writer has published.
+	 *
+	 * @return the end position of the stream
+	 */
+	public long getEndPosition () {
+
+		long end = map.getLong(MappedRingFile.END_POSITION_OFFSET);
+		fence = end;
+		return (end);
+	}
+
+
+	/**
+	 * Gets the number of bytes written to the ring that this reader has
+	 * not yet read.
+	 *
+	 * @return the number of bytes this reader is behind the writer
+	 */
+	public long getLag () {
+		return (getEndPosition() - position);
+	}
+
+
+	/**
+	 * Returns true if the writer has overwritten data this reader has
+	 * not yet read.
+	 *
+	 * @return true if this reader has been lapped by the writer
+	 */
+	public boolean isLapped () {
+		return (getWriteLimit() - position > capacity);
+	}
+
+
+	/**
+	 * Returns true if the writer has closed the ring file and this reader
+	 * has read all the data in it.
+	 *
+	 * @return true if there is no more data to read
+	 */
+	public boolean isClosed () {
+		return (map.getInt(MappedRingFile.CLOSED_OFFSET) != 0 &&
+			getEndPosition() <= position);
+	}
+
+
+	/**
+	 * Moves this reader to the specified position.  The position is
+	 * clamped to the data that is still available in the ring.
+	 *
+	 * @param  newPosition  the new position for this reader
+	 * @return the number of bytes skipped, negative if moved backwards
+	 */
+	public long skipTo (long newPosition) {
+
+		long end = getEndPosition();
+		long start = Math.max(0, getWriteLimit() - capacity);
+		newPosition = Math.max(start, Math.min(end, newPosition));
+		long skipped = newPosition - position;
+		position = newPosition;
+		return (skipped);
+	}
+
+
+	/**
+	 * Waits until there is data for this reader to read.
+	 *
+	 * @param  timeout  the maximum time in milliseconds to wait,
+	 * 0 to wait forever
+	 * @return true if there is data available, false if the wait timed
+	 * out or the ring file was closed
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	public boolean awaitData (long timeout) throws InterruptedException {
+
+		long deadline = (timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0);
+		long parkNanos = 1000L;
+		int polls = 0;
+		while (getEndPosition() <= position) {
+
+			if (map.getInt(MappedRingFile.CLOSED_OFFSET) != 0) {
+				return (getEndPosition() > position);
+			}
+
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+
+			long now = System.nanoTime();
+			if (deadline != 0 && now - deadline >= 0) {
+				return (false);
+			}
+
+			if (polls++ < SPIN_POLLS) {
+				Thread.yield();
+				continue;
+			}
+
+			long park = parkNanos;
+			if (deadline != 0) {
+				park = Math.min(park, deadline - now);
+			}
+
+			LockSupport.parkNanos(park);
+			parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+		}
+
+		return (true);
+	}
+
+
+	/**
+	 * Copies the data after this reader's position into the byte array
+	 * and moves this reader past it.  This never blocks the writer.
+	 *
+	 * @param  b       the byte array to copy into
+	 * @param  offset  the offset in the array to copy to
+	 * @param  length  the maximum number of bytes to copy
+	 * @return the number of bytes copied, 0 if there is no data yet, or -1
+	 * if this reader has been lapped by the writer and must skip ahead
+	 */
+	public int read (byte b[], int offset, int length) {
+
+		long end = getEndPosition();
+		if (position >= end || length == 0) {
+			return (0);
+		}
+
+		if (getWriteLimit() - capacity > position) {
+			return (-1);
+		}
+
+		int count = (int)Math.min(length, end - position);
+		ByteBuffer view = data.duplicate();
+		int index = (int)(position & mask);
+		int first = Math.min(count, capacity - index);
+		view.limit(index + first).position(index);
+		view.get(b, offset, first);
+		if (first < count) {
+			view.limit(count - first).position(0);
+			view.get(b, offset + first, count - first);
+		}
+
+
+		/*
+		 * If the writer started overwriting the data while we copied it
+		 * the copy can't be trusted.
+		 */
+		if (getWriteLimit() - capacity > position) {
+			return (-1);
+		}
+
+		position += count;
+		return (count);
+	}
+
+
+	/**
+	 * Gets the limit the writer may be overwriting up to.
+	 */
+	private long getWriteLimit () {
+
+		fence = position;
+		return (map.getLong(MappedRingFile.WRITE_LIMIT_OFFSET));
+	}
+
+
+	/**
+	 * Releases this reader.  The mapping is released when this reader
+	 * is garbage collected.
+	 */
+	public void close () {
+		data = null;
+		map = null;
+	}
+}
@@ -0,0 +1,246 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+
+/**
+ * This class represents a single non-blocking client connection accepted
+ * by a NioServer.  Writes may be made from any thread, they are queued
+ * and flushed by the selector thread that owns the connection.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class NioConnection {
+
+	private NioServer server;
+	private NioServer.SelectorLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private Object attachment;
+
+
+	/**
+	 * Data waiting to be written to the client, guarded by this instance.
+	 */
+	private ArrayDeque<ByteBuffer> writeQueue;
+
+
+	/**
+	 * True while the selector thread has been asked to flush the writeQueue
+	 * or is waiting for the channel to become writable.
+	 */
+	private boolean writePending;
+
+	private volatile boolean closeRequested;
+	private volatile boolean closed;
+
+
+	/**
+	 * The System.nanoTime() data was last read from or written to the
+	 * channel, only updated by the owning selector thread.
+	 */
+	volatile long lastActivity = System.nanoTime();
+
+
+	NioConnection (NioServer server, NioServer.SelectorLoop loop,
+			SocketChannel channel, SelectionKey key) {
+
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		this.key = key;
+		writeQueue = new ArrayDeque<ByteBuffer>();
+	}
+
+
+	/**
+	 * Gets the NioServer instance that accepted this connection.
+	 *
+	 * @return the NioServer that accepted this connection
+	 */
+	public NioServer getServer () {
+		return (server);
+	}
+
+
+	/**
+	 * Gets the SocketChannel for this connection.
+	 *
+	 * @return the SocketChannel for this connection
+	 */
+	public SocketChannel getChannel () {
+		return (channel);
+	}
+
+
+	/**
+	 * Gets the Socket for this connection.
+	 *
+	 * @return the Socket for this connection
+	 */
+	public Socket getSocket () {
+		return (channel.socket());
+	}
+
+
+	/**
+	 * Gets the object attached to this connection.
+	 *
+	 * @return the object attached to this connection
+	 */
+	public Object getAttachment () {
+		return (attachment);
+	}
+
+
+	/**
+	 * Attaches an object to this connection, usually used to hold the
+	 * per connection state of a NioConnectionHandler.
+	 *
+	 * @param  attachment  the object to attach to this connection
+	 */
+	public void setAttachment (Object attachment) {
+		this.attachment = attachment;
+	}
+
+
+	/**
+	 * Returns true if this connection has not been closed.
+	 *
+	 * @return true if this connection is still open
+	 */
+	public boolean isOpen () {
+		return (!closed && !closeRequested);
+	}
+
+
+	/**
+	 * Queues data to be written to the client.  The ByteBuffer is written
+	 * from its current position to its limit and must not be modified
+	 * by the caller after this call.  This method may be called from
+	 * any thread.
+	 *
+	 * @param  data  the data to write to the client
+	 * @throws IOException if the connection has been closed
+	 */
+	public void write (ByteBuffer data) throws IOException {
+
+		synchronized (this) {
+
+			if (closed || closeRequested) {
+				throw new IOException("Connection is closed");
+			}
+
+			writeQueue.add(data);
+			if (writePending) {
+				return;
+			}
+
+			writePending = true;
+		}
+
+		loop.requestService(this);
+	}
+
+
+	/**
+	 * Closes this connection after any queued data has been written.
+	 * This method may be called from any thread.
+	 */
+	public void close () {
+
+		if (closed || closeRequested) {
+			return;
+		}
+
+		closeRequested = true;
+		loop.requestService(this);
+	}
+
+
+	/**
+	 * Returns the number of buffers waiting to be written to the client.
+	 *
+	 * @return the number of buffers waiting to be written
+	 */
+	public synchronized int getQueuedWriteCount () {
+		return (writeQueue.size());
+	}
+
+
+	/**
+	 * Writes as much of the queued data as the channel will take without
+	 * blocking.  Only called from the owning selector thread.
+	 *
+	 * @return true if all the queued data was written
+	 * @throws IOException if an I/O error occurs
+	 */
+	synchronized boolean flush () throws IOException {
+
+		ByteBuffer buf;
+		while ((buf = writeQueue.peek()) != null) {
+
+			if (channel.write(buf) > 0) {
+				lastActivity = System.nanoTime();
+			}
+
+			if (buf.hasRemaining()) {
+				return (false);
+			}
+
+			writeQueue.poll();
+		}
+
+		writePending = false;
+		return (true);
+	}
+
+
+	/**
+	 * Returns true if close() has been called on this connection.
+	 */
+	boolean isCloseRequested () {
+		return (closeRequested);
+	}
+
+
+	/**
+	 * Gets the SelectionKey for this connection.
+	 */
+	SelectionKey getKey () {
+		return (key);
+	}
+
+
+	/**
+	 * Marks this connection closed and closes the channel.  Only called
+	 * from the owning selector thread.
+	 *
+	 * @return false if the connection was already closed
+	 */
+	boolean closeChannel () {
+
+		synchronized (this) {
+
+			if (closed) {
+				return (false);
+			}
+
+			closed = true;
+			writeQueue.clear();
+		}
+
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ignore) {
+		}
+
+		return (true);
+	}
+}
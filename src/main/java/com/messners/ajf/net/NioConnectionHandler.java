@@ -0,0 +1,49 @@
+package com.messners.ajf.net;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This interface defines the non-blocking counterpart to ConnectionHandler.
+ * A single NioConnectionHandler instance is shared by all the connections
+ * of a NioServer and its methods are called from the NioServer's selector
+ * threads, so implementations must never block.  Per connection state can
+ * be kept with {@link NioConnection#setAttachment(Object)}.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface NioConnectionHandler {
+
+	/**
+	 * Called when a NioServer has accepted a new client connection.
+	 *
+	 * @param server      the NioServer instance that accepted the connection
+	 * @param connection  the newly accepted connection
+	 */
+	public void connected (NioServer server, NioConnection connection);
+
+
+	/**
+	 * Called when data has been read from a client connection.  The
+	 * ByteBuffer is owned by the selector thread and is reused for the next
+	 * read, so any data that is needed after this method returns must be
+	 * copied.
+	 *
+	 * @param server      the NioServer instance that owns the connection
+	 * @param connection  the connection the data was read from
+	 * @param data        the data read, positioned and ready to be read
+	 */
+	public void dataReceived (NioServer server, NioConnection connection,
+			ByteBuffer data);
+
+
+	/**
+	 * Called when a client connection has been closed, either by the client,
+	 * by a call to {@link NioConnection#close()} or because the NioServer
+	 * was stopped.
+	 *
+	 * @param server      the NioServer instance that owned the connection
+	 * @param connection  the connection that was closed
+	 */
+	public void closed (NioServer server, NioConnection connection);
+}
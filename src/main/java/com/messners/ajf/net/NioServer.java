@@ -0,0 +1,840 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class defines a server for servicing TCP based clients using
+ * non-blocking I/O.  Instead of a thread per connection, a small fixed
+ * set of selector threads multiplex the accept, read and write readiness
+ * of all connections and call a single shared NioConnectionHandler.
+ * The first selector thread also accepts connections, accepted connections
+ * are spread round-robin across all the selector threads.
+ * <p>
+ * NioServer fires the same connection and exception events to its
+ * ServerListeners as Server does.  The ServerSocket methods that describe
+ * the bound address are overridden to describe the underlying
+ * ServerSocketChannel.
+ * <p>
+ * Connections are not handled by threads here, so drain() gives the open
+ * connections until the timeout to close instead of waiting for handlers.
+ * The idle timeout is checked by each selector thread for its own
+ * connections and applies to all of them, including those accepted
+ * before it was set.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class NioServer extends Server {
+
+	/**
+	 * Default size of the buffer each selector thread reads into = 8192.
+	 */
+	public static final int DEFAULT_READ_BUFFER_SIZE = 8192;
+
+
+	/**
+	 * The channel that connections are accepted on.
+	 */
+	protected ServerSocketChannel serverChannel;
+
+
+	/**
+	 * The handler that is called for all connections.
+	 */
+	protected NioConnectionHandler nioConnectionHandler;
+
+
+	/**
+	 * The number of selector threads, defaults to the number of processors.
+	 */
+	protected int selectorCount;
+
+
+	/**
+	 * The size of the read buffer used by each selector thread.
+	 */
+	protected int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+
+
+	/**
+	 * The selector threads, null when the server is not running.
+	 */
+	private SelectorLoop loops[];
+
+
+	/**
+	 * Index of the next selector thread to hand a connection to, only used
+	 * by the accepting selector thread.
+	 */
+	private int nextLoop;
+
+
+	/**
+	 * The number of accepted connections that have not been closed.
+	 */
+	private AtomicInteger openConnections = new AtomicInteger();
+	private volatile boolean draining;
+	private Object drainLock = new Object();
+
+
+	/**
+	 * Creates an unbound NioServer.
+	 *
+	 * @throws IOException if an I/O error occurs when opening the channel
+	 */
+	public NioServer () throws IOException {
+
+		super();
+		serverChannel = ServerSocketChannel.open();
+		selectorCount = Runtime.getRuntime().availableProcessors();
+	}
+
+
+	/**
+	 * Creates a NioServer, bound to the specified port.
+	 *
+	 * @param  port  the port number, or 0 to use any free port
+	 * @throws IOException if an I/O error occurs when opening the channel
+	 */
+	public NioServer (int port) throws IOException {
+		this(port, 50, null);
+	}
+
+
+	/**
+	 * Creates a NioServer and binds it to the specified
+	 * local port number, with the specified backlog.
+	 *
+	 * @param  port  the port number, or 0 to use any free port
+	 * @param  backlog  the maximum length of the queue
+	 * @throws IOException if an I/O error occurs when opening the channel
+	 */
+	public NioServer (int port, int backlog) throws IOException {
+		this(port, backlog, null);
+	}
+
+
+	/**
+	 * Create a NioServer with the specified port, listen backlog,
+	 * and local IP address to bind to.
+	 *
+	 * @param  port     the port number, or 0 to use any free port
+	 * @param  backlog  the maximum length of the queue
+	 * @param  bindAddr the local InetAddress the server will bind to
+	 * @throws IOException if an I/O error occurs when opening the channel
+	 */
+	public NioServer (int port, int backlog, InetAddress bindAddr)
+			throws IOException {
+
+		this();
+		bind(new InetSocketAddress(bindAddr, port), backlog);
+	}
+
+
+	/**
+	 * Gets the NioConnectionHandler that is called for all connections.
+	 *
+	 * @return the NioConnectionHandler for this server
+	 */
+	public NioConnectionHandler getNioConnectionHandler () {
+		return (nioConnectionHandler);
+	}
+
+
+	/**
+	 * Sets the NioConnectionHandler that is called for all connections.
+	 * This must be set before the server is started.
+	 *
+	 * @param  handler  the NioConnectionHandler for this server
+	 */
+	public void setNioConnectionHandler (NioConnectionHandler handler) {
+		this.nioConnectionHandler = handler;
+	}
+
+
+	/**
+	 * Gets the number of selector threads used by this server.
+	 *
+	 * @return the number of selector threads
+	 */
+	public int getSelectorCount () {
+		return (selectorCount);
+	}
+
+
+	/**
+	 * Sets the number of selector threads used by this server.  This only
+	 * takes effect the next time the server is started.
+	 *
+	 * @param  selectorCount  the number of selector threads, must be &gt; 0
+	 */
+	public void setSelectorCount (int selectorCount) {
+
+		if (selectorCount < 1) {
+			throw new IllegalArgumentException(
+				"selectorCount must be > 0: " + selectorCount);
+		}
+
+		this.selectorCount = selectorCount;
+	}
+
+
+	/**
+	 * Sets the size of the buffer each selector thread reads into.  This
+	 * only takes effect the next time the server is started.
+	 *
+	 * @param  readBufferSize  the read buffer size in bytes
+	 */
+	public void setReadBufferSize (int readBufferSize) {
+		this.readBufferSize = readBufferSize;
+	}
+
+
+	/**
+	 * Binds the underlying ServerSocketChannel to the specified address.
+	 *
+	 * @param  endpoint  the IP address and port number to bind to
+	 * @param  backlog   the maximum length of the queue
+	 * @throws IOException if the bind operation fails
+	 */
+	public void bind (SocketAddress endpoint, int backlog) throws IOException {
+		serverChannel.socket().bind(endpoint, backlog);
+	}
+
+
+	/**
+	 * Returns the ServerSocketChannel for this server.
+	 *
+	 * @return the ServerSocketChannel connections are accepted on
+	 */
+	public ServerSocketChannel getChannel () {
+		return (serverChannel);
+	}
+
+
+	/**
+	 * Returns the local address this server is bound to.
+	 *
+	 * @return the local address this server is bound to
+	 */
+	public InetAddress getInetAddress () {
+		return (serverChannel.socket().getInetAddress());
+	}
+
+
+	/**
+	 * Returns the port this server is listening on.
+	 *
+	 * @return the port this server is listening on, -1 if not bound
+	 */
+	public int getLocalPort () {
+		return (serverChannel.socket().getLocalPort());
+	}
+
+
+	/**
+	 * Returns the address of the endpoint this server is bound to.
+	 *
+	 * @return the address this server is bound to, null if not bound
+	 */
+	public SocketAddress getLocalSocketAddress () {
+		return (serverChannel.socket().getLocalSocketAddress());
+	}
+
+
+	/**
+	 * Returns the binding state of this server.
+	 *
+	 * @return true if this server has been bound to an address
+	 */
+	public boolean isBound () {
+		return (serverChannel.socket().isBound());
+	}
+
+
+	/**
+	 * Returns the closed state of this server.
+	 *
+	 * @return true if this server's channel has been closed
+	 */
+	public boolean isClosed () {
+		return (!serverChannel.isOpen());
+	}
+
+
+	/**
+	 * Creates and starts the selector threads for this server.
+	 *
+	 * @throws IllegalStateException if the NioConnectionHandler was not set
+	 * @throws IOException if the selectors could not be opened
+	 */
+	public synchronized void start () throws Exception {
+
+		if (loops != null) {
+			// silent discard
+			return;
+		}
+
+		if (nioConnectionHandler == null) {
+			throw new IllegalStateException(
+				"NioConnectionHandler has not been set");
+		}
+
+		serverChannel.configureBlocking(false);
+
+		SelectorLoop newLoops[] = new SelectorLoop[selectorCount];
+		try {
+
+			for (int i = 0; i < newLoops.length; i++) {
+				newLoops[i] = new SelectorLoop(i);
+			}
+
+			serverChannel.register(newLoops[0].selector, SelectionKey.OP_ACCEPT);
+
+		} catch (IOException ioe) {
+
+			for (int i = 0; i < newLoops.length && newLoops[i] != null; i++) {
+				newLoops[i].selector.close();
+			}
+
+			throw ioe;
+		}
+
+		loops = newLoops;
+		nextLoop = 0;
+		acceptThread = loops[0];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].start();
+		}
+
+		logger.info("Waiting for connections on " + this);
+	}
+
+
+	/**
+	 * Stops this NioServer instance, closes all the client connections
+	 * and closes the server channel.
+	 */
+	public synchronized void stop () {
+
+		if (loops == null) {
+			// silent discard
+			return;
+		}
+
+		SelectorLoop stopLoops[] = loops;
+		loops = null;
+		acceptThread = null;
+
+		try {
+			serverChannel.close();
+		} catch (IOException ignore) {
+		}
+
+		for (int i = 0; i < stopLoops.length; i++) {
+			stopLoops[i].shutdown();
+		}
+	}
+
+
+	/**
+	 * Stops this NioServer gracefully.  No more connections are accepted,
+	 * the open connections are given until the timeout to be closed and
+	 * then the ones still open are closed.
+	 *
+	 * @param  timeout  the maximum time in milliseconds to wait for the
+	 * connections to close
+	 * @return true if all the connections closed, false if some were still
+	 * open at the timeout and were closed
+	 * @throws InterruptedException if the current thread is interrupted,
+	 * the connections are closed before it is thrown
+	 */
+	public boolean drain (long timeout) throws InterruptedException {
+
+		synchronized (this) {
+
+			if (loops == null) {
+				return (openConnections.get() == 0);
+			}
+
+			/*
+			 * The channel is not really closed until the accepting
+			 * selector drops its key, wake it up so it does
+			 */
+			try {
+				serverChannel.close();
+			} catch (IOException ignore) {
+			}
+
+			loops[0].selector.wakeup();
+		}
+
+		draining = true;
+		try {
+
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized (drainLock) {
+
+				while (openConnections.get() > 0) {
+
+					long waitTime = deadline - System.currentTimeMillis();
+					if (waitTime <= 0) {
+						break;
+					}
+
+					drainLock.wait(waitTime);
+				}
+			}
+
+			int open = openConnections.get();
+			if (open > 0) {
+				logger.warning("Closing " + open +
+					" connection(s) still open after " + timeout + "ms");
+			}
+
+			return (open == 0);
+
+		} finally {
+
+			draining = false;
+			stop();
+		}
+	}
+
+
+	/**
+	 * Gets the number of accepted connections that have not been closed.
+	 *
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount () {
+		return (openConnections.get());
+	}
+
+
+	/**
+	 * Returns a String describing this server.
+	 *
+	 * @return a String describing this server
+	 */
+	public String toString () {
+
+		if (!isBound()) {
+			return ("NioServer[unbound]");
+		}
+
+		return ("NioServer[addr=" + getInetAddress() +
+			",localport=" + getLocalPort() + "]");
+	}
+
+
+	/**
+	 * Accepts all pending connections and hands each of them off to
+	 * a selector thread.  Connections over the ConnectionRateLimiter
+	 * are closed and fired as a ConnectionRejectedException instead.
+	 * Only called from the first selector thread.
+	 */
+	private void acceptConnections (SelectorLoop[] activeLoops) {
+
+		while (true) {
+
+			SocketChannel channel;
+			try {
+
+				channel = serverChannel.accept();
+				if (channel == null) {
+					return;
+				}
+
+				channel.configureBlocking(false);
+				stats.connectionAccepted();
+
+			} catch (IOException ioe) {
+
+				if (serverChannel.isOpen()) {
+					fireException(ioe);
+				}
+
+				return;
+			}
+
+			ConnectionRateLimiter limiter = connectionRateLimiter;
+			if (limiter != null &&
+					!limiter.tryAcquire(channel.socket().getInetAddress())) {
+				reject(channel.socket(), "Connection rate limit exceeded");
+				continue;
+			}
+
+			if (logger.isLoggable(java.util.logging.Level.FINE)) {
+				logger.fine("Connection received from " +
+					channel.socket().getInetAddress().getHostAddress());
+			}
+
+			SelectorLoop loop = activeLoops[nextLoop];
+			nextLoop = (nextLoop + 1) % activeLoops.length;
+			openConnections.incrementAndGet();
+			loop.addChannel(channel);
+
+			fireConnection(channel.socket());
+		}
+	}
+
+
+	/**
+	 * Counts an accepted connection as closed and wakes up drain() when
+	 * the last one is closed.
+	 */
+	private void connectionClosed () {
+
+		if (openConnections.decrementAndGet() == 0 && draining) {
+			synchronized (drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * This class defines a selector thread that services the reads and
+	 * writes for its share of the connections.
+	 */
+	final class SelectorLoop extends Thread {
+
+		private Selector selector;
+		private ByteBuffer readBuffer;
+		private volatile boolean running;
+
+
+		/**
+		 * Channels accepted for this selector thread waiting to be
+		 * registered with its selector.
+		 */
+		private ConcurrentLinkedQueue<SocketChannel> newChannels;
+
+
+		/**
+		 * Connections that have queued writes or have been asked to close.
+		 */
+		private ConcurrentLinkedQueue<NioConnection> serviceRequests;
+
+
+		/**
+		 * The System.nanoTime() the connections are next checked for
+		 * the idle timeout.
+		 */
+		private long nextIdleCheck;
+
+
+		SelectorLoop (int index) throws IOException {
+
+			super("nio-selector-" + index);
+			selector = Selector.open();
+			readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+			newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+			serviceRequests = new ConcurrentLinkedQueue<NioConnection>();
+			running = true;
+		}
+
+
+		/**
+		 * Queues a newly accepted channel for registration with this
+		 * selector thread.
+		 */
+		void addChannel (SocketChannel channel) {
+
+			newChannels.add(channel);
+			if (Thread.currentThread() != this) {
+				selector.wakeup();
+			}
+		}
+
+
+		/**
+		 * Asks this selector thread to flush or close the connection.
+		 */
+		void requestService (NioConnection connection) {
+
+			serviceRequests.add(connection);
+			if (Thread.currentThread() != this) {
+				selector.wakeup();
+			}
+		}
+
+
+		/**
+		 * Stops this selector thread, closing all its connections.
+		 */
+		void shutdown () {
+			running = false;
+			selector.wakeup();
+		}
+
+
+		public void run () {
+
+			SelectorLoop activeLoops[] = loops;
+			nextIdleCheck = System.nanoTime();
+			while (running) {
+
+				try {
+					selector.select(idleCheckDelay());
+				} catch (IOException ioe) {
+					fireException(ioe);
+					break;
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						acceptConnections(activeLoops);
+						continue;
+					}
+
+					NioConnection connection = (NioConnection)key.attachment();
+					if (key.isReadable()) {
+						read(connection);
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						write(connection);
+					}
+				}
+
+				registerNewChannels();
+				serviceConnections();
+				closeIdleConnections();
+			}
+
+			closeAll();
+		}
+
+
+		/**
+		 * Gets how long select() may wait before the idle check is due,
+		 * 0 to wait until woken up when there is no idle timeout.
+		 */
+		private long idleCheckDelay () {
+
+			if (getIdleTimeout() <= 0) {
+				return (0);
+			}
+
+			long delay = (nextIdleCheck - System.nanoTime()) / 1000000L;
+			return (Math.max(1, delay));
+		}
+
+
+		/**
+		 * Closes the connections nothing has been read from or written to
+		 * for the idle timeout.  The connections are checked a few times
+		 * per timeout so one is closed within a quarter of the timeout
+		 * of it timing out.
+		 */
+		private void closeIdleConnections () {
+
+			long timeout = getIdleTimeout();
+			long now = System.nanoTime();
+			if (timeout <= 0 || now - nextIdleCheck < 0) {
+				return;
+			}
+
+			nextIdleCheck = now + Math.max(1, timeout / 4) * 1000000L;
+			for (SelectionKey key : selector.keys()) {
+
+				Object attachment = key.attachment();
+				if (!(attachment instanceof NioConnection)) {
+					continue;
+				}
+
+				NioConnection connection = (NioConnection)attachment;
+				long idle = (now - connection.lastActivity) / 1000000L;
+				if (idle >= timeout && key.isValid()) {
+
+					logger.fine("Closing connection idle for " + idle +
+						"ms: " + connection.getSocket());
+					stats.connectionIdleClosed();
+					close(connection);
+				}
+			}
+		}
+
+
+		private void registerNewChannels () {
+
+			SocketChannel channel;
+			while ((channel = newChannels.poll()) != null) {
+
+				NioConnection connection;
+				try {
+
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					connection = new NioConnection(
+						NioServer.this, this, channel, key);
+					key.attach(connection);
+
+				} catch (IOException ioe) {
+
+					fireException(ioe);
+					try {
+						channel.close();
+					} catch (IOException ignore) {
+					}
+
+					connectionClosed();
+					continue;
+				}
+
+				stats.connectionOpened(-1);
+				try {
+					nioConnectionHandler.connected(NioServer.this, connection);
+				} catch (RuntimeException re) {
+					fireException(re);
+					close(connection);
+				}
+			}
+		}
+
+
+		private void serviceConnections () {
+
+			NioConnection connection;
+			while ((connection = serviceRequests.poll()) != null) {
+
+				if (connection.getKey().isValid()) {
+					write(connection);
+				}
+			}
+		}
+
+
+		private void read (NioConnection connection) {
+
+			readBuffer.clear();
+			int nread;
+			try {
+				nread = connection.getChannel().read(readBuffer);
+			} catch (IOException ioe) {
+				fireException(ioe);
+				close(connection);
+				return;
+			}
+
+			if (nread < 0) {
+				close(connection);
+				return;
+			}
+
+			if (nread == 0) {
+				return;
+			}
+
+			connection.lastActivity = System.nanoTime();
+			readBuffer.flip();
+			long start = System.nanoTime();
+			try {
+				nioConnectionHandler.dataReceived(
+					NioServer.this, connection, readBuffer);
+			} catch (RuntimeException re) {
+				fireException(re);
+				close(connection);
+			}
+
+			stats.handlerRan(System.nanoTime() - start);
+		}
+
+
+		private void write (NioConnection connection) {
+
+			SelectionKey key = connection.getKey();
+			try {
+
+				if (connection.flush()) {
+
+					if (connection.isCloseRequested()) {
+						close(connection);
+					} else {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+
+				} else {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+
+			} catch (IOException ioe) {
+				fireException(ioe);
+				close(connection);
+			}
+		}
+
+
+		private void close (NioConnection connection) {
+
+			if (!connection.closeChannel()) {
+				return;
+			}
+
+			stats.connectionClosed();
+			connectionClosed();
+
+			try {
+				nioConnectionHandler.closed(NioServer.this, connection);
+			} catch (RuntimeException re) {
+				fireException(re);
+			}
+		}
+
+
+		private void closeAll () {
+
+			ArrayList<SelectionKey> keys;
+			try {
+				keys = new ArrayList<SelectionKey>(selector.keys());
+			} catch (Exception e) {
+				keys = new ArrayList<SelectionKey>();
+			}
+
+			for (SelectionKey key : keys) {
+
+				Object attachment = key.attachment();
+				if (attachment instanceof NioConnection) {
+					close((NioConnection)attachment);
+				}
+			}
+
+			SocketChannel channel;
+			while ((channel = newChannels.poll()) != null) {
+
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+				}
+
+				connectionClosed();
+			}
+
+			try {
+				selector.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.messners.ajf.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This ConnectionDispatcher runs the connections on a bounded pool of
+ * reusable threads.  Connections that arrive while all the threads are
+ * busy wait in a bounded queue, when both the threads and the queue are
+ * full the admission policy decides whether the connection is refused
+ * or the accept thread is parked until a thread becomes available.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class PooledConnectionDispatcher extends AbstractConnectionDispatcher {
+
+	/**
+	 * Default time in milliseconds an idle thread above the core thread
+	 * count is kept alive = 60000.
+	 */
+	public static final long DEFAULT_KEEP_ALIVE_TIME = 60000L;
+
+
+	/**
+	 * The time in milliseconds between checks for shutdown while an
+	 * admitted connection is being handed to the pool.
+	 */
+	private static final long HAND_OFF_WAIT = 10L;
+
+
+	private int coreThreads;
+	private int maxThreads;
+	private int queueCapacity;
+	private long keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+	private ThreadPoolExecutor executor;
+	private AtomicInteger threadCount = new AtomicInteger();
+
+
+	/**
+	 * Creates a pooled dispatcher.
+	 *
+	 * @param  coreThreads      the number of threads kept in the pool
+	 * @param  maxThreads       the maximum number of threads in the pool
+	 * @param  queueCapacity    the maximum number of connections waiting for
+	 * a thread, 0 for no waiting
+	 * @param  admissionPolicy  either REFUSE or PARK
+	 * @param  parkTimeout      the maximum time in milliseconds to park the
+	 * accept thread with the PARK policy before refusing, 0 to wait forever
+	 */
+	public PooledConnectionDispatcher (int coreThreads, int maxThreads,
+			int queueCapacity, int admissionPolicy, long parkTimeout) {
+
+		super(maxThreads + queueCapacity, admissionPolicy, parkTimeout);
+
+		if (maxThreads < 1 || coreThreads < 0 || coreThreads > maxThreads) {
+			throw new IllegalArgumentException("Invalid thread counts: core=" +
+				coreThreads + ", max=" + maxThreads);
+		}
+
+		if (queueCapacity < 0) {
+			throw new IllegalArgumentException(
+				"Invalid queue capacity: " + queueCapacity);
+		}
+
+		this.coreThreads = coreThreads;
+		this.maxThreads = maxThreads;
+		this.queueCapacity = queueCapacity;
+	}
+
+
+	/**
+	 * Sets the time an idle thread above the core thread count is kept
+	 * alive.  This only takes effect when the pool is next created.
+	 *
+	 * @param  keepAliveTime  the keep alive time in milliseconds
+	 */
+	public void setKeepAliveTime (long keepAliveTime) {
+		this.keepAliveTime = keepAliveTime;
+	}
+
+
+	/**
+	 * Gets the number of threads currently processing connections.
+	 *
+	 * @return the number of busy threads
+	 */
+	public synchronized int getActiveCount () {
+		return (executor != null ? executor.getActiveCount() : 0);
+	}
+
+
+	/**
+	 * Gets the number of connections waiting for a thread.
+	 *
+	 * @return the number of waiting connections
+	 */
+	public synchronized int getQueuedCount () {
+		return (executor != null ? executor.getQueue().size() : 0);
+	}
+
+
+	/**
+	 * Runs the task on the pool, creating the pool if needed.  The task
+	 * has been admitted so it is only refused if the pool is shut down.
+	 *
+	 * @param  task  the Runnable that processes the connection
+	 * @return true if the task was accepted by the pool
+	 */
+	protected boolean execute (Runnable task) {
+
+		try {
+			getExecutor().execute(task);
+			return (true);
+		} catch (RejectedExecutionException ree) {
+			return (false);
+		}
+	}
+
+
+	/**
+	 * Shuts down the pool, running connections are allowed to complete.
+	 * A new pool will be created if this dispatcher is used again.
+	 */
+	public synchronized void shutdown () {
+
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+
+	private synchronized ThreadPoolExecutor getExecutor () {
+
+		if (executor == null) {
+
+			BlockingQueue<Runnable> queue;
+			if (queueCapacity > 0) {
+				queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+			} else {
+				queue = new SynchronousQueue<Runnable>();
+			}
+
+			executor = new ThreadPoolExecutor(coreThreads, maxThreads,
+				keepAliveTime, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+
+					public Thread newThread (Runnable r) {
+						return (new Thread(r,
+							"connection-handler-" + threadCount.incrementAndGet()));
+					}
+				}, new HandOffPolicy());
+		}
+
+		return (executor);
+	}
+
+
+	/**
+	 * The admission permit of a connection is released when the connection
+	 * has been processed, which is before its thread is back waiting on
+	 * the queue.  An admitted connection can therefore find every thread
+	 * busy and the queue full for a moment, so instead of refusing it the
+	 * connection is handed to the queue as soon as there is room, which
+	 * the admission permits guarantee is about to be the case.
+	 */
+	private static final class HandOffPolicy implements RejectedExecutionHandler {
+
+		public void rejectedExecution (Runnable task, ThreadPoolExecutor executor) {
+
+			try {
+
+				while (!executor.isShutdown()) {
+
+					if (executor.getQueue().offer(task, HAND_OFF_WAIT, TimeUnit.MILLISECONDS)) {
+
+						/*
+						 * The pool may have been shut down before the task
+						 * could be taken from the queue
+						 */
+						if (executor.isShutdown() && executor.remove(task)) {
+							break;
+						}
+
+						return;
+					}
+				}
+
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+
+			throw new RejectedExecutionException("Connection not handed to the pool");
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.messners.ajf.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * This ConnectionHandlerFactory pools ResettableConnectionHandler
+ * instances supplied by another factory.  When a handler is released it
+ * is reset and kept for the next connection, up to a maximum number of
+ * idle handlers.  Handlers that do not implement
+ * ResettableConnectionHandler are never pooled.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class PooledConnectionHandlerFactory implements ConnectionHandlerFactory {
+
+	/**
+	 * Default maximum number of idle handlers kept in the pool = 64.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+
+	private ConnectionHandlerFactory factory;
+	private ArrayBlockingQueue<ConnectionHandler> pool;
+
+
+	/**
+	 * Creates a pool of handlers supplied by the specified factory that
+	 * keeps at most DEFAULT_MAX_IDLE idle handlers.
+	 *
+	 * @param  factory  the factory that creates new handlers
+	 */
+	public PooledConnectionHandlerFactory (ConnectionHandlerFactory factory) {
+		this(factory, DEFAULT_MAX_IDLE);
+	}
+
+
+	/**
+	 * Creates a pool of handlers supplied by the specified factory.
+	 *
+	 * @param  factory  the factory that creates new handlers
+	 * @param  maxIdle  the maximum number of idle handlers to keep
+	 */
+	public PooledConnectionHandlerFactory (
+			ConnectionHandlerFactory factory, int maxIdle) {
+
+		if (maxIdle < 1) {
+			throw new IllegalArgumentException("maxIdle must be > 0: " + maxIdle);
+		}
+
+		this.factory = factory;
+		pool = new ArrayBlockingQueue<ConnectionHandler>(maxIdle);
+	}
+
+
+	/**
+	 * Creates a pool of instances of the specified ConnectionHandler class.
+	 *
+	 * @param  handlerClass  the ConnectionHandler implementation class
+	 * @param  maxIdle  the maximum number of idle handlers to keep
+	 */
+	public PooledConnectionHandlerFactory (
+			Class<? extends ResettableConnectionHandler> handlerClass,
+			int maxIdle) {
+
+		this(new ClassConnectionHandlerFactory(handlerClass), maxIdle);
+	}
+
+
+	/**
+	 * Gets the number of idle handlers currently in the pool.
+	 *
+	 * @return the number of idle handlers
+	 */
+	public int getIdleCount () {
+		return (pool.size());
+	}
+
+
+	/**
+	 * Takes an idle handler from the pool, or creates a new one if the pool
+	 * is empty.
+	 *
+	 * @return the ConnectionHandler to process a connection
+	 * @throws Exception if a new ConnectionHandler could not be created
+	 */
+	public ConnectionHandler newConnectionHandler () throws Exception {
+
+		ConnectionHandler handler = pool.poll();
+		if (handler == null) {
+			handler = factory.newConnectionHandler();
+		}
+
+		return (handler);
+	}
+
+
+	/**
+	 * Resets the handler and returns it to the pool.  If the pool is full
+	 * the handler is handed back to the underlying factory.
+	 *
+	 * @param  handler  the ConnectionHandler that is no longer in use
+	 */
+	public void releaseConnectionHandler (ConnectionHandler handler) {
+
+		if (handler instanceof ResettableConnectionHandler) {
+
+			boolean reset = false;
+			try {
+				((ResettableConnectionHandler)handler).reset();
+				reset = true;
+			} catch (RuntimeException re) {
+				// a handler that failed to reset is not reused
+			}
+
+			if (reset && pool.offer(handler)) {
+				return;
+			}
+		}
+
+		factory.releaseConnectionHandler(handler);
+	}
+}
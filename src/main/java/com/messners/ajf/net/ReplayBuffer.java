@@ -0,0 +1,474 @@
+package com.messners.ajf.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+
+/**
+ * This class keeps the most recent bytes of a stream in a memory-mapped
+ * file so a late joining reader can be sent the recent history of the
+ * stream before it switches to live data.  The window kept is limited
+ * to a maximum number of bytes and optionally to a maximum age.
+ * <p>
+ * The stream is appended by a single writer through the
+ * GatheringByteChannel interface, positions are absolute offsets into the
+ * stream just like ByteRingBuffer positions.  Readers never block the
+ * writer, a reader copies the data out and then checks that the writer
+ * did not overwrite it during the copy, if it did the read fails and the
+ * reader must move up to the start of the window.  The writer raises the
+ * write limit before it overwrites any data and the reader does a volatile
+ * write between the copy and the check, with HotSpot each volatile write
+ * is a full fence so the check always sees an overwrite the copy may
+ * have seen.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ReplayBuffer implements GatheringByteChannel {
+
+	/**
+	 * The number of (time, position) entries kept to find the start of
+	 * the window by age, a power of 2.
+	 */
+	public static final int TIME_INDEX_SIZE = 4096;
+
+
+	private File file;
+	private boolean tempFile;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private int capacity;
+	private int mask;
+	private int maxBytes;
+	private long maxAge;
+
+
+	/**
+	 * The writer's view of the mapped buffer, only used by the writer.
+	 */
+	private ByteBuffer writeView;
+
+
+	/**
+	 * All data before this position has been written and can be read.
+	 */
+	private volatile long endPosition;
+
+
+	/**
+	 * The writer may be overwriting data up to this position less
+	 * the capacity.
+	 */
+	private volatile long writeLimit;
+
+
+	/**
+	 * Written between the loads from the mapped memory and the check of
+	 * the write limit that must stay in order, with HotSpot a volatile
+	 * write is a full fence.
+	 */
+	private volatile long fence;
+
+
+	/**
+	 * The time index, entry i holds the time the data starting at
+	 * indexPositions[i] was written.
+	 */
+	private long indexTimes[] = new long[TIME_INDEX_SIZE];
+	private long indexPositions[] = new long[TIME_INDEX_SIZE];
+	private volatile long indexCount;
+	private long indexGranularity;
+
+	private volatile boolean closed;
+
+
+	/**
+	 * Readers waiting for data wait on this lock.
+	 */
+	private Object dataLock = new Object();
+	private volatile int dataWaiters;
+
+
+	/**
+	 * Creates a replay buffer.
+	 *
+	 * @param  file      the file to map, null to use a temporary file that
+	 * is deleted when the buffer is closed
+	 * @param  maxBytes  the maximum number of bytes in the window
+	 * @param  maxAge    the maximum age in milliseconds of the data in
+	 * the window, 0 for no limit
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public ReplayBuffer (File file, int maxBytes, long maxAge)
+			throws IOException {
+
+		if (maxBytes < 1 || maxBytes > (1 << 29)) {
+			throw new IllegalArgumentException("Invalid maxBytes: " + maxBytes);
+		}
+
+		/*
+		 * The mapped file is at least twice the window so a reader copying
+		 * from the start of the window is not immediately overwritten.
+		 */
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+		capacity = Integer.highestOneBit(maxBytes * 2 - 1) << 1;
+		mask = capacity - 1;
+		indexGranularity = Math.max(1, maxAge / (TIME_INDEX_SIZE / 2));
+
+		if (file == null) {
+			file = File.createTempFile("replay", ".buf");
+			file.deleteOnExit();
+			tempFile = true;
+		}
+
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		try {
+
+			raf.setLength(capacity);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+		} catch (IOException ioe) {
+
+			raf.close();
+			throw ioe;
+		}
+
+		writeView = map.duplicate();
+	}
+
+
+	/**
+	 * Gets the file this buffer is mapped from.
+	 *
+	 * @return the mapped file
+	 */
+	public File getFile () {
+		return (file);
+	}
+
+
+	/**
+	 * Gets the maximum number of bytes in the window.
+	 *
+	 * @return the maximum number of bytes in the window
+	 */
+	public int getMaxBytes () {
+		return (maxBytes);
+	}
+
+
+	/**
+	 * Gets the maximum age in milliseconds of the data in the window.
+	 *
+	 * @return the maximum age in milliseconds, 0 for no limit
+	 */
+	public long getMaxAge () {
+		return (maxAge);
+	}
+
+
+	/**
+	 * Gets the position just past the last byte written.
+	 *
+	 * @return the position just past the last byte written
+	 */
+	public long getEndPosition () {
+		return (endPosition);
+	}
+
+
+	/**
+	 * Gets the position of the oldest byte in the window.
+	 *
+	 * @return the position of the oldest byte in the window
+	 */
+	public long getWindowStart () {
+
+		long end = endPosition;
+		long start = Math.max(0, end - maxBytes);
+		if (maxAge <= 0) {
+			return (start);
+		}
+
+		/*
+		 * Walk back through the time index to the oldest entry that is not
+		 * too old, entries may be overwritten while we look so the result
+		 * is always clamped to the byte window.
+		 */
+		long cutoff = System.currentTimeMillis() - maxAge;
+		long count = indexCount;
+		long oldest = end;
+		for (long i = count - 1; i >= 0 && i >= count - TIME_INDEX_SIZE; i--) {
+
+			int index = (int)(i & (TIME_INDEX_SIZE - 1));
+			if (indexTimes[index] < cutoff) {
+				break;
+			}
+
+			oldest = indexPositions[index];
+		}
+
+		return (Math.max(start, Math.min(end, oldest)));
+	}
+
+
+	/**
+	 * Waits until there is data after the specified position.
+	 *
+	 * @param  position  the position to wait for data after
+	 * @param  timeout   the maximum time in milliseconds to wait,
+	 * 0 to wait forever
+	 * @return true if there is data available, false if the wait timed
+	 * out or the buffer was closed
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	public boolean awaitData (long position, long timeout)
+			throws InterruptedException {
+
+		if (endPosition > position) {
+			return (true);
+		}
+
+		long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+		synchronized (dataLock) {
+
+			dataWaiters++;
+			try {
+
+				while (endPosition <= position && !closed) {
+
+					if (deadline == 0) {
+						dataLock.wait();
+					} else {
+
+						long waitTime = deadline - System.currentTimeMillis();
+						if (waitTime <= 0) {
+							break;
+						}
+
+						dataLock.wait(waitTime);
+					}
+				}
+
+			} finally {
+				dataWaiters--;
+			}
+		}
+
+		return (endPosition > position);
+	}
+
+
+	/**
+	 * Copies data starting at the specified position into the byte array.
+	 * This never blocks the writer.
+	 *
+	 * @param  position  the stream position to copy from
+	 * @param  b         the byte array to copy into
+	 * @param  offset    the offset in the array to copy to
+	 * @param  length    the maximum number of bytes to copy
+	 * @return the number of bytes copied, 0 if there is no data after the
+	 * position yet, or -1 if the data at the position is no longer in
+	 * the buffer
+	 */
+	public int read (long position, byte b[], int offset, int length) {
+
+		long end = endPosition;
+		if (position >= end) {
+			return (0);
+		}
+
+		if (writeLimit - capacity > position) {
+			return (-1);
+		}
+
+		int count = (int)Math.min(length, end - position);
+		ByteBuffer view = map.duplicate();
+		int index = (int)(position & mask);
+		int first = Math.min(count, capacity - index);
+		view.limit(index + first).position(index);
+		view.get(b, offset, first);
+		if (first < count) {
+			view.limit(count - first).position(0);
+			view.get(b, offset + first, count - first);
+		}
+
+
+		/*
+		 * If the writer started overwriting the data while we copied it
+		 * the copy can't be trusted.  The fence keeps the copy from being
+		 * completed after the write limit is read.
+		 */
+		fence = position;
+		if (writeLimit - capacity > position) {
+			return (-1);
+		}
+
+		return (count);
+	}
+
+
+	/**
+	 * Appends data to the stream, only called by the single writer.
+	 *
+	 * @param  srcs    the buffers to append
+	 * @param  offset  the offset of the first buffer to append
+	 * @param  length  the number of buffers to append
+	 * @return the number of bytes appended
+	 * @throws IOException if this buffer has been closed
+	 */
+	public long write (ByteBuffer srcs[], int offset, int length)
+			throws IOException {
+
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		long count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			count += srcs[i].remaining();
+		}
+
+		if (count == 0) {
+			return (0);
+		}
+
+
+		/*
+		 * A write larger than the buffer only keeps the last capacity bytes.
+		 */
+		long position = endPosition;
+		writeLimit = position + count;
+		for (int i = offset; i < offset + length; i++) {
+
+			ByteBuffer src = srcs[i];
+			if (position + src.remaining() <= writeLimit - capacity) {
+				position += src.remaining();
+				src.position(src.limit());
+				continue;
+			}
+
+			while (src.hasRemaining()) {
+
+				if (position < writeLimit - capacity) {
+					int skip = (int)(writeLimit - capacity - position);
+					src.position(src.position() + skip);
+					position += skip;
+				}
+
+				int index = (int)(position & mask);
+				int n = Math.min(src.remaining(), capacity - index);
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + n);
+				writeView.limit(index + n).position(index);
+				writeView.put(slice);
+				src.position(src.position() + n);
+				position += n;
+			}
+		}
+
+		addIndexEntry(endPosition);
+		endPosition = position;
+
+		if (dataWaiters > 0) {
+			synchronized (dataLock) {
+				dataLock.notifyAll();
+			}
+		}
+
+		return (count);
+	}
+
+
+	/**
+	 * Appends data to the stream, only called by the single writer.
+	 *
+	 * @param  srcs  the buffers to append
+	 * @return the number of bytes appended
+	 * @throws IOException if this buffer has been closed
+	 */
+	public long write (ByteBuffer srcs[]) throws IOException {
+		return (write(srcs, 0, srcs.length));
+	}
+
+
+	/**
+	 * Appends data to the stream, only called by the single writer.
+	 *
+	 * @param  src  the buffer to append
+	 * @return the number of bytes appended
+	 * @throws IOException if this buffer has been closed
+	 */
+	public int write (ByteBuffer src) throws IOException {
+		return ((int)write(new ByteBuffer[] { src }, 0, 1));
+	}
+
+
+	/**
+	 * Records the time the data at the position was written, at most
+	 * one entry is kept for each indexGranularity milliseconds.
+	 */
+	private void addIndexEntry (long position) {
+
+		if (maxAge <= 0) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long count = indexCount;
+		if (count > 0) {
+			int last = (int)((count - 1) & (TIME_INDEX_SIZE - 1));
+			if (now - indexTimes[last] < indexGranularity) {
+				return;
+			}
+		}
+
+		int index = (int)(count & (TIME_INDEX_SIZE - 1));
+		indexTimes[index] = now;
+		indexPositions[index] = position;
+		indexCount = count + 1;
+	}
+
+
+	/**
+	 * Returns true if this buffer has not been closed.
+	 *
+	 * @return true if this buffer is open
+	 */
+	public boolean isOpen () {
+		return (!closed);
+	}
+
+
+	/**
+	 * Closes this buffer, wakes up any waiting readers and deletes the
+	 * file if it is a temporary file.
+	 */
+	public void close () {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		synchronized (dataLock) {
+			dataLock.notifyAll();
+		}
+
+		try {
+			raf.close();
+		} catch (IOException ignore) {
+		}
+
+		if (tempFile) {
+			file.delete();
+		}
+	}
+}
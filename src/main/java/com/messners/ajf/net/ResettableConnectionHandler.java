@@ -0,0 +1,20 @@
+package com.messners.ajf.net;
+
+
+/**
+ * This interface defines a ConnectionHandler that can be reset and reused
+ * to process another connection.  It is intended for handlers that hold
+ * expensive per handler state such as large buffers.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ * @see PooledConnectionHandlerFactory
+ */
+public interface ResettableConnectionHandler extends ConnectionHandler {
+
+	/**
+	 * Resets the state of this handler so it can process a new connection.
+	 * Called after process() has returned and before the handler is
+	 * returned to the pool.
+	 */
+	public void reset ();
+}
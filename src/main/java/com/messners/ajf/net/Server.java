@@ -1,20 +1,66 @@
 package com.messners.ajf.net;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.messners.ajf.util.HashedTimingWheel;
+import com.messners.ajf.util.HostNameCache;
+
 
 /**
  * This class defines a basic server for servicing TCP based clients.  
  * When start() is called, it creates a separate thread to accept 
  * connections.  For each connection, it creates an instance of 
- * ConnectionHandler in a thread and starts that thread.  
+ * ConnectionHandler and runs it with the ConnectionDispatcher, or in
+ * a new thread if no ConnectionDispatcher has been set.  
  * Either stop() or close() stops the accept thread and closes 
  * the server socket.
+ * <p>
+ * Each Server keeps a ServerStats with its connection counters and
+ * handler latencies, which can also be exported with JMX.
+ * <p>
+ * To spread a storm of connections over more than one thread a Server
+ * can run several acceptors, each with its own listening socket bound to
+ * the same address with SO_REUSEPORT so the kernel balances the incoming
+ * connections between them.  SO_REUSEPORT must be set before the socket
+ * is bound, so the Server must be created unbound, setAcceptorCount()
+ * called and then bound with bind().  Where SO_REUSEPORT is not supported
+ * (it needs Java 9 or later and an OS that supports it, such as Linux)
+ * the Server runs a single acceptor.
+ * <p>
+ * A ConnectionRateLimiter can be set to limit the rate connections are
+ * accepted from each client address or subnet.  Connections over the
+ * limit are closed as soon as they are accepted and reported to the
+ * listeners as a ConnectionRejectedException.
+ * <p>
+ * The Server tracks each accepted connection until it is closed and
+ * records when data was last read from or written to it.  If an idle
+ * timeout is set connections idle for longer are closed, the checks
+ * are scheduled on a HashedTimingWheel so there is no timer for each
+ * connection.  stop() closes any connections still open, drain() stops
+ * accepting and gives the running handlers time to finish first.
  *
  * @author  Greg Messner <greg@messners.com>
  */
@@ -27,6 +73,26 @@ public class Server extends ServerSocket implements Runnable {
 	protected Class<? extends ConnectionHandler> connectionHandlerClass;
 
 
+	/**
+	 * Supplies the ConnectionHandler for each accepted connection.
+	 */
+	protected ConnectionHandlerFactory connectionHandlerFactory;
+
+
+	/**
+	 * Runs the ConnectionHandler for each accepted connection, if null
+	 * a new thread is started for each connection.
+	 */
+	protected ConnectionDispatcher connectionDispatcher;
+
+
+	/**
+	 * Limits the rate connections are accepted from each source, if null
+	 * there is no limit.
+	 */
+	protected volatile ConnectionRateLimiter connectionRateLimiter;
+
+
 	/**
 	 * This thread is used to wait for connections using accept().
 	 */
@@ -39,13 +105,59 @@ public class Server extends ServerSocket implements Runnable {
 	protected ArrayList<ServerListener> listeners;
 
 
+	/**
+	 * The number of acceptors, the sockets and threads for the acceptors
+	 * after the first.
+	 */
+	private int acceptorCount = 1;
+	private boolean reusePort;
+	private int backlog;
+	private ArrayList<ServerSocket> acceptorSockets = new ArrayList<ServerSocket>();
+	private ArrayList<Thread> acceptorThreads = new ArrayList<Thread>();
+
+
 	/**
 	 * Where we log our activity
 	 */
 	protected Logger logger;
 
+
+	/**
+	 * The counters and latency histograms for this Server.
+	 */
+	protected ServerStats stats;
+
+	private ObjectName mbeanName;
+
+
+	/**
+	 * The connections accepted and not yet closed, and the number of
+	 * handlers dispatched that have not finished.
+	 */
+	private Set<TrackedSocket> connections = Collections.newSetFromMap(
+		new ConcurrentHashMap<TrackedSocket, Boolean>());
+	private AtomicInteger activeHandlers = new AtomicInteger();
+	private volatile boolean draining;
+	private Object drainLock = new Object();
+
+
+	/**
+	 * Connections idle for longer than this are closed, 0 for no limit.
+	 */
+	private volatile long idleTimeout;
+	private volatile HashedTimingWheel timingWheel;
+
+
+	/**
+	 * Resolves the host names of clients for the connection log, if null
+	 * only the IP address is logged.
+	 */
+	protected HostNameCache hostNameCache = HostNameCache.getDefault();
+	private HostNameLogger hostNameLogger = new HostNameLogger();
+
 	{
 		logger = Logger.getLogger( this.getClass().getName() );
+		stats = createStats();
 	}
 
 
@@ -118,7 +230,10 @@ public class Server extends ServerSocket implements Runnable {
 	 * class to use to handle connections to this server
 	 */
 	public void setConnectionHandlerClass (Class<? extends ConnectionHandler> connectionHandlerClass) {
+
 		this.connectionHandlerClass = connectionHandlerClass;
+		connectionHandlerFactory = (connectionHandlerClass == null ? null :
+			new ClassConnectionHandlerFactory(connectionHandlerClass));
 	}
 
 
@@ -133,7 +248,60 @@ public class Server extends ServerSocket implements Runnable {
 	public void setConnectionHandlerClass (String classname) 
 			throws Exception {
 
-		connectionHandlerClass = (Class<? extends ConnectionHandler>) getClass().forName(classname);
+		setConnectionHandlerClass((Class<? extends ConnectionHandler>) getClass().forName(classname));
+	}
+
+
+	/**
+	 * Gets the ConnectionHandlerFactory that supplies the ConnectionHandler
+	 * for each connection.
+	 *
+	 * @return the ConnectionHandlerFactory used by this server
+	 */
+	public ConnectionHandlerFactory getConnectionHandlerFactory () {
+		return (connectionHandlerFactory);
+	}
+
+
+	/**
+	 * Sets the ConnectionHandlerFactory that supplies the ConnectionHandler
+	 * for each connection.  This replaces any ConnectionHandler class set
+	 * with setConnectionHandlerClass().
+	 *
+	 * @param  connectionHandlerFactory  the ConnectionHandlerFactory to use
+	 */
+	public void setConnectionHandlerFactory (
+			ConnectionHandlerFactory connectionHandlerFactory) {
+
+		this.connectionHandlerFactory = connectionHandlerFactory;
+		connectionHandlerClass = null;
+	}
+
+
+	/**
+	 * Gets the ConnectionDispatcher used to run the ConnectionHandler for
+	 * each accepted connection.
+	 *
+	 * @return the ConnectionDispatcher, or null if a new thread is started
+	 * for each connection
+	 */
+	public ConnectionDispatcher getConnectionDispatcher () {
+		return (connectionDispatcher);
+	}
+
+
+	/**
+	 * Sets the ConnectionDispatcher used to run the ConnectionHandler for
+	 * each accepted connection.  When the dispatcher refuses a connection
+	 * the connection is closed and a ConnectionRejectedException is fired
+	 * to the listeners.
+	 *
+	 * @param  connectionDispatcher  the ConnectionDispatcher to use, or null
+	 * to start a new thread for each connection
+	 */
+	public void setConnectionDispatcher (
+			ConnectionDispatcher connectionDispatcher) {
+		this.connectionDispatcher = connectionDispatcher;
 	}
 
 
@@ -164,6 +332,282 @@ public class Server extends ServerSocket implements Runnable {
 	}
 
 
+	/**
+	 * Gets the ConnectionRateLimiter for this Server.
+	 *
+	 * @return the ConnectionRateLimiter, null if there is no limit
+	 */
+	public ConnectionRateLimiter getConnectionRateLimiter () {
+		return (connectionRateLimiter);
+	}
+
+
+	/**
+	 * Sets the ConnectionRateLimiter checked for each accepted connection.
+	 *
+	 * @param  limiter  the ConnectionRateLimiter, null for no limit
+	 */
+	public void setConnectionRateLimiter (ConnectionRateLimiter limiter) {
+		connectionRateLimiter = limiter;
+	}
+
+
+	/**
+	 * Sets the cache used to resolve the host names of clients for the
+	 * connection log.  Host names are resolved in the background, the
+	 * connection is logged with its IP address right away and the host
+	 * name is logged once it is known.
+	 *
+	 * @param  hostNameCache  the HostNameCache to use, null to only log
+	 * IP addresses
+	 */
+	public void setHostNameCache (HostNameCache hostNameCache) {
+		this.hostNameCache = hostNameCache;
+	}
+
+
+	/**
+	 * Gets the idle timeout for connections.
+	 *
+	 * @return the idle timeout in milliseconds, 0 for no limit
+	 */
+	public long getIdleTimeout () {
+		return (idleTimeout);
+	}
+
+
+	/**
+	 * Sets the idle timeout for connections.  A connection that nothing
+	 * has been read from or written to for this long is closed, which
+	 * makes a handler blocked on it see an IOException.  Only reads and
+	 * writes through the streams of the connection are seen, the
+	 * timeout applies to connections accepted after it is set.
+	 *
+	 * @param  idleTimeout  the idle timeout in milliseconds, 0 for no limit
+	 */
+	public void setIdleTimeout (long idleTimeout) {
+		this.idleTimeout = Math.max(0, idleTimeout);
+	}
+
+
+	/**
+	 * Sets the HashedTimingWheel the idle timeouts are scheduled on, if
+	 * not set the shared wheel is used.
+	 *
+	 * @param  timingWheel  the HashedTimingWheel to use
+	 */
+	public void setTimingWheel (HashedTimingWheel timingWheel) {
+		this.timingWheel = timingWheel;
+	}
+
+
+	/**
+	 * Gets the number of accepted connections that have not been closed.
+	 *
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount () {
+		return (connections.size());
+	}
+
+
+	/**
+	 * Gets the number of connection handlers that have been dispatched and
+	 * have not finished.
+	 *
+	 * @return the number of running handlers
+	 */
+	public int getActiveHandlerCount () {
+		return (activeHandlers.get());
+	}
+
+
+	/**
+	 * Binds this Server to the address, saving the backlog for the
+	 * sockets of the additional acceptors.
+	 *
+	 * @param  endpoint  the IP address and port number to bind to
+	 * @param  backlog   the maximum length of the queue
+	 * @throws IOException if the bind operation fails
+	 */
+	public void bind (SocketAddress endpoint, int backlog) throws IOException {
+
+		this.backlog = backlog;
+		super.bind(endpoint, backlog);
+	}
+
+
+	/**
+	 * Gets the number of acceptors this Server runs.
+	 *
+	 * @return the number of acceptors
+	 */
+	public int getAcceptorCount () {
+		return (reusePort ? acceptorCount : 1);
+	}
+
+
+	/**
+	 * Sets the number of acceptor threads.  More than one acceptor needs
+	 * SO_REUSEPORT which must be set before this Server is bound, so this
+	 * must be called on an unbound Server.  If SO_REUSEPORT is not
+	 * supported a single acceptor is run.
+	 *
+	 * @param  count  the number of acceptors
+	 * @return true if the acceptors will be run, false if only a single
+	 * acceptor is supported
+	 * @throws IllegalStateException if this Server is already bound
+	 */
+	public synchronized boolean setAcceptorCount (int count) {
+
+		if (count < 1) {
+			throw new IllegalArgumentException("Invalid acceptor count: " + count);
+		}
+
+		acceptorCount = count;
+		if (count == 1) {
+			return (true);
+		}
+
+		if (!reusePort) {
+
+			if (isBound()) {
+				throw new IllegalStateException(
+					"The acceptor count must be set before the Server is bound");
+			}
+
+			reusePort = setReusePort(this);
+			if (!reusePort) {
+				logger.warning("SO_REUSEPORT is not supported, using a single acceptor");
+			}
+		}
+
+		return (reusePort);
+	}
+
+
+	/**
+	 * Returns true if this JVM and OS support SO_REUSEPORT on a
+	 * ServerSocket.
+	 *
+	 * @return true if SO_REUSEPORT is supported
+	 */
+	public static boolean isReusePortSupported () {
+		return (getReusePortOption() != null);
+	}
+
+
+	/**
+	 * Gets the StandardSocketOptions.SO_REUSEPORT option if ServerSocket
+	 * supports it.  Looked up with reflection as it was added in Java 9.
+	 */
+	private static Object getReusePortOption () {
+
+		try {
+
+			Object option = Class.forName("java.net.StandardSocketOptions")
+				.getField("SO_REUSEPORT").get(null);
+
+			ServerSocket socket = new ServerSocket();
+			try {
+				Method supportedOptions = ServerSocket.class.getMethod("supportedOptions");
+				Set<?> options = (Set<?>)supportedOptions.invoke(socket);
+				return (options.contains(option) ? option : null);
+			} finally {
+				socket.close();
+			}
+
+		} catch (Exception e) {
+			return (null);
+		}
+	}
+
+
+	/**
+	 * Sets SO_REUSEPORT on an unbound ServerSocket.
+	 *
+	 * @return true if SO_REUSEPORT was set
+	 */
+	private static boolean setReusePort (ServerSocket socket) {
+
+		Object option = getReusePortOption();
+		if (option == null) {
+			return (false);
+		}
+
+		try {
+
+			Class<?> optionClass = Class.forName("java.net.SocketOption");
+			Method setOption = ServerSocket.class.getMethod(
+				"setOption", optionClass, Object.class);
+			setOption.invoke(socket, option, Boolean.TRUE);
+			return (true);
+
+		} catch (Exception e) {
+			return (false);
+		}
+	}
+
+
+	/**
+	 * Creates the ServerStats for this Server, subclasses that keep
+	 * additional statistics override this.  Called while this Server
+	 * is being constructed.
+	 *
+	 * @return a new ServerStats instance
+	 */
+	protected ServerStats createStats () {
+		return (new ServerStats());
+	}
+
+
+	/**
+	 * Gets the counters and latency histograms for this Server.
+	 *
+	 * @return the ServerStats for this Server
+	 */
+	public ServerStats getStats () {
+		return (stats);
+	}
+
+
+	/**
+	 * Registers the ServerStats for this Server with the platform MBeanServer
+	 * as "com.messners.ajf.net:type=<class name>,name=<name>".
+	 *
+	 * @param  name  the name for this Server
+	 * @throws JMException if the MBean could not be registered
+	 */
+	public synchronized void registerMBean (String name) throws JMException {
+
+		unregisterMBean();
+		ObjectName objectName = new ObjectName("com.messners.ajf.net:type=" +
+			getClass().getSimpleName() + ",name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+		mbeanName = objectName;
+	}
+
+
+	/**
+	 * Unregisters the ServerStats for this Server from the platform
+	 * MBeanServer if it was registered.
+	 */
+	public synchronized void unregisterMBean () {
+
+		if (mbeanName == null) {
+			return;
+		}
+
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbs.unregisterMBean(mbeanName);
+		} catch (JMException ignore) {
+		}
+
+		mbeanName = null;
+	}
+
+
 	/**
 	 * Creates and starts a thread to handle connections for this Server
 	 * instance.  
@@ -180,19 +624,138 @@ public class Server extends ServerSocket implements Runnable {
 			return;
 		}
 
+		/*
+		 * Create the sockets for the additional acceptors, they are bound
+		 * to the same address as this Server.
+		 */
+		if (reusePort && acceptorCount > 1) {
+
+			try {
+
+				for (int i = 1; i < acceptorCount; i++) {
+
+					ServerSocket socket = new AcceptorSocket();
+					acceptorSockets.add(socket);
+					if (!setReusePort(socket)) {
+						throw new IOException("Could not set SO_REUSEPORT");
+					}
+
+					socket.bind(getLocalSocketAddress(), backlog);
+				}
+
+			} catch (IOException ioe) {
+
+				logger.warning("Could not create acceptors, using a single acceptor: " +
+					ioe.getMessage());
+				closeAcceptorSockets();
+			}
+		}
+
 		/*
 		 * Create and start the accept thread
 		 */
 		acceptThread = new Thread(this);
 		acceptThread.setName( "accept" );
 		acceptThread.start();
+
+		for (int i = 0; i < acceptorSockets.size(); i++) {
+
+			final ServerSocket socket = acceptorSockets.get(i);
+			Thread t = new Thread("accept-" + (i + 1)) {
+				public void run () {
+					acceptConnections(socket);
+				}
+			};
+
+			acceptorThreads.add(t);
+			t.start();
+		}
+	}
+
+
+	/**
+	 * Closes the sockets of the additional acceptors.
+	 */
+	private void closeAcceptorSockets () {
+
+		for (ServerSocket socket : acceptorSockets) {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		acceptorSockets.clear();
+	}
+
+
+	/**
+	 * Stops this Server instance, closes the server socket and closes
+	 * the connections that are still open.
+	 */
+	public void stop () {
+
+		stopAccepting();
+		closeConnections();
+		if (connectionDispatcher != null) {
+			connectionDispatcher.shutdown();
+		}
+	}
+
+
+	/**
+	 * Stops this Server gracefully.  No more connections are accepted,
+	 * the handlers already running are given until the timeout to finish
+	 * and then the connections still open are closed.
+	 *
+	 * @param  timeout  the maximum time in milliseconds to wait for the
+	 * handlers to finish
+	 * @return true if all the handlers finished, false if some were still
+	 * running at the timeout and their connections were closed
+	 * @throws InterruptedException if the current thread is interrupted,
+	 * the connections are closed before it is thrown
+	 */
+	public boolean drain (long timeout) throws InterruptedException {
+
+		stopAccepting();
+		draining = true;
+		try {
+
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized (drainLock) {
+
+				while (activeHandlers.get() > 0) {
+
+					long waitTime = deadline - System.currentTimeMillis();
+					if (waitTime <= 0) {
+						break;
+					}
+
+					drainLock.wait(waitTime);
+				}
+			}
+
+			int running = activeHandlers.get();
+			if (running > 0) {
+				logger.warning("Closing connections of " + running +
+					" handler(s) still running after " + timeout + "ms");
+			}
+
+			return (running == 0);
+
+		} finally {
+
+			draining = false;
+			stop();
+		}
 	}
 
 
 	/**
-	 * Stops this Server instance and closes the server socket.
+	 * Closes the server socket and the sockets of the additional acceptors
+	 * and stops the accept threads.
 	 */
-	public synchronized void stop () {
+	private synchronized void stopAccepting () {
 
 		if (acceptThread == null) {
 			// silent discard
@@ -208,6 +771,50 @@ public class Server extends ServerSocket implements Runnable {
 		}
 
 		t.interrupt();
+
+		closeAcceptorSockets();
+		for (Thread acceptor : acceptorThreads) {
+			acceptor.interrupt();
+		}
+
+		acceptorThreads.clear();
+	}
+
+
+	/**
+	 * Closes all the connections that are still open.
+	 */
+	private void closeConnections () {
+
+		for (TrackedSocket connection : connections) {
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+
+	/**
+	 * Accepts a connection, the connection returned tracks when it was
+	 * last used.
+	 *
+	 * @return the new connection
+	 * @throws IOException if an I/O error occurs while waiting
+	 */
+	public Socket accept () throws IOException {
+
+		if (isClosed()) {
+			throw new SocketException("Socket is closed");
+		}
+
+		if (!isBound()) {
+			throw new SocketException("Socket is not bound yet");
+		}
+
+		Socket connection = new TrackedSocket();
+		implAccept(connection);
+		return (connection);
 	}
 
 
@@ -225,28 +832,72 @@ public class Server extends ServerSocket implements Runnable {
 
 	/**
 	 * This run() method listens for connections, and if a connection
-	 * handler has been specifed, instantiantes a ConnectionHandler
-	 * and starts a thread to call process().  It then fires a connection 
+	 * handler has been specifed, gets a ConnectionHandler from the
+	 * ConnectionHandlerFactory and dispatches it to call process().  It then fires a connection 
 	 * event for each connection accepted.
 	 */
 	public final void run () {
 
+		logger.info( "Waiting for connections on " + this);
+		acceptConnections(this);
+	}
+
+
+	/**
+	 * Accepts connections on one of the acceptor sockets until this Server
+	 * is stopped, all the acceptors dispatch to the same handlers and fire
+	 * to the same listeners.
+	 *
+	 * @param  socket  this Server or the socket of an additional acceptor
+	 */
+	private void acceptConnections (ServerSocket socket) {
+
 		Thread t = Thread.currentThread();
-		while (t == acceptThread) {
+		while (socket == this ? t == acceptThread :
+				acceptThread != null && !socket.isClosed()) {
 
 			try {
 
-				logger.info( "Waiting for connections on " + this);
-				Socket connection = accept();
-				logger.info( "Connection received from host " + 
-						connection.getInetAddress().getHostName() );
-
-				if( connectionHandlerClass != null ) {
-				    ConnectionHandler handler =
-					   (ConnectionHandler)connectionHandlerClass.newInstance();
-				    HandlerThread ht = new HandlerThread(this, connection, handler);
-				    ht.start();
-				    logger.fine( "Starting new connection handler/thread" );
+				Socket connection = socket.accept();
+				stats.connectionAccepted();
+
+				ConnectionRateLimiter limiter = connectionRateLimiter;
+				if (limiter != null &&
+						!limiter.tryAcquire(connection.getInetAddress())) {
+					reject(connection, "Connection rate limit exceeded");
+					continue;
+				}
+
+				track(connection);
+				logConnection(connection);
+
+				ConnectionHandlerFactory factory = connectionHandlerFactory;
+				if( factory != null ) {
+				    ConnectionHandler handler;
+				    try {
+				    	handler = factory.newConnectionHandler();
+				    } catch (Exception e) {
+
+				    	/*
+				    	 * The connection is already tracked, close it so
+				    	 * it is not left open with no handler
+				    	 */
+				    	try {
+				    		connection.close();
+				    	} catch (IOException ignore) {
+				    	}
+
+				    	throw e;
+				    }
+
+				    activeHandlers.incrementAndGet();
+				    if (!dispatch(new HandlerTask(this, connection, handler, factory,
+				    		System.nanoTime()))) {
+				    	handlerFinished();
+				    	factory.releaseConnectionHandler(handler);
+				    	reject(connection, "Connection refused by dispatcher");
+				    	continue;
+				    }
 				}
 
 				fireConnection(connection);
@@ -261,6 +912,119 @@ public class Server extends ServerSocket implements Runnable {
 	}
 
 
+	/**
+	 * Adds an accepted connection to the open connections and schedules
+	 * its idle timeout.
+	 */
+	private void track (Socket socket) {
+
+		if (!(socket instanceof TrackedSocket)) {
+			return;
+		}
+
+		TrackedSocket connection = (TrackedSocket)socket;
+		connections.add(connection);
+		long timeout = idleTimeout;
+		if (timeout > 0) {
+			connection.scheduleIdleCheck(timeout);
+		}
+
+
+		/*
+		 * If the Server was stopped while this connection was being
+		 * accepted it may have missed being closed.
+		 */
+		if (acceptThread == null) {
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+
+	/**
+	 * Counts a handler as finished and wakes up drain() when the last
+	 * one finishes.
+	 */
+	private void handlerFinished () {
+
+		if (activeHandlers.decrementAndGet() == 0 && draining) {
+			synchronized (drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Logs an accepted connection without blocking.  If the host name of
+	 * the client is cached it is logged with the IP address, otherwise the
+	 * IP address is logged and the host name is logged once it has been
+	 * resolved.
+	 *
+	 * @param  connection  the accepted connection
+	 */
+	protected void logConnection (Socket connection) {
+
+		if (!logger.isLoggable(Level.INFO)) {
+			return;
+		}
+
+		InetAddress address = connection.getInetAddress();
+		HostNameCache cache = hostNameCache;
+		String hostName = (cache != null ?
+			cache.lookup(address, hostNameLogger) : null);
+
+		if (hostName != null) {
+			logger.info( "Connection received from host " + hostName +
+				" (" + address.getHostAddress() + ")");
+		} else {
+			logger.info( "Connection received from " + address.getHostAddress());
+		}
+	}
+
+
+	/**
+	 * Runs the task that processes a connection with the ConnectionDispatcher,
+	 * or in a new thread if there is no ConnectionDispatcher.
+	 *
+	 * @param  task  the Runnable that processes the connection
+	 * @return true if the task was dispatched, false if it was refused
+	 */
+	protected boolean dispatch (Runnable task) {
+
+		if (connectionDispatcher != null) {
+			return (connectionDispatcher.dispatch(task));
+		}
+
+		Thread t = new Thread(task);
+		t.start();
+		logger.fine( "Starting new connection handler/thread" );
+		return (true);
+	}
+
+
+	/**
+	 * Closes a refused connection and fires a ConnectionRejectedException
+	 * to the listeners.
+	 *
+	 * @param  connection  the refused connection
+	 * @param  reason      the reason the connection was refused
+	 */
+	protected void reject (Socket connection, String reason) {
+
+		try {
+			connection.close();
+		} catch (IOException ignore) {
+		}
+
+		stats.connectionRejected();
+		logger.fine(reason + ": " + connection);
+		fireException(new ConnectionRejectedException(connection, reason));
+	}
+
+
 	/**
 	 * Fires an exception event to the listeners.
 	 *
@@ -318,26 +1082,205 @@ public class Server extends ServerSocket implements Runnable {
 
 
 	/**
-	 * This class defines a thread to contain a single ConnectionHandler
+	 * Logs the host names of clients once they have been resolved.
+	 */
+	private final class HostNameLogger implements HostNameCache.Listener {
+
+		public void hostNameResolved (InetAddress address, String hostName) {
+
+			if (hostName != null) {
+				logger.info( "Host " + address.getHostAddress() + " is " + hostName);
+			}
+		}
+	}
+
+
+	/**
+	 * This class defines the task that runs a single ConnectionHandler
 	 * instance.
 	 */
-	private final class HandlerThread extends Thread {
+	private final class HandlerTask implements Runnable {
 
 		private Server server;
 		private Socket connection;
 		private ConnectionHandler handler;
+		private ConnectionHandlerFactory factory;
+		private long acceptTime;
 
-		public HandlerThread (
-				Server server, Socket connection, ConnectionHandler handler) {
+		public HandlerTask (Server server, Socket connection,
+				ConnectionHandler handler, ConnectionHandlerFactory factory,
+				long acceptTime) {
 
 			this.server = server;
 			this.connection = connection;
 			this.handler = handler;
+			this.factory = factory;
+			this.acceptTime = acceptTime;
 		}
 
 
 		public void run () {
-			handler.process(server, connection);
+
+			long start = System.nanoTime();
+			stats.connectionOpened(start - acceptTime);
+			try {
+				handler.process(server, connection);
+			} finally {
+				stats.handlerRan(System.nanoTime() - start);
+				stats.connectionClosed();
+				factory.releaseConnectionHandler(handler);
+				handlerFinished();
+			}
+		}
+	}
+
+
+	/**
+	 * This class is the ServerSocket for the additional acceptors, it
+	 * accepts the same tracked connections as the Server.
+	 */
+	private final class AcceptorSocket extends ServerSocket {
+
+		public AcceptorSocket () throws IOException {
+			super();
+		}
+
+		public Socket accept () throws IOException {
+
+			if (isClosed()) {
+				throw new SocketException("Socket is closed");
+			}
+
+			if (!isBound()) {
+				throw new SocketException("Socket is not bound yet");
+			}
+
+			Socket connection = new TrackedSocket();
+			implAccept(connection);
+			return (connection);
+		}
+	}
+
+
+	/**
+	 * This class is an accepted connection, it records the time it was
+	 * last read from or written to and removes itself from the open
+	 * connections when it is closed.  It is also the idle check run on
+	 * the timing wheel.
+	 */
+	private final class TrackedSocket extends Socket implements Runnable {
+
+		private volatile long lastActivity = System.nanoTime();
+		private volatile HashedTimingWheel.Timeout idleCheck;
+		private InputStream in;
+		private OutputStream out;
+
+		public TrackedSocket () {
+			super();
+		}
+
+
+		public synchronized InputStream getInputStream () throws IOException {
+
+			if (in == null) {
+
+				in = new FilterInputStream(super.getInputStream()) {
+
+					public int read () throws IOException {
+						int b = super.read();
+						lastActivity = System.nanoTime();
+						return (b);
+					}
+
+					public int read (byte b[], int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						lastActivity = System.nanoTime();
+						return (n);
+					}
+				};
+			}
+
+			return (in);
+		}
+
+
+		public synchronized OutputStream getOutputStream () throws IOException {
+
+			if (out == null) {
+
+				out = new FilterOutputStream(super.getOutputStream()) {
+
+					public void write (int b) throws IOException {
+						out.write(b);
+						lastActivity = System.nanoTime();
+					}
+
+					public void write (byte b[], int off, int len) throws IOException {
+						out.write(b, off, len);
+						lastActivity = System.nanoTime();
+					}
+				};
+			}
+
+			return (out);
+		}
+
+
+		/**
+		 * Schedules the next idle check.
+		 */
+		private void scheduleIdleCheck (long delay) {
+
+			HashedTimingWheel wheel = timingWheel;
+			if (wheel == null) {
+				wheel = HashedTimingWheel.getDefault();
+			}
+
+			idleCheck = wheel.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+			if (isClosed()) {
+				idleCheck.cancel();
+			}
+		}
+
+
+		/**
+		 * Closes this connection if it has been idle for the idle timeout,
+		 * otherwise checks again when it could next time out.
+		 */
+		public void run () {
+
+			long timeout = idleTimeout;
+			if (isClosed() || timeout <= 0) {
+				return;
+			}
+
+			long idle = (System.nanoTime() - lastActivity) / 1000000L;
+			if (idle < timeout) {
+				scheduleIdleCheck(timeout - idle);
+				return;
+			}
+
+			logger.fine("Closing connection idle for " + idle + "ms: " + this);
+			stats.connectionIdleClosed();
+			try {
+				close();
+			} catch (IOException ignore) {
+			}
+		}
+
+
+		public void close () throws IOException {
+
+			try {
+				super.close();
+			} finally {
+
+				connections.remove(this);
+				HashedTimingWheel.Timeout check = idleCheck;
+				if (check != null) {
+					check.cancel();
+				}
+			}
 		}
 	}
 }
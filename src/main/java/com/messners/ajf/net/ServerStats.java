@@ -0,0 +1,260 @@
+package com.messners.ajf.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.messners.ajf.util.LatencyHistogram;
+
+
+/**
+ * This class holds the counters and latency histograms kept by a Server.
+ * All the updates are lock free so the statistics can be left on in
+ * production.  Along with the counts of accepted and rejected
+ * connections it keeps the accept rate over the last few seconds, the
+ * number of active connections, the time each handler ran and the
+ * time between accepting a connection and its handler starting.
+ * A high dispatch time means the server is handler bound.
+ * <p>
+ * ServerStats is a JMX standard MBean, see Server.registerMBean().
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ServerStats implements ServerStatsMBean {
+
+	/**
+	 * The number of one second slots the accept rate is averaged over.
+	 */
+	public static final int RATE_SECONDS = 10;
+
+
+	private AtomicLong accepts = new AtomicLong();
+	private AtomicLong rejects = new AtomicLong();
+	private AtomicLong idleCloses = new AtomicLong();
+	private AtomicInteger active = new AtomicInteger();
+	private AtomicInteger peak = new AtomicInteger();
+	private LatencyHistogram handlerTimes = new LatencyHistogram();
+	private LatencyHistogram dispatchTimes = new LatencyHistogram();
+
+
+	/**
+	 * The accepts in each of the most recent seconds, slot i holds the
+	 * count for the second in acceptSeconds[i].
+	 */
+	private AtomicLongArray acceptSlots = new AtomicLongArray(RATE_SECONDS + 1);
+	private AtomicLongArray acceptSeconds = new AtomicLongArray(RATE_SECONDS + 1);
+
+
+	public ServerStats () {
+	}
+
+
+	/**
+	 * Records an accepted connection.
+	 */
+	public void connectionAccepted () {
+
+		accepts.incrementAndGet();
+
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int)(second % acceptSlots.length());
+		long slotSecond = acceptSeconds.get(slot);
+		if (slotSecond != second &&
+				acceptSeconds.compareAndSet(slot, slotSecond, second)) {
+			acceptSlots.set(slot, 0);
+		}
+
+		acceptSlots.incrementAndGet(slot);
+	}
+
+
+	/**
+	 * Records a rejected connection.
+	 */
+	public void connectionRejected () {
+		rejects.incrementAndGet();
+	}
+
+
+	/**
+	 * Records a connection closed because it was idle too long.
+	 */
+	public void connectionIdleClosed () {
+		idleCloses.incrementAndGet();
+	}
+
+
+	/**
+	 * Records a connection being handed to its handler.
+	 *
+	 * @param  dispatchNanos  the time in nanoseconds since the connection
+	 * was accepted, negative if not known
+	 */
+	public void connectionOpened (long dispatchNanos) {
+
+		if (dispatchNanos >= 0) {
+			dispatchTimes.record(dispatchNanos);
+		}
+
+		int n = active.incrementAndGet();
+		int current;
+		while (n > (current = peak.get())) {
+			if (peak.compareAndSet(current, n)) {
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * Records a connection ending.
+	 */
+	public void connectionClosed () {
+		active.decrementAndGet();
+	}
+
+
+	/**
+	 * Records the time a handler ran, for a blocking Server this is the
+	 * life of the connection, for a NioServer it is one callback.
+	 *
+	 * @param  runNanos  the time in nanoseconds the handler ran
+	 */
+	public void handlerRan (long runNanos) {
+		handlerTimes.record(runNanos);
+	}
+
+
+	public long getAcceptCount () {
+		return (accepts.get());
+	}
+
+
+	public long getRejectCount () {
+		return (rejects.get());
+	}
+
+
+	public long getIdleCloseCount () {
+		return (idleCloses.get());
+	}
+
+
+	/**
+	 * Gets the average number of connections accepted per second over the
+	 * last RATE_SECONDS complete seconds.
+	 *
+	 * @return the accept rate in connections per second
+	 */
+	public double getAcceptRate () {
+
+		long now = System.currentTimeMillis() / 1000;
+		long count = 0;
+		for (int i = 0; i < acceptSlots.length(); i++) {
+
+			long second = acceptSeconds.get(i);
+			if (second < now && second >= now - RATE_SECONDS) {
+				count += acceptSlots.get(i);
+			}
+		}
+
+		return ((double)count / RATE_SECONDS);
+	}
+
+
+	public int getActiveConnections () {
+		return (active.get());
+	}
+
+
+	public int getPeakConnections () {
+		return (peak.get());
+	}
+
+
+	/**
+	 * Gets the histogram of the time each handler ran.
+	 *
+	 * @return the handler run time histogram
+	 */
+	public LatencyHistogram getHandlerTimes () {
+		return (handlerTimes);
+	}
+
+
+	/**
+	 * Gets the histogram of the time from accepting a connection to its
+	 * ConnectionHandler starting.
+	 *
+	 * @return the dispatch time histogram
+	 */
+	public LatencyHistogram getDispatchTimes () {
+		return (dispatchTimes);
+	}
+
+
+	public long getHandlerCount () {
+		return (handlerTimes.getCount());
+	}
+
+
+	public long getHandlerMeanNanos () {
+		return (handlerTimes.getMean());
+	}
+
+
+	public long getHandler50thPercentileNanos () {
+		return (handlerTimes.getPercentile(50.0));
+	}
+
+
+	public long getHandler99thPercentileNanos () {
+		return (handlerTimes.getPercentile(99.0));
+	}
+
+
+	public long getHandlerMaxNanos () {
+		return (handlerTimes.getMax());
+	}
+
+
+	public long getDispatchMeanNanos () {
+		return (dispatchTimes.getMean());
+	}
+
+
+	public long getDispatch99thPercentileNanos () {
+		return (dispatchTimes.getPercentile(99.0));
+	}
+
+
+	/**
+	 * Clears the counters and histograms, the number of active
+	 * connections is kept.
+	 */
+	public void reset () {
+
+		accepts.set(0);
+		rejects.set(0);
+		idleCloses.set(0);
+		peak.set(active.get());
+		handlerTimes.reset();
+		dispatchTimes.reset();
+		for (int i = 0; i < acceptSlots.length(); i++) {
+			acceptSlots.set(i, 0);
+		}
+	}
+
+
+	public String toString () {
+
+		return ("ServerStats[accepts=" + getAcceptCount() +
+			",rejects=" + getRejectCount() +
+			",idleCloses=" + getIdleCloseCount() +
+			",acceptRate=" + getAcceptRate() +
+			",active=" + getActiveConnections() +
+			",peak=" + getPeakConnections() +
+			",handler=" + handlerTimes +
+			",dispatch=" + dispatchTimes + "]");
+	}
+}
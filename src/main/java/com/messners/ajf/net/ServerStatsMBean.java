@@ -0,0 +1,38 @@
+package com.messners.ajf.net;
+
+
+/**
+ * This interface defines the JMX management interface for ServerStats.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface ServerStatsMBean {
+
+	public long getAcceptCount ();
+
+	public long getRejectCount ();
+
+	public long getIdleCloseCount ();
+
+	public double getAcceptRate ();
+
+	public int getActiveConnections ();
+
+	public int getPeakConnections ();
+
+	public long getHandlerCount ();
+
+	public long getHandlerMeanNanos ();
+
+	public long getHandler50thPercentileNanos ();
+
+	public long getHandler99thPercentileNanos ();
+
+	public long getHandlerMaxNanos ();
+
+	public long getDispatchMeanNanos ();
+
+	public long getDispatch99thPercentileNanos ();
+
+	public void reset ();
+}
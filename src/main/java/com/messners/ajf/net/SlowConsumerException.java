@@ -0,0 +1,84 @@
+package com.messners.ajf.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+
+/**
+ * Signals that a SocketMux client fell too far behind and the slow
+ * consumer policy dropped data for it or disconnected it.  This exception
+ * is fired to the ServerListeners of the SocketMux.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class SlowConsumerException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient SocketAddress client;
+	private int policy;
+	private long lag;
+	private long droppedBytes;
+
+
+	/**
+	 * Constructs a new SlowConsumerException.
+	 *
+	 * @param  client  the address of the slow client
+	 * @param  policy  the SocketMux slow consumer policy that was applied
+	 * @param  lag     the lag in bytes of the client when the policy was applied
+	 * @param  droppedBytes  the number of bytes dropped for the client
+	 */
+	public SlowConsumerException (SocketAddress client, int policy,
+			long lag, long droppedBytes) {
+
+		super("Slow client " + client + " is " + lag + " bytes behind, " +
+			(policy == SocketMux.DISCONNECT ? "disconnected" :
+				"dropped " + droppedBytes + " bytes"));
+
+		this.client = client;
+		this.policy = policy;
+		this.lag = lag;
+		this.droppedBytes = droppedBytes;
+	}
+
+
+	/**
+	 * Gets the address of the slow client.
+	 *
+	 * @return the address of the slow client
+	 */
+	public SocketAddress getClient () {
+		return (client);
+	}
+
+
+	/**
+	 * Gets the slow consumer policy that was applied.
+	 *
+	 * @return the SocketMux slow consumer policy that was applied
+	 */
+	public int getPolicy () {
+		return (policy);
+	}
+
+
+	/**
+	 * Gets the lag in bytes of the client when the policy was applied.
+	 *
+	 * @return the lag in bytes
+	 */
+	public long getLag () {
+		return (lag);
+	}
+
+
+	/**
+	 * Gets the number of bytes dropped for the client.
+	 *
+	 * @return the number of bytes dropped
+	 */
+	public long getDroppedBytes () {
+		return (droppedBytes);
+	}
+}
@@ -1,15 +1,67 @@
 
 package com.messners.ajf.net;
 
-import java.io.InputStream;
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * This class defines a server that connects to a server an relays all
  * data to multiple client connections on a different port.
+ * <p>
+ * The data read from the server is written once into a shared
+ * ByteRingBuffer, each client connection writes the data to its client
+ * straight from the ring from its own position.  How far a client may fall
+ * behind is limited in bytes (never more than the ring capacity) and
+ * optionally in chunks, what happens to a client that exceeds the limit
+ * is decided by the slow consumer policy:
+ * <ul>
+ * <li>DROP_OLDEST - the oldest data is dropped so the client stays within
+ * the limit</li>
+ * <li>DROP_NEWEST - the client is sent the data within the limit and the
+ * data that arrived after that is dropped</li>
+ * <li>DISCONNECT - the client is disconnected</li>
+ * <li>THROTTLE - reading from the server waits for the client</li>
+ * </ul>
+ * Drops and disconnects are fired to the listeners as a
+ * SlowConsumerException, per client statistics are available from
+ * getClientStats().
+ * <p>
+ * An optional replay window keeps the most recent data from the server
+ * in a memory-mapped ReplayBuffer, a client that connects is first sent
+ * the data in the window and then switches to the live data.
+ * <p>
+ * For consumers on the same host the data from the server can also be
+ * published to a MappedRingFile, each local consumer follows the file
+ * with a MappedRingReader of its own instead of connecting over TCP.
+ * TCP clients are served as usual alongside the local consumers.
+ * <p>
+ * Setting an upstream FrameDecoder turns on bidirectional mode, the data
+ * sent by the clients is split into frames and only whole frames are
+ * queued to a single writer that writes them to the server, so frames
+ * from different clients never interleave.  The writer writes everything
+ * that is queued, up to the maximum batch size, with one gathering write.
+ * <p>
+ * When the connection to the server fails it is reconnected with an
+ * exponential backoff, each attempt tries the servers in the order they
+ * were added starting with the primary server.  The connected clients
+ * stay connected during the outage and see the data from the new
+ * connection as soon as it is made.  The number of reconnects and the
+ * duration of each outage are available from this class.
+ * <p>
+ * The SocketMuxStats for a SocketMux add the bytes relayed and the client
+ * queue depths to the Server statistics.
  *
  * @author  Greg Messner <greg@messners.com>
  */
@@ -23,7 +75,160 @@ public class SocketMux extends Server implements ServerListener {
 	protected String serverHost;
 	protected int serverPort;
 
-	protected int bufSize = 1024;
+
+	/**
+	 * The servers to connect to in order of preference, the first is
+	 * the primary server given to the constructor.
+	 */
+	protected List<InetSocketAddress> upstreams;
+
+
+	/**
+	 * Default capacity of the shared ring buffer = 1 MB.
+	 */
+	public static final int DEFAULT_RING_BUFFER_SIZE = 1024 * 1024;
+
+
+	/**
+	 * The shared ring buffer that data from the server is read into.
+	 */
+	protected ByteRingBuffer ringBuffer;
+
+	protected int ringBufferSize = DEFAULT_RING_BUFFER_SIZE;
+	protected boolean directBuffer;
+
+
+	/**
+	 * Slow consumer policy that drops the oldest data for the client.
+	 */
+	public static final int DROP_OLDEST = 0;
+
+
+	/**
+	 * Slow consumer policy that drops the newest data for the client.
+	 */
+	public static final int DROP_NEWEST = 1;
+
+
+	/**
+	 * Slow consumer policy that disconnects the client.
+	 */
+	public static final int DISCONNECT = 2;
+
+
+	/**
+	 * Slow consumer policy that makes reading from the server wait for the
+	 * client.
+	 */
+	public static final int THROTTLE = 3;
+
+
+	/**
+	 * Default time a client may block reading from the server = 10000 ms.
+	 */
+	public static final long DEFAULT_CLIENT_STALL_TIMEOUT = 10000L;
+
+
+	protected int slowConsumerPolicy = DROP_OLDEST;
+	protected long maxClientLagBytes;
+	protected int maxClientLagChunks;
+	protected long clientStallTimeout = DEFAULT_CLIENT_STALL_TIMEOUT;
+
+	/**
+	 * The replay window, replayBytes of 0 disables replay.
+	 */
+	protected ReplayBuffer replayBuffer;
+
+	protected int replayBytes;
+	protected long replayAge;
+	protected File replayFile;
+
+
+	/**
+	 * The ring file the data from the server is published to for local
+	 * consumers, null if not published.
+	 */
+	protected MappedRingFile sharedRing;
+	protected File sharedRingFile;
+	protected int sharedRingCapacity;
+
+	/**
+	 * Default maximum length of a frame sent by a client = 64 KB.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+
+	/**
+	 * Default maximum number of bytes written to the server at once = 256 KB.
+	 */
+	public static final int DEFAULT_MAX_UPSTREAM_BATCH = 256 * 1024;
+
+
+	/**
+	 * Default maximum number of client writes queued for the server = 1024.
+	 */
+	public static final int DEFAULT_UPSTREAM_QUEUE_CAPACITY = 1024;
+
+
+	/**
+	 * Splits the data sent by clients into frames, null if data from the
+	 * clients is ignored.
+	 */
+	protected FrameDecoder upstreamFrameDecoder;
+
+	protected int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+	protected int maxUpstreamBatch = DEFAULT_MAX_UPSTREAM_BATCH;
+	protected int upstreamQueueCapacity = DEFAULT_UPSTREAM_QUEUE_CAPACITY;
+
+	/**
+	 * Default time to wait before the first reconnect attempt = 100 ms.
+	 */
+	public static final long DEFAULT_RECONNECT_DELAY = 100L;
+
+
+	/**
+	 * Default maximum time to wait between reconnect attempts = 30000 ms.
+	 */
+	public static final long DEFAULT_MAX_RECONNECT_DELAY = 30000L;
+
+
+	/**
+	 * Default timeout for connecting to a server = 5000 ms.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+
+	/**
+	 * The number of outage durations that are kept.
+	 */
+	public static final int OUTAGE_HISTORY = 64;
+
+
+	protected boolean reconnect = true;
+	protected long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+	protected long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+	protected int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	private long reconnectCount;
+	private long outageStart;
+	private long outageDurations[] = new long[OUTAGE_HISTORY];
+	private int outageCount;
+	private long totalOutageTime;
+
+
+	/**
+	 * The current connection to the server, null during an outage.
+	 * The upstream writer waits on upstreamLock for a connection.
+	 */
+	private volatile SocketChannel serverChannel;
+	private volatile InetSocketAddress serverAddress;
+	private Object upstreamLock = new Object();
+
+	private ClientThread clientThread;
+	private UpstreamWriter upstreamWriter;
+	private AtomicLong upstreamWrites = new AtomicLong();
+	private AtomicLong upstreamBytes = new AtomicLong();
+	private AtomicLong upstreamFrames = new AtomicLong();
 
 
 	/**
@@ -37,6 +242,8 @@ public class SocketMux extends Server implements ServerListener {
 
 		this.serverHost = serverHost;
 		this.serverPort = serverPort;
+		upstreams = new ArrayList<InetSocketAddress>();
+		upstreams.add(InetSocketAddress.createUnresolved(serverHost, serverPort));
 
 		setConnectionHandlerClass(SocketMuxConnectionHandler.class);
 		handlers = new ArrayList<SocketMuxConnectionHandler>();
@@ -67,6 +274,528 @@ public class SocketMux extends Server implements ServerListener {
 	}
 
 
+	/**
+	 * Sets the capacity of the shared ring buffer.  This only takes effect
+	 * the next time this SocketMux is started.
+	 *
+	 * @param  ringBufferSize  the capacity in bytes, rounded up to a power of 2
+	 */
+	public void setRingBufferSize (int ringBufferSize) {
+		this.ringBufferSize = ringBufferSize;
+	}
+
+
+	/**
+	 * Sets whether the shared ring buffer is a direct ByteBuffer.  This only
+	 * takes effect the next time this SocketMux is started.
+	 *
+	 * @param  directBuffer  true to use a direct ByteBuffer
+	 */
+	public void setDirectBuffer (boolean directBuffer) {
+		this.directBuffer = directBuffer;
+	}
+
+
+	/**
+	 * Gets the slow consumer policy.
+	 *
+	 * @return one of DROP_OLDEST, DROP_NEWEST, DISCONNECT or THROTTLE
+	 */
+	public int getSlowConsumerPolicy () {
+		return (slowConsumerPolicy);
+	}
+
+
+	/**
+	 * Sets the policy applied to clients that fall further behind than
+	 * the maximum client lag.  This applies to clients that connect after
+	 * the policy was set.
+	 *
+	 * @param  policy  one of DROP_OLDEST, DROP_NEWEST, DISCONNECT or THROTTLE
+	 */
+	public void setSlowConsumerPolicy (int policy) {
+
+		if (policy < DROP_OLDEST || policy > THROTTLE) {
+			throw new IllegalArgumentException(
+				"Invalid slow consumer policy: " + policy);
+		}
+
+		slowConsumerPolicy = policy;
+	}
+
+
+	/**
+	 * Gets the maximum number of bytes a client may fall behind.
+	 *
+	 * @return the maximum client lag in bytes, 0 for the ring capacity
+	 */
+	public long getMaxClientLagBytes () {
+		return (maxClientLagBytes);
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes a client may fall behind before the
+	 * slow consumer policy is applied.  The limit is never more than the
+	 * ring capacity less the maximum size of a read from the server.
+	 *
+	 * @param  maxClientLagBytes  the maximum client lag in bytes, 0 for the
+	 * ring capacity
+	 */
+	public void setMaxClientLagBytes (long maxClientLagBytes) {
+		this.maxClientLagBytes = maxClientLagBytes;
+	}
+
+
+	/**
+	 * Gets the maximum number of chunks (reads from the server) a client
+	 * may fall behind.
+	 *
+	 * @return the maximum client lag in chunks, 0 for no chunk limit
+	 */
+	public int getMaxClientLagChunks () {
+		return (maxClientLagChunks);
+	}
+
+
+	/**
+	 * Sets the maximum number of chunks (reads from the server) a client
+	 * may fall behind before the slow consumer policy is applied.  The
+	 * THROTTLE policy only applies the byte limit.
+	 *
+	 * @param  maxClientLagChunks  the maximum client lag in chunks, less than
+	 * ByteRingBuffer.CHUNK_HISTORY, 0 for no chunk limit
+	 */
+	public void setMaxClientLagChunks (int maxClientLagChunks) {
+
+		if (maxClientLagChunks < 0 ||
+				maxClientLagChunks >= ByteRingBuffer.CHUNK_HISTORY) {
+			throw new IllegalArgumentException(
+				"Invalid max client lag chunks: " + maxClientLagChunks);
+		}
+
+		this.maxClientLagChunks = maxClientLagChunks;
+	}
+
+
+	/**
+	 * Sets the time reading from the server waits for a client whose
+	 * connection is blocked in the middle of a write, without making any
+	 * progress, before the client is disconnected.  A client that is slow
+	 * but still reading has its data dropped by the slow consumer policy
+	 * instead.  Clients with the THROTTLE policy are never
+	 * disconnected.  This only takes effect the next time this SocketMux
+	 * is started.
+	 *
+	 * @param  clientStallTimeout  the stall timeout in milliseconds,
+	 * 0 to wait forever
+	 */
+	public void setClientStallTimeout (long clientStallTimeout) {
+		this.clientStallTimeout = clientStallTimeout;
+	}
+
+
+	/**
+	 * Sets the size of the replay window sent to clients when they
+	 * connect.  This only takes effect the next time this SocketMux
+	 * is started.
+	 *
+	 * @param  maxBytes  the maximum number of bytes to replay, 0 to
+	 * disable replay
+	 * @param  maxAge    the maximum age in milliseconds of the data
+	 * to replay, 0 for no limit
+	 */
+	public void setReplayWindow (int maxBytes, long maxAge) {
+
+		if (maxBytes < 0 || maxAge < 0) {
+			throw new IllegalArgumentException(
+				"Invalid replay window: " + maxBytes + ", " + maxAge);
+		}
+
+		replayBytes = maxBytes;
+		replayAge = maxAge;
+	}
+
+
+	/**
+	 * Sets the file the replay window is mapped from.  This only takes
+	 * effect the next time this SocketMux is started.
+	 *
+	 * @param  replayFile  the file to map, null to use a temporary file
+	 */
+	public void setReplayFile (File replayFile) {
+		this.replayFile = replayFile;
+	}
+
+
+	/**
+	 * Gets the replay window.
+	 *
+	 * @return the replay window, null if replay is disabled or not started
+	 */
+	public ReplayBuffer getReplayBuffer () {
+		return (replayBuffer);
+	}
+
+
+	/**
+	 * Sets the file the data from the server is published to for local
+	 * consumers, see MappedRingReader.  The file is created when this
+	 * SocketMux is started, replacing any file already there, and is left
+	 * in place when it is stopped.  This only takes effect the next time
+	 * this SocketMux is started.
+	 *
+	 * @param  file      the ring file, null to not publish to a file
+	 * @param  capacity  the size of the ring in bytes
+	 */
+	public void setSharedRingFile (File file, int capacity) {
+
+		if (file != null && capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		sharedRingFile = file;
+		sharedRingCapacity = capacity;
+	}
+
+
+	/**
+	 * Gets the ring file the data from the server is published to.
+	 *
+	 * @return the MappedRingFile, null if not published or not started
+	 */
+	public MappedRingFile getSharedRing () {
+		return (sharedRing);
+	}
+
+
+	/**
+	 * Gets the FrameDecoder used to split the data sent by clients
+	 * into frames.
+	 *
+	 * @return the upstream FrameDecoder, null if not bidirectional
+	 */
+	public FrameDecoder getUpstreamFrameDecoder () {
+		return (upstreamFrameDecoder);
+	}
+
+
+	/**
+	 * Sets the FrameDecoder used to split the data sent by clients into
+	 * frames, setting a FrameDecoder turns on bidirectional mode.  This
+	 * only takes effect the next time this SocketMux is started.
+	 *
+	 * @param  decoder  the upstream FrameDecoder, null to ignore the data
+	 * sent by clients
+	 */
+	public void setUpstreamFrameDecoder (FrameDecoder decoder) {
+		upstreamFrameDecoder = decoder;
+	}
+
+
+	/**
+	 * Gets the maximum length of a frame sent by a client.
+	 *
+	 * @return the maximum frame length in bytes
+	 */
+	public int getMaxFrameLength () {
+		return (maxFrameLength);
+	}
+
+
+	/**
+	 * Sets the maximum length of a frame sent by a client, a client
+	 * that sends a longer frame is disconnected.
+	 *
+	 * @param  maxFrameLength  the maximum frame length in bytes
+	 */
+	public void setMaxFrameLength (int maxFrameLength) {
+
+		if (maxFrameLength < 1) {
+			throw new IllegalArgumentException(
+				"Invalid max frame length: " + maxFrameLength);
+		}
+
+		this.maxFrameLength = maxFrameLength;
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes written to the server with a
+	 * single write.  A single frame larger than this is still written
+	 * whole.
+	 *
+	 * @param  maxUpstreamBatch  the maximum batch size in bytes
+	 */
+	public void setMaxUpstreamBatch (int maxUpstreamBatch) {
+		this.maxUpstreamBatch = maxUpstreamBatch;
+	}
+
+
+	/**
+	 * Sets the maximum number of client writes waiting to be written
+	 * to the server, clients wait when the queue is full.  This only
+	 * takes effect the next time this SocketMux is started.
+	 *
+	 * @param  capacity  the upstream queue capacity
+	 */
+	public void setUpstreamQueueCapacity (int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+				"Invalid upstream queue capacity: " + capacity);
+		}
+
+		upstreamQueueCapacity = capacity;
+	}
+
+
+	/**
+	 * Gets the number of writes made to the server.
+	 *
+	 * @return the number of writes made to the server
+	 */
+	public long getUpstreamWriteCount () {
+		return (upstreamWrites.get());
+	}
+
+
+	/**
+	 * Gets the number of bytes written to the server.
+	 *
+	 * @return the number of bytes written to the server
+	 */
+	public long getUpstreamBytesWritten () {
+		return (upstreamBytes.get());
+	}
+
+
+	/**
+	 * Gets the number of frames from clients written to the server.
+	 *
+	 * @return the number of frames written to the server
+	 */
+	public long getUpstreamFrameCount () {
+		return (upstreamFrames.get());
+	}
+
+
+	/**
+	 * Queues data to be written to the server.  The data must only hold
+	 * whole frames and must not be modified after this call, it is written
+	 * to the server without being split.  Waits if the upstream queue
+	 * is full.
+	 *
+	 * @param  frames  the frames to write to the server
+	 * @param  count   the number of frames in the data
+	 * @throws IOException if this SocketMux is not bidirectional or has
+	 * been stopped
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void sendUpstream (byte frames[], int count)
+			throws IOException, InterruptedException {
+
+		UpstreamWriter writer = upstreamWriter;
+		if (writer == null || !writer.isAlive()) {
+			throw new IOException("Not connected upstream");
+		}
+
+		UpstreamData data = new UpstreamData(frames, count);
+		while (!writer.queue.offer(data, 100, TimeUnit.MILLISECONDS)) {
+
+			if (!writer.isAlive()) {
+				throw new IOException("Not connected upstream");
+			}
+		}
+	}
+
+
+	/**
+	 * Adds a server to fail over to when the connection to the servers
+	 * before it can not be made.
+	 *
+	 * @param  host  the host name or address of the server
+	 * @param  port  the port of the server
+	 */
+	public synchronized void addUpstream (String host, int port) {
+		upstreams.add(InetSocketAddress.createUnresolved(host, port));
+	}
+
+
+	/**
+	 * Gets the servers this SocketMux connects to in order of preference.
+	 *
+	 * @return a List of the server addresses, the first is the primary
+	 */
+	public synchronized List<InetSocketAddress> getUpstreams () {
+		return (new ArrayList<InetSocketAddress>(upstreams));
+	}
+
+
+	/**
+	 * Gets the address of the server this SocketMux is connected to.
+	 *
+	 * @return the address of the connected server, null if not connected
+	 */
+	public InetSocketAddress getUpstreamAddress () {
+		return (serverChannel != null ? serverAddress : null);
+	}
+
+
+	/**
+	 * Returns true if this SocketMux is connected to a server.
+	 *
+	 * @return true if connected to a server
+	 */
+	public boolean isUpstreamConnected () {
+		return (serverChannel != null);
+	}
+
+
+	/**
+	 * Sets whether the connection to the server is remade when it fails.
+	 *
+	 * @param  reconnect  true to reconnect, false to stop relaying data
+	 * when the connection fails
+	 */
+	public void setReconnect (boolean reconnect) {
+		this.reconnect = reconnect;
+	}
+
+
+	/**
+	 * Sets the backoff used when reconnecting, the delay doubles after
+	 * each attempt that fails to connect to any of the servers.
+	 *
+	 * @param  reconnectDelay     the delay before the first attempt
+	 * in milliseconds
+	 * @param  maxReconnectDelay  the maximum delay between attempts
+	 * in milliseconds
+	 */
+	public void setReconnectDelay (long reconnectDelay, long maxReconnectDelay) {
+
+		if (reconnectDelay < 1 || maxReconnectDelay < reconnectDelay) {
+			throw new IllegalArgumentException("Invalid reconnect delay: " +
+				reconnectDelay + ", " + maxReconnectDelay);
+		}
+
+		this.reconnectDelay = reconnectDelay;
+		this.maxReconnectDelay = maxReconnectDelay;
+	}
+
+
+	/**
+	 * Sets the timeout for connecting to a server.
+	 *
+	 * @param  connectTimeout  the timeout in milliseconds, 0 for no timeout
+	 */
+	public void setConnectTimeout (int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+
+	/**
+	 * Gets the number of times the connection to the server has been
+	 * remade.
+	 *
+	 * @return the number of reconnects
+	 */
+	public synchronized long getReconnectCount () {
+		return (reconnectCount);
+	}
+
+
+	/**
+	 * Gets the time the current outage started.
+	 *
+	 * @return the start time of the current outage, 0 if connected
+	 */
+	public synchronized long getOutageStart () {
+		return (outageStart);
+	}
+
+
+	/**
+	 * Gets the durations of the most recent outages, at most
+	 * OUTAGE_HISTORY are kept.
+	 *
+	 * @return the outage durations in milliseconds, oldest first
+	 */
+	public synchronized long[] getOutageDurations () {
+
+		int n = Math.min(outageCount, OUTAGE_HISTORY);
+		long durations[] = new long[n];
+		for (int i = 0; i < n; i++) {
+			durations[i] = outageDurations[(outageCount - n + i) % OUTAGE_HISTORY];
+		}
+
+		return (durations);
+	}
+
+
+	/**
+	 * Gets the total time the connection to the server has been down.
+	 *
+	 * @return the total outage time in milliseconds, not including
+	 * the current outage
+	 */
+	public synchronized long getTotalOutageTime () {
+		return (totalOutageTime);
+	}
+
+
+	/**
+	 * Creates a SocketMuxStats for this SocketMux.
+	 *
+	 * @return a new SocketMuxStats instance
+	 */
+	protected ServerStats createStats () {
+		return (new SocketMuxStats(this));
+	}
+
+
+	/**
+	 * Gets the counters and latency histograms for this SocketMux.
+	 *
+	 * @return the SocketMuxStats for this SocketMux
+	 */
+	public SocketMuxStats getStats () {
+		return ((SocketMuxStats)stats);
+	}
+
+
+	/**
+	 * Gets a snapshot of the statistics for each connected client.
+	 *
+	 * @return a List of statistics, one for each connected client
+	 */
+	public List<SocketMuxClientStats> getClientStats () {
+
+		ArrayList<SocketMuxConnectionHandler> current;
+		synchronized (this) {
+			current = new ArrayList<SocketMuxConnectionHandler>(handlers);
+		}
+
+		ArrayList<SocketMuxClientStats> stats =
+			new ArrayList<SocketMuxClientStats>(current.size());
+		for (SocketMuxConnectionHandler handler : current) {
+			stats.add(handler.getStats());
+		}
+
+		return (stats);
+	}
+
+
+	/**
+	 * Gets the shared ring buffer the data from the server is read into.
+	 *
+	 * @return the shared ring buffer, null if not started
+	 */
+	public ByteRingBuffer getRingBuffer () {
+		return (ringBuffer);
+	}
+
+
 	/**
 	 * Start this SocketMux instance.  This will create and connect the client
 	 * connection to the server and relay any data read to multiple client
@@ -74,18 +803,87 @@ public class SocketMux extends Server implements ServerListener {
 	 */
 	public synchronized void start () throws Exception {
 
+		if (ringBuffer != null) {
+			return;
+		}
+
 		/*
 		 * First thing we need to do is setup a reader for the server we are
 		 * connecting to as a client.
 		 */
-		Socket clientSocket = new Socket(serverHost, serverPort);
-		ClientThread ct = new ClientThread(clientSocket);
-		ct.start();
+		IOException lastError = null;
+		for (InetSocketAddress address : upstreams) {
+
+			try {
+				serverChannel = connect(address);
+				break;
+			} catch (IOException ioe) {
+				lastError = ioe;
+			}
+		}
+
+		if (serverChannel == null) {
+			throw lastError;
+		}
+
+		ringBuffer = new ByteRingBuffer(ringBufferSize, directBuffer);
+		ringBuffer.setStallTimeout(clientStallTimeout);
+		if (replayBytes > 0) {
+			replayBuffer = new ReplayBuffer(replayFile, replayBytes, replayAge);
+		}
+
+		if (sharedRingFile != null) {
+			sharedRing = new MappedRingFile(sharedRingFile, sharedRingCapacity);
+		}
+
+		clientThread = new ClientThread(serverChannel, ringBuffer,
+			replayBuffer, sharedRing);
+		clientThread.start();
+
+		if (upstreamFrameDecoder != null) {
+			upstreamWriter = new UpstreamWriter();
+			upstreamWriter.start();
+		}
 
 		super.start();
 	}
 
 
+	/**
+	 * Stops this SocketMux instance, closes the connection to the server
+	 * and closes the ring buffer which ends all the client connections.
+	 */
+	public synchronized void stop () {
+
+		super.stop();
+
+		if (ringBuffer == null) {
+			return;
+		}
+
+		ringBuffer.close();
+		ringBuffer = null;
+		clientThread.interrupt();
+		clientThread = null;
+		closeUpstream();
+
+		if (upstreamWriter != null) {
+			upstreamWriter.interrupt();
+			upstreamWriter = null;
+		}
+
+		if (replayBuffer != null) {
+			replayBuffer.close();
+			replayBuffer = null;
+		}
+
+		if (sharedRing != null) {
+			sharedRing.close();
+			sharedRing = null;
+		}
+	}
+
+
 	public synchronized void addHandler (SocketMuxConnectionHandler handler) {
 		handlers.add(handler);
 	}
@@ -99,60 +897,328 @@ public class SocketMux extends Server implements ServerListener {
 
 
 	/**
-	 * This class is responsible for reading data from the server and queueing
-	 * it up for each client connection.
+	 * Opens a blocking connection to the server.
+	 */
+	private SocketChannel connect (InetSocketAddress address)
+			throws IOException {
+
+		if (address.isUnresolved()) {
+			address = new InetSocketAddress(address.getHostName(), address.getPort());
+		}
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(address, connectTimeout);
+		} catch (IOException ioe) {
+
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+
+			throw ioe;
+		}
+
+		serverAddress = address;
+		return (channel);
+	}
+
+
+	/**
+	 * Closes the current connection to the server and starts an outage.
+	 */
+	private void closeUpstream () {
+
+		SocketChannel channel;
+		synchronized (upstreamLock) {
+			channel = serverChannel;
+			serverChannel = null;
+		}
+
+		if (channel == null) {
+			return;
+		}
+
+		try {
+			channel.close();
+		} catch (IOException ignore) {
+		}
+
+		synchronized (this) {
+			outageStart = System.currentTimeMillis();
+		}
+	}
+
+
+	/**
+	 * Makes the new connection to the server current and ends the outage.
+	 *
+	 * @return false if the ring buffer was closed while connecting
+	 */
+	private boolean upstreamConnected (SocketChannel channel,
+			ByteRingBuffer ring) {
+
+		synchronized (this) {
+
+			if (ring.isClosed()) {
+				return (false);
+			}
+
+			long duration = System.currentTimeMillis() - outageStart;
+			outageDurations[outageCount % OUTAGE_HISTORY] = duration;
+			outageCount++;
+			totalOutageTime += duration;
+			reconnectCount++;
+			outageStart = 0;
+		}
+
+		synchronized (upstreamLock) {
+			serverChannel = channel;
+			upstreamLock.notifyAll();
+		}
+
+		return (true);
+	}
+
+
+	/**
+	 * Waits for a connection to the server.
+	 */
+	private SocketChannel awaitUpstream () throws InterruptedException {
+
+		synchronized (upstreamLock) {
+
+			while (serverChannel == null) {
+				upstreamLock.wait();
+			}
+
+			return (serverChannel);
+		}
+	}
+
+
+	/**
+	 * This class is responsible for reading data from the server into
+	 * the shared ring buffer and copying it to the replay window and the
+	 * shared ring file, and for reconnecting to the server when the
+	 * connection fails.
 	 */
 	private class ClientThread extends Thread {
 
-		private Socket socket;
+		private SocketChannel channel;
+		private ByteRingBuffer ring;
+		private ReplayBuffer replay;
+		private MappedRingFile sharedRing;
 
-		public ClientThread (Socket socket) {
-			this.socket = socket;
+		public ClientThread (SocketChannel channel, ByteRingBuffer ring,
+				ReplayBuffer replay, MappedRingFile sharedRing) {
+
+			super("socketmux-reader");
+			this.channel = channel;
+			this.ring = ring;
+			this.replay = replay;
+			this.sharedRing = sharedRing;
 		}
 
 
 		public void run () {
 
+			/*
+			 * The replay window is filled by a reader of its own, it is
+			 * only used by this thread so it always keeps up with the ring.
+			 */
+			ByteRingBuffer.Reader replayReader =
+				(replay != null ? ring.newReader() : null);
+			ByteRingBuffer.Reader sharedReader =
+				(sharedRing != null ? ring.newReader() : null);
+			SocketMuxStats muxStats = getStats();
 
-			InputStream in = null;
-			try {
+			while (channel != null) {
 
-				in = socket.getInputStream();
+				try {
+					while (true) {	
 
-			} catch (IOException ioe) {
+						int n = ring.readFrom(channel);
+						if (n < 0) {
+							throw new IOException("Connection closed by server " +
+								serverAddress);
+						}
+
+						muxStats.upstreamRead(n);
+
+						if (replayReader != null) {
+							replayReader.writeTo(replay);
+						}
 
-				fireException(ioe);
-				return;
+						if (sharedReader != null) {
+							sharedReader.writeTo(sharedRing);
+						}
+					} 
+
+				} catch (IOException ioe) {
+
+					if (ring.isClosed()) {
+						return;
+					}
+
+					fireException(ioe);
+				}
+
+				closeUpstream();
+				channel = (reconnect ? reconnect() : null);
+			}
+		}
+
+
+		/**
+		 * Tries each server in order until a connection is made, waiting
+		 * with an exponential backoff after each round that fails.
+		 *
+		 * @return the new connection, null if this SocketMux was stopped
+		 */
+		private SocketChannel reconnect () {
+
+			long delay = reconnectDelay;
+			while (!ring.isClosed()) {
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					return (null);
+				}
+
+				for (InetSocketAddress address : getUpstreams()) {
+
+					if (ring.isClosed()) {
+						return (null);
+					}
+
+					try {
+
+						SocketChannel channel = connect(address);
+						if (upstreamConnected(channel, ring)) {
+							return (channel);
+						}
+
+						channel.close();
+						return (null);
+
+					} catch (IOException ignore) {
+					}
+				}
+
+				delay = Math.min(delay * 2, maxReconnectDelay);
 			}
 
-			byte buf[] = new byte[bufSize];
+			return (null);
+		}
+	}
+
+
+	/**
+	 * Holds data queued for the server by sendUpstream().
+	 */
+	private static class UpstreamData {
+
+		private byte frames[];
+		private int count;
+
+		public UpstreamData (byte frames[], int count) {
+			this.frames = frames;
+			this.count = count;
+		}
+	}
+
+
+	/**
+	 * This class is responsible for writing the frames sent by all the
+	 * clients to the server, merging whatever is queued into one write.
+	 * During an outage the frames wait in the queue, a batch that fails
+	 * to be written is dropped.
+	 */
+	private class UpstreamWriter extends Thread {
+
+		private BlockingQueue<UpstreamData> queue;
+
+		public UpstreamWriter () {
+
+			super("socketmux-writer");
+			setDaemon(true);
+			queue = new LinkedBlockingQueue<UpstreamData>(upstreamQueueCapacity);
+		}
+
+
+		public void run () {
+
+			ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+			ByteBuffer buffers[] = new ByteBuffer[16];
 
 			try {
-				while (true) {	
-				
-					int nread = in.read(buf);
-					if (nread < 1) {
-						continue;
-					}	
+				while (true) {
 
-					byte tmpBuf[] = new byte[nread];
-					System.arraycopy(buf, 0, tmpBuf, 0, nread);
+					UpstreamData data = queue.take();
+					int frames = data.count;
+					long size = data.frames.length;
+					batch.add(ByteBuffer.wrap(data.frames));
 
-					synchronized (handlers) {
+					while (size < maxUpstreamBatch) {
 
-						int numHandlers = handlers.size();
-						for (int i = 0; i < numHandlers; i++) {
-						
-							SocketMuxConnectionHandler handler = 
-								handlers.get(i);
-							handler.queueData(tmpBuf);
+						UpstreamData next = queue.peek();
+						if (next == null ||
+								size + next.frames.length > maxUpstreamBatch) {
+							break;
 						}
+
+						queue.poll();
+						frames += next.count;
+						size += next.frames.length;
+						batch.add(ByteBuffer.wrap(next.frames));
 					}
-				} 
 
-			} catch (IOException ioe) {
-				fireException(ioe);
-			}	
+					buffers = batch.toArray(buffers);
+					int n = batch.size();
+					batch.clear();
+
+					SocketChannel channel = awaitUpstream();
+					try {
+
+						int first = 0;
+						while (first < n) {
+
+							channel.write(buffers, first, n - first);
+							while (first < n && !buffers[first].hasRemaining()) {
+								buffers[first++] = null;
+							}
+						}
+
+					} catch (IOException ioe) {
+
+						/*
+						 * Closing the channel makes the reader start the
+						 * reconnect.
+						 */
+						if (channel.isOpen()) {
+
+							fireException(ioe);
+							try {
+								channel.close();
+							} catch (IOException ignore) {
+							}
+						}
+
+						Arrays.fill(buffers, null);
+						continue;
+					}
+
+					upstreamWrites.incrementAndGet();
+					upstreamBytes.addAndGet(size);
+					upstreamFrames.addAndGet(frames);
+				}
+
+			} catch (InterruptedException ie) {
+			}
+
+			queue.clear();
 		}
 	}
 
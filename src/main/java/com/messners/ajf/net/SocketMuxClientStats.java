@@ -0,0 +1,117 @@
+package com.messners.ajf.net;
+
+import java.net.SocketAddress;
+
+
+/**
+ * This class holds a snapshot of the statistics for a single SocketMux
+ * client connection.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class SocketMuxClientStats {
+
+	private SocketAddress client;
+	private long connectTime;
+	private long lagBytes;
+	private long lagChunks;
+	private long bytesSent;
+	private long bytesDropped;
+	private long dropCount;
+
+
+	public SocketMuxClientStats (SocketAddress client, long connectTime,
+			long lagBytes, long lagChunks, long bytesSent,
+			long bytesDropped, long dropCount) {
+
+		this.client = client;
+		this.connectTime = connectTime;
+		this.lagBytes = lagBytes;
+		this.lagChunks = lagChunks;
+		this.bytesSent = bytesSent;
+		this.bytesDropped = bytesDropped;
+		this.dropCount = dropCount;
+	}
+
+
+	/**
+	 * Gets the address of the client.
+	 *
+	 * @return the address of the client
+	 */
+	public SocketAddress getClient () {
+		return (client);
+	}
+
+
+	/**
+	 * Gets the time the client connected.
+	 *
+	 * @return the time the client connected in milliseconds since the epoch
+	 */
+	public long getConnectTime () {
+		return (connectTime);
+	}
+
+
+	/**
+	 * Gets the number of bytes read from the server not yet sent to the
+	 * client.
+	 *
+	 * @return the lag in bytes
+	 */
+	public long getLagBytes () {
+		return (lagBytes);
+	}
+
+
+	/**
+	 * Gets the number of chunks read from the server not yet completely
+	 * sent to the client.
+	 *
+	 * @return the lag in chunks
+	 */
+	public long getLagChunks () {
+		return (lagChunks);
+	}
+
+
+	/**
+	 * Gets the number of bytes sent to the client.
+	 *
+	 * @return the number of bytes sent
+	 */
+	public long getBytesSent () {
+		return (bytesSent);
+	}
+
+
+	/**
+	 * Gets the number of bytes dropped for the client by the slow consumer
+	 * policy.
+	 *
+	 * @return the number of bytes dropped
+	 */
+	public long getBytesDropped () {
+		return (bytesDropped);
+	}
+
+
+	/**
+	 * Gets the number of times data was dropped for the client.
+	 *
+	 * @return the number of times data was dropped
+	 */
+	public long getDropCount () {
+		return (dropCount);
+	}
+
+
+	public String toString () {
+
+		return ("SocketMuxClientStats[client=" + client +
+			",lagBytes=" + lagBytes + ",lagChunks=" + lagChunks +
+			",bytesSent=" + bytesSent + ",bytesDropped=" + bytesDropped +
+			",dropCount=" + dropCount + "]");
+	}
+}
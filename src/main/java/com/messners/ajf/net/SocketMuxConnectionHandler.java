@@ -1,39 +1,93 @@
 package com.messners.ajf.net;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-
-import com.messners.ajf.util.Queue;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 
 /**
+ * This ConnectionHandler relays the data read by a SocketMux to a single
+ * client connection, writing it straight from the SocketMux ring buffer
+ * and applying the SocketMux slow consumer policy when the client falls
+ * too far behind.  When the SocketMux has a replay window the client is
+ * first sent the data in the window up to the point where its live data
+ * starts.  When the SocketMux is bidirectional the frames sent by the
+ * client are read by a second thread and queued for the server.
  *
  * @author  Greg Messner <greg@messners.com>
  */
 public class SocketMuxConnectionHandler implements ConnectionHandler {
 
-	private Queue<byte[]> queue;
+	private ByteRingBuffer.Reader reader;
 	private OutputStream out;
+	private SocketChannel channel;
+	private SocketAddress client;
+	private long connectTime;
+	private volatile long bytesSent;
+	private volatile long bytesDropped;
+	private volatile long dropCount;
+
 
 	public SocketMuxConnectionHandler () {
-		queue = new Queue<byte[]>();
 	}
 
 
 	/**
-	 * The handler simply reads data from a Queue and writes it
+	 * Gets the number of bytes read from the server that have not yet been
+	 * written to the client connection.
+	 *
+	 * @return the number of bytes waiting to be written
+	 */
+	public long getLag () {
+
+		ByteRingBuffer.Reader r = reader;
+		return (r != null ? r.getLag() : 0);
+	}
+
+
+	/**
+	 * Gets a snapshot of the statistics for this client connection.
+	 *
+	 * @return the statistics for this client connection
+	 */
+	public SocketMuxClientStats getStats () {
+
+		ByteRingBuffer.Reader r = reader;
+		return (new SocketMuxClientStats(client, connectTime,
+			(r != null ? r.getLag() : 0), (r != null ? r.getChunkLag() : 0),
+			bytesSent, bytesDropped, dropCount));
+	}
+
+
+	/**
+	 * The handler waits for data in the ring buffer and writes it
 	 * to the client connection.
 	 */
 	public void process (Server server, Socket connection) {
 
+		SocketMux mux = (SocketMux)server;
+		ByteRingBuffer ring = mux.getRingBuffer();
+		if (ring == null) {
+			return;
+		}
+
 		
 		/*
-		 * Get ther OutputStream for the client connection
+		 * Get the OutputStream for the client connection, if the connection
+		 * has a channel use it so wrapped data is written with one gathering
+		 * write.
 		 */
 		try {
 
-			out = connection.getOutputStream();
+			channel = connection.getChannel();
+			if (channel == null || !channel.isBlocking()) {
+				channel = null;
+				out = connection.getOutputStream();
+			}
 
 		} catch (IOException ioe) {
 
@@ -41,37 +95,310 @@ public class SocketMuxConnectionHandler implements ConnectionHandler {
 			return;
 		}
 
-		
-		((SocketMux)server).addHandler(this);
 
-		while (true) {
+		/*
+		 * The byte limit can never be more than what is safe to read from
+		 * the ring while the server reader is writing the next chunk.
+		 */
+		int policy = mux.getSlowConsumerPolicy();
+		long safeLag = ring.getCapacity() - ring.getMaxChunkSize();
+		long maxLag = mux.getMaxClientLagBytes();
+		if (maxLag <= 0 || maxLag > safeLag) {
+			maxLag = safeLag;
+		}
+
+		int maxChunks = mux.getMaxClientLagChunks();
+		client = connection.getRemoteSocketAddress();
+		connectTime = System.currentTimeMillis();
+		bytesSent = 0;
+		bytesDropped = 0;
+		dropCount = 0;
 
-			try {
+		/*
+		 * The live reader is registered before the replay is sent so no
+		 * data is missed between the two.  It does not throttle the server
+		 * reader until the replay has been sent.
+		 */
+		reader = ring.newReader();
+		if (policy != SocketMux.THROTTLE) {
+			reader.setStallHandler(new StallHandler(server, connection));
+		}
+
+		mux.addHandler(this);
+
+		FrameDecoder decoder = mux.getUpstreamFrameDecoder();
+		if (decoder != null) {
+			new UpstreamReader(mux, connection, decoder).start();
+		}
 
-				Object data = queue.waitForObject();
-				if (data == null) {
-					break;
+		try {
+
+			ReplayBuffer replay = mux.getReplayBuffer();
+			if (replay != null) {
+				replay(mux.getStats(), replay, reader.getPosition());
+			}
+
+			if (policy == SocketMux.THROTTLE) {
+				reader.setThrottle(true, maxLag);
+			}
+
+			/*
+			 * The data is written a slice at a time so the writer is never
+			 * held back by more than one slice and the lag is checked
+			 * between slices.  With DROP_NEWEST keepEnd is the end of the
+			 * data that is sent before the rest of the lag is dropped.  If
+			 * sending the next slice of that data could hold up the server
+			 * reader the client is treated as lapped instead.
+			 */
+			long slice = Math.min(maxLag, ring.getMaxChunkSize());
+			long keepEnd = -1;
+			while (reader.awaitData(0)) {
+
+				long lag = reader.getLag();
+				boolean lapped = reader.isLapped() ||
+					(keepEnd >= 0 && lag + slice > safeLag);
+				if (lapped) {
+					keepEnd = -1;
+				}
+
+				if (keepEnd < 0 && (lapped || lag > maxLag ||
+						(maxChunks > 0 && reader.getChunkLag() > maxChunks))) {
+
+					if (policy == SocketMux.DISCONNECT) {
+
+						server.fireException(new SlowConsumerException(
+							client, policy, lag, 0));
+						break;
+
+					} else if (policy == SocketMux.DROP_NEWEST && !lapped) {
+
+						keepEnd = reader.getPosition() + Math.min(lag, maxLag);
+
+					} else if (policy != SocketMux.THROTTLE || lapped) {
+
+						long position = ring.getWritePosition() - maxLag;
+						if (maxChunks > 0) {
+							position = Math.max(position, ring.getChunkStart(maxChunks));
+						}
+
+						drop(server, policy, position, lag);
+					}
 				}
 
-				out.write((byte[])data);
+				long maxBytes = slice;
+				if (keepEnd >= 0) {
+					maxBytes = Math.min(slice, keepEnd - reader.getPosition());
+				}
+
+				long nwritten = (channel != null ?
+					reader.writeTo(channel, maxBytes) : reader.writeTo(out, maxBytes));
 
-			} catch (Exception e) {
+				if (nwritten < 0) {
+					keepEnd = -1;
+					drop(server, policy, ring.getWritePosition(), reader.getLag());
+					continue;
+				}
 
-				server.fireException(e);
-				break;
+				bytesSent += nwritten;
+				mux.getStats().clientWrite(nwritten);
+				if (keepEnd >= 0 && reader.getPosition() >= keepEnd) {
+					keepEnd = -1;
+					drop(server, policy, ring.getWritePosition(), reader.getLag());
+				}
 			}
+
+		} catch (InterruptedException ie) {
+		} catch (Exception e) {
+			server.fireException(e);
 		}
 
-		((SocketMux)server).removeHandler(this);
+		reader.close();
+		mux.removeHandler(this);
+
+		try {
+			connection.close();
+		} catch (IOException ignore) {
+		}
 	}
 
 
 	/**
-	 * Queues data for relaying to the client connection.
-	 *
-	 * @param  data  the data to be queued
+	 * Sends the client the data in the replay window up to the end
+	 * position.  Data that is overwritten before it is sent is counted
+	 * as dropped.
 	 */
-	public void queueData (byte data[]) {
-		queue.put(data);
+	private void replay (SocketMuxStats stats, ReplayBuffer replay, long end)
+			throws IOException, InterruptedException {
+
+		long position = replay.getWindowStart();
+		if (position >= end) {
+			return;
+		}
+
+		byte buf[] = new byte[16384];
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		while (position < end) {
+
+			int n = replay.read(position, buf, 0,
+				(int)Math.min(buf.length, end - position));
+
+			if (n < 0) {
+
+				long start = Math.min(end, replay.getWindowStart());
+				bytesDropped += start - position;
+				dropCount++;
+				stats.clientDrop(start - position);
+				position = start;
+				continue;
+			}
+
+			if (n == 0) {
+
+				/*
+				 * The live data starts past the end of the window,
+				 * wait for the server reader to catch the window up.
+				 */
+				if (!replay.awaitData(position, 1000)) {
+					return;
+				}
+
+				continue;
+			}
+
+			if (channel != null) {
+
+				bb.limit(n).position(0);
+				while (bb.hasRemaining()) {
+					channel.write(bb);
+				}
+
+			} else {
+				out.write(buf, 0, n);
+			}
+
+			position += n;
+			bytesSent += n;
+			stats.clientWrite(n);
+		}
+	}
+
+
+	/**
+	 * Skips the reader ahead to the position, counting the dropped bytes
+	 * and firing a SlowConsumerException.
+	 */
+	private void drop (Server server, int policy, long position, long lag) {
+
+		long skipped = reader.skipTo(position);
+		if (skipped <= 0) {
+			return;
+		}
+
+		bytesDropped += skipped;
+		dropCount++;
+		((SocketMux)server).getStats().clientDrop(skipped);
+		server.fireException(new SlowConsumerException(
+			client, policy, lag, skipped));
+	}
+
+
+	/**
+	 * This class reads the data sent by the client, splits it into frames
+	 * and queues the whole frames from each read for the server.  Partial
+	 * frames are held until the rest of the frame arrives.
+	 */
+	private class UpstreamReader extends Thread {
+
+		private SocketMux mux;
+		private Socket connection;
+		private FrameDecoder decoder;
+
+		public UpstreamReader (SocketMux mux, Socket connection,
+				FrameDecoder decoder) {
+
+			super("socketmux-client-reader");
+			setDaemon(true);
+			this.mux = mux;
+			this.connection = connection;
+			this.decoder = decoder;
+		}
+
+
+		public void run () {
+
+			ByteBuffer buf = ByteBuffer.allocate(mux.getMaxFrameLength());
+			byte data[] = buf.array();
+
+			try {
+
+				InputStream in = connection.getInputStream();
+				int n;
+				while ((n = in.read(data, buf.position(), buf.remaining())) >= 0) {
+
+					buf.position(buf.position() + n);
+					buf.flip();
+
+					int start = buf.position();
+					int frames = 0;
+					int length;
+					while ((length = decoder.frameLength(buf)) > 0) {
+						buf.position(buf.position() + length);
+						frames++;
+					}
+
+					if (frames > 0) {
+
+						byte frameData[] = new byte[buf.position() - start];
+						System.arraycopy(data, start, frameData, 0, frameData.length);
+						mux.sendUpstream(frameData, frames);
+					}
+
+					buf.compact();
+					if (!buf.hasRemaining()) {
+						throw new IOException("Client " + client +
+							" sent a frame longer than " + data.length + " bytes");
+					}
+				}
+
+			} catch (InterruptedException ie) {
+			} catch (IOException ioe) {
+
+				if (!connection.isClosed()) {
+
+					mux.fireException(ioe);
+					try {
+						connection.close();
+					} catch (IOException ignore) {
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Disconnects a client whose connection has blocked in the middle of
+	 * a write for longer than the stall timeout.
+	 */
+	private class StallHandler implements Runnable {
+
+		private Server server;
+		private Socket connection;
+
+		public StallHandler (Server server, Socket connection) {
+			this.server = server;
+			this.connection = connection;
+		}
+
+		public void run () {
+
+			server.fireException(new SlowConsumerException(
+				client, SocketMux.DISCONNECT, getLag(), 0));
+
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
 	}
 }
@@ -0,0 +1,131 @@
+package com.messners.ajf.net;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class adds the bytes relayed and the client queue depths to the
+ * statistics kept for a SocketMux.  The queue depth of a client is the
+ * number of bytes read from the server that have not yet been written to
+ * the client, see SocketMux.getClientStats() for the depth of each client.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class SocketMuxStats extends ServerStats implements SocketMuxStatsMBean {
+
+	private SocketMux mux;
+	private AtomicLong bytesFromUpstream = new AtomicLong();
+	private AtomicLong bytesToClients = new AtomicLong();
+	private AtomicLong bytesDropped = new AtomicLong();
+
+
+	public SocketMuxStats (SocketMux mux) {
+		this.mux = mux;
+	}
+
+
+	/**
+	 * Records data read from the server.
+	 *
+	 * @param  count  the number of bytes read
+	 */
+	public void upstreamRead (long count) {
+		bytesFromUpstream.addAndGet(count);
+	}
+
+
+	/**
+	 * Records data written to a client.
+	 *
+	 * @param  count  the number of bytes written
+	 */
+	public void clientWrite (long count) {
+		bytesToClients.addAndGet(count);
+	}
+
+
+	/**
+	 * Records data dropped for a slow client.
+	 *
+	 * @param  count  the number of bytes dropped
+	 */
+	public void clientDrop (long count) {
+		bytesDropped.addAndGet(count);
+	}
+
+
+	public long getBytesFromUpstream () {
+		return (bytesFromUpstream.get());
+	}
+
+
+	public long getBytesToClients () {
+		return (bytesToClients.get());
+	}
+
+
+	public long getBytesDropped () {
+		return (bytesDropped.get());
+	}
+
+
+	public int getClientCount () {
+		return (mux.getClientStats().size());
+	}
+
+
+	public long getMaxClientQueueDepth () {
+
+		long max = 0;
+		for (SocketMuxClientStats client : mux.getClientStats()) {
+			max = Math.max(max, client.getLagBytes());
+		}
+
+		return (max);
+	}
+
+
+	public long getTotalClientQueueDepth () {
+
+		long total = 0;
+		List<SocketMuxClientStats> clients = mux.getClientStats();
+		for (SocketMuxClientStats client : clients) {
+			total += client.getLagBytes();
+		}
+
+		return (total);
+	}
+
+
+	public long getReconnectCount () {
+		return (mux.getReconnectCount());
+	}
+
+
+	public boolean isUpstreamConnected () {
+		return (mux.isUpstreamConnected());
+	}
+
+
+	/**
+	 * Clears the counters and histograms.
+	 */
+	public void reset () {
+
+		super.reset();
+		bytesFromUpstream.set(0);
+		bytesToClients.set(0);
+		bytesDropped.set(0);
+	}
+
+
+	public String toString () {
+
+		String s = super.toString();
+		return ("SocketMuxStats[" + s.substring(s.indexOf('[') + 1, s.length() - 1) +
+			",bytesFromUpstream=" + getBytesFromUpstream() +
+			",bytesToClients=" + getBytesToClients() +
+			",bytesDropped=" + getBytesDropped() + "]");
+	}
+}
@@ -0,0 +1,26 @@
+package com.messners.ajf.net;
+
+
+/**
+ * This interface defines the JMX management interface for SocketMuxStats.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface SocketMuxStatsMBean extends ServerStatsMBean {
+
+	public long getBytesFromUpstream ();
+
+	public long getBytesToClients ();
+
+	public long getBytesDropped ();
+
+	public int getClientCount ();
+
+	public long getMaxClientQueueDepth ();
+
+	public long getTotalClientQueueDepth ();
+
+	public long getReconnectCount ();
+
+	public boolean isUpstreamConnected ();
+}
@@ -0,0 +1,120 @@
+package com.messners.ajf.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This ConnectionDispatcher starts a new thread for each connection, which
+ * is what Server does when no dispatcher has been set.  On JDKs that
+ * support virtual threads it can be configured to start a virtual thread
+ * for each connection, on older JDKs platform threads are used instead.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class ThreadConnectionDispatcher extends AbstractConnectionDispatcher {
+
+	/**
+	 * The ThreadFactory for virtual threads, null if not supported.
+	 */
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY;
+
+	static {
+
+		ThreadFactory factory = null;
+		try {
+
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+		} catch (Throwable t) {
+			factory = null;
+		}
+
+		VIRTUAL_THREAD_FACTORY = factory;
+	}
+
+
+	private boolean useVirtualThreads;
+	private AtomicInteger threadCount = new AtomicInteger();
+
+
+	/**
+	 * Creates a dispatcher that starts an unbounded number of platform
+	 * threads.
+	 */
+	public ThreadConnectionDispatcher () {
+		super();
+	}
+
+
+	/**
+	 * Creates a dispatcher that starts at most maxConnections threads.
+	 *
+	 * @param  maxConnections   the maximum number of concurrent connections,
+	 * 0 for no limit
+	 * @param  admissionPolicy  either REFUSE or PARK
+	 * @param  parkTimeout      the maximum time in milliseconds to park the
+	 * accept thread with the PARK policy before refusing, 0 to wait forever
+	 * @param  useVirtualThreads  if true and supported by the JDK, virtual
+	 * threads will be used instead of platform threads
+	 */
+	public ThreadConnectionDispatcher (int maxConnections, int admissionPolicy,
+			long parkTimeout, boolean useVirtualThreads) {
+
+		super(maxConnections, admissionPolicy, parkTimeout);
+		this.useVirtualThreads = useVirtualThreads && isVirtualThreadSupported();
+	}
+
+
+	/**
+	 * Returns true if the running JDK supports virtual threads.
+	 *
+	 * @return true if virtual threads are supported
+	 */
+	public static boolean isVirtualThreadSupported () {
+		return (VIRTUAL_THREAD_FACTORY != null);
+	}
+
+
+	/**
+	 * Returns true if this dispatcher is starting virtual threads.
+	 *
+	 * @return true if this dispatcher is starting virtual threads
+	 */
+	public boolean isUsingVirtualThreads () {
+		return (useVirtualThreads);
+	}
+
+
+	/**
+	 * Starts a new thread to run the task.
+	 *
+	 * @param  task  the Runnable that processes the connection
+	 * @return true, threads are always started
+	 */
+	protected boolean execute (Runnable task) {
+
+		Thread t;
+		if (useVirtualThreads) {
+			t = VIRTUAL_THREAD_FACTORY.newThread(task);
+		} else {
+			t = new Thread(task);
+		}
+
+		t.setName("connection-handler-" + threadCount.incrementAndGet());
+		t.start();
+		return (true);
+	}
+
+
+	/**
+	 * Nothing to shut down, each thread ends when its connection has
+	 * been processed.
+	 */
+	public void shutdown () {
+	}
+}
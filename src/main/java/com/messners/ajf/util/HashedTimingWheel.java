@@ -0,0 +1,489 @@
+package com.messners.ajf.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+
+/**
+ * This class provides a hashed timing wheel for scheduling large numbers
+ * of timeouts, such as one per connection, with a single thread and
+ * constant time to add or cancel a timeout.  Time is divided into ticks,
+ * the wheel has a bucket for each tick in one turn of the wheel and each
+ * timeout goes in the bucket for the tick it expires on, along with the
+ * number of turns left before it expires.
+ * <p>
+ * Timeouts expire up to one tick late, so the tick duration sets the
+ * precision.  The tasks are run on the wheel thread and must be short,
+ * anything that can block should be handed off to another thread, such
+ * as a WorkQueue or the Swing event thread, see onEventThread().
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class HashedTimingWheel {
+
+	/**
+	 * Default tick duration = 100 milliseconds.
+	 */
+	public static final long DEFAULT_TICK_DURATION = 100L;
+
+
+	/**
+	 * Default number of buckets in the wheel = 512.
+	 */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+
+	private static HashedTimingWheel defaultWheel;
+
+
+	private String name;
+	private long tickNanos;
+	private Bucket wheel[];
+	private int mask;
+
+
+	/**
+	 * New timeouts are queued here by any thread and moved into the
+	 * wheel by the wheel thread.
+	 */
+	private ConcurrentLinkedQueue<Timeout> pending;
+
+	/**
+	 * The periodic timeouts run while expiring a bucket, only used by the
+	 * wheel thread.
+	 */
+	private Bucket rescheduled = new Bucket();
+
+	private Thread workerThread;
+	private volatile boolean stopped;
+	private volatile boolean shared;
+	private long startTime;
+	private long tick;
+
+
+	/**
+	 * Creates a timing wheel with the default tick duration and size.
+	 *
+	 * @param  name  the name for the wheel thread
+	 */
+	public HashedTimingWheel (String name) {
+		this(name, DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS,
+			DEFAULT_WHEEL_SIZE);
+	}
+
+
+	/**
+	 * Creates a timing wheel.
+	 *
+	 * @param  name          the name for the wheel thread
+	 * @param  tickDuration  the duration of each tick
+	 * @param  unit          the unit of the tick duration
+	 * @param  wheelSize     the number of buckets, rounded up to a power of 2
+	 */
+	public HashedTimingWheel (String name, long tickDuration, TimeUnit unit,
+			int wheelSize) {
+
+		if (tickDuration < 1 || wheelSize < 1 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid tickDuration (" +
+				tickDuration + ") or wheelSize (" + wheelSize + ")");
+		}
+
+		this.name = name;
+		tickNanos = Math.max(1000000L, unit.toNanos(tickDuration));
+		int size = Integer.highestOneBit(wheelSize - 1) << 1;
+		if (size < 1) {
+			size = 1;
+		}
+
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+
+		mask = size - 1;
+		pending = new ConcurrentLinkedQueue<Timeout>();
+	}
+
+
+	/**
+	 * Gets the shared timing wheel, created with the default settings the
+	 * first time it is asked for.  The shared wheel is never stopped,
+	 * calling stop() on it throws an IllegalStateException.
+	 *
+	 * @return the shared timing wheel
+	 */
+	public static synchronized HashedTimingWheel getDefault () {
+
+		if (defaultWheel == null) {
+			defaultWheel = new HashedTimingWheel("timing-wheel");
+			defaultWheel.shared = true;
+		}
+
+		return (defaultWheel);
+	}
+
+
+	/**
+	 * Schedules a task to run once after a delay.
+	 *
+	 * @param  task   the task to run on the wheel thread
+	 * @param  delay  the delay before the task is run
+	 * @param  unit   the unit of the delay
+	 * @return the Timeout that can be used to cancel the task
+	 * @throws IllegalStateException if this wheel has been stopped
+	 */
+	public Timeout newTimeout (Runnable task, long delay, TimeUnit unit) {
+
+		if (stopped) {
+			throw new IllegalStateException("The timing wheel has been stopped");
+		}
+
+		start();
+		Timeout timeout = new Timeout(task,
+			System.nanoTime() + Math.max(0, unit.toNanos(delay)), 0);
+		pending.add(timeout);
+		return (timeout);
+	}
+
+
+	/**
+	 * Schedules a task to run after a delay and then every period until
+	 * it is cancelled.  Runs that are missed because the wheel thread was
+	 * held up are skipped rather than run late one after another.
+	 *
+	 * @param  task          the task to run on the wheel thread
+	 * @param  initialDelay  the delay before the task is first run
+	 * @param  period        the period between runs, at least one tick
+	 * @param  unit          the unit of the delay and period
+	 * @return the Timeout that can be used to cancel the task
+	 * @throws IllegalStateException if this wheel has been stopped
+	 */
+	public Timeout newPeriodicTimeout (Runnable task, long initialDelay,
+			long period, TimeUnit unit) {
+
+		if (period < 1) {
+			throw new IllegalArgumentException("Invalid period: " + period);
+		}
+
+		if (stopped) {
+			throw new IllegalStateException("The timing wheel has been stopped");
+		}
+
+		start();
+		Timeout timeout = new Timeout(task,
+			System.nanoTime() + Math.max(0, unit.toNanos(initialDelay)),
+			Math.max(tickNanos, unit.toNanos(period)));
+		pending.add(timeout);
+		return (timeout);
+	}
+
+
+	/**
+	 * Wraps a task so it is run on the Swing event thread, for tasks that
+	 * touch the GUI.
+	 *
+	 * @param  task  the task to run on the Swing event thread
+	 * @return a task that hands the task to SwingUtilities.invokeLater()
+	 */
+	public static Runnable onEventThread (final Runnable task) {
+
+		return (new Runnable() {
+			public void run () {
+				SwingUtilities.invokeLater(task);
+			}
+		});
+	}
+
+
+	/**
+	 * Starts the wheel thread if it is not already running.
+	 */
+	private synchronized void start () {
+
+		if (workerThread != null) {
+			return;
+		}
+
+		startTime = System.nanoTime();
+		workerThread = new Thread(name) {
+			public void run () {
+				turn();
+			}
+		};
+
+		workerThread.setDaemon(true);
+		workerThread.start();
+	}
+
+
+	/**
+	 * Stops the wheel thread, timeouts that have not expired are
+	 * never run.
+	 *
+	 * @throws IllegalStateException if this is the shared timing wheel
+	 */
+	public synchronized void stop () {
+
+		if (shared) {
+			throw new IllegalStateException("The shared timing wheel cannot be stopped");
+		}
+
+		stopped = true;
+		if (workerThread != null) {
+			workerThread.interrupt();
+		}
+	}
+
+
+	/**
+	 * Runs the wheel, one bucket each tick.
+	 */
+	private void turn () {
+
+		while (!stopped) {
+
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = deadline - System.nanoTime()) > 0) {
+
+				try {
+					Thread.sleep(sleep / 1000000L, (int)(sleep % 1000000L));
+				} catch (InterruptedException ie) {
+					if (stopped) {
+						return;
+					}
+				}
+			}
+
+			addPending();
+			expire(wheel[(int)(tick & mask)]);
+			tick++;
+		}
+	}
+
+
+	/**
+	 * Moves the new timeouts into the bucket for the tick they expire on.
+	 */
+	private void addPending () {
+
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+
+			if (timeout.state.get() == Timeout.WAITING) {
+				schedule(timeout, tick);
+			}
+		}
+	}
+
+
+	/**
+	 * Puts the timeout in the bucket for the tick it expires on, but no
+	 * earlier than minTick.  minTick must be the next tick whose bucket
+	 * has not been expired yet, the turns are counted from it.
+	 */
+	private void schedule (Timeout timeout, long minTick) {
+
+		long expireTick = (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1;
+		if (expireTick < minTick) {
+			expireTick = minTick;
+		}
+
+		timeout.rounds = (expireTick - minTick) / wheel.length;
+		wheel[(int)(expireTick & mask)].add(timeout);
+	}
+
+
+	/**
+	 * Runs the timeouts in the bucket that are on their last turn and
+	 * drops the cancelled timeouts.  Periodic timeouts stay WAITING while
+	 * they run and are put back in the wheel for their next deadline once
+	 * the whole bucket has been expired, so a period of a whole turn does
+	 * not put a timeout back in the bucket while it is being walked.
+	 */
+	private void expire (Bucket bucket) {
+
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+
+			Timeout next = timeout.next;
+			if (timeout.state.get() != Timeout.WAITING) {
+
+				bucket.remove(timeout);
+
+			} else if (timeout.rounds <= 0) {
+
+				bucket.remove(timeout);
+				if (timeout.period > 0) {
+
+					run(timeout);
+					if (timeout.state.get() == Timeout.WAITING) {
+
+						long now = System.nanoTime();
+						timeout.deadline += timeout.period;
+						if (timeout.deadline - now < 0) {
+							timeout.deadline += ((now - timeout.deadline) / timeout.period + 1) * timeout.period;
+						}
+
+						rescheduled.add(timeout);
+					}
+
+				} else if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+					run(timeout);
+				}
+
+			} else {
+				timeout.rounds--;
+			}
+
+			timeout = next;
+		}
+
+		while ((timeout = rescheduled.head) != null) {
+			rescheduled.remove(timeout);
+			schedule(timeout, tick + 1);
+		}
+	}
+
+
+	/**
+	 * Runs the task for a timeout, an exception goes to the uncaught
+	 * exception handler and does not stop the wheel.
+	 */
+	private void run (Timeout timeout) {
+
+		try {
+			timeout.task.run();
+		} catch (Throwable t) {
+			Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+		}
+	}
+
+
+	/**
+	 * A list of timeouts, only used by the wheel thread.
+	 */
+	private static class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		private void add (Timeout timeout) {
+
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+
+			tail = timeout;
+		}
+
+		private void remove (Timeout timeout) {
+
+			if (timeout.prev == null) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+
+			if (timeout.next == null) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+
+
+	/**
+	 * This class is the handle for a scheduled task.
+	 */
+	public static final class Timeout {
+
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private Runnable task;
+		private long deadline;
+		private long period;
+		private AtomicInteger state = new AtomicInteger(WAITING);
+
+
+		/**
+		 * The wheel turns left before this timeout expires and its place
+		 * in its bucket, only used by the wheel thread.
+		 */
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+
+
+		private Timeout (Runnable task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+
+		/**
+		 * Gets the task this Timeout runs.
+		 *
+		 * @return the task
+		 */
+		public Runnable getTask () {
+			return (task);
+		}
+
+
+		/**
+		 * Returns true if this Timeout runs its task periodically.
+		 *
+		 * @return true if periodic
+		 */
+		public boolean isPeriodic () {
+			return (period > 0);
+		}
+
+
+		/**
+		 * Cancels this Timeout so its task is never run again.
+		 *
+		 * @return true if cancelled, false if the task has already been run
+		 * or this Timeout was already cancelled
+		 */
+		public boolean cancel () {
+			return (state.compareAndSet(WAITING, CANCELLED));
+		}
+
+
+		/**
+		 * Returns true if this Timeout has been cancelled.
+		 *
+		 * @return true if cancelled
+		 */
+		public boolean isCancelled () {
+			return (state.get() == CANCELLED);
+		}
+
+
+		/**
+		 * Returns true if the task for this Timeout has been run.
+		 *
+		 * @return true if the task has been run
+		 */
+		public boolean isExpired () {
+			return (state.get() == EXPIRED);
+		}
+	}
+}
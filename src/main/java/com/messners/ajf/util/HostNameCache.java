@@ -0,0 +1,423 @@
+package com.messners.ajf.util;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class provides a cache of reverse DNS lookups that never blocks
+ * the caller.  A lookup of an address that is not cached returns right
+ * away and the address is resolved by a small pool of resolver threads,
+ * the listener passed to the lookup is called when the host name is known.
+ * Host names are cached for a time to live, failed lookups are cached for
+ * a shorter time so an address with no host name is not looked up on
+ * every connection.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class HostNameCache {
+
+	/**
+	 * Default time a host name is cached = 300000 ms.
+	 */
+	public static final long DEFAULT_TTL = 300000L;
+
+
+	/**
+	 * Default time a failed lookup is cached = 30000 ms.
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 30000L;
+
+
+	/**
+	 * Default maximum number of cached addresses = 10000.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+
+	/**
+	 * Default number of resolver threads = 2.
+	 */
+	public static final int DEFAULT_RESOLVER_THREADS = 2;
+
+
+	/**
+	 * Maximum number of lookups waiting for a resolver thread, lookups
+	 * made when this many are waiting are not resolved.
+	 */
+	private static final int MAX_PENDING = 1000;
+
+
+	/**
+	 * This interface defines the method called when a lookup that was not
+	 * cached has completed.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on a resolver thread when an address has been resolved.
+		 * If the lookup could not be made, because too many lookups are
+		 * waiting or the cache has been shut down, it is called with a
+		 * null host name on the thread that found this out.
+		 *
+		 * @param  address   the address that was looked up
+		 * @param  hostName  the host name, or null if the address has no
+		 * host name
+		 */
+		public void hostNameResolved (InetAddress address, String hostName);
+	}
+
+
+	private static HostNameCache defaultCache;
+
+
+	private ConcurrentHashMap<InetAddress, Entry> cache;
+	private ThreadPoolExecutor resolver;
+	private long ttl;
+	private long negativeTtl;
+	private int maxEntries;
+
+
+	/**
+	 * Creates a HostNameCache with the default settings.
+	 */
+	public HostNameCache () {
+		this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_ENTRIES,
+			DEFAULT_RESOLVER_THREADS);
+	}
+
+
+	/**
+	 * Creates a HostNameCache.
+	 *
+	 * @param  ttl              the time in milliseconds to cache host names
+	 * @param  negativeTtl      the time in milliseconds to cache failed lookups
+	 * @param  maxEntries       the maximum number of cached addresses
+	 * @param  resolverThreads  the number of resolver threads
+	 */
+	public HostNameCache (long ttl, long negativeTtl, int maxEntries,
+			int resolverThreads) {
+
+		if (maxEntries < 1 || resolverThreads < 1) {
+			throw new IllegalArgumentException("Invalid maxEntries (" +
+				maxEntries + ") or resolverThreads (" + resolverThreads + ")");
+		}
+
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.maxEntries = maxEntries;
+		cache = new ConcurrentHashMap<InetAddress, Entry>();
+
+		resolver = new ThreadPoolExecutor(resolverThreads, resolverThreads,
+			60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING),
+			new ResolverThreadFactory());
+		resolver.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * Gets the shared HostNameCache, created with the default settings the
+	 * first time it is asked for.
+	 *
+	 * @return the shared HostNameCache
+	 */
+	public static synchronized HostNameCache getDefault () {
+
+		if (defaultCache == null) {
+			defaultCache = new HostNameCache();
+		}
+
+		return (defaultCache);
+	}
+
+
+	/**
+	 * Gets the cached host name for an address without starting a lookup.
+	 *
+	 * @param  address  the address to get the host name for
+	 * @return the host name, or null if not cached or the address has no
+	 * host name
+	 */
+	public String getHostName (InetAddress address) {
+
+		Entry entry = cache.get(address);
+		if (entry == null) {
+			return (null);
+		}
+
+		synchronized (entry) {
+			return (entry.isCurrent(System.currentTimeMillis()) ?
+				entry.hostName : null);
+		}
+	}
+
+
+	/**
+	 * Returns true if a current lookup of the address is cached, even if
+	 * the address has no host name.
+	 *
+	 * @param  address  the address to check
+	 * @return true if the address is cached
+	 */
+	public boolean isCached (InetAddress address) {
+
+		Entry entry = cache.get(address);
+		if (entry == null) {
+			return (false);
+		}
+
+		synchronized (entry) {
+			return (entry.isCurrent(System.currentTimeMillis()));
+		}
+	}
+
+
+	/**
+	 * Looks up the host name for an address without blocking.  If the
+	 * address is cached its host name is returned and the listener is
+	 * not called, otherwise the address is resolved on a resolver thread
+	 * and the listener is called when it has been.
+	 *
+	 * @param  address   the address to look up
+	 * @param  listener  the Listener to call when the lookup completes,
+	 * may be null
+	 * @return the cached host name, or null if the address is not cached
+	 * or has no host name
+	 */
+	public String lookup (InetAddress address, Listener listener) {
+
+		/*
+		 * Only one lookup of an address is made at a time, any other
+		 * listeners wait on the pending entry.
+		 */
+		long now = System.currentTimeMillis();
+		Entry entry = cache.get(address);
+		Entry pending = null;
+		while (true) {
+
+			if (entry != null) {
+
+				synchronized (entry) {
+
+					if (entry.listeners != null) {
+
+						if (listener != null) {
+							entry.listeners.add(listener);
+						}
+
+						return (null);
+					}
+
+					if (entry.isCurrent(now)) {
+						return (entry.hostName);
+					}
+				}
+			}
+
+			if (pending == null) {
+
+				pending = new Entry();
+				pending.listeners = new ArrayList<Listener>(1);
+				if (listener != null) {
+					pending.listeners.add(listener);
+				}
+			}
+
+			if (entry == null) {
+
+				entry = cache.putIfAbsent(address, pending);
+				if (entry == null) {
+					break;
+				}
+
+				continue;
+			}
+
+			if (cache.replace(address, entry, pending)) {
+				break;
+			}
+
+			entry = cache.get(address);
+		}
+
+		if (cache.size() > maxEntries) {
+			purge(now);
+		}
+
+		Lookup lookup = new Lookup(address, pending);
+		try {
+			resolver.execute(lookup);
+		} catch (RejectedExecutionException ree) {
+			lookup.cancel();
+		}
+
+		return (null);
+	}
+
+
+	/**
+	 * Removes the expired entries, if the cache is still too big it
+	 * is cleared.
+	 */
+	private void purge (long now) {
+
+		Iterator<Map.Entry<InetAddress, Entry>> it = cache.entrySet().iterator();
+		while (it.hasNext()) {
+
+			Entry entry = it.next().getValue();
+			synchronized (entry) {
+				if (entry.listeners == null && !entry.isCurrent(now)) {
+					it.remove();
+				}
+			}
+		}
+
+		if (cache.size() > maxEntries) {
+
+			it = cache.entrySet().iterator();
+			while (it.hasNext()) {
+
+				Entry entry = it.next().getValue();
+				synchronized (entry) {
+					if (entry.listeners == null) {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the number of cached addresses, including pending lookups.
+	 *
+	 * @return the number of cached addresses
+	 */
+	public int size () {
+		return (cache.size());
+	}
+
+
+	/**
+	 * Removes all the cached addresses.
+	 */
+	public void clear () {
+		purge(Long.MAX_VALUE);
+	}
+
+
+	/**
+	 * Stops the resolver threads.  Lookups still waiting for a resolver
+	 * thread are dropped from the cache and their listeners are called
+	 * with a null host name, lookups made after this are treated the same.
+	 */
+	public void shutdown () {
+
+		for (Runnable r : resolver.shutdownNow()) {
+			((Lookup)r).cancel();
+		}
+	}
+
+
+	/**
+	 * Holds the host name for an address, while the lookup is pending
+	 * listeners holds the Listeners to call.  Guarded by the instance.
+	 */
+	private static class Entry {
+
+		private String hostName;
+		private long expires;
+		private List<Listener> listeners;
+
+		private boolean isCurrent (long now) {
+			return (listeners == null && now < expires);
+		}
+	}
+
+
+	/**
+	 * Resolves an address and calls the listeners waiting for it.
+	 */
+	private class Lookup implements Runnable {
+
+		private InetAddress address;
+		private Entry entry;
+
+		public Lookup (InetAddress address, Entry entry) {
+			this.address = address;
+			this.entry = entry;
+		}
+
+		public void run () {
+
+			String hostName = NetworkUtils.reverseLookup(address);
+			complete(hostName, System.currentTimeMillis() +
+				(hostName != null ? ttl : negativeTtl));
+		}
+
+
+		/**
+		 * Drops a lookup that will not be made, the listeners are called
+		 * with a null host name.
+		 */
+		private void cancel () {
+
+			cache.remove(address, entry);
+			complete(null, 0);
+		}
+
+
+		/**
+		 * Stores the result in the entry and calls the listeners that
+		 * were waiting for it.
+		 */
+		private void complete (String hostName, long expires) {
+
+			List<Listener> listeners;
+			synchronized (entry) {
+
+				listeners = entry.listeners;
+				if (listeners == null) {
+					return;
+				}
+
+				entry.hostName = hostName;
+				entry.expires = expires;
+				entry.listeners = null;
+			}
+
+			for (Listener listener : listeners) {
+				try {
+					listener.hostNameResolved(address, hostName);
+				} catch (RuntimeException ignore) {
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Creates the daemon resolver threads.
+	 */
+	private static class ResolverThreadFactory implements ThreadFactory {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread (Runnable r) {
+
+			Thread t = new Thread(r, "hostname-resolver-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return (t);
+		}
+	}
+}
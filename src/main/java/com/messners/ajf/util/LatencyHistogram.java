@@ -0,0 +1,198 @@
+package com.messners.ajf.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class provides a lock free histogram of latencies, cheap enough to
+ * record every event in production.  Latencies are recorded in
+ * nanoseconds into log-linear buckets, each power of 2 is split into
+ * four buckets so any percentile is reported within 25% of the actual
+ * value.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of buckets each power of 2 is split into, a power of 2.
+	 */
+	private static final int SUB_BUCKETS = 4;
+	private static final int SUB_BUCKET_BITS = 2;
+
+	private static final int BUCKET_COUNT = 64 * SUB_BUCKETS;
+
+
+	private AtomicLongArray buckets;
+	private AtomicLong count;
+	private AtomicLong total;
+	private AtomicLong max;
+
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram () {
+
+		buckets = new AtomicLongArray(BUCKET_COUNT);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param  nanos  the latency in nanoseconds, negative values are
+	 * recorded as 0
+	 */
+	public void record (long nanos) {
+
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		buckets.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get())) {
+			if (max.compareAndSet(current, nanos)) {
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the number of latencies recorded.
+	 *
+	 * @return the number of latencies recorded
+	 */
+	public long getCount () {
+		return (count.get());
+	}
+
+
+	/**
+	 * Gets the largest latency recorded.
+	 *
+	 * @return the largest latency in nanoseconds
+	 */
+	public long getMax () {
+		return (max.get());
+	}
+
+
+	/**
+	 * Gets the mean of the latencies recorded.
+	 *
+	 * @return the mean latency in nanoseconds, 0 if none recorded
+	 */
+	public long getMean () {
+
+		long n = count.get();
+		return (n > 0 ? total.get() / n : 0);
+	}
+
+
+	/**
+	 * Gets the latency that the specified percentage of the recorded
+	 * latencies are less than or equal to.
+	 *
+	 * @param  percentile  the percentile, 0.0 to 100.0
+	 * @return the upper bound in nanoseconds of the bucket holding the
+	 * percentile, 0 if none recorded
+	 */
+	public long getPercentile (double percentile) {
+
+		long snapshot[] = new long[BUCKET_COUNT];
+		long n = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			n += snapshot[i];
+		}
+
+		if (n == 0) {
+			return (0);
+		}
+
+		long rank = (long)Math.ceil(n * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return (Math.min(getUpperBound(i), max.get()));
+			}
+		}
+
+		return (max.get());
+	}
+
+
+	/**
+	 * Clears all the recorded latencies.  Latencies recorded while the
+	 * histogram is being cleared may be partly lost.
+	 */
+	public void reset () {
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+
+	/**
+	 * Gets the bucket a latency is recorded in.  Values below SUB_BUCKETS
+	 * each get their own bucket, larger values are bucketed by their
+	 * highest bit and the SUB_BUCKET_BITS bits below it.
+	 */
+	private static int getBucket (long nanos) {
+
+		if (nanos < SUB_BUCKETS) {
+			return ((int)nanos);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub);
+	}
+
+
+	/**
+	 * Gets the largest value recorded in a bucket.
+	 */
+	private static long getUpperBound (int bucket) {
+
+		if (bucket < SUB_BUCKETS) {
+			return (bucket);
+		}
+
+		int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long sub = bucket & (SUB_BUCKETS - 1);
+		long lower = (1L << exponent) + (sub << (exponent - SUB_BUCKET_BITS));
+		return (lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1);
+	}
+
+
+	public String toString () {
+
+		return ("LatencyHistogram[count=" + getCount() +
+			",mean=" + getMean() +
+			",p50=" + getPercentile(50.0) +
+			",p99=" + getPercentile(99.0) +
+			",max=" + getMax() + "]");
+	}
+}
@@ -0,0 +1,282 @@
+package com.messners.ajf.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Class for a lock-free FIFO queue with many producers and a single
+ * consumer.
+ * <p>
+ * The objects are kept in a linked list, a producer swaps its node in
+ * as the new head with a single atomic exchange and then links it to the
+ * previous head, so producers never wait for each other or for the
+ * consumer.  Only the one consumer thread may take objects off the queue.
+ * A node that has been swapped in but not yet linked is not visible to
+ * the consumer until the producer links it, which only ever delays
+ * taking it for a moment.
+ * <p>
+ * A consumer waiting for objects parks, and a producer only unparks it
+ * when the queue reaches the count the consumer is waiting for, usually
+ * when it goes from empty to non-empty.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class MpscQueue<T> {
+
+	/**
+	 * The newest node, swapped in by the producers.
+	 */
+	private AtomicReference<Node<T>> head;
+
+
+	/**
+	 * The node before the oldest object, only used by the consumer.
+	 */
+	private Node<T> tail;
+
+
+	/**
+	 * The number of objects ever put, and ever taken which is only
+	 * written by the consumer.
+	 */
+	private AtomicLong putCount = new AtomicLong();
+	private volatile long takeCount;
+
+
+	/**
+	 * The waiting consumer and the put count it is waiting for, producers
+	 * only unpark it when putCount reaches waitCount.
+	 */
+	private AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+	private volatile long waitCount = Long.MAX_VALUE;
+
+
+	/**
+	 * Creates an empty queue.
+	 */
+	public MpscQueue () {
+
+		tail = new Node<T>(null);
+		head = new AtomicReference<Node<T>>(tail);
+	}
+
+
+	/**
+	 * Puts an object at the end of the queue, may be called by any thread.
+	 *
+	 * @param  obj  the object to be put into the queue
+	 * @return the object
+	 */
+	public T put (T obj) {
+
+		Node<T> node = new Node<T>(obj);
+		head.getAndSet(node).next = node;
+
+		if (putCount.incrementAndGet() >= waitCount) {
+			Thread thread = waiter.get();
+			if (thread != null && waiter.compareAndSet(thread, null)) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		return (obj);
+	}
+
+
+	/**
+	 * Takes the object at the front of the queue, only called by the
+	 * consumer.
+	 *
+	 * @return the object at the front of the queue, null if the queue
+	 * is empty
+	 */
+	public T poll () {
+
+		Node<T> next = tail.next;
+		if (next == null) {
+			return (null);
+		}
+
+		T obj = next.item;
+		next.item = null;
+		tail = next;
+		takeCount++;
+		return (obj);
+	}
+
+
+	/**
+	 * Tests if the queue is empty.
+	 *
+	 * @return true if the queue is empty, otherwise false
+	 */
+	public boolean empty () {
+		return (size() == 0);
+	}
+
+
+	/**
+	 * Gets the number of objects in the queue.  This is only a snapshot
+	 * while producers are putting objects.
+	 *
+	 * @return the number of objects in the queue
+	 */
+	public int size () {
+
+		long size = putCount.get() - takeCount;
+		return (size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)Math.max(0, size));
+	}
+
+
+	/**
+	 * Wait until a count of objects are available on the queue or waitTime
+	 * has elapsed, whichever occurs first.  With the queue empty there is
+	 * no timeout, only called by the consumer.
+	 *
+	 * @param count     the number of objects to wait for
+	 * @param waitTime  the time in milliseconds to wait
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	public void waitForObjects (int count, long waitTime)
+				throws InterruptedException {
+
+		long stopTime = System.nanoTime() + waitTime * 1000000L;
+		int size;
+		while ((size = size()) < count) {
+
+			if (size > 0) {
+
+				long nanos = stopTime - System.nanoTime();
+				if (nanos <= 0) {
+					return;
+				}
+
+				park(count, nanos);
+
+			} else {
+				park(1, 0);
+			}
+		}
+	}
+
+
+	/**
+	 * Wait until an object is on the queue, then take it, only called by
+	 * the consumer.
+	 *
+	 * @param waitTime  the time in milliseconds to wait, 0 to wait forever
+	 * @return the object from the queue, null if the wait timed out or
+	 * was interrupted
+	 */
+	public T waitForObject (long waitTime) {
+
+		long stopTime = System.nanoTime() + waitTime * 1000000L;
+		T obj;
+		while ((obj = poll()) == null) {
+
+			long nanos = 0;
+			if (waitTime > 0) {
+				nanos = stopTime - System.nanoTime();
+				if (nanos <= 0) {
+					return (null);
+				}
+			}
+
+			try {
+				park(1, nanos);
+			} catch (InterruptedException ie) {
+				return (null);
+			}
+		}
+
+		return (obj);
+	}
+
+
+	/**
+	 * Removes up to maxObjects objects from the front of the queue and
+	 * adds them to the collection, only called by the consumer.
+	 *
+	 * @param  c           the collection to add the objects to
+	 * @param  maxObjects  the maximum number of objects to remove
+	 * @param  waitTime    the time in milliseconds to wait for an object,
+	 * 0 to return at once if the queue is empty
+	 * @return the number of objects removed
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	public int drainTo (Collection<? super T> c, int maxObjects, long waitTime)
+			throws InterruptedException {
+
+		if (waitTime > 0 && empty()) {
+
+			long stopTime = System.nanoTime() + waitTime * 1000000L;
+			long nanos;
+			while (empty() && (nanos = stopTime - System.nanoTime()) > 0) {
+				park(1, nanos);
+			}
+		}
+
+		int n = 0;
+		T obj;
+		while (n < maxObjects && (obj = poll()) != null) {
+			c.add(obj);
+			n++;
+		}
+
+		return (n);
+	}
+
+
+	/**
+	 * Parks the consumer until the queue holds count objects.  The wait
+	 * count and the waiter are published before the size is checked
+	 * again so a producer either sees the waiter or the consumer sees
+	 * the new object.
+	 */
+	private void park (int count, long nanos) throws InterruptedException {
+
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+
+		Thread thread = Thread.currentThread();
+		waitCount = takeCount + count;
+		waiter.set(thread);
+		try {
+
+			if (size() < count) {
+				if (nanos > 0) {
+					LockSupport.parkNanos(this, nanos);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+
+		} finally {
+			waiter.compareAndSet(thread, null);
+			waitCount = Long.MAX_VALUE;
+		}
+
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+
+	/**
+	 * A node in the list, next is set once by the producer that
+	 * put the node after this one.
+	 */
+	private static final class Node<T> {
+
+		private T item;
+		private volatile Node<T> next;
+
+		private Node (T item) {
+			this.item = item;
+		}
+	}
+}
@@ -253,6 +253,30 @@ public class NetworkUtils {
    }
    
 
+   /**
+    * Does a reverse DNS lookup of an address.  This always goes to the
+    * resolver, the host name cached in the InetAddress instance is neither
+    * used nor set.  This call blocks for as long as the resolver takes.
+    *
+    * @param address Address to look up.
+    * @return The host name, or null if the address has no host name.
+    */
+   public static String reverseLookup (InetAddress address) {
+
+      String ip = address.getHostAddress();
+      String name;
+      try {
+         name = InetAddress.getByAddress(address.getAddress()).getHostName();
+      } catch (UnknownHostException e) {
+         return null;
+      } catch (SecurityException e) {
+         return null;
+      }
+
+      return (name.equals(ip) ? null : name);
+   }
+
+
    /**
     * Checks whether a string might be an IP address instead of a host name.
     *
@@ -0,0 +1,272 @@
+package com.messners.ajf.util;
+
+import com.messners.ajf.app.Preferences;
+
+
+/**
+ * This class provides a WorkQueue with several work threads.  Each work
+ * item is routed by its key to one of the partitions, each partition is a
+ * WorkQueue with its own thread, so items with the same key are processed
+ * in order and items with different keys are processed in parallel.  The
+ * read block count and refresh time apply to each partition.
+ * <p>
+ * The listeners are called from all the work threads at once and must be
+ * thread safe, the work is never dispatched on the Swing event thread.
+ * 
+ * @author  Greg Messner <greg@messners.com>
+ */
+public class PartitionedWorkQueue {
+
+	private String name;
+	private WorkKeyExtractor keyExtractor;
+	private WorkQueue partitions[];
+	private int readBlockCount;
+	private long refreshTime;
+
+
+	/**
+	 * Constructs a PartitionedWorkQueue instance.
+	 *
+	 * @param  name            the name for the PartitionedWorkQueue
+	 * @param  partitionCount  the number of partitions and work threads
+	 * @param  keyExtractor    gets the key from each work item
+	 */
+	public PartitionedWorkQueue (String name, int partitionCount,
+			WorkKeyExtractor keyExtractor) {
+		this(name, partitionCount, keyExtractor, false);
+	}
+
+
+	/**
+	 * Constructs a PartitionedWorkQueue instance.
+	 *
+	 * @param  name            the name for the PartitionedWorkQueue
+	 * @param  partitionCount  the number of partitions and work threads
+	 * @param  keyExtractor    gets the key from each work item
+	 * @param  lockFree        true to use lock-free queues for the work
+	 */
+	public PartitionedWorkQueue (String name, int partitionCount,
+			WorkKeyExtractor keyExtractor, boolean lockFree) {
+
+		if (partitionCount < 1) {
+			throw new IllegalArgumentException(
+				"Invalid partitionCount: " + partitionCount);
+		}
+
+		this.name = name;
+		this.keyExtractor = keyExtractor;
+		readBlockCount = WorkQueue.DEFAULT_MAX_READ_BLOCK_COUNT;
+		refreshTime = WorkQueue.DEFAULT_MAX_REFRESH_TIME;
+
+		partitions = new WorkQueue[partitionCount];
+		for (int i = 0; i < partitionCount; i++) {
+			partitions[i] = new WorkQueue(name + "-" + i, lockFree);
+			partitions[i].setIsGui(false);
+		}
+	}
+
+
+	/**
+	 * Gets the name of this PartitionedWorkQueue instance.
+	 *
+	 * @return the name of this instance
+	 */
+	public String getName () {
+		return (name);
+	}
+
+
+	/**
+	 * Gets the number of partitions.
+	 *
+	 * @return the number of partitions and work threads
+	 */
+	public int getPartitionCount () {
+		return (partitions.length);
+	}
+
+
+	/**
+	 * Gets the partition a key is routed to.
+	 *
+	 * @param  key  the key of a work item
+	 * @return the index of the partition for the key
+	 */
+	public int getPartition (Object key) {
+
+		if (key == null) {
+			return (0);
+		}
+
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return ((h & 0x7fffffff) % partitions.length);
+	}
+
+
+	/**
+	 * Sets the read block count for each partition.  This is the maximum
+	 * number of items that will be pulled from a partition for processing
+	 * at one time.
+	 *
+	 * @param  readBlockCount  the read block count
+	 */
+	public void setReadBlockCount (int readBlockCount) {
+
+		this.readBlockCount = readBlockCount;
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].setReadBlockCount(readBlockCount);
+		}
+	}
+
+
+	/**
+	 * Set the maximum refresh time for each partition. This is the
+	 * maximum time between the dispatching of work.
+	 *
+	 * @param  refreshTime  the maximum refresh time in milliseconds
+	 */
+	public void setRefreshTime (long refreshTime) {
+
+		this.refreshTime = refreshTime;
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].setRefreshTime(refreshTime);
+		}
+	}
+
+
+	/**
+	 * Sets whether the listeners of each partition are handed the reusable
+	 * batches the work is taken off the queue in.
+	 *
+	 * @param  reuseBatches  true to dispatch the reusable batches
+	 * @see WorkQueue#setReuseBatches(boolean)
+	 */
+	public void setReuseBatches (boolean reuseBatches) {
+
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].setReuseBatches(reuseBatches);
+		}
+	}
+
+
+	/**
+	 * Adds a WorkQueueListener to all the partitions.
+	 *
+	 * @param  l  the listener to add
+	 */
+	public void addListener (WorkQueueListener l) {
+
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].addListener(l);
+		}
+	}
+
+
+	/**
+	 * Removes WorkQueueListener from all the partitions.
+	 *
+	 * @param  l  the listener to remove
+	 */
+	public void removeListener (WorkQueueListener l) {
+
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].removeListener(l);
+		}
+	}
+
+
+	/**
+	 * Starts the work threads. Until started no work will be dispatched
+	 * to the listeners.
+	 */
+	public void start () {
+
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].start();
+		}
+	}
+
+
+	/**
+	 * Stops the work threads.
+	 */
+	public void stop () {
+
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i].stop();
+		}
+	}
+
+
+	/**
+	 * Restores the configuration of this instance.
+	 *
+	 * @param  prefs  the preferences instance to restore settings from
+	 */
+	public void restorePreferences (Preferences prefs) {
+
+		setRefreshTime(prefs.get(name + ".refresh-time",  refreshTime));
+		setReadBlockCount(prefs.get(name + ".read-block-count", readBlockCount));
+	}
+
+
+	/**
+	 * Saves the configuration of this instance.
+	 *
+	 * @param  prefs  the preferences instance to save settings to
+	 */
+	public void savePreferences (Preferences prefs) {
+
+		prefs.put(name + ".refresh-time",  refreshTime);
+		prefs.put(name + ".read-block-count", readBlockCount);
+	}
+
+
+	/**
+	 * Queue an object for later processing by the partition for its key.
+	 *
+	 * @param  work  the item to be added to the work queue
+	 */
+	public void queue (Object work) {
+		partitions[getPartition(keyExtractor.getKey(work))].queue(work);
+	}
+
+
+	/**
+	 * Queue an object for later processing by the partition for its key.
+	 *
+	 * @param  work  the item to be added to the work queue
+	 * @return true if the work was queued, false if it was rejected
+	 */
+	public boolean offer (Object work) {
+		return (partitions[getPartition(keyExtractor.getKey(work))].offer(work));
+	}
+
+
+	/**
+	 * Gets the number of items queued in all the partitions.
+	 *
+	 * @return  the number of items queued
+	 */
+	public int size () {
+
+		int size = 0;
+		for (int i = 0; i < partitions.length; i++) {
+			size += partitions[i].size();
+		}
+
+		return (size);
+	}
+
+
+	/**
+	 * Gets the number of items queued in a partition.
+	 *
+	 * @param  partition  the index of the partition
+	 * @return  the number of items queued in the partition
+	 */
+	public int size (int partition) {
+		return (partitions[partition].size());
+	}
+}
@@ -1,16 +1,71 @@
 package com.messners.ajf.util;
 
+import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Class for a simple FIFO queue.
+ * <p>
+ * The objects are kept in a growable array used as a ring so put() and
+ * get() are constant time however deep the queue gets.  Producers and
+ * consumers use separate locks, put() only takes the producer lock and
+ * get() only takes the consumer lock, so a producer and a consumer never
+ * wait for each other.  Only growing the array and the List methods that
+ * look inside the queue take both locks.  A consumer waiting for objects
+ * is only signalled when enough objects are queued for it.
  *
  * @author  Greg Messner <greg@messners.com>
  */
-public class Queue<T> extends ArrayList<T> {
+public class Queue<T> extends AbstractList<T> implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+
+
+	/**
+	 * The initial size of the array, a power of 2.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+
+	/**
+	 * The ring, head is only changed by consumers and tail by producers.
+	 * The array is only replaced while holding both locks.
+	 */
+	private Object items[];
+	private int mask;
+	private int head;
+	private int tail;
+	private AtomicInteger count = new AtomicInteger();
+
+	private ReentrantLock putLock = new ReentrantLock();
+	private ReentrantLock takeLock = new ReentrantLock();
+	private Condition objectsAvailable = takeLock.newCondition();
+
+
+	/**
+	 * The number of objects each waiting consumer is waiting for, guarded
+	 * by takeLock, and the smallest of them.  Producers only signal when
+	 * the queue reaches signalCount.
+	 */
+	private ArrayList<int[]> waiters = new ArrayList<int[]>();
+	private volatile int signalCount = Integer.MAX_VALUE;
+
+
+	/**
+	 * Creates an empty queue.
+	 */
+	public Queue () {
+
+		items = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
 
 
 	/**
@@ -18,23 +73,117 @@ public class Queue<T> extends ArrayList<T> {
 	 *
 	 * @param   obj   the object to be put into the queue
 	 */
-	public synchronized T put (T obj) {
+	public T put (T obj) {
+
+		int n;
+		putLock.lock();
+		try {
+
+			if (count.get() == items.length) {
+				grow();
+			}
+
+			items[tail] = obj;
+			tail = (tail + 1) & mask;
+			n = count.incrementAndGet();
+
+		} finally {
+			putLock.unlock();
+		}
+
+		if (n >= signalCount) {
+			signalWaiters();
+		}
 
-		add(obj);
-		notify();
 		return (obj);
 	}
 
 
+	/**
+	 * Adds an item to the end of the queue, same as put().
+	 *
+	 * @param  obj  the object to add
+	 * @return true
+	 */
+	public boolean add (T obj) {
+
+		put(obj);
+		return (true);
+	}
+
+
+	/**
+	 * Doubles the array, called by a producer holding putLock.
+	 */
+	private void grow () {
+
+		takeLock.lock();
+		try {
+
+			int size = count.get();
+			Object newItems[] = new Object[items.length * 2];
+			for (int i = 0; i < size; i++) {
+				newItems[i] = items[(head + i) & mask];
+			}
+
+			items = newItems;
+			mask = newItems.length - 1;
+			head = 0;
+			tail = size;
+
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Wakes up the waiting consumers.
+	 */
+	private void signalWaiters () {
+
+		takeLock.lock();
+		try {
+			objectsAvailable.signalAll();
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+
 	/**
 	 * Gets an item from the front of the queue.
 	 *
 	 * @throws EmptyQueueException when the queue is empty
 	 */
-	public synchronized T get () {
+	public T get () {
+
+		takeLock.lock();
+		try {
+
+			if (count.get() == 0) {
+				throw new EmptyQueueException();
+			}
+
+			return (dequeue());
+
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Removes the object at the head, called holding takeLock with the
+	 * queue not empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private T dequeue () {
 
-		T obj = peek();
-		remove(0);
+		T obj = (T)items[head];
+		items[head] = null;
+		head = (head + 1) & mask;
+		count.decrementAndGet();
 		return (obj);
 	}
 
@@ -45,13 +194,21 @@ public class Queue<T> extends ArrayList<T> {
 	 * @return the object at the front of the queue without removing it
 	 * @throws EmptyQueueException when the queue is empty.
 	 */
-	public synchronized T peek () {
+	@SuppressWarnings("unchecked")
+	public T peek () {
 
-		if (size() == 0) {
-	 		throw new EmptyQueueException();
-		}
+		takeLock.lock();
+		try {
+
+			if (count.get() == 0) {
+				throw new EmptyQueueException();
+			}
 
-		return (get(0));
+			return ((T)items[head]);
+
+		} finally {
+			takeLock.unlock();
+		}
 	}
 
 
@@ -60,84 +217,265 @@ public class Queue<T> extends ArrayList<T> {
 	 *
 	 * @return  true if the Queue is empty, otherwise return false
 	 */
-	public synchronized boolean empty () {
+	public boolean empty () {
+		return (count.get() == 0);
+	}
+
+
+	/**
+	 * Gets the number of objects in the queue.
+	 *
+	 * @return the number of objects in the queue
+	 */
+	public int size () {
+		return (count.get());
+	}
+
+
+	/**
+	 * Gets the object at the specified position from the front of the queue.
+	 *
+	 * @param  index  the position of the object
+	 * @return the object at the position
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	@SuppressWarnings("unchecked")
+	public T get (int index) {
+
+		fullyLock();
+		try {
+
+			checkIndex(index);
+			return ((T)items[(head + index) & mask]);
+
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+
+	/**
+	 * Replaces the object at the specified position from the front of
+	 * the queue.
+	 *
+	 * @param  index  the position of the object
+	 * @param  obj    the new object
+	 * @return the object that was at the position
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	@SuppressWarnings("unchecked")
+	public T set (int index, T obj) {
+
+		fullyLock();
+		try {
 
-		return (size() == 0);
+			checkIndex(index);
+			int i = (head + index) & mask;
+			T old = (T)items[i];
+			items[i] = obj;
+			return (old);
+
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+
+	/**
+	 * Removes the object at the specified position from the front of
+	 * the queue.
+	 *
+	 * @param  index  the position of the object
+	 * @return the removed object
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove (int index) {
+
+		fullyLock();
+		try {
+
+			checkIndex(index);
+			T obj = (T)items[(head + index) & mask];
+
+
+			/*
+			 * Close the gap by moving the objects behind it up one.
+			 */
+			int size = count.get();
+			for (int i = index; i < size - 1; i++) {
+				items[(head + i) & mask] = items[(head + i + 1) & mask];
+			}
+
+			tail = (tail - 1) & mask;
+			items[tail] = null;
+			count.decrementAndGet();
+			modCount++;
+			return (obj);
+
+		} finally {
+			fullyUnlock();
+		}
 	}
 
 
 	/**
 	 * Searches for the first occurence of the given argument, testing
-	 * for equality using the equals method. 
+	 * for equality using the equals method.
 	 *
 	 * @param   obj   the desired object
 	 * @return the index of object, or -1 if it is not found
 	 */
-	public synchronized int search (T obj) {
+	public int search (T obj) {
 		return (indexOf(obj));
 	}
 
 
+	/**
+	 * Searches for the first occurence of the given argument, testing
+	 * for equality using the equals method.
+	 *
+	 * @param   obj   the desired object
+	 * @return the index of object, or -1 if it is not found
+	 */
+	public int indexOf (Object obj) {
+
+		fullyLock();
+		try {
+
+			int size = count.get();
+			for (int i = 0; i < size; i++) {
+
+				Object item = items[(head + i) & mask];
+				if (obj == null ? item == null : obj.equals(item)) {
+					return (i);
+				}
+			}
+
+			return (-1);
+
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+
 	/**
 	 * Removes an object from the queue.
 	 *
 	 * @param  obj  the object to remove
 	 * @return true if the object is queued, otherwise false
 	 */
-	public synchronized boolean remove (Object obj) {
-		return (super.remove(obj));
+	public boolean remove (Object obj) {
+
+		fullyLock();
+		try {
+
+			int index = indexOf(obj);
+			if (index < 0) {
+				return (false);
+			}
+
+			remove(index);
+			return (true);
+
+		} finally {
+			fullyUnlock();
+		}
 	}
 
+
 	/**
 	 * Wait until a count of objects are available on the queue or waitTime
-	 * has elapsed, whichever occurs first.
+	 * has elapsed, whichever occurs first.  The wait time only starts to
+	 * count once there is an object on the queue.
 	 *
 	 * @param count     the number of objects to wait for
 	 * @param waitTime  the time in milliseconds to wait
 	 * @throws InterruptedException if the current thread is interrupted
 	 */
-	public synchronized void waitForObjects (int count, long waitTime) 
+	public void waitForObjects (int count, long waitTime)
 				throws InterruptedException {
 
 		long stopTime = System.currentTimeMillis() + waitTime;
+		takeLock.lockInterruptibly();
+		try {
 
-		while (size() < count) {
+			if (this.count.get() >= count) {
+				return;
+			}
 
-			if (size() > 0) {
+			int waiter[] = addWaiter(count);
+			try {
 
-				waitTime = stopTime - System.currentTimeMillis();
-				if (waitTime <= 0) {
-					return;
-				}
+				int size;
+				while ((size = this.count.get()) < count) {
+
+
+					/*
+					 * With the queue empty there is no timeout and the first
+					 * object must wake us, the count is checked again after
+					 * the target changes as a producer may have missed it.
+					 */
+					int target = (size > 0 ? count : 1);
+					if (waiter[0] != target) {
+						waiter[0] = target;
+						updateSignalCount();
+						continue;
+					}
+
+					if (size > 0) {
 
-				wait(waitTime);
+						waitTime = stopTime - System.currentTimeMillis();
+						if (waitTime <= 0) {
+							return;
+						}
 
-			} else {
+						objectsAvailable.await(waitTime, TimeUnit.MILLISECONDS);
 
-				wait();
+					} else {
+						objectsAvailable.await();
+					}
+				}
+
+			} finally {
+				removeWaiter(waiter);
 			}
+
+		} finally {
+			takeLock.unlock();
 		}
 	}
 
+
 	/**
 	 * Wait until the object appears in the queue, then return it.
 	 *
-	 * @param waitTime  the time in milliseconds to wait
-	 * @return the object from the queue. null if the wait state was interrupted
+	 * @param waitTime  the time in milliseconds to wait, 0 to wait forever
+	 * @return the object from the queue, null if the wait timed out or
+	 * the wait state was interrupted
 	 * @see #get
 	 */
-	public synchronized T waitForObject (long waitTime) {
+	public T waitForObject (long waitTime) {
 
-		while (empty()) {
+		try {
 
+			takeLock.lockInterruptibly();
 			try {
-				wait(waitTime);
-			} catch (InterruptedException ie) {
-				return (null);
+
+				if (!awaitObjects(waitTime)) {
+					return (null);
+				}
+
+				return (dequeue());
+
+			} finally {
+				takeLock.unlock();
 			}
-		}
 
-		return (get());
+		} catch (InterruptedException ie) {
+			return (null);
+		}
 	}
 
 
@@ -147,15 +485,189 @@ public class Queue<T> extends ArrayList<T> {
 	 * @return the object from the queue. null if the wait state was interrupted
 	 * @see #get
 	 */
-	public synchronized T waitForObject () {
+	public T waitForObject () {
 		return (waitForObject(0));
 	}
 
 
+	/**
+	 * Removes up to maxObjects objects from the front of the queue and adds
+	 * them to the collection, waiting up to waitTime for the first object.
+	 * The objects are removed while holding the consumer lock once.
+	 *
+	 * @param  c           the collection to add the objects to
+	 * @param  maxObjects  the maximum number of objects to remove
+	 * @param  waitTime    the time in milliseconds to wait for an object,
+	 * 0 to not wait
+	 * @return the number of objects removed
+	 * @throws InterruptedException if the current thread is interrupted
+	 */
+	@SuppressWarnings("unchecked")
+	public int drainTo (Collection<? super T> c, int maxObjects, long waitTime)
+			throws InterruptedException {
+
+		if (c == this) {
+			throw new IllegalArgumentException("Cannot drain a Queue to itself");
+		}
+
+		takeLock.lockInterruptibly();
+		try {
+
+			if (count.get() == 0 && (waitTime <= 0 || !awaitObjects(waitTime))) {
+				return (0);
+			}
+
+
+			/*
+			 * The count is only lowered once for the whole batch, until
+			 * then producers may see the queue fuller than it is
+			 */
+			int n = Math.min(maxObjects, count.get());
+			int removed = 0;
+			try {
+
+				while (removed < n) {
+
+					T obj = (T)items[head];
+					items[head] = null;
+					head = (head + 1) & mask;
+					removed++;
+					c.add(obj);
+				}
+
+			} finally {
+				count.addAndGet(-removed);
+			}
+
+			return (n);
+
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Waits for an object to be queued, called holding takeLock.
+	 *
+	 * @param  waitTime  the time in milliseconds to wait, 0 to wait forever
+	 * @return true if there is an object, false if the wait timed out
+	 */
+	private boolean awaitObjects (long waitTime) throws InterruptedException {
+
+		if (count.get() > 0) {
+			return (true);
+		}
+
+		long nanos = TimeUnit.MILLISECONDS.toNanos(waitTime);
+		int waiter[] = addWaiter(1);
+		try {
+
+			while (count.get() == 0) {
+
+				if (waitTime <= 0) {
+					objectsAvailable.await();
+				} else {
+
+					if (nanos <= 0) {
+						return (false);
+					}
+
+					nanos = objectsAvailable.awaitNanos(nanos);
+				}
+			}
+
+			return (true);
+
+		} finally {
+			removeWaiter(waiter);
+		}
+	}
+
+
+	/**
+	 * Registers a consumer waiting for a number of objects, called
+	 * holding takeLock.
+	 */
+	private int[] addWaiter (int count) {
+
+		int waiter[] = { count };
+		waiters.add(waiter);
+		updateSignalCount();
+		return (waiter);
+	}
+
+
+	/**
+	 * Removes a waiting consumer, called holding takeLock.
+	 */
+	private void removeWaiter (int waiter[]) {
+
+		waiters.remove(waiter);
+		updateSignalCount();
+	}
+
+
+	/**
+	 * Sets signalCount to the smallest count a consumer is waiting for.
+	 * A producer may have queued objects before seeing the new value, so
+	 * this must be called before the waiter checks the count again.
+	 */
+	private void updateSignalCount () {
+
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < waiters.size(); i++) {
+			min = Math.min(min, waiters.get(i)[0]);
+		}
+
+		signalCount = min;
+	}
+
+
 	/**
 	 * Removes all the objects in the queue.
 	 */
-	public synchronized void clear () {
-		super.clear();
+	public void clear () {
+
+		fullyLock();
+		try {
+
+			for (int i = 0; i < items.length; i++) {
+				items[i] = null;
+			}
+
+			head = 0;
+			tail = 0;
+			count.set(0);
+			modCount++;
+
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+
+	private void checkIndex (int index) {
+
+		if (index < 0 || index >= count.get()) {
+			throw new IndexOutOfBoundsException(
+				"Index: " + index + ", Size: " + count.get());
+		}
+	}
+
+
+	/**
+	 * Locks out both producers and consumers, the locks are always taken
+	 * in this order.
+	 */
+	private void fullyLock () {
+		putLock.lock();
+		takeLock.lock();
+	}
+
+
+	private void fullyUnlock () {
+		takeLock.unlock();
+		putLock.unlock();
 	}
 }
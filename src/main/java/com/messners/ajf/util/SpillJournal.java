@@ -0,0 +1,267 @@
+package com.messners.ajf.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+
+/**
+ * This class provides the journal a WorkQueue spills work to when it is
+ * over capacity.  The journal is a chain of memory-mapped segment files
+ * in a directory, each work item is serialized into a record holding its
+ * length and bytes and appended to the newest segment, and records are
+ * read back in order from the oldest segment.  Once a segment has been
+ * read to the end it is unmapped and deleted, the last segment is reused
+ * from the start instead, so the journal only takes disk space while
+ * there is a backlog.  The methods are not synchronized, the WorkQueue
+ * guards the journal.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+class SpillJournal {
+
+	/**
+	 * Default segment size = 4 megabytes.
+	 */
+	static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+
+	private static final String SEGMENT_PREFIX = "spill-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+
+	private File directory;
+	private int segmentSize;
+	private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private long nextSegment;
+	private int count;
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+
+	/**
+	 * Creates the journal, deleting any segments left in the directory.
+	 *
+	 * @param  directory    the directory for the segment files
+	 * @param  segmentSize  the size of each segment file
+	 * @throws IOException if the directory cannot be created
+	 */
+	SpillJournal (File directory, int segmentSize) throws IOException {
+
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("Invalid segmentSize: " + segmentSize);
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spill directory: " + directory);
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		File files[] = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				files[i].delete();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the directory the segment files are in.
+	 *
+	 * @return the journal directory
+	 */
+	File getDirectory () {
+		return (directory);
+	}
+
+
+	/**
+	 * Gets the number of work items in the journal.
+	 *
+	 * @return the number of work items that have not been read back
+	 */
+	int size () {
+		return (count);
+	}
+
+
+	/**
+	 * Gets the number of segment files the journal is using.
+	 *
+	 * @return the number of segment files
+	 */
+	int getSegmentCount () {
+		return (segments.size());
+	}
+
+
+	/**
+	 * Appends a work item to the journal.
+	 *
+	 * @param  work  the work item, must be Serializable
+	 * @throws IOException if the work item cannot be serialized or written
+	 */
+	void append (Object work) throws IOException {
+
+		bytes.reset();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(work);
+		out.close();
+
+		int length = bytes.size();
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.map.capacity() - segment.writePosition < 4 + length) {
+			segment = new Segment(Math.max(segmentSize, 4 + length));
+			segments.addLast(segment);
+		}
+
+		ByteBuffer map = segment.map;
+		map.putInt(segment.writePosition, length);
+		map.position(segment.writePosition + 4);
+		map.put(bytes.toByteArray(), 0, length);
+		segment.writePosition += 4 + length;
+		count++;
+	}
+
+
+	/**
+	 * Reads the oldest work item from the journal.
+	 *
+	 * @return the oldest work item, null if the journal is empty
+	 * @throws IOException if the work item cannot be deserialized, the
+	 * work item is skipped
+	 */
+	Object next () throws IOException {
+
+		if (count == 0) {
+			return (null);
+		}
+
+		Segment segment = segments.peekFirst();
+		while (segment.readPosition == segment.writePosition) {
+			segments.removeFirst().delete();
+			segment = segments.peekFirst();
+		}
+
+		ByteBuffer map = segment.map;
+		byte record[] = new byte[map.getInt(segment.readPosition)];
+		map.position(segment.readPosition + 4);
+		map.get(record);
+		segment.readPosition += 4 + record.length;
+		count--;
+
+
+		/*
+		 * Reclaim the segment as soon as it has been read
+		 */
+		if (segment.readPosition == segment.writePosition) {
+			if (segments.size() > 1) {
+				segments.removeFirst().delete();
+			} else {
+				segment.readPosition = 0;
+				segment.writePosition = 0;
+			}
+		}
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record));
+		try {
+			return (in.readObject());
+		} catch (ClassNotFoundException cnfe) {
+			throw new IOException("Cannot read spilled work: " + cnfe.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Deletes all the segments, any work still in the journal is lost.
+	 */
+	void close () {
+
+		while (!segments.isEmpty()) {
+			segments.removeFirst().delete();
+		}
+
+		count = 0;
+	}
+
+
+	/**
+	 * Unmaps a mapped buffer, which otherwise only happens when it is
+	 * garbage collected.  There is no public API for this, on Java 9 and
+	 * later Unsafe.invokeCleaner() is used and before that the buffer's
+	 * Cleaner.  The buffer must never be used again.
+	 */
+	private static void unmap (MappedByteBuffer map) {
+
+		try {
+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), map);
+
+			} catch (NoSuchMethodException nsme) {
+
+				Method cleanerMethod = map.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(map);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+
+		} catch (Exception ignore) {
+		}
+	}
+
+
+	/**
+	 * A mapped segment file.
+	 */
+	private class Segment {
+
+		private File file;
+		private MappedByteBuffer map;
+		private int readPosition;
+		private int writePosition;
+
+		private Segment (int size) throws IOException {
+
+			file = new File(directory, SEGMENT_PREFIX + (nextSegment++) + SEGMENT_SUFFIX);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+				map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				raf.close();
+			}
+		}
+
+		private void delete () {
+
+			unmap(map);
+			map = null;
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
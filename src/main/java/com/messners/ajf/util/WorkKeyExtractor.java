@@ -0,0 +1,20 @@
+package com.messners.ajf.util;
+
+
+/**
+ * This interface defines how a PartitionedWorkQueue gets the key from a
+ * work item.  Work items with equal keys are processed in the order they
+ * were queued.
+ * 
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface WorkKeyExtractor {
+
+	/**
+	 * Gets the key for the work item.
+	 *
+	 * @param  work  the work item
+	 * @return the key for the work item, may be null
+	 */
+	public Object getKey (Object work);
+}
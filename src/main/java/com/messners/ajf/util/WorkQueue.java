@@ -1,7 +1,19 @@
 package com.messners.ajf.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.SwingUtilities;
 
@@ -30,6 +42,52 @@ public class WorkQueue implements Runnable {
 	public static final long DEFAULT_MAX_REFRESH_TIME = 1000L;
 
 
+	/**
+	 * Capacity policy that makes queue() wait for room, for up to the
+	 * block timeout.
+	 */
+	public static final int BLOCK = 0;
+
+
+	/**
+	 * Capacity policy that rejects new work when the queue is full.
+	 */
+	public static final int REJECT = 1;
+
+
+	/**
+	 * Capacity policy that drops the oldest queued work to make room.
+	 */
+	public static final int DROP_OLDEST = 2;
+
+
+	/**
+	 * Capacity policy that spills new work to the spill journal until
+	 * there is room, the work must be Serializable.
+	 */
+	public static final int SPILL = 3;
+
+
+	/**
+	 * Default time queue() waits for room with the BLOCK policy = 1000 ms.
+	 */
+	public static final long DEFAULT_BLOCK_TIMEOUT = 1000L;
+
+
+	/**
+	 * Lane policy that fills each batch from the highest priority lane
+	 * first.
+	 */
+	public static final int STRICT_PRIORITY = 0;
+
+
+	/**
+	 * Lane policy that gives each lane with work a share of each batch in
+	 * proportion to its weight, higher priority lanes first.
+	 */
+	public static final int WEIGHTED_PRIORITY = 1;
+
+
 	/**
 	 * Stores the name of the WorkQueue instance
 	 */
@@ -51,6 +109,81 @@ public class WorkQueue implements Runnable {
 	private long refreshTime;
 
 
+	/**
+	 * In lock-free mode the work is queued here instead, and queue
+	 * is null.
+	 */
+	private MpscQueue<Object> mpscQueue;
+
+
+	/**
+	 * In coalescing mode work with a key is queued in a Holder, and a
+	 * newer item with the same key replaces the work in the Holder that
+	 * is already queued.  The queued Holders are kept here by key.
+	 */
+	private volatile WorkKeyExtractor coalescingKeyExtractor;
+	private volatile ConcurrentHashMap<Object, Holder> coalescing;
+	private AtomicLong coalescedCount = new AtomicLong();
+
+
+	/**
+	 * The optional capacity, 0 if unbounded.  admitted is the number of
+	 * items queued and not yet taken by the work thread, it is only kept
+	 * when there is a capacity.
+	 */
+	private int capacity;
+	private int capacityPolicy;
+	private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+	private AtomicInteger admitted = new AtomicInteger();
+	private AtomicInteger blockedProducers = new AtomicInteger();
+	private Object capacityLock = new Object();
+	private AtomicLong rejectedCount = new AtomicLong();
+	private AtomicLong droppedCount = new AtomicLong();
+	private AtomicLong spilledCount = new AtomicLong();
+
+
+	/**
+	 * With the SPILL policy new work goes to the spill journal while it
+	 * holds any work so the work stays in order, guarded by spillLock.
+	 */
+	private SpillJournal spillJournal;
+	private volatile boolean spilling;
+	private volatile int spillSize;
+	private Object spillLock = new Object();
+
+
+	/**
+	 * The pressure listeners are told when the admitted work rises to 3/4
+	 * of the capacity and when it falls back to 1/2 of the capacity.
+	 */
+	private CopyOnWriteArrayList<WorkQueuePressureListener> pressureListeners =
+		new CopyOnWriteArrayList<WorkQueuePressureListener>();
+	private AtomicBoolean highPressure = new AtomicBoolean();
+
+
+	/**
+	 * The optional priority lanes, lane 0 has the lowest priority.  When
+	 * there are lanes all the work is queued in the lanes in LaneEntry
+	 * objects, queue and mpscQueue are not used.  laneCount is the number
+	 * of objects in all the lanes, the work thread waits for it to reach
+	 * laneWaitCount.
+	 */
+	private volatile MpscQueue<LaneEntry> lanes[];
+	private int laneWeights[];
+	private int lanePolicy;
+	private LatencyHistogram laneLatencies[];
+	private AtomicInteger laneCount = new AtomicInteger();
+	private AtomicReference<Thread> laneWaiter = new AtomicReference<Thread>();
+	private volatile int laneWaitCount = Integer.MAX_VALUE;
+
+
+	/**
+	 * The timing wheel delayed and periodic work is scheduled on, the
+	 * shared timing wheel if null.
+	 */
+	private HashedTimingWheel timingWheel;
+
+
 	/**
 	 * Flag that indicates this WorkQueue has been stopped.
 	 */
@@ -63,6 +196,16 @@ public class WorkQueue implements Runnable {
 	private Thread workThread;
 
 
+	/**
+	 * The work is dispatched in these two batches in turn, so the work
+	 * thread can fill one while the other is still being dispatched on
+	 * the Swing event thread.
+	 */
+	private Batch batches[] = { new Batch(), new Batch() };
+	private int nextBatch;
+	private volatile boolean reuseBatches;
+
+
 	/**
 	 * This is the List of WorkQueueListeners
 	 */
@@ -75,6 +218,19 @@ public class WorkQueue implements Runnable {
 	 * @param  name  the name for the WorkQueue
 	 */
 	public WorkQueue (String name) {
+		this(name, false);
+	}
+
+
+	/**
+	 * Constructs a WorkQueue instance with the specified name.  In
+	 * lock-free mode threads queueing work never block each other or the
+	 * work thread, but the queued work can't be looked at or dequeued.
+	 *
+	 * @param  name      the name for the WorkQueue
+	 * @param  lockFree  true to use a lock-free queue for the work
+	 */
+	public WorkQueue (String name, boolean lockFree) {
 
 		this.name = name;
 		this.isGui = true;
@@ -83,7 +239,12 @@ public class WorkQueue implements Runnable {
 		/*
 		 * Setup the work queue
 		 */
-		queue = new Queue<Object>();
+		if (lockFree) {
+			mpscQueue = new MpscQueue<Object>();
+		} else {
+			queue = new Queue<Object>();
+		}
+
 		readBlockCount = DEFAULT_MAX_READ_BLOCK_COUNT;
 		refreshTime = DEFAULT_MAX_REFRESH_TIME;
 	}
@@ -134,305 +295,1437 @@ public class WorkQueue implements Runnable {
 
 
 	/**
-	 * Sets the read block count.  This is the maximum number of items that
-	 * will be pulled from the queue for processing at one time.
+	 * Returns true if this WorkQueue uses a lock-free queue for the work.
 	 *
-	 * @param  readBlockCount  the read block count
+	 * @return true if in lock-free mode
 	 */
-	public void setReadBlockCount (int readBlockCount) {
-		this.readBlockCount = readBlockCount;
+	public boolean isLockFree () {
+		return (mpscQueue != null);
 	}
 
 
 	/**
-	 * Set the maximum refresh time. This is the maximum time
-	 * between the dispatching of work.
+	 * Sets the key extractor for coalescing mode, null to turn coalescing
+	 * off.  In coalescing mode only the newest item for each key is
+	 * dispatched, it takes the place in the queue of the oldest item with
+	 * the same key that has not yet been dispatched.  Items with a null
+	 * key are never coalesced.  This should be set before work is queued.
 	 *
-	 * @param  refreshTime  the maximum refresh time in milliseconds
+	 * @param  keyExtractor  gets the key from each work item
+	 * @throws IllegalStateException if there is work queued
 	 */
-	public void setRefreshTime (long refreshTime) {
-		this.refreshTime = refreshTime;
+	public synchronized void setCoalescing (WorkKeyExtractor keyExtractor) {
+
+		if (size() > 0) {
+			throw new IllegalStateException(
+				"Coalescing cannot be changed while work is queued");
+		}
+
+		coalescing = (keyExtractor != null ? new ConcurrentHashMap<Object, Holder>() : null);
+		coalescingKeyExtractor = keyExtractor;
 	}
 
 
 	/**
-	 * Adds a WorkQueueListener.
+	 * Returns true if this WorkQueue is in coalescing mode.
 	 *
-	 * @param  l  the listener to add
+	 * @return true if in coalescing mode
 	 */
-	public synchronized void addListener (WorkQueueListener l) {
+	public boolean isCoalescing () {
+		return (coalescingKeyExtractor != null);
+	}
 
-		if (listeners == null) {
-			listeners = new ArrayList<WorkQueueListener>();
-		}
 
-		if (!listeners.contains(l)) {
-			listeners.add(l);
-		}
+	/**
+	 * Gets the number of work items that were replaced by a newer item
+	 * with the same key before they were dispatched.
+	 *
+	 * @return the number of coalesced work items
+	 */
+	public long getCoalescedCount () {
+		return (coalescedCount.get());
 	}
 
 
 	/**
-	 * Removes WorkQueueListener.
+	 * Sets the capacity of this WorkQueue and the policy for new work
+	 * when it is full.  The capacity counts the work that is queued and
+	 * not yet taken by the work thread.
 	 *
-	 * @param  l  the listener to remove
+	 * @param  capacity  the capacity, 0 for no capacity
+	 * @param  policy    BLOCK, REJECT, DROP_OLDEST or SPILL
+	 * @throws IllegalStateException if there is work queued, or the policy
+	 * is DROP_OLDEST in lock-free mode
 	 */
-	public synchronized void removeListener (WorkQueueListener l) {
+	public synchronized void setCapacity (int capacity, int policy) {
 
-		if (listeners == null) {
-			return;
+		if (capacity < 0 || policy < BLOCK || policy > SPILL) {
+			throw new IllegalArgumentException("Invalid capacity (" +
+				capacity + ") or policy (" + policy + ")");
 		}
 
-		listeners.remove(l);
+		if (policy == DROP_OLDEST && (mpscQueue != null || lanes != null)) {
+			throw new IllegalStateException(
+				"Only the work thread can take work in lock-free or lane mode");
+		}
+
+		if (size() > 0 || spillSize > 0) {
+			throw new IllegalStateException(
+				"The capacity cannot be changed while work is queued");
+		}
+
+		this.capacity = capacity;
+		capacityPolicy = policy;
+		admitted.set(0);
+		highPressure.set(false);
 	}
 
 
 	/**
-	 * Starts this WorkQueue instance. Until started no work will be 
-	 * dispatched to the listeners.
+	 * Gets the capacity of this WorkQueue.
+	 *
+	 * @return the capacity, 0 if there is no capacity
 	 */
-	public synchronized void start () {
+	public int getCapacity () {
+		return (capacity);
+	}
 
-		if (workThread != null) {
-			return;
-		}
 
-		stopped = false;
-		workThread = new Thread(this);
-		workThread.start();
+	/**
+	 * Gets the policy for new work when this WorkQueue is full.
+	 *
+	 * @return BLOCK, REJECT, DROP_OLDEST or SPILL
+	 */
+	public int getCapacityPolicy () {
+		return (capacityPolicy);
 	}
 
 
 	/**
-	 * Stops this WorkQueue instance.
+	 * Sets the maximum time queue() waits for room with the BLOCK policy,
+	 * the work is rejected after that.
+	 *
+	 * @param  blockTimeout  the block timeout in milliseconds
 	 */
-	public synchronized void stop () {
+	public void setBlockTimeout (long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
 
-		if (workThread == null) {
-			return;
-		}
 
-		stopped = true;
-		workThread.interrupt();
-		workThread = null;
+	/**
+	 * Sets the directory for the journal work is spilled to with the
+	 * SPILL policy, with the default segment size.
+	 *
+	 * @param  directory  the journal directory, null for no spill journal
+	 * @throws IOException if the directory cannot be created
+	 * @throws IllegalStateException if there is work in the current journal
+	 * @see #setSpillJournal(File, int)
+	 */
+	public void setSpillJournal (File directory) throws IOException {
+		setSpillJournal(directory, SpillJournal.DEFAULT_SEGMENT_SIZE);
 	}
 
 
 	/**
-	 * Restores the configuration of this instance.
+	 * Sets the directory for the journal work is spilled to with the
+	 * SPILL policy.  The journal is a chain of memory-mapped segment files
+	 * that are deleted once the work in them has been queued again, any
+	 * segment files already in the directory are deleted.  Without a spill
+	 * journal work that would be spilled is rejected.
 	 *
-	 * @param  prefs  the preferences instance to restore settings from
+	 * @param  directory    the journal directory, null for no spill journal
+	 * @param  segmentSize  the size in bytes of each segment file
+	 * @throws IOException if the directory cannot be created
+	 * @throws IllegalStateException if there is work in the current journal
 	 */
-	public void restorePreferences (Preferences prefs) {
+	public void setSpillJournal (File directory, int segmentSize)
+			throws IOException {
 
-		refreshTime  = prefs.get(name + ".refresh-time",  refreshTime);
-		readBlockCount = prefs.get(name + ".read-block-count", readBlockCount);
+		synchronized (spillLock) {
+
+			if (spillSize > 0) {
+				throw new IllegalStateException(
+					"The spill journal cannot be changed while work is spilled");
+			}
+
+			if (spillJournal != null) {
+				spillJournal.close();
+				spillJournal = null;
+			}
+
+			if (directory != null) {
+				spillJournal = new SpillJournal(directory, segmentSize);
+			}
+		}
 	}
 
 
 	/**
-	 * Saves the configuration of this instance.
+	 * Gets the number of segment files the spill journal is using.
 	 *
-	 * @param  prefs  the preferences instance to save settings to
+	 * @return the number of segment files, 0 if there is no spill journal
 	 */
-	public void savePreferences (Preferences prefs) {
+	public int getSpillSegmentCount () {
 
-		prefs.put(name + ".refresh-time",  refreshTime);
-		prefs.put(name + ".read-block-count", readBlockCount);
+		synchronized (spillLock) {
+			return (spillJournal != null ? spillJournal.getSegmentCount() : 0);
+		}
 	}
 
 
 	/**
-	 * Queue an object for later processing.
+	 * Gets the fraction of the capacity in use, this may be over 1 while
+	 * work is spilled.
 	 *
-	 * @param  work  the item to be added to the work queue
+	 * @return the fraction of the capacity in use, 0 if there is no capacity
 	 */
-	public void queue (Object work) {
-		queue.put(work);
+	public float getPressure () {
+		return (capacity > 0 ? (float)(admitted.get() + spillSize) / capacity : 0f);
 	}
 
 
 	/**
-	 * Queue a List of work items for later processing.
+	 * Gets the number of work items waiting in the spill journal.
 	 *
-	 * @param  workList  the List of work items to be added to the work queue
+	 * @return the number of spilled work items
 	 */
-	public void queue (List<Object> workList) {
-
-		/*
-		 * If the listeners are associated with a Swing GUI use 
-		 * SwingUtilites.invokeLater() to call the WorkQueueListeners,
-		 * otherwise just invoke them now.
-		 */
-		if (isGui) {
+	public int getSpillSize () {
+		return (spillSize);
+	}
 
-			Dispatcher dispatcher = new Dispatcher(workList);
-			SwingUtilities.invokeLater(dispatcher);
-	
-		} else {
 
-			fireWork(workList);
-		}
+	/**
+	 * Gets the number of work items rejected because this WorkQueue was full.
+	 *
+	 * @return the number of rejected work items
+	 */
+	public long getRejectedCount () {
+		return (rejectedCount.get());
 	}
 
 
 	/**
-	 * Gets the size of the current queue.
+	 * Gets the number of work items dropped to make room, or because they
+	 * could not be read back from the spill journal.
 	 *
-	 * @return  the size of the current queue
+	 * @return the number of dropped work items
 	 */
-	public synchronized int size () {
-		return (queue.size());
+	public long getDroppedCount () {
+		return (droppedCount.get());
 	}
 
 
 	/**
-	 * Gets the item from at the specified index.
+	 * Gets the number of work items that have been spilled to the spill
+	 * journal.
 	 *
-	 * @param  index  the index to get the item for
-	 * @return the item at the specified index
+	 * @return the number of spilled work items
 	 */
-	public synchronized Object get (int index) {
-		return (queue.get(index));
+	public long getSpilledCount () {
+		return (spilledCount.get());
 	}
 
 
 	/**
-	 * Removes an object from the queued work list.
+	 * Adds a WorkQueuePressureListener.
 	 *
-	 * @param  index the index of the object to remove
-	 * @return the removed object
+	 * @param  l  the listener to add
 	 */
-	public synchronized Object dequeue (int index) {
-		return (queue.remove(index));
+	public void addPressureListener (WorkQueuePressureListener l) {
+		pressureListeners.addIfAbsent(l);
 	}
 
 
 	/**
-	 * Removes an object from the queued work list.
+	 * Removes a WorkQueuePressureListener.
 	 *
-	 * @param  obj  the object to remove
-	 * @return true if the object was queued, otherwise returns false
+	 * @param  l  the listener to remove
 	 */
-	public synchronized boolean dequeue (Object obj) {
-		return (queue.remove(obj));
+	public void removePressureListener (WorkQueuePressureListener l) {
+		pressureListeners.remove(l);
 	}
 
 
 	/**
-	 * This is the run() method for Runnable, it waits for a configurable
-	 * number of messages to be available or a refresh interval has passed
-	 * and then processes any queued messages.
+	 * Sets up priority lanes, one for each weight, or removes them.  Lane
+	 * 0 has the lowest priority and is the lane queue(Object) uses.  Each
+	 * batch holds up to the read block count items, taken from the lanes
+	 * by the lane policy.  Work spilled with the SPILL policy goes back
+	 * into lane 0.  This should be set before work is queued.
+	 *
+	 * @param  weights  the weight of each lane for WEIGHTED_PRIORITY,
+	 * null to remove the lanes
+	 * @param  policy   STRICT_PRIORITY or WEIGHTED_PRIORITY
+	 * @throws IllegalStateException if there is work queued, or the
+	 * capacity policy is DROP_OLDEST
 	 */
-	public void run () {
-
-		while (!stopped) {
+	@SuppressWarnings("unchecked")
+	public synchronized void setPriorityLanes (int weights[], int policy) {
 
-			try {
+		if (policy != STRICT_PRIORITY && policy != WEIGHTED_PRIORITY) {
+			throw new IllegalArgumentException("Invalid lane policy: " + policy);
+		}
 
-				if (readBlockCount < 2 || refreshTime == 0) {
+		if (size() > 0) {
+			throw new IllegalStateException(
+				"The lanes cannot be changed while work is queued");
+		}
 
-					Object obj = queue.waitForObject(refreshTime);
-					processQueuedWork(obj);
+		if (weights == null) {
+			lanes = null;
+			laneWeights = null;
+			laneLatencies = null;
+			return;
+		}
 
-				} else {
+		if (capacity > 0 && capacityPolicy == DROP_OLDEST) {
+			throw new IllegalStateException(
+				"Only the work thread can take work in lane mode");
+		}
 
-					queue.waitForObjects(readBlockCount, refreshTime);
-					processQueuedWork();
-				}
+		MpscQueue<LaneEntry> newLanes[] = new MpscQueue[weights.length];
+		laneLatencies = new LatencyHistogram[weights.length];
+		for (int i = 0; i < weights.length; i++) {
 
-			} catch (InterruptedException ie) {
+			if (weights[i] < 1) {
+				throw new IllegalArgumentException("Invalid lane weight: " + weights[i]);
 			}
+
+			newLanes[i] = new MpscQueue<LaneEntry>();
+			laneLatencies[i] = new LatencyHistogram();
 		}
+
+		laneWeights = weights.clone();
+		lanePolicy = policy;
+		lanes = newLanes;
 	}
 
 
 	/**
-	 * Dispatch a single work item.
+	 * Gets the number of priority lanes.
+	 *
+	 * @return the number of lanes, 1 if there are no priority lanes
 	 */
-	private synchronized void processQueuedWork (Object obj) {
-
-		if (obj != null) {
-
-			ArrayList<Object> workList = new ArrayList<Object>(1);
-			workList.add(obj);
-			queue(workList);
-		}
+	public int getLaneCount () {
+		return (lanes != null ? lanes.length : 1);
 	}
 
 
 	/**
-	 * Dispatch all the currently queued messages.
+	 * Gets the number of items queued in a priority lane.
+	 *
+	 * @param  lane  the lane
+	 * @return the number of items queued in the lane
+	 * @throws IllegalArgumentException if lane is not a valid lane
 	 */
-	private synchronized void processQueuedWork () {
-
-		/*
-		 * Setup a list to hold all the work currently available
-		 */
-		int available = queue.size();
-		ArrayList<Object> workList = new ArrayList<Object>(available);
-
-
-		/*
-		 * Build up the list by pulling each work item off the queue
-		 */
-		for (int i = 0; i < available; i++) {
-
-			try {
+	public int getLaneSize (int lane) {
 
-				Object work = queue.get();
-				workList.add(work);
-
-			} catch (EmptyQueueException eqe) {
-			}
+		if (lane < 0 || lane >= getLaneCount()) {
+			throw new IllegalArgumentException("Invalid lane: " + lane);
 		}
 
-
-		/*
-		 * Queue this list
-		 */
-		queue(workList);
+		return (lanes != null ? lanes[lane].size() : size());
 	}
 
 
 	/**
-	 * This class provides a Runnable to be used with
-	 * SwingUtilities.invokeLater() to dispatch the 
-	 * actual work to the WorkQueueListeners.
+	 * Gets the histogram of the time items in a priority lane waited to be
+	 * taken for dispatch.
+	 *
+	 * @param  lane  the lane
+	 * @return the latency histogram for the lane, null if there are no
+	 * priority lanes
+	 * @throws IllegalArgumentException if lane is not a valid lane
 	 */
-	private class Dispatcher implements Runnable {
+	public LatencyHistogram getLaneLatency (int lane) {
 
-		private List<Object> workList;
-		
-		public Dispatcher (List<Object> workList) {
-			this.workList = workList;
+		if (lane < 0 || lane >= getLaneCount()) {
+			throw new IllegalArgumentException("Invalid lane: " + lane);
 		}
 
-		public void run () {
-			fireWork(workList);
-			workList = null;
-		}
+		return (laneLatencies != null ? laneLatencies[lane] : null);
 	}
 
 
 	/**
-	 * Fire the work list off to the listeners.
+	 * Sets the timing wheel delayed and periodic work is scheduled on.
+	 * By default the shared timing wheel is used.
 	 *
-	 * @param  workList  the list of work items for the listener to process
+	 * @param  timingWheel  the timing wheel, null for the shared wheel
 	 */
-	private void fireWork (List<Object> workList) {
+	public void setTimingWheel (HashedTimingWheel timingWheel) {
+		this.timingWheel = timingWheel;
+	}
 
-		/*
-		 * NOTE: Normally a copy of the listeners would be made so
-		 * listeners could be added and deleted at anytime, we don't
-		 * not do this for effieciencies sake and only allow listeners
-		 * to be added or removed when this WorkQueue is stopped.
-		 */
-		if (listeners == null) {
-			return;
-		}
 
-		/*
+	/**
+	 * Sets the read block count.  This is the maximum number of items that
+	 * will be pulled from the queue for processing at one time.
+	 *
+	 * @param  readBlockCount  the read block count
+	 */
+	public void setReadBlockCount (int readBlockCount) {
+		this.readBlockCount = readBlockCount;
+	}
+
+
+	/**
+	 * Set the maximum refresh time. This is the maximum time
+	 * between the dispatching of work.
+	 *
+	 * @param  refreshTime  the maximum refresh time in milliseconds
+	 */
+	public void setRefreshTime (long refreshTime) {
+		this.refreshTime = refreshTime;
+	}
+
+
+	/**
+	 * Sets whether the listeners are handed the reusable batches the work
+	 * is taken off the queue in.  By default each listener call gets a
+	 * new List it may keep and change.  With reuse on the listeners get a
+	 * read only List that is only valid during the call to doWork() and
+	 * must be copied if it is needed afterwards, which saves allocating
+	 * a List for every batch.
+	 *
+	 * @param  reuseBatches  true to dispatch the reusable batches
+	 */
+	public void setReuseBatches (boolean reuseBatches) {
+		this.reuseBatches = reuseBatches;
+	}
+
+
+	/**
+	 * Returns true if the listeners are handed the reusable batches.
+	 *
+	 * @return true if the reusable batches are dispatched
+	 */
+	public boolean isReusingBatches () {
+		return (reuseBatches);
+	}
+
+
+	/**
+	 * Adds a WorkQueueListener.
+	 *
+	 * @param  l  the listener to add
+	 */
+	public synchronized void addListener (WorkQueueListener l) {
+
+		if (listeners == null) {
+			listeners = new ArrayList<WorkQueueListener>();
+		}
+
+		if (!listeners.contains(l)) {
+			listeners.add(l);
+		}
+	}
+
+
+	/**
+	 * Removes WorkQueueListener.
+	 *
+	 * @param  l  the listener to remove
+	 */
+	public synchronized void removeListener (WorkQueueListener l) {
+
+		if (listeners == null) {
+			return;
+		}
+
+		listeners.remove(l);
+	}
+
+
+	/**
+	 * Starts this WorkQueue instance. Until started no work will be 
+	 * dispatched to the listeners.
+	 */
+	public synchronized void start () {
+
+		if (workThread != null) {
+			return;
+		}
+
+		stopped = false;
+		workThread = new Thread(this);
+		workThread.start();
+	}
+
+
+	/**
+	 * Stops this WorkQueue instance.
+	 */
+	public synchronized void stop () {
+
+		if (workThread == null) {
+			return;
+		}
+
+		stopped = true;
+		workThread.interrupt();
+		workThread = null;
+	}
+
+
+	/**
+	 * Restores the configuration of this instance.
+	 *
+	 * @param  prefs  the preferences instance to restore settings from
+	 */
+	public void restorePreferences (Preferences prefs) {
+
+		refreshTime  = prefs.get(name + ".refresh-time",  refreshTime);
+		readBlockCount = prefs.get(name + ".read-block-count", readBlockCount);
+	}
+
+
+	/**
+	 * Saves the configuration of this instance.
+	 *
+	 * @param  prefs  the preferences instance to save settings to
+	 */
+	public void savePreferences (Preferences prefs) {
+
+		prefs.put(name + ".refresh-time",  refreshTime);
+		prefs.put(name + ".read-block-count", readBlockCount);
+	}
+
+
+	/**
+	 * Queue an object for later processing.  If this WorkQueue is full
+	 * the capacity policy is applied, use offer() to find out if the
+	 * work was rejected.
+	 *
+	 * @param  work  the item to be added to the work queue
+	 */
+	public void queue (Object work) {
+		offer(work, 0);
+	}
+
+
+	/**
+	 * Queue an object for later processing in a priority lane.  If this
+	 * WorkQueue is full the capacity policy is applied, use offer() to
+	 * find out if the work was rejected.
+	 *
+	 * @param  work  the item to be added to the work queue
+	 * @param  lane  the priority lane, 0 for the lowest priority
+	 */
+	public void queue (Object work, int lane) {
+		offer(work, lane);
+	}
+
+
+	/**
+	 * Queue an object for later processing.  If this WorkQueue is full
+	 * the capacity policy is applied.
+	 *
+	 * @param  work  the item to be added to the work queue
+	 * @return true if the work was queued or spilled, false if it was
+	 * rejected
+	 */
+	public boolean offer (Object work) {
+		return (offer(work, 0));
+	}
+
+
+	/**
+	 * Queue an object for later processing in a priority lane.  If this
+	 * WorkQueue is full the capacity policy is applied.
+	 *
+	 * @param  work  the item to be added to the work queue
+	 * @param  lane  the priority lane, 0 for the lowest priority
+	 * @return true if the work was queued or spilled, false if it was
+	 * rejected
+	 */
+	public boolean offer (Object work, int lane) {
+
+		if (lane < 0 || lane >= getLaneCount()) {
+			throw new IllegalArgumentException("Invalid lane: " + lane);
+		}
+
+		WorkKeyExtractor keyExtractor = coalescingKeyExtractor;
+		if (keyExtractor != null) {
+
+			Object key = keyExtractor.getKey(work);
+			if (key != null) {
+
+				Holder holder = coalesce(key, work);
+				if (holder == null) {
+					return (true);
+				}
+
+				work = holder;
+			}
+		}
+
+		if (capacity <= 0) {
+			put(work, lane);
+			return (true);
+		}
+
+		if (!spilling && reserve()) {
+			put(work, lane);
+			return (true);
+		}
+
+		switch (capacityPolicy) {
+
+		case DROP_OLDEST:
+
+			if (dropOldest() || awaitDrop()) {
+				put(work, lane);
+				return (true);
+			}
+
+			break;
+
+		case SPILL:
+			return (spill(work, lane));
+
+		case BLOCK:
+
+			if (awaitRoom()) {
+				put(work, lane);
+				return (true);
+			}
+
+			break;
+		}
+
+		unwrap(work);
+		rejectedCount.incrementAndGet();
+		return (false);
+	}
+
+
+	/**
+	 * Queue an object for later processing after a delay.  The work is
+	 * queued by the timing wheel thread when the delay expires, so with
+	 * the BLOCK capacity policy a full queue holds up the wheel.
+	 *
+	 * @param  work   the item to be added to the work queue
+	 * @param  delay  the delay before the work is queued
+	 * @param  unit   the unit of the delay
+	 * @return the Timeout that can be used to cancel the work before it
+	 * is queued
+	 */
+	public HashedTimingWheel.Timeout queueLater (Object work, long delay,
+			TimeUnit unit) {
+		return (queueLater(work, 0, delay, unit));
+	}
+
+
+	/**
+	 * Queue an object for later processing in a priority lane after
+	 * a delay.
+	 *
+	 * @param  work   the item to be added to the work queue
+	 * @param  lane   the priority lane, 0 for the lowest priority
+	 * @param  delay  the delay before the work is queued
+	 * @param  unit   the unit of the delay
+	 * @return the Timeout that can be used to cancel the work before it
+	 * is queued
+	 */
+	public HashedTimingWheel.Timeout queueLater (Object work, int lane,
+			long delay, TimeUnit unit) {
+
+		if (lane < 0 || lane >= getLaneCount()) {
+			throw new IllegalArgumentException("Invalid lane: " + lane);
+		}
+
+		return (getTimingWheel().newTimeout(new QueueTask(work, lane), delay, unit));
+	}
+
+
+	/**
+	 * Queue an object for processing after an initial delay and then
+	 * every period until the returned Timeout is cancelled.
+	 *
+	 * @param  work          the item to be added to the work queue
+	 * @param  initialDelay  the delay before the work is first queued
+	 * @param  period        the period between queueing the work
+	 * @param  unit          the unit of the delay and period
+	 * @return the Timeout that is used to cancel the periodic work
+	 */
+	public HashedTimingWheel.Timeout queuePeriodically (Object work,
+			long initialDelay, long period, TimeUnit unit) {
+		return (getTimingWheel().newPeriodicTimeout(
+			new QueueTask(work, 0), initialDelay, period, unit));
+	}
+
+
+	/**
+	 * Gets the timing wheel delayed and periodic work is scheduled on.
+	 */
+	private HashedTimingWheel getTimingWheel () {
+
+		HashedTimingWheel wheel = timingWheel;
+		return (wheel != null ? wheel : HashedTimingWheel.getDefault());
+	}
+
+
+	/**
+	 * Puts admitted work on the queue.
+	 */
+	private void put (Object work, int lane) {
+
+		if (lanes != null) {
+
+			/*
+			 * Count the work before it is in the lane so the work thread
+			 * never takes more than has been counted
+			 */
+			int count = laneCount.incrementAndGet();
+			lanes[lane].put(new LaneEntry(work));
+			if (count >= laneWaitCount) {
+				Thread thread = laneWaiter.get();
+				if (thread != null && laneWaiter.compareAndSet(thread, null)) {
+					LockSupport.unpark(thread);
+				}
+			}
+
+		} else if (mpscQueue != null) {
+			mpscQueue.put(work);
+		} else {
+			queue.put(work);
+		}
+	}
+
+
+	/**
+	 * Takes a place in the queue if there is room.
+	 */
+	private boolean reserve () {
+
+		int n;
+		do {
+
+			n = admitted.get();
+			if (n >= capacity) {
+				return (false);
+			}
+
+		} while (!admitted.compareAndSet(n, n + 1));
+
+		if (n + 1 >= capacity - capacity / 4 && highPressure.compareAndSet(false, true)) {
+			firePressureChanged(true);
+		}
+
+		return (true);
+	}
+
+
+	/**
+	 * Waits up to the block timeout for a place in the queue.
+	 */
+	private boolean awaitRoom () {
+
+		long stopTime = System.currentTimeMillis() + blockTimeout;
+		blockedProducers.incrementAndGet();
+		try {
+
+			synchronized (capacityLock) {
+
+				while (!reserve()) {
+
+					long waitTime = stopTime - System.currentTimeMillis();
+					if (waitTime <= 0) {
+						return (false);
+					}
+
+					capacityLock.wait(waitTime);
+				}
+			}
+
+			return (true);
+
+		} catch (InterruptedException ie) {
+
+			Thread.currentThread().interrupt();
+			return (false);
+
+		} finally {
+			blockedProducers.decrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Drops the oldest queued work, its place is taken by the new work.
+	 *
+	 * @return true if work was dropped, false if the queue was empty
+	 */
+	private boolean dropOldest () {
+
+		try {
+
+			unwrap(queue.get());
+			droppedCount.incrementAndGet();
+			return (true);
+
+		} catch (EmptyQueueException eqe) {
+			return (false);
+		}
+	}
+
+
+	/**
+	 * Waits for a place in the queue when it is full but there is no
+	 * queued work to drop, which happens when the work thread has taken
+	 * all the queued work and not yet given up its places.  A producer
+	 * that has a place but has not yet queued its work does not notify,
+	 * so the queue is checked again every millisecond.
+	 *
+	 * @return true if there is a place for the new work, false if the
+	 * wait was interrupted
+	 */
+	private boolean awaitDrop () {
+
+		blockedProducers.incrementAndGet();
+		try {
+
+			synchronized (capacityLock) {
+
+				while (!reserve() && !dropOldest()) {
+					capacityLock.wait(1L);
+				}
+			}
+
+			return (true);
+
+		} catch (InterruptedException ie) {
+
+			Thread.currentThread().interrupt();
+			return (false);
+
+		} finally {
+			blockedProducers.decrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Appends the work to the spill journal, or queues it if the journal
+	 * is empty and there is now room.
+	 */
+	private boolean spill (Object work, int lane) {
+
+		synchronized (spillLock) {
+
+			if (spillSize == 0 && reserve()) {
+				put(work, lane);
+				return (true);
+			}
+
+			work = unwrap(work);
+			if (spillJournal != null) {
+
+				try {
+
+					spillJournal.append(work);
+					spillSize = spillJournal.size();
+					spilling = true;
+					spilledCount.incrementAndGet();
+					return (true);
+
+				} catch (IOException ioe) {
+				}
+			}
+		}
+
+		rejectedCount.incrementAndGet();
+		return (false);
+	}
+
+
+	/**
+	 * Called by the work thread after taking work off the queue to make
+	 * room for new work and move spilled work back onto the queue.
+	 */
+	private void taken (int count) {
+
+		if (capacity <= 0 || count == 0) {
+			return;
+		}
+
+		admitted.addAndGet(-count);
+		if (blockedProducers.get() > 0) {
+			synchronized (capacityLock) {
+				capacityLock.notifyAll();
+			}
+		}
+
+		if (spilling) {
+
+			synchronized (spillLock) {
+
+				while (spillSize > 0 && reserve()) {
+
+					try {
+						put(spillJournal.next(), 0);
+					} catch (IOException ioe) {
+						admitted.decrementAndGet();
+						droppedCount.incrementAndGet();
+					}
+
+					spillSize = spillJournal.size();
+				}
+
+				spilling = (spillSize > 0);
+			}
+		}
+
+		if (admitted.get() <= capacity / 2 && highPressure.compareAndSet(true, false)) {
+			firePressureChanged(false);
+		}
+	}
+
+
+	/**
+	 * Tells the pressure listeners the queue has come under pressure or
+	 * is back to normal.
+	 */
+	private void firePressureChanged (boolean high) {
+
+		for (WorkQueuePressureListener l : pressureListeners) {
+			l.pressureChanged(this, high);
+		}
+	}
+
+
+	/**
+	 * Queue a List of work items for later processing.
+	 *
+	 * @param  workList  the List of work items to be added to the work queue
+	 */
+	public void queue (List<Object> workList) {
+
+		/*
+		 * If the listeners are associated with a Swing GUI use 
+		 * SwingUtilites.invokeLater() to call the WorkQueueListeners,
+		 * otherwise just invoke them now.
+		 */
+		if (isGui) {
+
+			Dispatcher dispatcher = new Dispatcher(workList);
+			SwingUtilities.invokeLater(dispatcher);
+	
+		} else {
+
+			fireWork(workList);
+		}
+	}
+
+
+	/**
+	 * Replaces the work in the queued Holder for the key.
+	 *
+	 * @return the new Holder to queue, or null if the work replaced the
+	 * work in a queued Holder
+	 */
+	private Holder coalesce (Object key, Object work) {
+
+		ConcurrentHashMap<Object, Holder> map = coalescing;
+		while (true) {
+
+			Holder holder = map.get(key);
+			if (holder != null) {
+
+				Object queued = holder.work.get();
+				if (queued != Holder.TAKEN && holder.work.compareAndSet(queued, work)) {
+					coalescedCount.incrementAndGet();
+					return (null);
+				}
+
+
+				/*
+				 * The Holder was just taken for dispatch, it will be out of
+				 * the map at once if it is not already.
+				 */
+				map.remove(key, holder);
+				continue;
+			}
+
+			holder = new Holder(key, work);
+			if (map.putIfAbsent(key, holder) == null) {
+				return (holder);
+			}
+		}
+	}
+
+
+	/**
+	 * Takes the work out of a queued item.
+	 */
+	private Object unwrap (Object obj) {
+
+		if (!(obj instanceof Holder)) {
+			return (obj);
+		}
+
+		Holder holder = (Holder)obj;
+		coalescing.remove(holder.key, holder);
+		return (holder.work.getAndSet(Holder.TAKEN));
+	}
+
+
+	/**
+	 * Gets the size of the current queue.
+	 *
+	 * @return  the size of the current queue
+	 */
+	public int size () {
+
+		if (lanes != null) {
+			return (laneCount.get());
+		}
+
+		return (mpscQueue != null ? mpscQueue.size() : queue.size());
+	}
+
+
+	/**
+	 * Gets the item from at the specified index.
+	 *
+	 * @param  index  the index to get the item for
+	 * @return the item at the specified index
+	 * @throws UnsupportedOperationException in lock-free, coalescing or lane mode
+	 */
+	public synchronized Object get (int index) {
+		checkQueueAccessible();
+		return (queue.get(index));
+	}
+
+
+	/**
+	 * Removes an object from the queued work list.
+	 *
+	 * @param  index the index of the object to remove
+	 * @return the removed object
+	 * @throws UnsupportedOperationException in lock-free, coalescing or lane mode
+	 */
+	public synchronized Object dequeue (int index) {
+		checkQueueAccessible();
+		Object obj = queue.remove(index);
+		taken(1);
+		return (obj);
+	}
+
+
+	/**
+	 * Removes an object from the queued work list.
+	 *
+	 * @param  obj  the object to remove
+	 * @return true if the object was queued, otherwise returns false
+	 * @throws UnsupportedOperationException in lock-free, coalescing or lane mode
+	 */
+	public synchronized boolean dequeue (Object obj) {
+		checkQueueAccessible();
+		if (!queue.remove(obj)) {
+			return (false);
+		}
+
+		taken(1);
+		return (true);
+	}
+
+
+	/**
+	 * The queued work is only seen by the work thread in lock-free,
+	 * coalescing and lane mode.
+	 */
+	private void checkQueueAccessible () {
+
+		if (mpscQueue != null || coalescingKeyExtractor != null || lanes != null) {
+			throw new UnsupportedOperationException(
+				"Queued work cannot be accessed in lock-free, coalescing or lane mode");
+		}
+	}
+
+
+	/**
+	 * This is the run() method for Runnable, it waits for a configurable
+	 * number of messages to be available or a refresh interval has passed
+	 * and then processes any queued messages.
+	 */
+	public void run () {
+
+		while (!stopped) {
+
+			Batch batch = null;
+			try {
+
+				batch = nextBatch();
+				if (lanes != null) {
+
+					awaitLanes(readBlockCount < 2 || refreshTime == 0 ?
+						1 : readBlockCount, refreshTime);
+					processLanes(batch);
+
+				} else if (readBlockCount < 2 || refreshTime == 0) {
+
+					Object obj = (mpscQueue != null ?
+						mpscQueue.waitForObject(refreshTime) :
+						queue.waitForObject(refreshTime));
+					processQueuedWork(batch, obj);
+
+				} else {
+
+					if (mpscQueue != null) {
+						mpscQueue.waitForObjects(readBlockCount, refreshTime);
+					} else {
+						queue.waitForObjects(readBlockCount, refreshTime);
+					}
+
+					processQueuedWork(batch);
+				}
+
+			} catch (InterruptedException ie) {
+
+				if (batch != null && !batch.sealed) {
+					batch.release();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Waits until the next batch is no longer being dispatched, this is
+	 * done outside the lock on this WorkQueue as the Swing event thread
+	 * may need it while dispatching.
+	 */
+	private Batch nextBatch () throws InterruptedException {
+
+		Batch batch = batches[nextBatch];
+		nextBatch = (nextBatch + 1) % batches.length;
+		batch.acquire();
+		return (batch);
+	}
+
+
+	/**
+	 * Dispatch a single work item.
+	 */
+	private synchronized void processQueuedWork (Batch batch, Object obj) {
+
+		if (obj == null) {
+			batch.release();
+			return;
+		}
+
+		taken(1);
+		batch.add(unwrap(obj));
+		dispatch(batch);
+	}
+
+
+	/**
+	 * Dispatch all the currently queued messages.
+	 */
+	private synchronized void processQueuedWork (Batch batch) {
+
+		/*
+		 * Build up the batch by pulling all the work currently available
+		 * off the queue in one go
+		 */
+		int available = size();
+		try {
+
+			if (mpscQueue != null) {
+				mpscQueue.drainTo(batch, available, 0);
+			} else {
+				queue.drainTo(batch, available, 0);
+			}
+
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+
+		dispatchQueuedWork(batch);
+	}
+
+
+	/**
+	 * Waits until count items are in the lanes or waitTime has elapsed,
+	 * with the lanes empty there is no timeout.  The wait count and the
+	 * waiter are published before the count is checked again so a
+	 * producer either sees the waiter or the work thread sees the work.
+	 */
+	private void awaitLanes (int count, long waitTime)
+			throws InterruptedException {
+
+		long stopTime = System.nanoTime() + waitTime * 1000000L;
+		Thread thread = Thread.currentThread();
+		int size;
+		while ((size = laneCount.get()) < count) {
+
+			long nanos = 0;
+			int target = 1;
+			if (size > 0) {
+
+				nanos = stopTime - System.nanoTime();
+				if (nanos <= 0) {
+					return;
+				}
+
+				target = count;
+			}
+
+			laneWaitCount = target;
+			laneWaiter.set(thread);
+			try {
+
+				if (laneCount.get() < target) {
+					if (nanos > 0) {
+						LockSupport.parkNanos(this, nanos);
+					} else {
+						LockSupport.park(this);
+					}
+				}
+
+			} finally {
+				laneWaiter.compareAndSet(thread, null);
+				laneWaitCount = Integer.MAX_VALUE;
+			}
+
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+
+	/**
+	 * Dispatch up to the read block count items from the lanes, taken
+	 * by the lane policy.
+	 */
+	private synchronized void processLanes (Batch batch) {
+
+		int room = Math.max(1, readBlockCount);
+		if (lanePolicy == WEIGHTED_PRIORITY) {
+
+			int totalWeight = 0;
+			for (int lane = 0; lane < lanes.length; lane++) {
+				if (!lanes[lane].empty()) {
+					totalWeight += laneWeights[lane];
+				}
+			}
+
+			int batchSize = room;
+			for (int lane = lanes.length - 1; lane >= 0 && room > 0 && totalWeight > 0; lane--) {
+				if (!lanes[lane].empty()) {
+					int share = (batchSize * laneWeights[lane] + totalWeight - 1) / totalWeight;
+					room -= takeFromLane(batch, lane, Math.min(share, room));
+				}
+			}
+		}
+
+		for (int lane = lanes.length - 1; lane >= 0 && room > 0; lane--) {
+			room -= takeFromLane(batch, lane, room);
+		}
+
+
+		/*
+		 * Work is counted before it is in its lane, if none of the
+		 * counted work is in the lanes yet go back to waiting
+		 */
+		if (batch.size == 0) {
+			batch.release();
+			return;
+		}
+
+		laneCount.addAndGet(-batch.size);
+		dispatchQueuedWork(batch);
+	}
+
+
+	/**
+	 * Moves up to max items from a lane into the batch.
+	 */
+	private int takeFromLane (Batch batch, int lane, int max) {
+
+		MpscQueue<LaneEntry> queue = lanes[lane];
+		LatencyHistogram latency = laneLatencies[lane];
+		long now = System.nanoTime();
+		int n = 0;
+		LaneEntry entry;
+		while (n < max && (entry = queue.poll()) != null) {
+			latency.record(now - entry.queuedAt);
+			batch.add(entry.work);
+			n++;
+		}
+
+		return (n);
+	}
+
+
+	/**
+	 * Dispatches the work taken off the queue into the batch.
+	 */
+	private void dispatchQueuedWork (Batch batch) {
+
+		taken(batch.size);
+		if (coalescing != null) {
+			for (int i = 0; i < batch.size; i++) {
+				batch.items[i] = unwrap(batch.items[i]);
+			}
+		}
+
+
+		/*
+		 * Dispatch the batch
+		 */
+		dispatch(batch);
+	}
+
+
+	/**
+	 * Dispatches a filled batch, the batch is read only until the
+	 * listeners are done with it.  Unless the batches are reused the
+	 * work is copied into a new List and the batch is released at once.
+	 */
+	private void dispatch (Batch batch) {
+
+		if (!reuseBatches) {
+
+			ArrayList<Object> workList = new ArrayList<Object>(batch);
+			batch.release();
+			queue(workList);
+			return;
+		}
+
+		batch.sealed = true;
+		if (isGui) {
+			SwingUtilities.invokeLater(batch);
+		} else {
+			batch.run();
+		}
+	}
+
+
+	/**
+	 * This class provides the reusable batches the queued work is
+	 * taken off the queue in.  When the batches are reused listeners get
+	 * the batch as a read only List that is only valid during the call to
+	 * doWork(), it is cleared and refilled afterwards.  The batch is also the Runnable used with
+	 * SwingUtilities.invokeLater() to dispatch the work.
+	 */
+	private class Batch extends AbstractList<Object>
+			implements RandomAccess, Runnable {
+
+		private Object items[] = new Object[DEFAULT_MAX_READ_BLOCK_COUNT];
+		private int size;
+		private boolean sealed;
+		private boolean busy;
+
+		public Object get (int index) {
+
+			if (index >= size) {
+				throw new IndexOutOfBoundsException(
+					"Index: " + index + ", Size: " + size);
+			}
+
+			return (items[index]);
+		}
+
+		public int size () {
+			return (size);
+		}
+
+
+		/**
+		 * Only used by the work thread while filling the batch.
+		 */
+		public boolean add (Object obj) {
+
+			if (sealed) {
+				throw new UnsupportedOperationException();
+			}
+
+			if (size == items.length) {
+				Object grown[] = new Object[size * 2];
+				System.arraycopy(items, 0, grown, 0, size);
+				items = grown;
+			}
+
+			items[size++] = obj;
+			return (true);
+		}
+
+		public void run () {
+
+			try {
+				fireWork(this);
+			} finally {
+				release();
+			}
+		}
+
+		private synchronized void acquire () throws InterruptedException {
+
+			while (busy) {
+				wait();
+			}
+
+			busy = true;
+			sealed = false;
+		}
+
+		private synchronized void release () {
+
+			for (int i = 0; i < size; i++) {
+				items[i] = null;
+			}
+
+			size = 0;
+			busy = false;
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 * This class provides a Runnable to be used with
+	 * SwingUtilities.invokeLater() to dispatch the 
+	 * actual work to the WorkQueueListeners.
+	 */
+	private class Dispatcher implements Runnable {
+
+		private List<Object> workList;
+		
+		public Dispatcher (List<Object> workList) {
+			this.workList = workList;
+		}
+
+		public void run () {
+			fireWork(workList);
+			workList = null;
+		}
+	}
+
+
+	/**
+	 * Fire the work list off to the listeners.
+	 *
+	 * @param  workList  the list of work items for the listener to process
+	 */
+	private void fireWork (List<Object> workList) {
+
+		/*
+		 * NOTE: Normally a copy of the listeners would be made so
+		 * listeners could be added and deleted at anytime, we don't
+		 * not do this for effieciencies sake and only allow listeners
+		 * to be added or removed when this WorkQueue is stopped.
+		 */
+		if (listeners == null) {
+			return;
+		}
+
+		/*
 		 * Fire the event to all listeners
 		 */
 		int count = listeners.size();
@@ -442,4 +1735,56 @@ public class WorkQueue implements Runnable {
 			l.doWork(workList);
 		}
 	}
+
+
+	/**
+	 * This class queues work when it is run by the timing wheel.
+	 */
+	private class QueueTask implements Runnable {
+
+		private Object work;
+		private int lane;
+
+		private QueueTask (Object work, int lane) {
+			this.work = work;
+			this.lane = lane;
+		}
+
+		public void run () {
+			queue(work, lane);
+		}
+	}
+
+
+	/**
+	 * This class holds work queued in a priority lane and when it was
+	 * queued.
+	 */
+	private static class LaneEntry {
+
+		private Object work;
+		private long queuedAt;
+
+		private LaneEntry (Object work) {
+			this.work = work;
+			queuedAt = System.nanoTime();
+		}
+	}
+
+
+	/**
+	 * This class holds the newest work for a key in coalescing mode.
+	 */
+	private static class Holder {
+
+		private static final Object TAKEN = new Object();
+
+		private Object key;
+		private AtomicReference<Object> work;
+
+		private Holder (Object key, Object work) {
+			this.key = key;
+			this.work = new AtomicReference<Object>(work);
+		}
+	}
 }
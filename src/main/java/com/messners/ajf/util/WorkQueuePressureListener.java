@@ -0,0 +1,22 @@
+package com.messners.ajf.util;
+
+
+/**
+ * This interface defines a listener that is told when a WorkQueue with a
+ * capacity comes under pressure, so producers can slow down before work
+ * is blocked, rejected, dropped or spilled.
+ *
+ * @author  Greg Messner <greg@messners.com>
+ */
+public interface WorkQueuePressureListener {
+
+	/**
+	 * Called when the queued work rises to the high water mark or falls
+	 * back to the low water mark.  This is called on the thread that
+	 * queued or took the work and must not block.
+	 *
+	 * @param  workQueue  the WorkQueue
+	 * @param  high       true if the queue is now under pressure
+	 */
+	public void pressureChanged (WorkQueue workQueue, boolean high);
+}
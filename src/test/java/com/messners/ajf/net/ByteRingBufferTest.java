@@ -0,0 +1,153 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ByteRingBufferTest {
+
+	private static byte patternByte(long position) {
+		return ((byte)(position * 31 + (position >>> 8)));
+	}
+
+	/**
+	 * Verifies that every byte written is the pattern byte for its position.
+	 */
+	private static class VerifyingStream extends OutputStream implements GatheringByteChannel {
+
+		long position;
+
+		VerifyingStream(long position) {
+			this.position = position;
+		}
+
+		public void write(int b) throws IOException {
+			assertEquals("bad data at " + position, patternByte(position), (byte)b);
+			position++;
+		}
+
+		public void write(byte b[], int off, int len) throws IOException {
+			for (int i = 0; i < len; i++) {
+				write(b[off + i]);
+			}
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long count = 0;
+			for (int i = offset; i < offset + length; i++) {
+				count += write(srcs[i]);
+			}
+			return (count);
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return (write(srcs, 0, srcs.length));
+		}
+
+		public int write(ByteBuffer src) {
+			int count = src.remaining();
+			while (src.hasRemaining()) {
+				assertEquals("bad data at " + position, patternByte(position), src.get());
+				position++;
+			}
+			return (count);
+		}
+
+		public boolean isOpen() {
+			return (true);
+		}
+	}
+
+	private void runFanOut(final boolean direct, final boolean useChannel) throws Exception {
+
+		final ByteRingBuffer ring = new ByteRingBuffer(4096, direct);
+		final long total = 4096 * 200;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread readers[] = new Thread[4];
+		final ByteRingBuffer.Reader ringReaders[] = new ByteRingBuffer.Reader[readers.length];
+		for (int i = 0; i < readers.length; i++) {
+
+			final ByteRingBuffer.Reader reader = ring.newReader();
+			ringReaders[i] = reader;
+			final boolean slow = (i == 0);
+			readers[i] = new Thread() {
+
+				public void run() {
+
+					try {
+
+						VerifyingStream out = new VerifyingStream(reader.getPosition());
+						while (reader.getPosition() < total && reader.awaitData(0)) {
+
+							long n = (useChannel ? reader.writeTo((GatheringByteChannel)out) : reader.writeTo((OutputStream)out));
+							if (n < 0) {
+								reader.skipTo(ring.getWritePosition());
+								out.position = reader.getPosition();
+							}
+
+							if (slow) {
+								Thread.sleep(1);
+							}
+						}
+
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+
+			readers[i].start();
+		}
+
+		byte chunk[] = new byte[700];
+		long position = 0;
+		while (position < total) {
+
+			int count = (int)Math.min(chunk.length, total - position);
+			for (int i = 0; i < count; i++) {
+				chunk[i] = patternByte(position + i);
+			}
+
+			ring.write(chunk, 0, count);
+			position += count;
+		}
+
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].join(30000);
+		}
+
+		ring.close();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		for (int i = 0; i < readers.length; i++) {
+			assertEquals(total, ringReaders[i].getPosition());
+		}
+
+		assertTrue(ring.getWritePosition() == total);
+	}
+
+	@Test(timeout = 60000)
+	public void testHeapFanOut() throws Exception {
+		runFanOut(false, false);
+	}
+
+	@Test(timeout = 60000)
+	public void testDirectFanOut() throws Exception {
+		runFanOut(true, false);
+	}
+
+	@Test(timeout = 60000)
+	public void testGatheringFanOut() throws Exception {
+		runFanOut(false, true);
+	}
+}
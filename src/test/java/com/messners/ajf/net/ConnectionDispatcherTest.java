@@ -0,0 +1,189 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConnectionDispatcherTest {
+
+	private static Runnable blockingTask (final CountDownLatch started,
+			final CountDownLatch gate) {
+
+		return (new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException ignore) {
+				}
+			}
+		});
+	}
+
+	private static void saturate (ConnectionDispatcher dispatcher, int count,
+			int running, CountDownLatch gate) throws InterruptedException {
+
+		CountDownLatch started = new CountDownLatch(running);
+		for (int i = 0; i < count; i++) {
+			assertTrue(dispatcher.dispatch(blockingTask(started, gate)));
+		}
+
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+	}
+
+	private void refuseAtSaturation (AbstractConnectionDispatcher dispatcher,
+			int count, int running) throws Exception {
+
+		CountDownLatch gate = new CountDownLatch(1);
+		saturate(dispatcher, count, running, gate);
+
+		assertEquals(0, dispatcher.getAvailableCapacity());
+		assertFalse(dispatcher.dispatch(blockingTask(new CountDownLatch(1), gate)));
+
+		gate.countDown();
+		for (int i = 0; i < 500 && dispatcher.getAvailableCapacity() < count; i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(count, dispatcher.getAvailableCapacity());
+		dispatcher.shutdown();
+	}
+
+	private void parkAtSaturation (final AbstractConnectionDispatcher dispatcher,
+			int count, int running) throws Exception {
+
+		CountDownLatch gate = new CountDownLatch(1);
+		saturate(dispatcher, count, running, gate);
+
+		final CountDownLatch ran = new CountDownLatch(1);
+		final AtomicBoolean dispatched = new AtomicBoolean();
+		Thread acceptor = new Thread() {
+			public void run() {
+				dispatched.set(dispatcher.dispatch(new Runnable() {
+					public void run() {
+						ran.countDown();
+					}
+				}));
+			}
+		};
+
+		acceptor.start();
+		acceptor.join(200);
+		assertTrue("accept thread was not parked", acceptor.isAlive());
+
+		gate.countDown();
+		acceptor.join(10000);
+		assertFalse(acceptor.isAlive());
+		assertTrue(dispatched.get());
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	private void parkTimeout (AbstractConnectionDispatcher dispatcher, int count,
+			int running) throws Exception {
+
+		CountDownLatch gate = new CountDownLatch(1);
+		saturate(dispatcher, count, running, gate);
+
+		long start = System.nanoTime();
+		assertFalse(dispatcher.dispatch(blockingTask(new CountDownLatch(1), gate)));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("refused after " + elapsed + " ms", elapsed >= 150);
+
+		gate.countDown();
+		dispatcher.shutdown();
+	}
+
+	/*
+	 * Each connection is dispatched as soon as the last one has released
+	 * its permit, which is when the pool is the most likely to still have
+	 * every thread busy.
+	 */
+	private void noSpuriousRefusals (AbstractConnectionDispatcher dispatcher,
+			int count) throws Exception {
+
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+
+		for (int i = 0; i < count; i++) {
+
+			while (dispatcher.getAvailableCapacity() == 0) {
+				Thread.yield();
+			}
+
+			assertTrue("refused connection " + i, dispatcher.dispatch(task));
+		}
+
+		for (int i = 0; i < 1000 && runs.get() < count; i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(count, runs.get());
+		dispatcher.shutdown();
+	}
+
+	@Test(timeout = 30000)
+	public void testPooledRefuse() throws Exception {
+		refuseAtSaturation(new PooledConnectionDispatcher(
+			1, 2, 2, ConnectionDispatcher.REFUSE, 0), 4, 2);
+	}
+
+	@Test(timeout = 30000)
+	public void testThreadRefuse() throws Exception {
+		refuseAtSaturation(new ThreadConnectionDispatcher(
+			3, ConnectionDispatcher.REFUSE, 0, false), 3, 3);
+	}
+
+	@Test(timeout = 30000)
+	public void testPooledPark() throws Exception {
+		parkAtSaturation(new PooledConnectionDispatcher(
+			1, 2, 1, ConnectionDispatcher.PARK, 0), 3, 2);
+	}
+
+	@Test(timeout = 30000)
+	public void testThreadPark() throws Exception {
+		parkAtSaturation(new ThreadConnectionDispatcher(
+			2, ConnectionDispatcher.PARK, 0, false), 2, 2);
+	}
+
+	@Test(timeout = 30000)
+	public void testPooledParkTimeout() throws Exception {
+		parkTimeout(new PooledConnectionDispatcher(
+			1, 1, 1, ConnectionDispatcher.PARK, 200), 2, 1);
+	}
+
+	@Test(timeout = 30000)
+	public void testThreadParkTimeout() throws Exception {
+		parkTimeout(new ThreadConnectionDispatcher(
+			1, ConnectionDispatcher.PARK, 200, false), 1, 1);
+	}
+
+	@Test(timeout = 60000)
+	public void testPooledNoSpuriousRefusals() throws Exception {
+		noSpuriousRefusals(new PooledConnectionDispatcher(
+			1, 1, 0, ConnectionDispatcher.REFUSE, 0), 2000);
+		noSpuriousRefusals(new PooledConnectionDispatcher(
+			0, 2, 0, ConnectionDispatcher.PARK, 0), 2000);
+		noSpuriousRefusals(new PooledConnectionDispatcher(
+			1, 1, 1, ConnectionDispatcher.REFUSE, 0), 2000);
+	}
+
+	@Test(timeout = 60000)
+	public void testThreadNoSpuriousRefusals() throws Exception {
+		noSpuriousRefusals(new ThreadConnectionDispatcher(
+			1, ConnectionDispatcher.REFUSE, 0, false), 500);
+		noSpuriousRefusals(new ThreadConnectionDispatcher(
+			2, ConnectionDispatcher.PARK, 0, false), 500);
+	}
+}
@@ -0,0 +1,155 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class ConnectionHandlerFactoryTest {
+
+	public static class CountingHandler implements ResettableConnectionHandler {
+
+		int resets;
+		boolean failReset;
+
+		public void process(Server server, Socket connection) {
+		}
+
+		public void reset() {
+			resets++;
+			if (failReset) {
+				throw new IllegalStateException("reset failed");
+			}
+		}
+	}
+
+	public static class PlainHandler implements ConnectionHandler {
+
+		public void process(Server server, Socket connection) {
+		}
+	}
+
+	public static class PrivateHandler implements ConnectionHandler {
+
+		private PrivateHandler() {
+		}
+
+		public void process(Server server, Socket connection) {
+		}
+	}
+
+	public static class ArgsHandler implements ConnectionHandler {
+
+		public ArgsHandler(String name) {
+		}
+
+		public void process(Server server, Socket connection) {
+		}
+	}
+
+	/**
+	 * Creates CountingHandlers and counts the handlers handed back to it.
+	 */
+	private static class CountingFactory implements ConnectionHandlerFactory {
+
+		int created;
+		int released;
+
+		public ConnectionHandler newConnectionHandler() {
+			created++;
+			return (new CountingHandler());
+		}
+
+		public void releaseConnectionHandler(ConnectionHandler handler) {
+			released++;
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoArgsConstructorRequired() {
+		new ClassConnectionHandlerFactory(ArgsHandler.class);
+	}
+
+	@Test
+	public void testClassFactory() throws Exception {
+
+		ClassConnectionHandlerFactory factory =
+			new ClassConnectionHandlerFactory(PrivateHandler.class);
+		assertSame(PrivateHandler.class, factory.getHandlerClass());
+
+		ConnectionHandler first = factory.newConnectionHandler();
+		ConnectionHandler second = factory.newConnectionHandler();
+		assertTrue(first instanceof PrivateHandler);
+		assertNotSame(first, second);
+	}
+
+	@Test
+	public void testPooledReuse() throws Exception {
+
+		CountingFactory counting = new CountingFactory();
+		PooledConnectionHandlerFactory factory =
+			new PooledConnectionHandlerFactory(counting, 2);
+
+		CountingHandler first = (CountingHandler)factory.newConnectionHandler();
+		assertEquals(0, factory.getIdleCount());
+		factory.releaseConnectionHandler(first);
+		assertEquals(1, first.resets);
+		assertEquals(1, factory.getIdleCount());
+
+		assertSame(first, factory.newConnectionHandler());
+		assertEquals(1, counting.created);
+		assertEquals(0, factory.getIdleCount());
+
+		/*
+		 * Only maxIdle handlers are kept, the rest go back to the factory
+		 */
+		CountingHandler second = (CountingHandler)factory.newConnectionHandler();
+		CountingHandler third = (CountingHandler)factory.newConnectionHandler();
+		assertEquals(3, counting.created);
+		factory.releaseConnectionHandler(first);
+		factory.releaseConnectionHandler(second);
+		factory.releaseConnectionHandler(third);
+		assertEquals(2, factory.getIdleCount());
+		assertEquals(1, counting.released);
+		assertEquals(1, third.resets);
+	}
+
+	@Test
+	public void testPooledResetFailure() throws Exception {
+
+		CountingFactory counting = new CountingFactory();
+		PooledConnectionHandlerFactory factory =
+			new PooledConnectionHandlerFactory(counting, 2);
+
+		CountingHandler handler = (CountingHandler)factory.newConnectionHandler();
+		handler.failReset = true;
+		factory.releaseConnectionHandler(handler);
+		assertEquals(1, handler.resets);
+		assertEquals(0, factory.getIdleCount());
+		assertEquals(1, counting.released);
+
+		assertNotSame(handler, factory.newConnectionHandler());
+		assertEquals(2, counting.created);
+	}
+
+	@Test
+	public void testPooledSkipsPlainHandlers() throws Exception {
+
+		PooledConnectionHandlerFactory factory = new PooledConnectionHandlerFactory(
+			new ClassConnectionHandlerFactory(PlainHandler.class), 2);
+
+		ConnectionHandler handler = factory.newConnectionHandler();
+		factory.releaseConnectionHandler(handler);
+		assertEquals(0, factory.getIdleCount());
+		assertNotSame(handler, factory.newConnectionHandler());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPooledMaxIdle() {
+		new PooledConnectionHandlerFactory(new CountingFactory(), 0);
+	}
+}
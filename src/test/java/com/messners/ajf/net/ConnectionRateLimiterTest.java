@@ -0,0 +1,90 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class ConnectionRateLimiterTest {
+
+	private static InetAddress addr(String ip) throws Exception {
+		return (InetAddress.getByName(ip));
+	}
+
+	@Test
+	public void testDefaultLimit() throws Exception {
+
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter();
+		assertTrue(limiter.tryAcquire(addr("10.0.0.1")));
+
+		limiter.setDefaultLimit(0.001, 5);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire(addr("10.0.0.1")));
+		}
+
+		assertFalse(limiter.tryAcquire(addr("10.0.0.1")));
+		assertTrue(limiter.tryAcquire(addr("10.0.0.2")));
+		assertEquals(1, limiter.getRejectCount());
+	}
+
+	@Test
+	public void testSubnetRules() throws Exception {
+
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter();
+		limiter.addRule(addr("192.168.1.0"), addr("192.168.1.255"), 0, 0, false);
+		limiter.addRule(addr("10.1.0.0"), addr("10.1.255.255"), 0.001, 2, false);
+		limiter.addRule(addr("10.0.0.0"), addr("10.255.255.255"), 0.001, 1, true);
+
+		assertFalse(limiter.tryAcquire(addr("192.168.1.7")));
+		assertTrue(limiter.tryAcquire(addr("192.168.2.7")));
+
+		/*
+		 * The 10.1 subnet shares one bucket of 2.
+		 */
+		assertTrue(limiter.tryAcquire(addr("10.1.0.1")));
+		assertTrue(limiter.tryAcquire(addr("10.1.9.9")));
+		assertFalse(limiter.tryAcquire(addr("10.1.0.2")));
+
+		/*
+		 * The rest of 10 gives each address a bucket of 1.
+		 */
+		assertTrue(limiter.tryAcquire(addr("10.2.0.1")));
+		assertTrue(limiter.tryAcquire(addr("10.2.0.2")));
+		assertFalse(limiter.tryAcquire(addr("10.2.0.1")));
+		assertEquals(3, limiter.getRejectCount());
+	}
+
+	@Test
+	public void testMaxBuckets() throws Exception {
+
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter(2);
+		limiter.setDefaultLimit(0.001, 1);
+		assertTrue(limiter.tryAcquire(addr("10.0.0.1")));
+		assertTrue(limiter.tryAcquire(addr("10.0.0.2")));
+
+		/*
+		 * With no room and no full buckets to drop the new sources
+		 * share the overflow bucket
+		 */
+		assertTrue(limiter.tryAcquire(addr("10.0.0.3")));
+		assertFalse(limiter.tryAcquire(addr("10.0.0.4")));
+		assertFalse(limiter.tryAcquire(addr("10.0.0.5")));
+		assertEquals(2, limiter.getBucketCount());
+		assertFalse(limiter.tryAcquire(addr("10.0.0.1")));
+		assertEquals(3, limiter.getRejectCount());
+	}
+
+	@Test
+	public void testRefill() throws Exception {
+
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter();
+		limiter.setDefaultLimit(20, 1);
+		assertTrue(limiter.tryAcquire(addr("10.0.0.1")));
+		assertFalse(limiter.tryAcquire(addr("10.0.0.1")));
+		Thread.sleep(100);
+		assertTrue(limiter.tryAcquire(addr("10.0.0.1")));
+	}
+}
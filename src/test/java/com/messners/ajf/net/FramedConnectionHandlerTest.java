@@ -0,0 +1,202 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Sends frames over loopback to a Server using each of the FrameDecoders,
+ * verifies every frame and checks the throughput is above a floor.
+ */
+public class FramedConnectionHandlerTest {
+
+	private static final int FRAMES = 200000;
+	private static final int PAYLOAD = 100;
+
+
+	/**
+	 * The slowest frame rate accepted, far below what loopback does so
+	 * only a decoder that has lost its buffering fails it.
+	 */
+	private static final long MIN_FRAMES_PER_SECOND = 50000;
+
+	private static AtomicLong frames = new AtomicLong();
+	private static AtomicLong bytes = new AtomicLong();
+	private static volatile CountDownLatch done;
+
+	private static void count(ByteBuffer frame, int expectedLength) throws IOException {
+
+		if (frame.remaining() != expectedLength) {
+			throw new IOException("bad frame length: " + frame.remaining());
+		}
+
+		bytes.addAndGet(frame.remaining());
+		frames.incrementAndGet();
+	}
+
+	public static class LineHandler extends FramedConnectionHandler {
+
+		public LineHandler() {
+			super(new LineFrameDecoder());
+		}
+
+		protected void frameReceived(Server server, Socket connection, ByteBuffer frame) throws IOException {
+			if (frame.get(frame.limit() - 1) != '\n') {
+				throw new IOException("frame does not end with a newline");
+			}
+			count(frame, PAYLOAD + 1);
+		}
+
+		protected void connectionClosed(Server server, Socket connection) {
+			done.countDown();
+		}
+	}
+
+	public static class LengthHandler extends FramedConnectionHandler {
+
+		public LengthHandler() {
+			super(new LengthFieldFrameDecoder());
+		}
+
+		protected void frameReceived(Server server, Socket connection, ByteBuffer frame) throws IOException {
+			if (frame.getInt(frame.position()) != PAYLOAD) {
+				throw new IOException("bad length field");
+			}
+			count(frame, PAYLOAD + 4);
+		}
+
+		protected void connectionClosed(Server server, Socket connection) {
+			done.countDown();
+		}
+	}
+
+	public static class FixedHandler extends FramedConnectionHandler {
+
+		public FixedHandler() {
+			super(new FixedLengthFrameDecoder(PAYLOAD));
+		}
+
+		protected void frameReceived(Server server, Socket connection, ByteBuffer frame) throws IOException {
+			count(frame, PAYLOAD);
+		}
+
+		protected void connectionClosed(Server server, Socket connection) {
+			done.countDown();
+		}
+	}
+
+	private interface FrameWriter {
+		void write(DataOutputStream out, byte payload[]) throws IOException;
+	}
+
+	private void runThroughput(String name, Class<? extends ConnectionHandler> handlerClass,
+			FrameWriter writer, int frameLength) throws Exception {
+
+		frames.set(0);
+		bytes.set(0);
+		done = new CountDownLatch(1);
+
+		Server server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setConnectionHandlerClass(handlerClass);
+		server.start();
+		try {
+
+			byte payload[] = new byte[PAYLOAD];
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] = (byte)('a' + i % 26);
+			}
+
+			long start = System.nanoTime();
+			Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			for (int i = 0; i < FRAMES; i++) {
+				writer.write(out, payload);
+			}
+
+			out.flush();
+			socket.shutdownOutput();
+			assertTrue("connection not closed", done.await(20, TimeUnit.SECONDS));
+			long elapsed = System.nanoTime() - start;
+			socket.close();
+
+			assertEquals(FRAMES, frames.get());
+			assertEquals((long)FRAMES * frameLength, bytes.get());
+			long rate = FRAMES * 1000000000L / elapsed;
+			assertTrue(name + " decoded only " + rate + " frames/s",
+				rate >= MIN_FRAMES_PER_SECOND);
+
+			/*
+			 * The handler has finished once connectionClosed() is called,
+			 * give the task a moment to record it.
+			 */
+			ServerStats stats = server.getStats();
+			for (int i = 0; i < 100 && stats.getHandlerCount() == 0; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(1, stats.getAcceptCount());
+			assertEquals(1, stats.getHandlerCount());
+			assertEquals(0, stats.getActiveConnections());
+
+			server.registerMBean(name);
+			try {
+				ObjectName objectName = new ObjectName(
+					"com.messners.ajf.net:type=Server,name=\"" + name + "\"");
+				assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+					objectName, "AcceptCount"));
+			} finally {
+				server.unregisterMBean();
+			}
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testLineFrames() throws Exception {
+
+		runThroughput("line", LineHandler.class, new FrameWriter() {
+			public void write(DataOutputStream out, byte payload[]) throws IOException {
+				out.write(payload);
+				out.write('\n');
+			}
+		}, PAYLOAD + 1);
+	}
+
+	@Test(timeout = 60000)
+	public void testLengthFieldFrames() throws Exception {
+
+		runThroughput("length-field", LengthHandler.class, new FrameWriter() {
+			public void write(DataOutputStream out, byte payload[]) throws IOException {
+				out.writeInt(payload.length);
+				out.write(payload);
+			}
+		}, PAYLOAD + 4);
+	}
+
+	@Test(timeout = 60000)
+	public void testFixedLengthFrames() throws Exception {
+
+		runThroughput("fixed-length", FixedHandler.class, new FrameWriter() {
+			public void write(DataOutputStream out, byte payload[]) throws IOException {
+				out.write(payload);
+			}
+		}, PAYLOAD);
+	}
+}
@@ -0,0 +1,140 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class MappedRingFileTest {
+
+	private volatile Exception writerError;
+
+	private static byte patternByte(long position) {
+		return ((byte)(position * 31 + (position >>> 8)));
+	}
+
+	private static void append(MappedRingFile ring, int count) throws Exception {
+
+		long position = ring.getEndPosition();
+		ByteBuffer data = ByteBuffer.allocate(count);
+		for (int i = 0; i < count; i++) {
+			data.put(patternByte(position + i));
+		}
+
+		data.flip();
+		ring.write(data);
+	}
+
+	@Test(timeout = 30000)
+	public void testConcurrentReader() throws Exception {
+
+		final int total = 4000000;
+		File file = File.createTempFile("ring", ".shm");
+		file.deleteOnExit();
+		final MappedRingFile ring = new MappedRingFile(file, 1 << 20);
+		MappedRingReader reader = new MappedRingReader(file);
+		assertEquals(1 << 20, reader.getCapacity());
+
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					while (ring.getEndPosition() < total) {
+						append(ring, (int)Math.min(1500, total - ring.getEndPosition()));
+						if (ring.getEndPosition() % 64 == 0) {
+							Thread.yield();
+						}
+					}
+				} catch (Exception e) {
+					writerError = e;
+				} finally {
+					ring.close();
+				}
+			}
+		};
+
+		writer.start();
+		try {
+
+			byte buf[] = new byte[8192];
+			long errors = 0;
+			while (!reader.isClosed()) {
+
+				if (!reader.awaitData(1000)) {
+					continue;
+				}
+
+				long position = reader.getPosition();
+				int n = reader.read(buf, 0, buf.length);
+				if (n < 0) {
+					assertTrue(reader.isLapped());
+					reader.skipTo(0);
+					continue;
+				}
+
+				for (int i = 0; i < n; i++) {
+					if (buf[i] != patternByte(position + i)) {
+						errors++;
+					}
+				}
+			}
+
+			if (writerError != null) {
+				throw writerError;
+			}
+
+			assertEquals(0, errors);
+			assertEquals(total, reader.getPosition());
+
+		} finally {
+			writer.join();
+			reader.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLappedAndReplaced() throws Exception {
+
+		File file = File.createTempFile("ring", ".shm");
+		file.deleteOnExit();
+		MappedRingFile ring = new MappedRingFile(file, 4096);
+		MappedRingReader reader = new MappedRingReader(file);
+
+		append(ring, 3000);
+		append(ring, 3000);
+		byte buf[] = new byte[8192];
+		assertTrue(reader.isLapped());
+		assertEquals(-1, reader.read(buf, 0, buf.length));
+		assertEquals(6000 - 4096, reader.skipTo(0));
+		assertEquals(4096, reader.read(buf, 0, buf.length));
+		for (int i = 0; i < 4096; i++) {
+			assertEquals(patternByte(6000 - 4096 + i), buf[i]);
+		}
+
+		assertEquals(0, reader.read(buf, 0, buf.length));
+		assertTrue(!reader.awaitData(50));
+
+
+		/*
+		 * A new writer on the same file closes the stream for the
+		 * readers of the old one.
+		 */
+		MappedRingFile newRing = new MappedRingFile(file, 8192);
+		assertTrue(reader.isClosed());
+		assertTrue(!reader.awaitData(0));
+
+		MappedRingReader newReader = new MappedRingReader(file);
+		assertEquals(0, newReader.getPosition());
+		append(newRing, 100);
+		assertTrue(newReader.awaitData(1000));
+		assertEquals(100, newReader.read(buf, 0, buf.length));
+
+		ring.close();
+		newRing.close();
+		assertTrue(newReader.isClosed());
+		file.delete();
+	}
+}
@@ -0,0 +1,290 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class NioServerTest {
+
+	/**
+	 * Echoes what it reads, after an echoed 'q' it closes the connection.
+	 */
+	static class QuitHandler implements NioConnectionHandler {
+
+		public void connected(NioServer server, NioConnection connection) {
+		}
+
+		public void dataReceived(NioServer server, NioConnection connection, ByteBuffer data) {
+
+			ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+			copy.put(data);
+			copy.flip();
+			try {
+				connection.write(copy);
+			} catch (Exception e) {
+			}
+
+			if (copy.get(copy.limit() - 1) == 'q') {
+				connection.close();
+			}
+		}
+
+		public void closed(NioServer server, NioConnection connection) {
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testEcho() throws Exception {
+
+		final CountDownLatch closed = new CountDownLatch(1);
+		final CountDownLatch connected = new CountDownLatch(1);
+
+		NioServer server = new NioServer(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setSelectorCount(2);
+		server.setNioConnectionHandler(new NioConnectionHandler() {
+
+			public void connected(NioServer server, NioConnection connection) {
+			}
+
+			public void dataReceived(NioServer server, NioConnection connection, ByteBuffer data) {
+
+				ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+				copy.put(data);
+				copy.flip();
+				try {
+					connection.write(copy);
+				} catch (Exception e) {
+					connection.close();
+				}
+			}
+
+			public void closed(NioServer server, NioConnection connection) {
+				closed.countDown();
+			}
+		});
+
+		server.addListener(new ServerListener() {
+
+			public void connection(ServerEvent event) {
+				connected.countDown();
+			}
+
+			public void exception(ServerEvent event) {
+			}
+		});
+
+		server.start();
+		try {
+
+			Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+			assertTrue("no connection event", connected.await(5, TimeUnit.SECONDS));
+
+			byte data[] = new byte[64 * 1024];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte)i;
+			}
+
+			OutputStream out = socket.getOutputStream();
+			out.write(data);
+			out.flush();
+
+			byte echoed[] = new byte[data.length];
+			new DataInputStream(socket.getInputStream()).readFully(echoed);
+			for (int i = 0; i < data.length; i++) {
+				assertEquals(data[i], echoed[i]);
+			}
+
+			socket.close();
+			assertTrue("connection was not closed", closed.await(5, TimeUnit.SECONDS));
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testRateLimit() throws Exception {
+
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger connected = new AtomicInteger();
+		NioServer server = new NioServer(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setSelectorCount(1);
+		server.setNioConnectionHandler(new NioConnectionHandler() {
+
+			public void connected(NioServer server, NioConnection connection) {
+				connected.incrementAndGet();
+			}
+
+			public void dataReceived(NioServer server, NioConnection connection, ByteBuffer data) {
+			}
+
+			public void closed(NioServer server, NioConnection connection) {
+			}
+		});
+
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter();
+		limiter.addRule(InetAddress.getByName("127.0.0.0"),
+			InetAddress.getByName("127.255.255.255"), 0.001, 3, true);
+		server.setConnectionRateLimiter(limiter);
+		server.addListener(new ServerListener() {
+			public void connection(ServerEvent event) {
+			}
+
+			public void exception(ServerEvent event) {
+				if (event.getException() instanceof ConnectionRejectedException) {
+					rejected.incrementAndGet();
+				}
+			}
+		});
+
+		server.start();
+		try {
+
+			for (int i = 0; i < 10; i++) {
+				new Socket("127.0.0.1", server.getLocalPort()).close();
+			}
+
+			for (int i = 0; i < 500 && rejected.get() < 7; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(7, rejected.get());
+			assertEquals(7, limiter.getRejectCount());
+			assertEquals(7, server.getStats().getRejectCount());
+			assertEquals(10, server.getStats().getAcceptCount());
+
+			for (int i = 0; i < 500 && connected.get() < 3; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(3, connected.get());
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testIdleTimeout() throws Exception {
+
+		NioServer server = new NioServer(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setSelectorCount(1);
+		server.setNioConnectionHandler(new QuitHandler());
+		server.setIdleTimeout(300);
+		server.start();
+		try {
+
+			Socket idle = new Socket("127.0.0.1", server.getLocalPort());
+			Socket busy = new Socket("127.0.0.1", server.getLocalPort());
+			for (int i = 0; i < 500 && server.getConnectionCount() < 2; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(2, server.getConnectionCount());
+
+			long start = System.currentTimeMillis();
+			while (System.currentTimeMillis() - start < 600) {
+				busy.getOutputStream().write('x');
+				assertEquals('x', busy.getInputStream().read());
+				Thread.sleep(50);
+			}
+
+			assertEquals(-1, idle.getInputStream().read());
+			assertEquals(1, server.getConnectionCount());
+			assertEquals(1, server.getStats().getIdleCloseCount());
+
+			busy.getOutputStream().write('q');
+			assertEquals('q', busy.getInputStream().read());
+			assertEquals(-1, busy.getInputStream().read());
+			for (int i = 0; i < 500 && server.getConnectionCount() > 0; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(0, server.getConnectionCount());
+			assertEquals(1, server.getStats().getIdleCloseCount());
+			idle.close();
+			busy.close();
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testDrain() throws Exception {
+
+		final NioServer server = new NioServer(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setNioConnectionHandler(new QuitHandler());
+		server.start();
+
+		final int port = server.getLocalPort();
+		Socket client = new Socket("127.0.0.1", port);
+		for (int i = 0; i < 500 && server.getConnectionCount() < 1; i++) {
+			Thread.sleep(10);
+		}
+
+		final AtomicInteger drained = new AtomicInteger(-1);
+		Thread drainer = new Thread() {
+			public void run () {
+				try {
+					drained.set(server.drain(5000) ? 1 : 0);
+				} catch (InterruptedException ignore) {
+				}
+			}
+		};
+
+		drainer.start();
+		Thread.sleep(200);
+
+		/*
+		 * The open connection is still served while no new ones
+		 * are accepted
+		 */
+		assertTrue(drainer.isAlive());
+		try {
+			new Socket("127.0.0.1", port).close();
+			fail("connection accepted while draining");
+		} catch (ConnectException expected) {
+		}
+
+		client.getOutputStream().write('x');
+		assertEquals('x', client.getInputStream().read());
+		client.getOutputStream().write('q');
+		assertEquals('q', client.getInputStream().read());
+		assertEquals(-1, client.getInputStream().read());
+		drainer.join(5000);
+		assertEquals(1, drained.get());
+		assertEquals(0, server.getConnectionCount());
+		client.close();
+
+		NioServer idleServer = new NioServer(0, 50, InetAddress.getByName("127.0.0.1"));
+		idleServer.setNioConnectionHandler(new QuitHandler());
+		idleServer.start();
+		client = new Socket("127.0.0.1", idleServer.getLocalPort());
+		for (int i = 0; i < 500 && idleServer.getConnectionCount() < 1; i++) {
+			Thread.sleep(10);
+		}
+
+		assertFalse(idleServer.drain(100));
+		assertEquals(-1, client.getInputStream().read());
+		for (int i = 0; i < 500 && idleServer.getConnectionCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(0, idleServer.getConnectionCount());
+		client.close();
+	}
+}
@@ -0,0 +1,79 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ReplayBufferTest {
+
+	private static byte patternByte(long position) {
+		return ((byte)(position * 31 + (position >>> 8)));
+	}
+
+	private static void append(ReplayBuffer replay, int count) throws Exception {
+
+		long position = replay.getEndPosition();
+		ByteBuffer data = ByteBuffer.allocate(count);
+		for (int i = 0; i < count; i++) {
+			data.put(patternByte(position + i));
+		}
+
+		data.flip();
+		replay.write(data);
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+
+		ReplayBuffer replay = new ReplayBuffer(null, 10000, 0);
+		try {
+
+			for (int i = 0; i < 100; i++) {
+				append(replay, 997);
+			}
+
+			assertEquals(99700, replay.getEndPosition());
+			assertEquals(89700, replay.getWindowStart());
+
+			byte buf[] = new byte[4096];
+			long position = replay.getWindowStart();
+			while (position < replay.getEndPosition()) {
+
+				int n = replay.read(position, buf, 0, buf.length);
+				assertTrue(n > 0);
+				for (int i = 0; i < n; i++) {
+					assertEquals("bad data at " + (position + i), patternByte(position + i), buf[i]);
+				}
+
+				position += n;
+			}
+
+			assertEquals(0, replay.read(position, buf, 0, buf.length));
+			assertEquals(-1, replay.read(0, buf, 0, buf.length));
+
+		} finally {
+			replay.close();
+		}
+
+		assertTrue(!replay.getFile().exists());
+	}
+
+	@Test
+	public void testMaxAge() throws Exception {
+
+		ReplayBuffer replay = new ReplayBuffer(null, 100000, 200);
+		try {
+
+			append(replay, 1000);
+			Thread.sleep(400);
+			append(replay, 500);
+			assertEquals(1000, replay.getWindowStart());
+
+		} finally {
+			replay.close();
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.messners.ajf.util.HashedTimingWheel;
+
+public class ServerTest {
+
+	private static Set<String> acceptThreads =
+		Collections.synchronizedSet(new HashSet<String>());
+
+	public static class CloseHandler implements ConnectionHandler {
+
+		public void process(Server server, Socket connection) {
+			try {
+				connection.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	public static class ReadHandler implements ConnectionHandler {
+
+		public void process(Server server, Socket connection) {
+			try {
+				InputStream in = connection.getInputStream();
+				while (in.read() != -1) {
+				}
+			} catch (IOException ignore) {
+			} finally {
+				try {
+					connection.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+	}
+
+	public static class SlowHandler implements ConnectionHandler {
+
+		static CountDownLatch started;
+
+		public void process(Server server, Socket connection) {
+			started.countDown();
+			try {
+				Thread.sleep(300);
+				connection.getOutputStream().write('x');
+			} catch (Exception ignore) {
+			}
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testMultipleAcceptors() throws Exception {
+
+		final int connections = 200;
+		Server server = new Server();
+		boolean multiple = server.setAcceptorCount(4);
+		assertEquals(Server.isReusePortSupported(), multiple);
+		assertEquals(multiple ? 4 : 1, server.getAcceptorCount());
+
+		server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 50);
+		server.setConnectionHandlerClass(CloseHandler.class);
+		server.addListener(new ServerListener() {
+			public void connection(ServerEvent event) {
+				acceptThreads.add(Thread.currentThread().getName());
+			}
+
+			public void exception(ServerEvent event) {
+			}
+		});
+
+		server.start();
+		try {
+
+			for (int i = 0; i < connections; i++) {
+				new Socket("127.0.0.1", server.getLocalPort()).close();
+			}
+
+			for (int i = 0; i < 500 && server.getStats().getAcceptCount() < connections; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(connections, server.getStats().getAcceptCount());
+			if (multiple) {
+				assertTrue("only accepted on " + acceptThreads, acceptThreads.size() > 1);
+			}
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAcceptorsNeedUnboundServer() throws Exception {
+
+		Server server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		try {
+			if (!Server.isReusePortSupported()) {
+				throw new IllegalStateException();
+			}
+
+			server.setAcceptorCount(2);
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testRateLimit() throws Exception {
+
+		final AtomicInteger rejected = new AtomicInteger();
+		Server server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setConnectionHandlerClass(CloseHandler.class);
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter();
+		limiter.addRule(InetAddress.getByName("127.0.0.0"),
+			InetAddress.getByName("127.255.255.255"), 0.001, 3, true);
+		server.setConnectionRateLimiter(limiter);
+		server.addListener(new ServerListener() {
+			public void connection(ServerEvent event) {
+			}
+
+			public void exception(ServerEvent event) {
+				if (event.getException() instanceof ConnectionRejectedException) {
+					rejected.incrementAndGet();
+				}
+			}
+		});
+
+		server.start();
+		try {
+
+			for (int i = 0; i < 10; i++) {
+				new Socket("127.0.0.1", server.getLocalPort()).close();
+			}
+
+			for (int i = 0; i < 500 && rejected.get() < 7; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(7, rejected.get());
+			assertEquals(7, limiter.getRejectCount());
+			assertEquals(7, server.getStats().getRejectCount());
+			assertEquals(10, server.getStats().getAcceptCount());
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testIdleTimeout() throws Exception {
+
+		HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 64);
+		Server server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setConnectionHandlerClass(ReadHandler.class);
+		server.setTimingWheel(wheel);
+		server.setIdleTimeout(300);
+		server.start();
+		try {
+
+			Socket idle = new Socket("127.0.0.1", server.getLocalPort());
+			Socket busy = new Socket("127.0.0.1", server.getLocalPort());
+			for (int i = 0; i < 500 && server.getConnectionCount() < 2; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(2, server.getConnectionCount());
+
+			long start = System.currentTimeMillis();
+			while (System.currentTimeMillis() - start < 600) {
+				busy.getOutputStream().write('x');
+				Thread.sleep(50);
+			}
+
+			assertEquals(-1, idle.getInputStream().read());
+			assertEquals(1, server.getConnectionCount());
+			assertEquals(1, server.getStats().getIdleCloseCount());
+
+			busy.close();
+			idle.close();
+			for (int i = 0; i < 500 && server.getConnectionCount() > 0; i++) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(0, server.getConnectionCount());
+			assertEquals(0, server.getActiveHandlerCount());
+
+		} finally {
+			server.stop();
+			wheel.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testDrain() throws Exception {
+
+		SlowHandler.started = new CountDownLatch(1);
+		Server server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setConnectionHandlerClass(SlowHandler.class);
+		server.start();
+
+		Socket client = new Socket("127.0.0.1", server.getLocalPort());
+		assertTrue(SlowHandler.started.await(10, TimeUnit.SECONDS));
+		assertTrue(server.drain(5000));
+		assertEquals('x', client.getInputStream().read());
+		assertEquals(0, server.getConnectionCount());
+		client.close();
+
+		SlowHandler.started = new CountDownLatch(1);
+		server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setConnectionHandlerClass(ReadHandler.class);
+		server.start();
+
+		client = new Socket("127.0.0.1", server.getLocalPort());
+		for (int i = 0; i < 500 && server.getActiveHandlerCount() < 1; i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(false, server.drain(100));
+		assertEquals(-1, client.getInputStream().read());
+		for (int i = 0; i < 500 && server.getActiveHandlerCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(0, server.getActiveHandlerCount());
+		assertEquals(0, server.getConnectionCount());
+		client.close();
+	}
+
+	@Test(timeout = 30000)
+	public void testHandlerCreationFailure() throws Exception {
+
+		final CountDownLatch failed = new CountDownLatch(1);
+		Server server = new Server(0, 50, InetAddress.getByName("127.0.0.1"));
+		server.setConnectionHandlerFactory(new ConnectionHandlerFactory() {
+			public ConnectionHandler newConnectionHandler() throws Exception {
+				throw new InstantiationException("no handler");
+			}
+
+			public void releaseConnectionHandler(ConnectionHandler handler) {
+			}
+		});
+
+		server.addListener(new ServerListener() {
+			public void connection(ServerEvent event) {
+			}
+
+			public void exception(ServerEvent event) {
+				if (event.getException() instanceof InstantiationException) {
+					failed.countDown();
+				}
+			}
+		});
+
+		server.start();
+		try {
+
+			Socket client = new Socket("127.0.0.1", server.getLocalPort());
+			assertTrue(failed.await(10, TimeUnit.SECONDS));
+			assertEquals(0, server.getConnectionCount());
+			assertEquals(0, server.getActiveHandlerCount());
+			assertEquals(-1, client.getInputStream().read());
+			client.close();
+
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,840 @@
+package com.messners.ajf.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class SocketMuxTest {
+
+	private static byte patternByte(long position) {
+		return ((byte)(position * 31 + (position >>> 8)));
+	}
+
+	@Test(timeout = 30000)
+	public void testLateJoinerReplay() throws Exception {
+
+		final int count = 200000;
+		final ServerSocket upstream = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+		Thread upstreamThread = new Thread() {
+			public void run() {
+				try {
+					Socket s = upstream.accept();
+					byte data[] = new byte[count];
+					for (int i = 0; i < count; i++) {
+						data[i] = patternByte(i);
+					}
+
+					OutputStream out = s.getOutputStream();
+					out.write(data);
+					out.flush();
+					Thread.sleep(30000);
+				} catch (Exception ignore) {
+				}
+			}
+		};
+
+		upstreamThread.setDaemon(true);
+		upstreamThread.start();
+
+		SocketMux mux = new SocketMux("127.0.0.1", upstream.getLocalPort(), 0);
+		mux.setReplayWindow(count, 0);
+		mux.start();
+		try {
+
+			while (mux.getReplayBuffer().getEndPosition() < count) {
+				Thread.sleep(10);
+			}
+
+			Socket client = new Socket("127.0.0.1", mux.getLocalPort());
+			byte received[] = new byte[count];
+			new DataInputStream(client.getInputStream()).readFully(received);
+			for (int i = 0; i < count; i++) {
+				assertEquals("bad data at " + i, patternByte(i), received[i]);
+			}
+
+			client.close();
+			assertTrue(mux.getRingBuffer().getWritePosition() == count);
+
+		} finally {
+			mux.stop();
+			upstream.close();
+			upstreamThread.interrupt();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testSharedRingFile() throws Exception {
+
+		final int count = 200000;
+		final ServerSocket upstream = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+		final Object go = new Object();
+		final boolean started[] = new boolean[1];
+		Thread upstreamThread = new Thread() {
+			public void run() {
+				try {
+					Socket s = upstream.accept();
+					synchronized (go) {
+						while (!started[0]) {
+							go.wait();
+						}
+					}
+
+					byte data[] = new byte[count];
+					for (int i = 0; i < count; i++) {
+						data[i] = patternByte(i);
+					}
+
+					OutputStream out = s.getOutputStream();
+					out.write(data);
+					out.flush();
+					Thread.sleep(30000);
+				} catch (Exception ignore) {
+				}
+			}
+		};
+
+		upstreamThread.setDaemon(true);
+		upstreamThread.start();
+
+		File file = File.createTempFile("socketmux", ".shm");
+		file.deleteOnExit();
+		SocketMux mux = new SocketMux("127.0.0.1", upstream.getLocalPort(), 0);
+		mux.setSharedRingFile(file, 1 << 20);
+		mux.start();
+		MappedRingReader reader = new MappedRingReader(file);
+		try {
+
+			Socket client = new Socket("127.0.0.1", mux.getLocalPort());
+			while (mux.getStats().getActiveConnections() < 1) {
+				Thread.sleep(10);
+			}
+
+			synchronized (go) {
+				started[0] = true;
+				go.notifyAll();
+			}
+
+			byte local[] = new byte[count];
+			int n = 0;
+			while (n < count) {
+				assertTrue(reader.awaitData(10000));
+				n += reader.read(local, n, count - n);
+			}
+
+			byte received[] = new byte[count];
+			new DataInputStream(client.getInputStream()).readFully(received);
+			for (int i = 0; i < count; i++) {
+				assertEquals("bad local data at " + i, patternByte(i), local[i]);
+				assertEquals("bad client data at " + i, patternByte(i), received[i]);
+			}
+
+			client.close();
+
+		} finally {
+			mux.stop();
+			reader.close();
+			upstream.close();
+			upstreamThread.interrupt();
+			file.delete();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testBidirectionalMerge() throws Exception {
+
+		final int clients = 8;
+		final int lines = 200;
+		final ServerSocket upstream = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+		final Set<String> received = new HashSet<String>();
+		final Socket accepted[] = new Socket[1];
+		Thread upstreamThread = new Thread() {
+			public void run() {
+				try {
+					accepted[0] = upstream.accept();
+					BufferedReader in = new BufferedReader(
+						new InputStreamReader(accepted[0].getInputStream(), "US-ASCII"));
+					String line;
+					while ((line = in.readLine()) != null) {
+						synchronized (received) {
+							received.add(line);
+							received.notifyAll();
+						}
+					}
+				} catch (Exception ignore) {
+				}
+			}
+		};
+
+		upstreamThread.setDaemon(true);
+		upstreamThread.start();
+
+		final SocketMux mux = new SocketMux("127.0.0.1", upstream.getLocalPort(), 0);
+		mux.setUpstreamFrameDecoder(new LineFrameDecoder());
+		mux.start();
+		try {
+
+			Thread senders[] = new Thread[clients];
+			for (int i = 0; i < clients; i++) {
+
+				final int id = i;
+				senders[i] = new Thread() {
+					public void run() {
+						try {
+							Socket s = new Socket("127.0.0.1", mux.getLocalPort());
+							OutputStream out = s.getOutputStream();
+							for (int j = 0; j < lines; j++) {
+
+								/*
+								 * Send each line in two pieces so frames
+								 * arrive split across reads.
+								 */
+								byte line[] = ("client-" + id + "-line-" + j + "\n").getBytes("US-ASCII");
+								out.write(line, 0, 5);
+								out.flush();
+								out.write(line, 5, line.length - 5);
+								out.flush();
+							}
+
+							Thread.sleep(5000);
+							s.close();
+						} catch (Exception ignore) {
+						}
+					}
+				};
+
+				senders[i].setDaemon(true);
+				senders[i].start();
+			}
+
+			synchronized (received) {
+				while (received.size() < clients * lines) {
+					received.wait();
+				}
+			}
+
+			for (int i = 0; i < clients; i++) {
+				for (int j = 0; j < lines; j++) {
+					assertTrue(received.contains("client-" + i + "-line-" + j));
+				}
+			}
+
+			assertEquals(clients * lines, received.size());
+			assertEquals(clients * lines, mux.getUpstreamFrameCount());
+			assertTrue(mux.getUpstreamWriteCount() <= mux.getUpstreamFrameCount());
+
+		} finally {
+			mux.stop();
+			upstream.close();
+			if (accepted[0] != null) {
+				accepted[0].close();
+			}
+		}
+	}
+
+	/**
+	 * Accepts one connection, sends the data and closes the connection
+	 * and the ServerSocket.
+	 */
+	private static Thread sendOnce(final ServerSocket server, final byte data[]) {
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					server.close();
+					s.getOutputStream().write(data);
+					s.getOutputStream().flush();
+					Thread.sleep(500);
+					s.close();
+				} catch (Exception ignore) {
+				}
+			}
+		};
+
+		t.setDaemon(true);
+		t.start();
+		return (t);
+	}
+
+	@Test(timeout = 30000)
+	public void testFailover() throws Exception {
+
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		ServerSocket primary = new ServerSocket(0, 5, localhost);
+		ServerSocket secondary = new ServerSocket(0, 5, localhost);
+		sendOnce(primary, "primary\n".getBytes("US-ASCII"));
+
+		SocketMux mux = new SocketMux("127.0.0.1", primary.getLocalPort(), 0);
+		mux.addUpstream("127.0.0.1", secondary.getLocalPort());
+		mux.setReconnectDelay(10, 100);
+		mux.start();
+		try {
+
+			/*
+			 * The client connects before the primary goes away and stays
+			 * connected through the failover.
+			 */
+			Socket client = new Socket("127.0.0.1", mux.getLocalPort());
+			while (mux.getClientStats().size() == 0) {
+				Thread.sleep(10);
+			}
+
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(client.getInputStream(), "US-ASCII"));
+			sendOnce(secondary, "secondary\n".getBytes("US-ASCII"));
+			String line;
+			while ("primary".equals(line = in.readLine())) {
+			}
+
+			assertEquals("secondary", line);
+			assertEquals(1, mux.getReconnectCount());
+			assertEquals(1, mux.getOutageDurations().length);
+			client.close();
+
+		} finally {
+			mux.stop();
+			primary.close();
+			secondary.close();
+		}
+	}
+
+	/*
+	 * The slow consumer tests send much more than a stalled client's socket
+	 * buffers hold so the handler blocks in the middle of a write.
+	 */
+	private static final int SLOW_TOTAL = 8 * 1024 * 1024;
+	private static final int SLOW_RING_SIZE = 64 * 1024;
+	private static final int SLOW_MAX_LAG = 16 * 1024;
+
+	/**
+	 * Accepts one connection and sends total bytes of the pattern once
+	 * the go latch is released, writeSize bytes at a time with a pause
+	 * between writes, then keeps the connection open.
+	 */
+	private static Thread sendPattern(final ServerSocket server, final long total,
+			final CountDownLatch go, final int writeSize, final long pause) {
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					go.await();
+
+					byte data[] = new byte[writeSize];
+					OutputStream out = s.getOutputStream();
+					for (long position = 0; position < total; position += data.length) {
+						for (int i = 0; i < data.length; i++) {
+							data[i] = patternByte(position + i);
+						}
+
+						out.write(data, 0, (int)Math.min(data.length, total - position));
+						if (pause > 0) {
+							Thread.sleep(pause);
+						}
+					}
+
+					out.flush();
+					Thread.sleep(30000);
+				} catch (Exception ignore) {
+				}
+			}
+		};
+
+		t.setDaemon(true);
+		t.start();
+		return (t);
+	}
+
+	/**
+	 * A client with a tiny receive buffer that does not read until it
+	 * is resumed, then reads to the end of the stream.  It may be made
+	 * slow by reading little at a time and pausing between reads.
+	 */
+	private static class StalledClient extends Thread {
+
+		Socket socket;
+		CountDownLatch resume = new CountDownLatch(1);
+		volatile long received;
+		volatile boolean corrupt;
+		volatile boolean eof;
+		volatile int readSize = 65536;
+		volatile long readPause;
+
+		StalledClient(int port) throws IOException {
+			this(port, 1024);
+		}
+
+		StalledClient(int port, int receiveBufferSize) throws IOException {
+
+			socket = new Socket();
+			socket.setReceiveBufferSize(receiveBufferSize);
+			socket.connect(new InetSocketAddress("127.0.0.1", port));
+			setDaemon(true);
+			start();
+		}
+
+		public void run() {
+
+			try {
+				resume.await();
+				InputStream in = socket.getInputStream();
+				byte buf[] = new byte[65536];
+				int n;
+				while ((n = in.read(buf, 0, readSize)) >= 0) {
+					for (int i = 0; i < n; i++) {
+						if (buf[i] != patternByte(received + i)) {
+							corrupt = true;
+						}
+					}
+
+					received += n;
+					if (readPause > 0) {
+						Thread.sleep(readPause);
+					}
+				}
+
+				eof = true;
+			} catch (Exception ignore) {
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Runs a SocketMux with a small ring and collects the
+	 * SlowConsumerExceptions it fires.
+	 */
+	private static class SlowConsumerFixture {
+
+		ServerSocket upstream;
+		SocketMux mux;
+		CountDownLatch go = new CountDownLatch(1);
+		List<SlowConsumerException> events =
+			Collections.synchronizedList(new ArrayList<SlowConsumerException>());
+		volatile int sendBufferSize;
+		volatile int connections;
+
+		SlowConsumerFixture(int policy, long maxLag, int maxChunks,
+				long stallTimeout) throws Exception {
+			this(policy, maxLag, maxChunks, stallTimeout, SLOW_TOTAL);
+		}
+
+		SlowConsumerFixture(int policy, long maxLag, int maxChunks,
+				long stallTimeout, long total) throws Exception {
+			this(policy, maxLag, maxChunks, stallTimeout, total, 65536, 0);
+		}
+
+		SlowConsumerFixture(int policy, long maxLag, int maxChunks,
+				long stallTimeout, long total, int writeSize, long pause)
+				throws Exception {
+
+			upstream = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+			sendPattern(upstream, total, go, writeSize, pause);
+
+			mux = new SocketMux("127.0.0.1", upstream.getLocalPort(), 0);
+			mux.setRingBufferSize(SLOW_RING_SIZE);
+			mux.setSlowConsumerPolicy(policy);
+			mux.setMaxClientLagBytes(maxLag);
+			mux.setMaxClientLagChunks(maxChunks);
+			mux.setClientStallTimeout(stallTimeout);
+			mux.addListener(new ServerListener() {
+				public void connection(ServerEvent event) {
+					try {
+						if (sendBufferSize > 0) {
+							event.getConnection().setSendBufferSize(sendBufferSize);
+						}
+					} catch (IOException ignore) {
+					}
+
+					connections++;
+				}
+
+				public void exception(ServerEvent event) {
+					if (event.getException() instanceof SlowConsumerException) {
+						events.add((SlowConsumerException)event.getException());
+					}
+				}
+			});
+
+			mux.start();
+		}
+
+		/**
+		 * Connects a stalled client and starts the data once its handler
+		 * is registered.
+		 */
+		StalledClient connect() throws Exception {
+
+			StalledClient client = new StalledClient(mux.getLocalPort());
+			while (mux.getClientStats().size() < 1) {
+				Thread.sleep(10);
+			}
+
+			go.countDown();
+			return (client);
+		}
+
+		SocketMuxClientStats clientStats() {
+			List<SocketMuxClientStats> stats = mux.getClientStats();
+			return (stats.isEmpty() ? null : stats.get(0));
+		}
+
+		SocketMuxClientStats clientStats(StalledClient client) {
+
+			for (SocketMuxClientStats stats : mux.getClientStats()) {
+				if (client.socket.getLocalSocketAddress().equals(stats.getClient())) {
+					return (stats);
+				}
+			}
+
+			return (null);
+		}
+
+		/**
+		 * Waits until the client has fallen lag bytes behind, which
+		 * happens once the handler is blocked on the stalled client, or
+		 * until all the data has been read from the server because the
+		 * policy kept the client from falling behind.
+		 */
+		void awaitBacklog(long lag) throws InterruptedException {
+
+			SocketMuxClientStats stats;
+			while ((stats = clientStats()) != null && stats.getLagBytes() <= lag &&
+					mux.getRingBuffer().getWritePosition() < SLOW_TOTAL) {
+				Thread.sleep(10);
+			}
+		}
+
+		int countEvents(int policy) {
+
+			int count = 0;
+			synchronized (events) {
+				for (SlowConsumerException e : events) {
+					if (e.getPolicy() == policy) {
+						count++;
+					}
+				}
+			}
+
+			return (count);
+		}
+
+		long droppedBytes() {
+
+			long dropped = 0;
+			synchronized (events) {
+				for (SlowConsumerException e : events) {
+					dropped += e.getDroppedBytes();
+				}
+			}
+
+			return (dropped);
+		}
+
+		/**
+		 * Waits for the client to catch up with all the data, the data
+		 * was either sent or dropped.
+		 */
+		SocketMuxClientStats awaitCaughtUp(StalledClient client)
+				throws InterruptedException {
+
+			SocketMuxClientStats stats;
+			while ((stats = clientStats()).getBytesSent() +
+					stats.getBytesDropped() < SLOW_TOTAL ||
+					client.received < stats.getBytesSent() ||
+					droppedBytes() < stats.getBytesDropped()) {
+				Thread.sleep(10);
+			}
+
+			return (stats);
+		}
+
+		void stop() throws IOException {
+			mux.stop();
+			upstream.close();
+		}
+	}
+
+	private void dropPolicy(int policy) throws Exception {
+
+		SlowConsumerFixture fixture = new SlowConsumerFixture(policy, SLOW_MAX_LAG, 0, 0);
+		try {
+
+			StalledClient client = fixture.connect();
+			fixture.awaitBacklog(2 * SLOW_MAX_LAG);
+
+			SocketMuxClientStats stats = fixture.clientStats();
+			assertEquals(client.socket.getLocalSocketAddress(), stats.getClient());
+			assertTrue(stats.getConnectTime() <= System.currentTimeMillis());
+			assertTrue(stats.getBytesSent() < SLOW_TOTAL);
+
+			client.resume.countDown();
+			stats = fixture.awaitCaughtUp(client);
+
+			assertTrue(stats.getBytesDropped() > 0);
+			assertEquals(SLOW_TOTAL, stats.getBytesSent() + stats.getBytesDropped());
+			assertEquals(stats.getBytesSent(), client.received);
+			assertEquals(stats.getBytesDropped(), fixture.droppedBytes());
+			assertEquals(stats.getDropCount(), fixture.events.size());
+			for (SlowConsumerException e : fixture.events) {
+				assertEquals(policy, e.getPolicy());
+				assertTrue(e.getDroppedBytes() > 0);
+			}
+
+			assertEquals(0, fixture.clientStats().getLagBytes());
+			client.close();
+
+		} finally {
+			fixture.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testDropOldest() throws Exception {
+		dropPolicy(SocketMux.DROP_OLDEST);
+	}
+
+	@Test(timeout = 60000)
+	public void testDropNewest() throws Exception {
+		dropPolicy(SocketMux.DROP_NEWEST);
+	}
+
+	/*
+	 * A client that keeps reading, but slower than the server sends, must
+	 * have its data dropped without holding back a fast client or being
+	 * disconnected by the stall timeout.  The server sends about 500 KB a
+	 * second which the fast client keeps up with and the slow client reads
+	 * about 100 KB a second, so each write to the slow client takes far
+	 * less than the stall timeout.  The slow
+	 * client's small send buffer keeps its backlog in the ring rather than
+	 * in the socket.
+	 */
+	private void slowReader(int policy) throws Exception {
+
+		final int total = 1024 * 1024;
+		SlowConsumerFixture fixture = new SlowConsumerFixture(
+			policy, 2 * SLOW_MAX_LAG, 0, 200, total, 512, 1);
+		try {
+
+			fixture.mux.getRingBuffer().setMaxChunkSize(256);
+			fixture.sendBufferSize = 4096;
+			StalledClient slow = new StalledClient(fixture.mux.getLocalPort());
+			slow.readSize = 1024;
+			slow.readPause = 10;
+			while (fixture.connections < 1) {
+				Thread.sleep(10);
+			}
+
+			fixture.sendBufferSize = 0;
+			StalledClient fast = new StalledClient(fixture.mux.getLocalPort(), 65536);
+			while (fixture.mux.getClientStats().size() < 2 || fixture.connections < 2) {
+				Thread.sleep(10);
+			}
+
+			fast.resume.countDown();
+			slow.resume.countDown();
+			fixture.go.countDown();
+			SocketMuxClientStats stats;
+			while ((stats = fixture.clientStats(fast)).getBytesSent() +
+					stats.getBytesDropped() < total || fast.received < stats.getBytesSent()) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(0, stats.getBytesDropped());
+			assertEquals(total, fast.received);
+			assertFalse(fast.corrupt);
+			assertTrue(slow.received < total / 2);
+
+			stats = fixture.clientStats(slow);
+			assertTrue("slow client was disconnected", stats != null);
+			assertTrue(stats.getBytesDropped() > 0);
+			assertEquals(0, fixture.countEvents(SocketMux.DISCONNECT));
+			assertEquals(fixture.events.size(), fixture.countEvents(policy));
+
+			fast.close();
+			slow.close();
+
+		} finally {
+			fixture.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testSlowReaderDropOldest() throws Exception {
+		slowReader(SocketMux.DROP_OLDEST);
+	}
+
+	@Test(timeout = 60000)
+	public void testSlowReaderDropNewest() throws Exception {
+		slowReader(SocketMux.DROP_NEWEST);
+	}
+
+	@Test(timeout = 60000)
+	public void testDisconnect() throws Exception {
+
+		SlowConsumerFixture fixture = new SlowConsumerFixture(
+			SocketMux.DISCONNECT, SLOW_MAX_LAG, 0, 0);
+		try {
+
+			StalledClient client = fixture.connect();
+			fixture.awaitBacklog(2 * SLOW_MAX_LAG);
+			client.resume.countDown();
+			client.join(30000);
+
+			assertTrue(client.eof);
+			assertFalse(client.corrupt);
+			while (!fixture.mux.getClientStats().isEmpty()) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(1, fixture.events.size());
+			SlowConsumerException e = fixture.events.get(0);
+			assertEquals(SocketMux.DISCONNECT, e.getPolicy());
+			assertEquals(0, e.getDroppedBytes());
+			assertTrue(e.getLag() > SLOW_MAX_LAG);
+			assertTrue(client.received < SLOW_TOTAL);
+
+		} finally {
+			fixture.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testThrottle() throws Exception {
+
+		/*
+		 * The short stall timeout must not disconnect a throttling client
+		 */
+		SlowConsumerFixture fixture = new SlowConsumerFixture(
+			SocketMux.THROTTLE, SLOW_MAX_LAG, 0, 100);
+		try {
+
+			StalledClient client = fixture.connect();
+			for (int i = 0; i < 50; i++) {
+				SocketMuxClientStats stats = fixture.clientStats();
+				assertTrue(stats.getLagBytes() <= SLOW_MAX_LAG);
+				Thread.sleep(10);
+			}
+
+			assertTrue(fixture.mux.getRingBuffer().getWritePosition() < SLOW_TOTAL);
+			client.resume.countDown();
+			while (client.received < SLOW_TOTAL) {
+				Thread.sleep(10);
+			}
+
+			SocketMuxClientStats stats = fixture.clientStats();
+			assertFalse(client.corrupt);
+			assertEquals(SLOW_TOTAL, stats.getBytesSent());
+			assertEquals(0, stats.getBytesDropped());
+			assertEquals(0, stats.getDropCount());
+			assertTrue(fixture.events.isEmpty());
+			client.close();
+
+		} finally {
+			fixture.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testChunkLagLimit() throws Exception {
+
+		/*
+		 * With small chunks the chunk limit is reached long before the
+		 * byte limit, each drop leaves the client at most maxChunks behind.
+		 */
+		final int maxChunks = 8;
+		final int chunkSize = 512;
+		SlowConsumerFixture fixture = new SlowConsumerFixture(
+			SocketMux.DROP_OLDEST, 0, maxChunks, 0);
+		try {
+
+			fixture.mux.getRingBuffer().setMaxChunkSize(chunkSize);
+			StalledClient client = fixture.connect();
+			fixture.awaitBacklog(4 * maxChunks * chunkSize);
+
+			client.resume.countDown();
+			SocketMuxClientStats stats = fixture.awaitCaughtUp(client);
+
+			assertTrue(stats.getBytesDropped() > 0);
+			assertEquals(SLOW_TOTAL, stats.getBytesSent() + stats.getBytesDropped());
+			assertEquals(stats.getBytesDropped(), fixture.droppedBytes());
+			for (SlowConsumerException e : fixture.events) {
+				assertEquals(SocketMux.DROP_OLDEST, e.getPolicy());
+				assertTrue(e.getLag() - e.getDroppedBytes() <= maxChunks * chunkSize);
+			}
+
+			client.close();
+
+		} finally {
+			fixture.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testStallTimeout() throws Exception {
+
+		/*
+		 * The server sends without end so the ring keeps coming back
+		 * round to the write the handler is blocked in.
+		 */
+		SlowConsumerFixture fixture = new SlowConsumerFixture(
+			SocketMux.DROP_OLDEST, SLOW_MAX_LAG, 0, 200, Long.MAX_VALUE);
+		try {
+
+			/*
+			 * The client may have data dropped before the handler blocks
+			 * on it, once blocked it is disconnected by the stall timeout.
+			 */
+			StalledClient client = fixture.connect();
+			while (fixture.countEvents(SocketMux.DISCONNECT) == 0) {
+				Thread.sleep(10);
+			}
+
+			/*
+			 * With the stalled client gone the server data is read again
+			 */
+			ByteRingBuffer ring = fixture.mux.getRingBuffer();
+			long position = ring.getWritePosition();
+			while (!fixture.mux.getClientStats().isEmpty() ||
+					ring.getWritePosition() < position + 2 * SLOW_RING_SIZE) {
+				Thread.sleep(10);
+			}
+
+			int count = fixture.events.size();
+			assertEquals(1, fixture.countEvents(SocketMux.DISCONNECT));
+			assertEquals(count - 1, fixture.countEvents(SocketMux.DROP_OLDEST));
+
+			SlowConsumerException e = fixture.events.get(count - 1);
+			assertEquals(SocketMux.DISCONNECT, e.getPolicy());
+			assertEquals(0, e.getDroppedBytes());
+			assertEquals(client.socket.getLocalSocketAddress(), e.getClient());
+			client.close();
+
+		} finally {
+			fixture.stop();
+		}
+	}
+}
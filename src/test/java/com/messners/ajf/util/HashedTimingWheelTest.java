@@ -0,0 +1,173 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedTimingWheelTest {
+
+	private HashedTimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new HashedTimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 16);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void testManyTimeouts() throws Exception {
+
+		/*
+		 * Hold the wheel thread in a task until all the timeouts have been
+		 * scheduled and half of them cancelled, so none can expire first
+		 */
+		final CountDownLatch held = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		wheel.newTimeout(new Runnable() {
+			public void run() {
+				held.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ignore) {
+				}
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+
+		assertTrue(held.await(5, TimeUnit.SECONDS));
+
+		final int count = 20000;
+		final CountDownLatch done = new CountDownLatch(count / 2);
+		final AtomicInteger cancelledRuns = new AtomicInteger();
+		HashedTimingWheel.Timeout timeouts[] = new HashedTimingWheel.Timeout[count];
+		for (int i = 0; i < count; i++) {
+
+			final boolean cancel = (i % 2 == 1);
+			timeouts[i] = wheel.newTimeout(new Runnable() {
+				public void run() {
+					if (cancel) {
+						cancelledRuns.incrementAndGet();
+					} else {
+						done.countDown();
+					}
+				}
+			}, 10 + i % 300, TimeUnit.MILLISECONDS);
+		}
+
+		for (int i = 1; i < count; i += 2) {
+			assertTrue(timeouts[i].cancel());
+		}
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, cancelledRuns.get());
+		assertTrue(timeouts[0].isExpired());
+		assertFalse(timeouts[0].cancel());
+		assertTrue(timeouts[1].isCancelled());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDefaultNotStopped() {
+		HashedTimingWheel.getDefault().stop();
+	}
+
+	@Test(timeout = 10000)
+	public void testPeriodic() throws Exception {
+
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch fiveRuns = new CountDownLatch(5);
+		HashedTimingWheel.Timeout timeout = wheel.newPeriodicTimeout(new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+				fiveRuns.countDown();
+			}
+		}, 0, 20, TimeUnit.MILLISECONDS);
+
+		assertTrue(timeout.isPeriodic());
+		assertTrue(fiveRuns.await(5, TimeUnit.SECONDS));
+		assertTrue(timeout.cancel());
+		int cancelledAt = runs.get();
+		Thread.sleep(100);
+		assertTrue(runs.get() <= cancelledAt + 1);
+		assertFalse(timeout.isExpired());
+	}
+
+	@Test(timeout = 10000)
+	public void testPeriodOfOneTurn() throws Exception {
+
+		/*
+		 * A period of exactly one turn puts the timeout back in the bucket
+		 * it ran from, it must still run every turn and not every other
+		 */
+		final long turn = 200;
+		final List<Long> runTimes = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch fiveRuns = new CountDownLatch(5);
+		HashedTimingWheel turnWheel = new HashedTimingWheel(
+			"turn-wheel", turn / 4, TimeUnit.MILLISECONDS, 4);
+		try {
+
+			turnWheel.newPeriodicTimeout(new Runnable() {
+				public void run() {
+					runTimes.add(Long.valueOf(System.nanoTime()));
+					fiveRuns.countDown();
+				}
+			}, turn, turn, TimeUnit.MILLISECONDS);
+
+			assertTrue(fiveRuns.await(5, TimeUnit.SECONDS));
+			for (int i = 1; i < 5; i++) {
+				long gap = TimeUnit.NANOSECONDS.toMillis(runTimes.get(i) - runTimes.get(i - 1));
+				assertTrue("ran " + gap + " ms apart", gap < turn * 3 / 2);
+			}
+
+		} finally {
+			turnWheel.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testWorkQueueTarget() throws Exception {
+
+		final CountDownLatch done = new CountDownLatch(3);
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setRefreshTime(0);
+		workQueue.setTimingWheel(wheel);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				for (int i = 0; i < workList.size(); i++) {
+					done.countDown();
+				}
+			}
+		});
+
+		workQueue.start();
+		try {
+
+			long start = System.nanoTime();
+			workQueue.queueLater("later", 50, TimeUnit.MILLISECONDS);
+			workQueue.queueLater("cancelled", 50, TimeUnit.MILLISECONDS).cancel();
+			HashedTimingWheel.Timeout periodic = workQueue.queuePeriodically(
+				"periodic", 60, 20, TimeUnit.MILLISECONDS);
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			periodic.cancel();
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HostNameCacheTest {
+
+	@Test(timeout = 30000)
+	public void testLookup() throws Exception {
+
+		HostNameCache cache = new HostNameCache(HostNameCache.DEFAULT_TTL,
+			HostNameCache.DEFAULT_NEGATIVE_TTL, HostNameCache.DEFAULT_MAX_ENTRIES, 1);
+		try {
+
+			/*
+			 * Hold the only resolver thread in the listener of another
+			 * lookup so the address below cannot be resolved until the
+			 * gate is opened.
+			 */
+			final CountDownLatch blocking = new CountDownLatch(1);
+			final CountDownLatch gate = new CountDownLatch(1);
+			InetAddress blocker = InetAddress.getByAddress(new byte[] { 127, 0, 0, 2 });
+			cache.lookup(blocker, new HostNameCache.Listener() {
+				public void hostNameResolved(InetAddress address, String hostName) {
+					blocking.countDown();
+					try {
+						gate.await();
+					} catch (InterruptedException ignore) {
+					}
+				}
+			});
+
+			assertTrue(blocking.await(20, TimeUnit.SECONDS));
+
+			InetAddress address = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+			final CountDownLatch resolved = new CountDownLatch(2);
+			final String names[] = new String[2];
+			HostNameCache.Listener listener = new HostNameCache.Listener() {
+				public void hostNameResolved(InetAddress address, String hostName) {
+					synchronized (names) {
+						names[(int)(2 - resolved.getCount())] = hostName;
+					}
+					resolved.countDown();
+				}
+			};
+
+			/*
+			 * Both lookups are made before the address is resolved, so
+			 * both listeners are called by the one lookup.
+			 */
+			assertFalse(cache.isCached(address));
+			assertNull(cache.lookup(address, listener));
+			assertNull(cache.lookup(address, listener));
+			assertFalse(cache.isCached(address));
+			assertEquals(2, resolved.getCount());
+
+			gate.countDown();
+			assertTrue(resolved.await(20, TimeUnit.SECONDS));
+			assertTrue(cache.isCached(address));
+			assertEquals(2, cache.size());
+			assertEquals(names[0], names[1]);
+			assertEquals(names[0], cache.getHostName(address));
+			assertEquals(names[0], cache.lookup(address, null));
+
+			cache.clear();
+			assertEquals(0, cache.size());
+
+		} finally {
+			cache.shutdown();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testShutdown() throws Exception {
+
+		HostNameCache cache = new HostNameCache(HostNameCache.DEFAULT_TTL,
+			HostNameCache.DEFAULT_NEGATIVE_TTL, HostNameCache.DEFAULT_MAX_ENTRIES, 1);
+
+		final CountDownLatch blocking = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		InetAddress blocker = InetAddress.getByAddress(new byte[] { 127, 0, 0, 2 });
+		cache.lookup(blocker, new HostNameCache.Listener() {
+			public void hostNameResolved(InetAddress address, String hostName) {
+				blocking.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException ignore) {
+				}
+			}
+		});
+
+		assertTrue(blocking.await(20, TimeUnit.SECONDS));
+
+		final AtomicInteger failed = new AtomicInteger();
+		HostNameCache.Listener listener = new HostNameCache.Listener() {
+			public void hostNameResolved(InetAddress address, String hostName) {
+				if (hostName == null) {
+					failed.incrementAndGet();
+				}
+			}
+		};
+
+		/*
+		 * The lookup is still waiting for the resolver thread when the
+		 * cache is shut down, its listeners are told it failed and it
+		 * is dropped so it can be looked up again.
+		 */
+		InetAddress address = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		assertNull(cache.lookup(address, listener));
+		assertNull(cache.lookup(address, listener));
+		assertEquals(0, failed.get());
+		assertEquals(2, cache.size());
+
+		cache.shutdown();
+		gate.countDown();
+		assertEquals(2, failed.get());
+		assertEquals(1, cache.size());
+
+		assertNull(cache.lookup(address, listener));
+		assertEquals(3, failed.get());
+		assertEquals(1, cache.size());
+		assertFalse(cache.isCached(address));
+	}
+}
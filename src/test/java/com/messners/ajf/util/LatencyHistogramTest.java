@@ -0,0 +1,51 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testPercentiles() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50.0));
+
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500, histogram.getMean());
+
+		long p50 = histogram.getPercentile(50.0);
+		assertTrue("p50=" + p50, p50 >= 500000 && p50 <= 500000 * 1.25);
+		long p99 = histogram.getPercentile(99.0);
+		assertTrue("p99=" + p99, p99 >= 990000 && p99 <= 1000000);
+		assertEquals(1000000, histogram.getPercentile(100.0));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void testSmallValues() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 0; i < 16; i++) {
+			histogram.record(i);
+		}
+
+		histogram.record(-5);
+		assertEquals(17, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(0.0));
+		assertEquals(15, histogram.getPercentile(100.0));
+
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100.0));
+	}
+}
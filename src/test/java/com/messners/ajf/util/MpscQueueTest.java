@@ -0,0 +1,115 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MpscQueueTest {
+
+	@Test(timeout = 20000)
+	public void testProducersKeepOrder() throws Exception {
+
+		final MpscQueue<int[]> queue = new MpscQueue<int[]>();
+		final int producers = 8;
+		final int perProducer = 20000;
+		Thread threads[] = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+
+			final int id = p;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						queue.put(new int[] { id, i });
+					}
+				}
+			};
+
+			threads[p].start();
+		}
+
+		int next[] = new int[producers];
+		int received = 0;
+		ArrayList<int[]> batch = new ArrayList<int[]>();
+		while (received < producers * perProducer) {
+
+			batch.clear();
+			received += queue.drainTo(batch, 100, 1000);
+			for (int[] item : batch) {
+				assertEquals(next[item[0]]++, item[1]);
+			}
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(queue.empty());
+		assertNull(queue.poll());
+	}
+
+	@Test(timeout = 10000)
+	public void testWaitForObjects() throws Exception {
+
+		final MpscQueue<Integer> queue = new MpscQueue<Integer>();
+		assertNull(queue.waitForObject(20));
+
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 5; i++) {
+						Thread.sleep(20);
+						queue.put(i);
+					}
+				} catch (InterruptedException ignore) {
+				}
+			}
+		};
+
+		producer.start();
+		queue.waitForObjects(5, 5000);
+		assertEquals(5, queue.size());
+		assertEquals(0, (int)queue.waitForObject(0));
+		producer.join();
+	}
+
+	@Test(timeout = 10000)
+	public void testLockFreeWorkQueue() throws Exception {
+
+		final CountDownLatch done = new CountDownLatch(1000);
+		final List<Object> seen = new ArrayList<Object>();
+		WorkQueue workQueue = new WorkQueue("test", true);
+		workQueue.setIsGui(false);
+		workQueue.setRefreshTime(10);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				seen.addAll(workList);
+				for (int i = 0; i < workList.size(); i++) {
+					done.countDown();
+				}
+			}
+		});
+
+		workQueue.start();
+		try {
+
+			for (int i = 0; i < 1000; i++) {
+				workQueue.queue(Integer.valueOf(i));
+			}
+
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 1000; i++) {
+				assertEquals(i, seen.get(i));
+			}
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PartitionedWorkQueueTest {
+
+	@Test(timeout = 10000)
+	public void testPerKeyOrdering() throws Exception {
+
+		final int keys = 16;
+		final int perKey = 500;
+		final CountDownLatch done = new CountDownLatch(keys * perKey);
+		final Map<Integer, Integer> next = new HashMap<Integer, Integer>();
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		final boolean ordered[] = { true };
+
+		PartitionedWorkQueue workQueue = new PartitionedWorkQueue("test", 4,
+			new WorkKeyExtractor() {
+				public Object getKey(Object work) {
+					return (((int[])work)[0]);
+				}
+			});
+
+		workQueue.setRefreshTime(10);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+
+				threads.add(Thread.currentThread());
+				for (Object work : workList) {
+
+					int item[] = (int[])work;
+					synchronized (next) {
+						Integer expected = next.get(item[0]);
+						if (item[1] != (expected == null ? 0 : expected)) {
+							ordered[0] = false;
+						}
+
+						next.put(item[0], item[1] + 1);
+					}
+
+					done.countDown();
+				}
+			}
+		});
+
+		workQueue.start();
+		try {
+
+			for (int i = 0; i < perKey; i++) {
+				for (int key = 0; key < keys; key++) {
+					workQueue.queue(new int[] { key, i });
+				}
+			}
+
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertTrue(ordered[0]);
+			assertEquals(4, threads.size());
+			assertEquals(0, workQueue.size());
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class QueueTest {
+
+	@Test
+	public void testFifoAcrossGrowth() {
+
+		Queue<Integer> queue = new Queue<Integer>();
+		int next = 0;
+		for (int round = 0; round < 10; round++) {
+
+			for (int i = 0; i < 100; i++) {
+				queue.put(round * 100 + i);
+			}
+
+			for (int i = 0; i < 70; i++) {
+				assertEquals(next++, (int)queue.get());
+			}
+		}
+
+		assertEquals(300, queue.size());
+		assertEquals(next, (int)queue.peek());
+		assertEquals(next + 5, (int)queue.get(5));
+		assertEquals(5, queue.search(next + 5));
+
+		assertEquals(next + 5, (int)queue.remove(5));
+		assertTrue(queue.remove((Object)(next + 6)));
+		assertEquals(298, queue.size());
+		assertEquals(next + 7, (int)queue.get(5));
+
+		while (!queue.empty()) {
+			queue.get();
+		}
+
+		try {
+			queue.get();
+			assertTrue("expected EmptyQueueException", false);
+		} catch (EmptyQueueException expected) {
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testWaitForObjects() throws Exception {
+
+		final Queue<Integer> queue = new Queue<Integer>();
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 5; i++) {
+						Thread.sleep(20);
+						queue.put(i);
+					}
+				} catch (InterruptedException ignore) {
+				}
+			}
+		};
+
+		producer.start();
+		long start = System.currentTimeMillis();
+		queue.waitForObjects(5, 5000);
+		assertTrue(System.currentTimeMillis() - start < 4000);
+		assertEquals(5, queue.size());
+
+
+		/*
+		 * The wait time only counts once an object is queued.
+		 */
+		queue.clear();
+		queue.put(1);
+		start = System.currentTimeMillis();
+		queue.waitForObjects(2, 100);
+		assertTrue(System.currentTimeMillis() - start >= 90);
+		assertEquals(1, queue.size());
+
+		assertEquals(1, (int)queue.waitForObject(100));
+		assertNull(queue.waitForObject(50));
+	}
+
+	@Test(timeout = 20000)
+	public void testDrainToWithProducers() throws Exception {
+
+		final int producers = 4;
+		final int count = 100000;
+		final Queue<Integer> queue = new Queue<Integer>();
+		Thread threads[] = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+
+			final int id = p;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < count; i++) {
+						queue.put(id * count + i);
+					}
+				}
+			};
+
+			threads[p].start();
+		}
+
+		int last[] = new int[producers];
+		for (int p = 0; p < producers; p++) {
+			last[p] = -1;
+		}
+
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		int received = 0;
+		while (received < producers * count) {
+
+			batch.clear();
+			int n = queue.drainTo(batch, 1000, 1000);
+			assertTrue(n > 0 && n <= 1000);
+			assertEquals(n, batch.size());
+			for (int value : batch) {
+
+				int p = value / count;
+				assertTrue("out of order for producer " + p, value % count > last[p]);
+				last[p] = value % count;
+			}
+
+			received += n;
+		}
+
+		assertEquals(0, queue.drainTo(batch, 10, 0));
+		assertTrue(queue.empty());
+	}
+}
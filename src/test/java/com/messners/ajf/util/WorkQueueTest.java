@@ -0,0 +1,453 @@
+package com.messners.ajf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class WorkQueueTest {
+
+	@Test(timeout = 10000)
+	public void testCoalescing() throws Exception {
+
+		final CountDownLatch done = new CountDownLatch(11);
+		final CountDownLatch requeued[] = { new CountDownLatch(1), new CountDownLatch(1) };
+		final List<Object> seen = Collections.synchronizedList(new ArrayList<Object>());
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setRefreshTime(10);
+		workQueue.setCoalescing(new WorkKeyExtractor() {
+			public Object getKey(Object work) {
+				return (work instanceof int[] ? ((int[])work)[0] : null);
+			}
+		});
+
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				seen.addAll(workList);
+				for (Object work : workList) {
+					done.countDown();
+					if (work instanceof int[] && ((int[])work)[1] >= 100) {
+						requeued[((int[])work)[1] - 100].countDown();
+					}
+				}
+			}
+		});
+
+		for (int i = 0; i < 100; i++) {
+			for (int key = 0; key < 10; key++) {
+				workQueue.queue(new int[] { key, i });
+			}
+		}
+
+		workQueue.queue("not coalesced");
+		assertEquals(11, workQueue.size());
+		assertEquals(990, workQueue.getCoalescedCount());
+
+		workQueue.start();
+		try {
+
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(11, seen.size());
+			for (int key = 0; key < 10; key++) {
+				int item[] = (int[])seen.get(key);
+				assertEquals(key, item[0]);
+				assertEquals(99, item[1]);
+			}
+
+			assertEquals("not coalesced", seen.get(10));
+
+
+			/*
+			 * Once dispatched a key is queued again
+			 */
+			workQueue.queue(new int[] { 0, 100 });
+			assertTrue(requeued[0].await(5, TimeUnit.SECONDS));
+			workQueue.queue(new int[] { 0, 101 });
+			assertTrue(requeued[1].await(5, TimeUnit.SECONDS));
+			assertEquals(13, seen.size());
+			assertEquals(100, ((int[])seen.get(11))[1]);
+			assertEquals(101, ((int[])seen.get(12))[1]);
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testBatchesNotReusedByDefault() throws Exception {
+
+		final CountDownLatch done = new CountDownLatch(2);
+		final List<List<Object>> kept = Collections.synchronizedList(new ArrayList<List<Object>>());
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setReadBlockCount(1);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				workList.add("added");
+				kept.add(workList);
+				done.countDown();
+			}
+		});
+
+		assertFalse(workQueue.isReusingBatches());
+		workQueue.queue("first");
+		workQueue.queue("second");
+		workQueue.start();
+		try {
+
+			/*
+			 * Each batch is a new List the listener may change and keep
+			 */
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(2, kept.size());
+			assertEquals(Arrays.asList("first", "added"), kept.get(0));
+			assertEquals(Arrays.asList("second", "added"), kept.get(1));
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testSteadyStateAllocation() throws Exception {
+
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Method allocatedBytes;
+		try {
+			allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			allocatedBytes = null;
+		}
+
+		assumeTrue(allocatedBytes != null && (Long)allocatedBytes.invoke(threadBean,
+			Thread.currentThread().getId()) > 0);
+
+		final AtomicLong processed = new AtomicLong();
+		final long workThreadId[] = new long[1];
+		final boolean readOnly[] = new boolean[1];
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setReadBlockCount(1000);
+		workQueue.setRefreshTime(10);
+		workQueue.setReuseBatches(true);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+
+				if (workThreadId[0] == 0) {
+					workThreadId[0] = Thread.currentThread().getId();
+					try {
+						workList.add("not allowed");
+					} catch (UnsupportedOperationException expected) {
+						readOnly[0] = true;
+					}
+				}
+
+				int size = workList.size();
+				for (int i = 0; i < size; i++) {
+					workList.get(i);
+				}
+
+				processed.addAndGet(size);
+			}
+		});
+
+		workQueue.start();
+		try {
+
+			Integer item = Integer.valueOf(1);
+			long queued = 0;
+			long startBytes = 0;
+			for (int round = 0; round < 400; round++) {
+
+				if (round == 200) {
+					startBytes = (Long)allocatedBytes.invoke(threadBean, workThreadId[0]);
+				}
+
+				for (int i = 0; i < 1000; i++) {
+					workQueue.queue(item);
+				}
+
+				queued += 1000;
+				while (processed.get() < queued) {
+					Thread.sleep(1);
+				}
+			}
+
+			long bytes = (Long)allocatedBytes.invoke(threadBean, workThreadId[0]) - startBytes;
+			assertTrue(readOnly[0]);
+			assertTrue("Allocated " + bytes + " bytes for 200000 items", bytes < 200000);
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testCapacityPolicies() throws Exception {
+
+		final List<Boolean> pressure = new ArrayList<Boolean>();
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setCapacity(4, WorkQueue.REJECT);
+		workQueue.addPressureListener(new WorkQueuePressureListener() {
+			public void pressureChanged(WorkQueue workQueue, boolean high) {
+				pressure.add(high);
+			}
+		});
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(workQueue.offer(Integer.valueOf(i)));
+		}
+
+		assertFalse(workQueue.offer(Integer.valueOf(4)));
+		assertEquals(1, workQueue.getRejectedCount());
+		assertEquals(1, pressure.size());
+		assertTrue(pressure.get(0));
+		assertEquals(1.0f, workQueue.getPressure(), 0.001f);
+
+		workQueue.dequeue(0);
+		workQueue.dequeue(0);
+		workQueue.dequeue(0);
+		assertEquals(2, pressure.size());
+		assertFalse(pressure.get(1));
+
+
+		/*
+		 * BLOCK waits for the block timeout and then rejects
+		 */
+		workQueue.dequeue(0);
+		workQueue.setCapacity(2, WorkQueue.BLOCK);
+		workQueue.setBlockTimeout(50);
+		assertTrue(workQueue.offer(Integer.valueOf(0)));
+		assertTrue(workQueue.offer(Integer.valueOf(1)));
+		long start = System.currentTimeMillis();
+		assertFalse(workQueue.offer(Integer.valueOf(2)));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+
+
+		/*
+		 * DROP_OLDEST keeps the newest work
+		 */
+		workQueue.dequeue(0);
+		workQueue.dequeue(0);
+		workQueue.setCapacity(4, WorkQueue.DROP_OLDEST);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(workQueue.offer(Integer.valueOf(i)));
+		}
+
+		assertEquals(4, workQueue.size());
+		assertEquals(6, workQueue.getDroppedCount());
+		assertEquals(6, workQueue.get(0));
+	}
+
+	@Test(timeout = 10000)
+	public void testSpill() throws Exception {
+
+		final CountDownLatch done = new CountDownLatch(100);
+		final List<Object> seen = new ArrayList<Object>();
+		File directory = new File(System.getProperty("java.io.tmpdir"),
+			"workqueue-spill-" + System.nanoTime());
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setRefreshTime(10);
+		workQueue.setCapacity(4, WorkQueue.SPILL);
+		workQueue.setSpillJournal(directory, 1024);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				seen.addAll(workList);
+				for (int i = 0; i < workList.size(); i++) {
+					done.countDown();
+				}
+			}
+		});
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(workQueue.offer(Integer.valueOf(i)));
+		}
+
+		assertEquals(4, workQueue.size());
+		assertEquals(96, workQueue.getSpillSize());
+		assertEquals(96, workQueue.getSpilledCount());
+		assertTrue(workQueue.getSpillSegmentCount() > 1);
+		assertEquals(workQueue.getSpillSegmentCount(), directory.list().length);
+
+		workQueue.start();
+		try {
+
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 100; i++) {
+				assertEquals(i, seen.get(i));
+			}
+
+			assertEquals(0, workQueue.getSpillSize());
+			assertEquals(1, workQueue.getSpillSegmentCount());
+			assertEquals(1, directory.list().length);
+
+		} finally {
+			workQueue.stop();
+			workQueue.setSpillJournal(null);
+		}
+
+		assertEquals(0, directory.list().length);
+		directory.delete();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLaneSize() {
+
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setPriorityLanes(new int[] { 1, 1 }, WorkQueue.STRICT_PRIORITY);
+		workQueue.getLaneSize(2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLaneLatency() {
+		new WorkQueue("test").getLaneLatency(-1);
+	}
+
+	@Test(timeout = 10000)
+	public void testPriorityLanes() throws Exception {
+
+		final List<List<Object>> batches = new ArrayList<List<Object>>();
+		WorkQueueListener listener = new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				synchronized (batches) {
+					batches.add(new ArrayList<Object>(workList));
+					batches.notifyAll();
+				}
+			}
+		};
+
+		WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setReadBlockCount(10);
+		workQueue.setRefreshTime(10);
+		workQueue.setPriorityLanes(new int[] { 1, 1 }, WorkQueue.STRICT_PRIORITY);
+		workQueue.addListener(listener);
+		assertEquals(2, workQueue.getLaneCount());
+
+		for (int i = 0; i < 20; i++) {
+			workQueue.queue("bulk" + i);
+		}
+
+		for (int i = 0; i < 5; i++) {
+			workQueue.queue("urgent" + i, 1);
+		}
+
+		assertEquals(20, workQueue.getLaneSize(0));
+		assertEquals(5, workQueue.getLaneSize(1));
+		List<Object> first = awaitBatch(workQueue, batches);
+		assertEquals(10, first.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals("urgent" + i, first.get(i));
+			assertEquals("bulk" + i, first.get(i + 5));
+		}
+
+		assertEquals(5, workQueue.getLaneLatency(1).getCount());
+
+
+		/*
+		 * With equal weights each lane gets half of each batch
+		 */
+		workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setReadBlockCount(10);
+		workQueue.setRefreshTime(10);
+		workQueue.setPriorityLanes(new int[] { 1, 1 }, WorkQueue.WEIGHTED_PRIORITY);
+		workQueue.addListener(listener);
+		for (int i = 0; i < 20; i++) {
+			workQueue.queue("bulk" + i);
+			workQueue.queue("urgent" + i, 1);
+		}
+
+		batches.clear();
+		first = awaitBatch(workQueue, batches);
+		assertEquals(10, first.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals("urgent" + i, first.get(i));
+			assertEquals("bulk" + i, first.get(i + 5));
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testLanesNeverDispatchEmpty() throws Exception {
+
+		final int producers = 4;
+		final int count = 20000;
+		final CountDownLatch done = new CountDownLatch(producers * count);
+		final AtomicLong emptyBatches = new AtomicLong();
+		final WorkQueue workQueue = new WorkQueue("test");
+		workQueue.setIsGui(false);
+		workQueue.setReadBlockCount(1);
+		workQueue.setPriorityLanes(new int[] { 1, 1 }, WorkQueue.STRICT_PRIORITY);
+		workQueue.addListener(new WorkQueueListener() {
+			public void doWork(List<Object> workList) {
+				if (workList.isEmpty()) {
+					emptyBatches.incrementAndGet();
+				}
+
+				for (int i = 0; i < workList.size(); i++) {
+					done.countDown();
+				}
+			}
+		});
+
+		workQueue.start();
+		try {
+
+			for (int i = 0; i < producers; i++) {
+
+				final int lane = i % 2;
+				new Thread() {
+					public void run() {
+						for (int j = 0; j < count; j++) {
+							workQueue.queue(Integer.valueOf(j), lane);
+						}
+					}
+				}.start();
+			}
+
+			assertTrue(done.await(20, TimeUnit.SECONDS));
+			assertEquals(0, emptyBatches.get());
+			assertEquals(0, workQueue.size());
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+
+	private List<Object> awaitBatch(WorkQueue workQueue,
+			List<List<Object>> batches) throws InterruptedException {
+
+		workQueue.start();
+		try {
+
+			synchronized (batches) {
+				while (batches.isEmpty()) {
+					batches.wait();
+				}
+
+				return (batches.get(0));
+			}
+
+		} finally {
+			workQueue.stop();
+		}
+	}
+}